@@ -0,0 +1,143 @@
+package ds.bplus.bptree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ *
+ * Builds the trees the benchmarks run on and finds the nodes they work
+ * with; every tree holds the same keys, inserted in the same (shuffled)
+ * order, so leaves are filled as they would be with random inserts.
+ *
+ * One key in the middle gets enough duplicates to have a posting list, so
+ * there is an overflow page to encode and decode as well.
+ *
+ */
+final class BenchmarkTrees {
+
+    // distinct keys of each tree
+    static final int KEYS = 20000;
+    // the key that has a posting list
+    static final long DUPLICATE_KEY = KEYS / 2;
+    // values of that key
+    static final int DUPLICATES = 64;
+
+    private BenchmarkTrees() {}
+
+    /**
+     * Create a tree in the directory and load the benchmark keys into it
+     *
+     * @param dir the directory of the tree file
+     * @param pageSize page size (in bytes)
+     * @param entrySize satellite data size (in bytes)
+     * @return the tree
+     * @throws Exception is thrown when the tree can't be built
+     */
+    static BPlusTree build(File dir, int pageSize, int entrySize) throws Exception {
+        mute();
+        BPlusConfiguration conf = new BPlusConfiguration(pageSize, 8, entrySize);
+        BPlusTree bt = new BPlusTree(conf, "rw+",
+                new File(dir, "tree" + pageSize + "_" + entrySize + ".bin").getPath(),
+                new BPlusTreePerformanceCounter(false));
+        for(long k : shuffledKeys(KEYS, 42))
+            {bt.insertKey(k, "v" + k, false);}
+        for(int d = 1; d < DUPLICATES; d++)
+            {bt.insertKey(DUPLICATE_KEY, "d" + d, false);}
+        return(bt);
+    }
+
+    /**
+     * Return the keys [0, n) in random order
+     *
+     * @param n number of keys
+     * @param seed the seed of the shuffle
+     * @return the keys
+     */
+    static long[] shuffledKeys(int n, long seed) {
+        long[] keys = new long[n];
+        for(int i = 0; i < n; i++)
+            {keys[i] = i;}
+        Random r = new Random(seed);
+        for(int i = n - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            long t = keys[i]; keys[i] = keys[j]; keys[j] = t;
+        }
+        return(keys);
+    }
+
+    /**
+     * Return the leaf that holds the key
+     *
+     * @param bt the tree
+     * @param key the key
+     * @return the leaf
+     * @throws IOException is thrown when a page read fails
+     */
+    static TreeLeaf leafOf(BPlusTree bt, long key) throws IOException {
+        TreeNode n = bt.getRoot();
+        while(n.isInternalNode())
+            {n = bt.readNode(childOf(bt, (TreeInternalNode)n, key));}
+        return((TreeLeaf)n);
+    }
+
+    /**
+     * Return the lowest internal node on the path of the key
+     *
+     * @param bt the tree
+     * @param key the key
+     * @return the parent of the leaf that holds the key
+     * @throws IOException is thrown when a page read fails
+     * @throws IllegalStateException is thrown when the root is a leaf
+     */
+    static TreeInternalNode parentOf(BPlusTree bt, long key) throws IOException {
+        if(!bt.getRoot().isInternalNode())
+            {throw new IllegalStateException("The tree has a single leaf");}
+        TreeInternalNode n = (TreeInternalNode)bt.getRoot();
+        TreeNode c;
+        while((c = bt.readNode(childOf(bt, n, key))).isInternalNode())
+            {n = (TreeInternalNode)c;}
+        return(n);
+    }
+
+    /**
+     * Return the child pointer of an internal node that covers the key
+     */
+    private static long childOf(BPlusTree bt, TreeInternalNode n, long key) {
+        byte[] k = BinaryKeys.fromLong(key, bt.getTreeConfiguration().getKeySize());
+        int i = 0;
+        while(i < n.getCurrentCapacity() && bt.compareKeys(k, n.getKeyAt(i)) >= 0)
+            {i++;}
+        return(n.getPointerAt(i));
+    }
+
+    /**
+     * Drop whatever the tree prints on stdout (file conditioning and so
+     * on), so that we time the work and not the console.
+     */
+    static void mute() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }));
+    }
+
+    /**
+     * Delete a directory along with the tree files in it
+     *
+     * @param dir the directory
+     */
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files)
+                {f.delete();}
+        }
+        dir.delete();
+    }
+}
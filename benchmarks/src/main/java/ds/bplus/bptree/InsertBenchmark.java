@@ -0,0 +1,75 @@
+package ds.bplus.bptree;
+
+import ds.bplus.util.InvalidBTreeStateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Random key inserts (including the splits they cause) and the commit of
+ * the free page pool to the lookup pages.
+ *
+ * The tree is rebuilt before every iteration, so it doesn't keep growing
+ * across them; the pool is filled by deleting every other key first.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsertBenchmark {
+
+    @Param({"256", "1024", "2048", "4096"})
+    public int pageSize;
+
+    @Param({"20", "40"})
+    public int entrySize;
+
+    private File dir;
+    private BPlusTree bt;
+    private SplittableRandom random;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bplus-bench").toFile();
+        bt = BenchmarkTrees.build(dir, pageSize, entrySize);
+        for(long k = 0; k < BenchmarkTrees.KEYS; k += 2)
+            {bt.deleteKey(k, false);}
+        random = new SplittableRandom(11);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        bt.commitTree();
+        BenchmarkTrees.delete(dir);
+    }
+
+    @Benchmark
+    public void insertKey() throws IOException, InvalidBTreeStateException {
+        long k = random.nextLong(Long.MAX_VALUE);
+        bt.insertKey(k, "v", false);
+    }
+
+    @Benchmark
+    public void commitLookupPage() throws IOException, InvalidBTreeStateException
+        {bt.commitLookupPage();}
+}
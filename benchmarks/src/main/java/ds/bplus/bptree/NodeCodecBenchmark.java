@@ -0,0 +1,118 @@
+package ds.bplus.bptree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Decoding (readNode) and encoding (writeNode) of each page type.
+ *
+ * Reads go through the tree, so they include the positional read of the
+ * page, which is served from the OS page cache after the first one. Writes
+ * go to a scratch file at the page offset of the node, so the tree itself
+ * is never touched.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeCodecBenchmark {
+
+    @Param({"256", "1024", "2048", "4096"})
+    public int pageSize;
+
+    @Param({"20", "40"})
+    public int entrySize;
+
+    private File dir;
+    private BPlusTree bt;
+    private BPlusConfiguration conf;
+    private BPlusTreePerformanceCounter perf;
+    private RandomAccessFile scratch;
+
+    private TreeLeaf leaf;
+    private TreeInternalNode inode;
+    private TreeOverflow overflow;
+    private TreeLookupOverflowNode lookup;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bplus-bench").toFile();
+        bt = BenchmarkTrees.build(dir, pageSize, entrySize);
+        conf = bt.getTreeConfiguration();
+        perf = new BPlusTreePerformanceCounter(false);
+        scratch = new RandomAccessFile(new File(dir, "scratch.bin"), "rw");
+
+        leaf = BenchmarkTrees.leafOf(bt, BenchmarkTrees.KEYS / 3);
+        inode = BenchmarkTrees.parentOf(bt, BenchmarkTrees.KEYS / 3);
+
+        TreeLeaf dl = BenchmarkTrees.leafOf(bt, BenchmarkTrees.DUPLICATE_KEY);
+        byte[] dk = BinaryKeys.fromLong(BenchmarkTrees.DUPLICATE_KEY, conf.getKeySize());
+        int i = 0;
+        while(bt.compareKeys(dl.getKeyAt(i), dk) != 0)
+            {i++;}
+        overflow = (TreeOverflow)bt.readNode(dl.getOverflowPointerAt(i));
+
+        // a full page of free page indexes
+        lookup = new TreeLookupOverflowNode(leaf.getPageIndex(), -1L);
+        for(int j = 0; j < conf.getMaxLookupPageOverflowCapacity(); j++) {
+            lookup.addToIndexArrayAt(j, (long)conf.getPageSize() * (j + 1));
+            lookup.incrementCapacity(conf);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        scratch.close();
+        bt.commitTree();
+        BenchmarkTrees.delete(dir);
+    }
+
+    @Benchmark
+    public TreeNode readLeaf() throws IOException
+        {return(bt.readNode(leaf.getPageIndex()));}
+
+    @Benchmark
+    public TreeNode readInternal() throws IOException
+        {return(bt.readNode(inode.getPageIndex()));}
+
+    @Benchmark
+    public TreeNode readOverflow() throws IOException
+        {return(bt.readNode(overflow.getPageIndex()));}
+
+    @Benchmark
+    public void writeLeaf() throws IOException
+        {leaf.writeNode(scratch, conf, perf);}
+
+    @Benchmark
+    public void writeInternal() throws IOException
+        {inode.writeNode(scratch, conf, perf);}
+
+    @Benchmark
+    public void writeOverflow() throws IOException
+        {overflow.writeNode(scratch, conf, perf);}
+
+    @Benchmark
+    public void writeLookupOverflow() throws IOException
+        {lookup.writeNode(scratch, conf, perf);}
+}
@@ -0,0 +1,101 @@
+package ds.bplus.bptree;
+
+import ds.bplus.util.InvalidBTreeStateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * In-node binary search, value conditioning and full key lookups.
+ *
+ * Lookups probe existing keys in random order, so most of them can't reuse
+ * the path of the previous one (see Finger) and descend from the root.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    // number of distinct keys we probe (a power of two)
+    private static final int PROBES = 4096;
+
+    @Param({"256", "1024", "2048", "4096"})
+    public int pageSize;
+
+    @Param({"20", "40"})
+    public int entrySize;
+
+    private File dir;
+    private BPlusTree bt;
+
+    private TreeLeaf leaf;
+    private byte[] leafKey;
+    private TreeInternalNode inode;
+    private byte[] internalKey;
+    private String value;
+
+    private byte[][] probes;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bplus-bench").toFile();
+        bt = BenchmarkTrees.build(dir, pageSize, entrySize);
+        int keySize = bt.getTreeConfiguration().getKeySize();
+
+        leaf = BenchmarkTrees.leafOf(bt, BenchmarkTrees.KEYS / 3);
+        leafKey = leaf.getKeyAt(leaf.getCurrentCapacity() / 2);
+        inode = BenchmarkTrees.parentOf(bt, BenchmarkTrees.KEYS / 3);
+        internalKey = inode.getKeyAt(inode.getCurrentCapacity() / 2);
+        value = "v" + BenchmarkTrees.KEYS;
+
+        long[] keys = BenchmarkTrees.shuffledKeys(BenchmarkTrees.KEYS, 7);
+        probes = new byte[PROBES][];
+        for(int i = 0; i < PROBES; i++)
+            {probes[i] = BinaryKeys.fromLong(keys[i], keySize);}
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        bt.commitTree();
+        BenchmarkTrees.delete(dir);
+    }
+
+    @Benchmark
+    public int binSearchLeaf()
+        {return(bt.binSearchBlock(leaf, leafKey, BPlusTree.Rank.Succ));}
+
+    @Benchmark
+    public int binSearchInternal()
+        {return(bt.binSearchBlock(inode, internalKey, BPlusTree.Rank.PlusOne));}
+
+    @Benchmark
+    public String conditionString()
+        {return(bt.conditionString(value));}
+
+    @Benchmark
+    public SearchResult searchKey() throws IOException, InvalidBTreeStateException {
+        next = (next + 1) & (PROBES - 1);
+        return(bt.searchKey(probes[next], false));
+    }
+}
@@ -1,5 +1,7 @@
 package ds.bplus.bptree;
 
+import java.util.Comparator;
+
 /**
  *
  * Class that stores all of the configuration parameters for our B+ Tree.
@@ -18,11 +20,23 @@ public class BPlusConfiguration {
     private int leafHeaderSize;           // leaf node header size (in bytes)
     private int internalNodeHeaderSize;   // internal node header size (in bytes)
     private int lookupOverflowHeaderSize; // lookup overflow page header size
+    private int overflowHeaderSize;       // overflow page header size (in bytes)
     private int lookupOverflowPageDegree; // lookup overflow page degree
     private int leafNodeDegree;           // leaf node degree
     private int overflowPageDegree;       // overflow page degree
     private int lookupPageSize;           // look up page size
     private int conditionThreshold;       // iterations to perform conditioning
+    private Comparator<byte[]> keyComparator; // key ordering (on raw key bytes)
+    private boolean keyCompression;       // prefix compress keys to raise fanout
+    private boolean postingListCompression; // store duplicate values without padding
+    private int inlineDuplicateLimit;     // duplicates kept in the leaf per key
+    private int leafLowWaterMark;         // merge leaves at or below it (-1: min capacity)
+    private int leafFillFactor;           // split leaves when this full (percent)
+    private boolean lazyMerge;            // only merge leaves about to become empty
+    private boolean deferredMerge;        // leave leaf merges to compact()
+
+    static final int POINTER_SIZE = Long.SIZE / 8; // page pointers are longs
+    static final int MAX_KEY_PREFIX = 255;         // prefix length is stored in a byte
 
     /**
      *
@@ -84,6 +98,16 @@ public class BPlusConfiguration {
         this.pageSize = pageSize;   // page size (in bytes)
         this.entrySize = entrySize; // entry size (in bytes)
         this.keySize = keySize;     // key size (in bytes)
+        this.keyComparator = BinaryKeys.UNSIGNED_LEXICOGRAPHIC;
+        this.keyCompression = true;
+        this.postingListCompression = false;
+        this.inlineDuplicateLimit = 4;
+        this.leafLowWaterMark = -1;
+        this.leafFillFactor = 100;
+        this.lazyMerge = false;
+        this.deferredMerge = false;
+        if(keySize <= 0)
+            {throw new IllegalArgumentException("Key size must be > 0");}
     }
 
     /**
@@ -98,17 +122,22 @@ public class BPlusConfiguration {
                                   int entrySize, int conditionThreshold) {
         this.headerSize =                                   // header size in bytes
                 (Integer.SIZE * 4 + 4 * Long.SIZE) / 8;
-        this.internalNodeHeaderSize = (Short.SIZE + Integer.SIZE) / 8; // 6 bytes
-        this.leafHeaderSize = (Short.SIZE + 2 * Long.SIZE + Integer.SIZE) / 8; // 22 bytes
+        // both node headers include the shared key prefix length (a byte)
+        this.internalNodeHeaderSize = (Short.SIZE + Integer.SIZE + Byte.SIZE) / 8; // 7 bytes
+        this.leafHeaderSize = (Short.SIZE + 2 * Long.SIZE + Integer.SIZE + Byte.SIZE) / 8; // 23 bytes
         this.lookupOverflowHeaderSize = 14;
+        // leaf header plus the posting list tail pointer, count and flags
+        this.overflowHeaderSize = (Short.SIZE + 4 * Long.SIZE + Integer.SIZE + Byte.SIZE) / 8; // 39 bytes
         this.lookupPageSize = pageSize - headerSize;        // lookup page size
         this.conditionThreshold = conditionThreshold;       // iterations for conditioning
-        // now calculate the tree degree
-        this.treeDegree = calculateDegree(2*keySize, internalNodeHeaderSize);
-        // leaf & overflow have the same header size.
-        this.leafNodeDegree = calculateDegree((2*keySize)+entrySize, leafHeaderSize);
-        this.overflowPageDegree = calculateDegree(entrySize, leafHeaderSize);
-        this.lookupOverflowPageDegree = calculateDegree(keySize,
+        // now calculate the tree degree (key length + key + child pointer + subtree count)
+        this.treeDegree = calculateDegree(getSeparatorLengthSize() + keySize + 2 * POINTER_SIZE,
+                internalNodeHeaderSize);
+        // leaf & overflow have the same header size (key + overflow pointer + value).
+        this.leafNodeDegree = calculateDegree(keySize + POINTER_SIZE + entrySize, leafHeaderSize);
+        this.overflowPageDegree = calculateDegree(entrySize, overflowHeaderSize);
+        // lookup pages store page indexes, not keys
+        this.lookupOverflowPageDegree = calculateDegree(POINTER_SIZE,
                 lookupOverflowHeaderSize);
         checkDegreeValidity();
     }
@@ -142,7 +171,7 @@ public class BPlusConfiguration {
     }
 
     public int getFirstLookupPageElements() {
-        return lookupPageSize / keySize;
+        return lookupPageSize / POINTER_SIZE;
     }
 
     public int getTreeDegree()
@@ -157,10 +186,189 @@ public class BPlusConfiguration {
     public int getMaxLeafNodeCapacity()
         {return((2*leafNodeDegree) - 1);}
 
+    /**
+     * Max leaf node capacity when all of its keys are known to share
+     * a prefix of <code>keyPrefix</code> bytes (which is stored only once
+     * per page); the result is never less than the uncompressed capacity.
+     *
+     * Leaves are filled based on the keys they actually hold, so the
+     * capacity is capped below twice the uncompressed one; this way either
+     * half of a split leaf can always take any key.
+     *
+     * @param keyPrefix the shared key prefix length (in bytes)
+     * @return the max number of entries that fit in the page
+     */
+    public int getMaxLeafNodeCapacity(int keyPrefix) {
+        if(keyPrefix <= 0)
+            {return(getMaxLeafNodeCapacity());}
+        keyPrefix = Math.min(keyPrefix, Math.min(keySize, MAX_KEY_PREFIX));
+        int cap = (pageSize - leafHeaderSize - keyPrefix) /
+                (keySize - keyPrefix + POINTER_SIZE + entrySize);
+        cap = Math.min(cap, 2*getMaxLeafNodeCapacity() - 2);
+        return(Math.max(cap, getMaxLeafNodeCapacity()));
+    }
+
+    /**
+     * Hard internal node capacity limit, that is the capacity when
+     * every separator is stored with an empty suffix.
+     *
+     * @return the internal node capacity limit
+     */
+    public int getInternalNodeCapacityLimit() {
+        return(Math.max(getMaxInternalNodeCapacity(),
+                (pageSize - internalNodeHeaderSize - 2 * POINTER_SIZE) /
+                        (getSeparatorLengthSize() + 2 * POINTER_SIZE)));
+    }
+
+    /**
+     * Size of the length field stored in front of each separator
+     * of an internal node (in bytes).
+     *
+     * @return one byte for keys up to 255 bytes, two otherwise
+     */
+    public int getSeparatorLengthSize()
+        {return(keySize <= 0xFF ? 1 : 2);}
+
+    public int getInternalNodeHeaderSize()
+        {return(internalNodeHeaderSize);}
+
+    public int getLeafNodeHeaderSize()
+        {return(leafHeaderSize);}
+
+    public int getInlineDuplicateLimit()
+        {return(inlineDuplicateLimit);}
+
+    /**
+     * Set how many duplicates of a key are kept inline in its leaf (4 by
+     * default) before they spill to overflow pages; zero disables it. Inline
+     * duplicates only use the free space of the leaf, so they also spill when
+     * the leaf fills up.
+     *
+     * @param inlineDuplicateLimit the number of inline duplicates per key
+     */
+    public void setInlineDuplicateLimit(int inlineDuplicateLimit) {
+        if(inlineDuplicateLimit < 0)
+            {throw new IllegalArgumentException("Inline duplicate limit must be >= 0");}
+        this.inlineDuplicateLimit = inlineDuplicateLimit;
+    }
+
+    /**
+     * The number of keys at (or below) which a leaf is merged with, or
+     * refilled from, a neighbour on deletes; by default the min capacity,
+     * while in lazy merge mode only leaves about to become empty are.
+     *
+     * @return the leaf low-water mark
+     */
+    public int getLeafLowWaterMark() {
+        if(lazyMerge)
+            {return(1);}
+        return(leafLowWaterMark < 0 ? getMinLeafNodeCapacity() : leafLowWaterMark);
+    }
+
+    /**
+     * Set the leaf low-water mark (see above); it has to be between one and
+     * the min leaf capacity. Keep it well below half the high-water mark, so
+     * that merged leaves are not split again by the next few inserts.
+     *
+     * @param leafLowWaterMark the number of keys
+     */
+    public void setLeafLowWaterMark(int leafLowWaterMark) {
+        if(leafLowWaterMark < 1 || leafLowWaterMark > getMinLeafNodeCapacity())
+            {throw new IllegalArgumentException("Leaf low-water mark must be in [1, " +
+                    getMinLeafNodeCapacity() + "]");}
+        this.leafLowWaterMark = leafLowWaterMark;
+    }
+
+    /**
+     * The number of keys at which a leaf is split on inserts, that is the
+     * max capacity scaled by the fill factor.
+     *
+     * @param keyPrefix the shared key prefix length (in bytes)
+     * @return the leaf high-water mark
+     */
+    public int getLeafHighWaterMark(int keyPrefix)
+        {return(Math.max(2, getMaxLeafNodeCapacity(keyPrefix) * leafFillFactor / 100));}
+
+    public int getLeafFillFactor()
+        {return(leafFillFactor);}
+
+    /**
+     * Set how full (in percent of their capacity) the leaves get before they
+     * split, 100 by default; bulk loads fill the leaves up to it as well.
+     *
+     * @param leafFillFactor the fill factor, between 50 and 100
+     */
+    public void setLeafFillFactor(int leafFillFactor) {
+        if(leafFillFactor < 50 || leafFillFactor > 100)
+            {throw new IllegalArgumentException("Leaf fill factor must be in [50, 100]");}
+        this.leafFillFactor = leafFillFactor;
+    }
+
+    public boolean isLazyMerge()
+        {return(lazyMerge);}
+
+    /**
+     * Enable or disable lazy merging (disabled by default); when enabled
+     * leaves are left under-full on deletes and only merged with a neighbour
+     * right before they would become empty, so their pages are reclaimed
+     * without moving keys around all the time.
+     *
+     * @param lazyMerge the flag value
+     */
+    public void setLazyMerge(boolean lazyMerge)
+        {this.lazyMerge = lazyMerge;}
+
+    public boolean isDeferredMerge()
+        {return(deferredMerge);}
+
+    /**
+     * Enable or disable deferred merging (disabled by default); when enabled
+     * deletes only remove the entry and remember the leaves they left below
+     * the low-water mark, which are merged or redistributed later on by
+     * BPlusTree.compact (i.e. from a LeafCompactor). Leaves are still merged
+     * right away when they would become empty.
+     *
+     * @param deferredMerge the flag value
+     */
+    public void setDeferredMerge(boolean deferredMerge)
+        {this.deferredMerge = deferredMerge;}
+
+    /**
+     * Hard leaf node capacity limit, that is the capacity for the
+     * longest possible shared prefix.
+     *
+     * @return the leaf node capacity limit
+     */
+    public int getLeafNodeCapacityLimit()
+        {return(getMaxLeafNodeCapacity(keySize));}
+
     public int getMaxOverflowNodeCapacity() {
         return ((2 * overflowPageDegree) - 1);
     }
 
+    /**
+     * Hard overflow page capacity limit, that is the capacity of a
+     * compressed page when all values are empty.
+     *
+     * @return the overflow page capacity limit
+     */
+    public int getOverflowNodeCapacityLimit() {
+        return(Math.max(getMaxOverflowNodeCapacity(),
+                (pageSize - overflowHeaderSize) / getValueLengthSize()));
+    }
+
+    /**
+     * Size of the length field stored in front of each value
+     * in a compressed overflow page (in bytes).
+     *
+     * @return one byte for entries up to 255 bytes, two otherwise
+     */
+    public int getValueLengthSize()
+        {return(entrySize <= 0xFF ? 1 : 2);}
+
+    public int getOverflowHeaderSize()
+        {return(overflowHeaderSize);}
+
     public int getMaxLookupPageOverflowCapacity() {
         return ((2 * lookupOverflowPageDegree) - 1);
     }
@@ -178,7 +386,7 @@ public class BPlusConfiguration {
         {return leafNodeDegree;}
 
     public int getLookupPageDegree()
-        {return(pageSize/keySize);}
+        {return(pageSize/POINTER_SIZE);}
 
     public int getLookupPageSize()
         {return(lookupPageSize);}
@@ -192,6 +400,85 @@ public class BPlusConfiguration {
     public void setConditionThreshold(int conditionThreshold)
         {this.conditionThreshold = conditionThreshold;}
 
+    public Comparator<byte[]> getKeyComparator()
+        {return(keyComparator);}
+
+    /**
+     * Set the comparator used to order the keys; it is *not* stored in
+     * the tree file so the same comparator has to be supplied every
+     * time an existing tree is opened.
+     *
+     * @param keyComparator comparator on the raw (keySize wide) key bytes
+     */
+    public void setKeyComparator(Comparator<byte[]> keyComparator) {
+        if(keyComparator == null)
+            {throw new IllegalArgumentException("Key comparator can't be null");}
+        this.keyComparator = keyComparator;
+    }
+
+    /**
+     * Check if we use the default (unsigned lexicographic) key ordering
+     *
+     * @return true if the default comparator is used, false otherwise
+     */
+    public boolean hasDefaultKeyComparator()
+        {return(keyComparator == BinaryKeys.UNSIGNED_LEXICOGRAPHIC);}
+
+    /**
+     * Check if key prefix compression is used to raise the node
+     * capacity; this requires the default key ordering as only then
+     * all the keys between two separators share their common prefix.
+     *
+     * @return true if prefix compression is in effect, false otherwise
+     */
+    public boolean isKeyCompressionEnabled()
+        {return(keyCompression && hasDefaultKeyComparator());}
+
+    /**
+     * Enable or disable key prefix compression (enabled by default); pages
+     * always store their shared key prefix only once, this flag controls
+     * whether the saved space is used to hold more keys per page as well
+     * as if leaf splits promote the shortest separating key.
+     *
+     * @param keyCompression the flag value
+     */
+    public void setKeyCompression(boolean keyCompression)
+        {this.keyCompression = keyCompression;}
+
+    public boolean isPostingListCompression()
+        {return(postingListCompression);}
+
+    /**
+     * Enable or disable posting list compression (disabled by default); when
+     * enabled new overflow pages store the duplicate values without their
+     * padding, so short values take less space.
+     *
+     * @param postingListCompression the flag value
+     */
+    public void setPostingListCompression(boolean postingListCompression)
+        {this.postingListCompression = postingListCompression;}
+
+    /**
+     * Take the options that are not stored in the tree file (all but the
+     * page, key and entry sizes) from another configuration; used when an
+     * existing tree is opened with the configuration it was created with.
+     *
+     * @param other the configuration to take them from
+     */
+    void copyOptions(BPlusConfiguration other) {
+        this.conditionThreshold = other.conditionThreshold;
+        this.keyComparator = other.keyComparator;
+        this.keyCompression = other.keyCompression;
+        this.postingListCompression = other.postingListCompression;
+        this.inlineDuplicateLimit = other.inlineDuplicateLimit;
+        // the min capacity depends on the page size, so check it again
+        this.leafLowWaterMark = other.leafLowWaterMark <= getMinLeafNodeCapacity() ?
+                other.leafLowWaterMark : -1;
+        this.leafFillFactor = other.leafFillFactor;
+        this.lazyMerge = other.lazyMerge;
+        this.deferredMerge = other.deferredMerge;
+    }
+
     public int getHeaderSize()
         {return(headerSize);}
 
@@ -207,6 +494,14 @@ public class BPlusConfiguration {
         System.out.println("\n\nPrinting B+ Tree configuration\n");
         System.out.println("Page size: " + pageSize + " (in bytes)");
         System.out.println("Key size: " + keySize + " (in bytes)");
+        System.out.println("Key ordering: " + (hasDefaultKeyComparator() ?
+                "unsigned lexicographic" : keyComparator.getClass().getName()));
+        System.out.println("Key prefix compression: " + isKeyCompressionEnabled());
+        System.out.println("Inline duplicates per key: " + getInlineDuplicateLimit());
+        System.out.println("Leaf low-water mark: " + getLeafLowWaterMark() +
+                (isLazyMerge() ? " (lazy merge)" : "") +
+                (isDeferredMerge() ? " (deferred merge)" : "") +
+                ", fill factor: " + getLeafFillFactor() + "%");
         System.out.println("Entry size: " + entrySize + " (in bytes)");
         System.out.println("File header size: " + headerSize + " (in bytes)");
         System.out.println("Lookup space size: " + getLookupPageSize() +
@@ -5,14 +5,40 @@ import ds.bplus.util.InvalidBTreeStateException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.InvalidPropertiesFormatException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.stream.Collectors;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongUnaryOperator;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 @SuppressWarnings("WeakerAccess")
 public class BPlusTree {
 
+    // share of the keys the left leaf keeps when splitting on appends
+    private static final int APPEND_SPLIT_PERCENT = 90;
+
     private TreeNode root;
     private TreeNode aChild;
     private RandomAccessFile treeFile;
@@ -23,7 +49,22 @@ public class BPlusTree {
     private long totalTreePages;
     private long maxPageNumber;
     private int deleteIterations;
+    private int modCount;
+    private int structureVersion;
+    private LinkedList<TreeNode> rightSpine = new LinkedList<>();
+    private LinkedList<TreeNode> nextRightSpine = new LinkedList<>();
+    private int rightSpineModCount = -1;
+    private final ThreadLocal<Finger> finger = ThreadLocal.withInitial(Finger::new);
+    private final ArrayList<TreeNode> insertPath = new ArrayList<>();
+    private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+    private final LinkedHashMap<Long, byte[]> underfullLeaves = new LinkedHashMap<>();
+    private boolean compacting = false;
+    private DefragmentPlan defragPlan = null;
     private BPlusTreePerformanceCounter bPerf = null;
+    private String treeFilePath;
+    private ObjectName mbeanName = null;
+    private QueryExplain explain = null;
+    private Thread explainThread = null;
 
     /**
      * Super basic constructor, create everything using their
@@ -105,6 +146,8 @@ public class BPlusTree {
      * Insert the key into the tree while also providing the flexibility
      * of having unique keys or not at will.
      *
+     * The key is encoded as a big-endian binary key of the configured key size.
+     *
      * @param key key to add
      * @param value value of the key
      * @param unique allow duplicates for this run?
@@ -117,33 +160,320 @@ public class BPlusTree {
     public void insertKey(long key, String value, boolean unique)
             throws IOException, InvalidBTreeStateException,
             IllegalStateException, NumberFormatException {
+        insertKey(BinaryKeys.fromLong(key, conf.getKeySize()), value, unique);
+    }
+
+    /**
+     * Insert the binary key into the tree while also providing the flexibility
+     * of having unique keys or not at will.
+     *
+     * @param key key to add (exactly key size bytes)
+     * @param value value of the key
+     * @param unique allow duplicates for this run?
+     * @throws IOException is thrown when any of the read/write ops fail.
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the tree blocks.
+     * @throws IllegalStateException is thrown we have a null tree
+     * @throws IllegalArgumentException is thrown when the key does not match the key size
+     */
+    @SuppressWarnings("unused")
+    public void insertKey(byte[] key, String value, boolean unique)
+            throws IOException, InvalidBTreeStateException,
+            IllegalStateException, IllegalArgumentException {
+        long start = System.nanoTime();
+        bPerf.beginTracedOperation();
+        treeLock.writeLock().lock();
+        try {
+            if(root == null)
+                {throw new IllegalStateException("Can't insert to null tree");}
+
+            checkKey(key);
+
+            value = conditionString(value);
+            // the right spine we kept is only good if nothing else happened since
+            if(rightSpineModCount != modCount)
+                {rightSpine.clear();}
+            nextRightSpine = new LinkedList<>();
+            // so is the path of the last operation of this thread; we go
+            // down along it and it becomes the path of this insert
+            Finger f = finger.get();
+            insertPath.clear();
+            if(f.isValid(structureVersion) && f.getExactModCount() == modCount) {
+                for(int d = 0; d < f.size(); d++)
+                    {insertPath.add(f.getNodeAt(d));}
+            }
+            f.reset(structureVersion, root);
+            modCount++;
+
+            // check if our root is full
+            if(root.isFull(conf, root.isLeaf() ? getLeafKeyPrefix(root, key) : 0)) {
+                // allocate a new *internal* node, to be placed as the
+                // *left* child of the new root
+                aChild = this.root;
+                TreeInternalNode node_buf = new TreeInternalNode(TreeNodeType.TREE_ROOT_INTERNAL,
+                        generateFirstAvailablePageIndex(conf));
+                node_buf.addPointerAt(0, aChild.getPageIndex());
+                node_buf.addCountAt(0, aChild.getSubtreeCount());
+                this.root = node_buf;
+
+                // split root.
+                splitTreeNode(node_buf, 0, key);
+                writeFileHeader(conf);
+                insertNonFull(node_buf, null, null, key, value, unique);
+            }
+            else
+                {insertNonFull(root, null, null, key, value, unique);}
+            rightSpine = nextRightSpine;
+            rightSpineModCount = modCount;
+            // we wrote the nodes of the path as we have them; a split
+            // changed the structure version, which drops the path anyway
+            f.setModCount(modCount);
+            f.setExactModCount(modCount);
+            bPerf.incrementTotalInsertions();
+        } finally {
+            treeLock.writeLock().unlock();
+            bPerf.recordInsertLatency(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Set the value of a key, inserting the key if it's not there; see the
+     * binary key variant below.
+     *
+     * @param key the key
+     * @param value the new value
+     * @return the previous value, or null if the key was inserted
+     * @throws IOException is thrown when any of the read/write ops fail.
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the tree blocks.
+     */
+    @SuppressWarnings("unused")
+    public String upsert(long key, String value)
+            throws IOException, InvalidBTreeStateException {
+        return(upsert(BinaryKeys.fromLong(key, conf.getKeySize()), value));
+    }
 
-        if(root == null)
-            {throw new IllegalStateException("Can't insert to null tree");}
+    /**
+     * Set the value of a binary key, inserting the key if it's not there.
+     *
+     * An existing key has its value overwritten in place, in the leaf we
+     * find with a single (finger) descent, so it only costs one page write;
+     * for keys with duplicates that's the first value, the rest are kept.
+     * Missing keys are inserted as usual, since the entry counts along the
+     * path have to be updated.
+     *
+     * @param key the key (exactly key size bytes)
+     * @param value the new value
+     * @return the previous value, or null if the key was inserted
+     * @throws IOException is thrown when any of the read/write ops fail.
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the tree blocks.
+     */
+    public String upsert(byte[] key, String value)
+            throws IOException, InvalidBTreeStateException {
+        treeLock.writeLock().lock();
+        try {
+            String prev = update(key, v -> value);
+            if(prev == null)
+                {insertKey(key, value, true);}
+            return(prev);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
 
-        if(key < 0)
-            {throw new NumberFormatException("Can't have negative keys, sorry.");}
+    /**
+     * Replace the value of a key with a function of it; see the binary key
+     * variant below.
+     *
+     * @param key the key
+     * @param fn maps the current value to the new one
+     * @return the previous value, or null if the key does not exist
+     * @throws IOException is thrown when any of the read/write ops fail.
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the tree blocks.
+     */
+    @SuppressWarnings("unused")
+    public String update(long key, UnaryOperator<String> fn)
+            throws IOException, InvalidBTreeStateException {
+        return(update(BinaryKeys.fromLong(key, conf.getKeySize()), fn));
+    }
 
-        value = conditionString(value);
+    /**
+     * Replace the value of a binary key with a function of it, in place;
+     * the function gets the value as stored (padded to the satellite data
+     * size) and for keys with duplicates only the first value is updated.
+     * Missing keys are left alone.
+     *
+     * @param key the key (exactly key size bytes)
+     * @param fn maps the current value to the new one
+     * @return the previous value, or null if the key does not exist
+     * @throws IOException is thrown when any of the read/write ops fail.
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the tree blocks.
+     * @throws IllegalArgumentException is thrown when the key is invalid or fn returns null
+     */
+    public String update(byte[] key, UnaryOperator<String> fn)
+            throws IOException, InvalidBTreeStateException, IllegalArgumentException {
+        checkKey(key);
+        bPerf.beginTracedOperation();
+        treeLock.writeLock().lock();
+        try {
+            TreeLeaf l = findLeaf(key);
+            int i = binSearchBlock(l, key, Rank.Succ);
+            if(i >= l.getCurrentCapacity() || compareKeys(l.getKeyAt(i), key) != 0)
+                {return(null);}
+            String value = fn.apply(l.getValueAt(i));
+            if(value == null)
+                {throw new IllegalArgumentException("Can't update to a null value");}
+            modCount++;
+            String prev = l.setValueAt(i, conditionString(value));
+            l.writeNode(treeFile, conf, bPerf);
+            return(prev);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
 
-        // check if our root is full
-        if(root.isFull(conf)) {
-            // allocate a new *internal* node, to be placed as the
-            // *left* child of the new root
-            aChild = this.root;
-            TreeInternalNode node_buf = new TreeInternalNode(TreeNodeType.TREE_ROOT_INTERNAL,
-                    generateFirstAvailablePageIndex(conf));
-            node_buf.addPointerAt(0, aChild.getPageIndex());
-            this.root = node_buf;
+    /**
+     * Build the tree bottom-up from (Key, Value) pairs sorted by key, using
+     * the common fork-join pool; see the variant below.
+     *
+     * @param entries the (Key, Value) pairs in ascending key order
+     * @param unique keep only the first value of each key?
+     * @throws IOException is thrown when any of the read/write ops fail.
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the tree blocks.
+     * @throws IllegalStateException is thrown when the tree is not empty
+     * @throws IllegalArgumentException is thrown when the pairs are not sorted or a key is invalid
+     */
+    @SuppressWarnings("unused")
+    public void bulkLoad(List<KeyValueWrapper> entries, boolean unique)
+            throws IOException, InvalidBTreeStateException,
+            IllegalStateException, IllegalArgumentException {
+        bulkLoad(entries, unique, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Build the tree bottom-up from (Key, Value) pairs sorted by key; this is
+     * a lot faster than inserting them one by one when rebuilding from a dump.
+     *
+     * The distinct keys are spread evenly over full leaves, whose pages are
+     * reserved up front; the leaves are then encoded and written in parallel
+     * on the given pool (see BulkLeafBuilder). The internal levels, which are
+     * only a tiny fraction of the pages, are built on top of them afterwards.
+     * Duplicates are kept inline in the leaf while they fit, the rest are
+     * inserted as usual once the tree is built.
+     *
+     * @param entries the (Key, Value) pairs in ascending key order
+     * @param unique keep only the first value of each key?
+     * @param pool the pool that builds the leaves
+     * @throws IOException is thrown when any of the read/write ops fail.
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the tree blocks.
+     * @throws IllegalStateException is thrown when the tree is not empty
+     * @throws IllegalArgumentException is thrown when the pairs are not sorted or a key is invalid
+     */
+    public void bulkLoad(List<KeyValueWrapper> entries, boolean unique, ForkJoinPool pool)
+            throws IOException, InvalidBTreeStateException,
+            IllegalStateException, IllegalArgumentException {
+        treeLock.writeLock().lock();
+        try {
+            if(root == null || !root.isLeaf() || !root.isEmpty())
+                {throw new IllegalStateException("Can only bulk load an empty tree");}
+            if(entries.isEmpty())
+                {return;}
+            if(!(entries instanceof RandomAccess))
+                {entries = new ArrayList<>(entries);}
+            modCount++;
+            structureVersion++;
+
+            // find where each distinct key starts
+            int[] keyStarts = new int[entries.size() + 1];
+            int keys = 0;
+            byte[] last = null;
+            for(int i = 0; i < entries.size(); i++) {
+                byte[] key = entries.get(i).getKeyBytes();
+                checkKey(key);
+                int cmp = last == null ? -1 : compareKeys(last, key);
+                if(cmp > 0)
+                    {throw new IllegalArgumentException("Entries are not sorted at " + i);}
+                else if(cmp < 0)
+                    {keyStarts[keys++] = i;}
+                last = key;
+            }
+            keyStarts[keys] = entries.size();
+            keyStarts = Arrays.copyOf(keyStarts, keys + 1);
+
+            // reserve the leaf pages, the empty root is the first one
+            int fill = conf.getLeafHighWaterMark(0);
+            int leaves = (keys + fill - 1) / fill;
+            long[] pages = new long[leaves];
+            pages[0] = root.getPageIndex();
+            for(int j = 1; j < leaves; j++) {
+                pages[j] = generateFirstAvailablePageIndex(conf);
+                bPerf.incrementTotalLeaves();
+            }
+
+            // encode and write the leaves
+            List<LinkedList<KeyValueWrapper>> deferred =
+                    new ArrayList<>(Collections.nCopies(leaves, null));
+            pool.invoke(new BulkLeafBuilder(this, treeFile, entries, keyStarts,
+                    pages, deferred, unique, 0, leaves));
+            for(int j = 0; j < leaves; j++)
+                {bPerf.incrementTotalLeafNodeWrites();}
+
+            // the separators in front of each leaf and the leaf counts
+            byte[][] seps = new byte[leaves][];
+            long[] counts = new long[leaves];
+            for(int j = 0; j < leaves; j++) {
+                int first = BulkLeafBuilder.firstKeyOfLeaf(keys, leaves, j);
+                int end = BulkLeafBuilder.firstKeyOfLeaf(keys, leaves, j + 1);
+                counts[j] = end - first;
+                if(j > 0) {
+                    seps[j] = getSeparatorKey(entries.get(keyStarts[first - 1]).getKeyBytes(),
+                            entries.get(keyStarts[first]).getKeyBytes());
+                }
+            }
 
-            // split root.
-            splitTreeNode(node_buf, 0);
+            // now build the internal levels, again spreading the children evenly
+            int n = leaves;
+            int fanout = conf.getMaxInternalNodeCapacity() + 1;
+            while(n > 1) {
+                int m = (n + fanout - 1) / fanout;
+                long[] upPages = new long[m];
+                long[] upCounts = new long[m];
+                byte[][] upSeps = new byte[m][];
+                for(int i = 0; i < m; i++) {
+                    int a = (int)((long)n * i / m), b = (int)((long)n * (i + 1) / m);
+                    TreeInternalNode node = new TreeInternalNode(m == 1 ?
+                            TreeNodeType.TREE_ROOT_INTERNAL : TreeNodeType.TREE_INTERNAL_NODE,
+                            generateFirstAvailablePageIndex(conf));
+                    bPerf.incrementTotalInternalNodes();
+                    node.addPointerLast(pages[a]);
+                    node.addCountLast(counts[a]);
+                    for(int c = a + 1; c < b; c++) {
+                        node.addLastToKeyArray(seps[c]);
+                        node.addPointerLast(pages[c]);
+                        node.addCountLast(counts[c]);
+                        node.incrementCapacity(conf);
+                    }
+                    node.writeNode(treeFile, conf, bPerf);
+                    upPages[i] = node.getPageIndex();
+                    upCounts[i] = node.getSubtreeCount();
+                    upSeps[i] = seps[a];
+                }
+                pages = upPages;
+                counts = upCounts;
+                seps = upSeps;
+                n = m;
+            }
+            // the last level has a single node, the root
+            root = readNode(pages[0]);
+            updatePageIndexCounts(conf);
             writeFileHeader(conf);
-            insertNonFull(node_buf, key, value, unique);
+
+            // finally the duplicates that did not fit in their leaves
+            for(LinkedList<KeyValueWrapper> l : deferred) {
+                for(KeyValueWrapper kv : l)
+                    {insertKey(kv.getKeyBytes(), kv.getValue(), false);}
+            }
+        } finally {
+            treeLock.writeLock().unlock();
         }
-        else
-            {insertNonFull(root, key, value, unique);}
-        bPerf.incrementTotalInsertions();
     }
 
     /**
@@ -173,11 +503,20 @@ public class BPlusTree {
      * to the file header as well; this happens transparently inside
      * writeNode method and is not explicitly done here.
      *
+     * When the key being inserted goes past the last key of the rightmost
+     * leaf (i.e. sequential appends) we split that leaf at the insertion
+     * point instead, keeping all but a few of its keys on the left; a 50/50
+     * split would leave a trail of half-empty leaves behind the appends.
+     *
      * @param n internal node "parenting" the split
      * @param index index in the node n that we need to add the median
+     * @param key the key being inserted (null if none)
      */
-    private void splitTreeNode(TreeInternalNode n, int index)
+    private void splitTreeNode(TreeInternalNode n, int index, byte[] key)
             throws IOException, InvalidBTreeStateException {
+        TreeEvents.Split event = new TreeEvents.Split();
+        event.begin();
+        structureVersion++;
 
 //        System.out.println("-- Splitting node with index: " +
 //                aChild.getPageIndex() + " of type: " +
@@ -185,7 +524,7 @@ public class BPlusTree {
 
         int setIndex;
         TreeNode znode;
-        long keyToAdd;
+        byte[] keyToAdd;
         TreeNode ynode = aChild; // x.c_{i}
         if(ynode.isInternalNode()) {
             TreeInternalNode zInternal,
@@ -197,19 +536,23 @@ public class BPlusTree {
             bPerf.incrementTotalInternalNodes();
 
 
-            setIndex =  conf.getTreeDegree()-1;
+            // move the lower half, based on the separator sizes as the node
+            // might hold more than the max (uncompressed) capacity
+            setIndex = yInternal.getSplitIndex(conf);
 
             int i;
             for(i = 0; i < setIndex; i++) {
                 zInternal.addToKeyArrayAt(i, yInternal.popKey());
                 zInternal.addPointerAt(i, yInternal.popPointer());
+                zInternal.addCountAt(i, yInternal.popCount());
             }
             zInternal.addPointerAt(i, yInternal.popPointer());
+            zInternal.addCountAt(i, yInternal.popCount());
             //keyToAdd = ynode.getFirstKey();
             keyToAdd = ynode.popKey();
 
             zInternal.setCurrentCapacity(setIndex);
-            yInternal.setCurrentCapacity(setIndex);
+            yInternal.setCurrentCapacity(yInternal.keyArray.size());
 
             // it it was the root, invalidate it and make it a regular internal node
             if(yInternal.isRoot()) {
@@ -220,6 +563,7 @@ public class BPlusTree {
 
             // update pointer at n_{index+1}
             n.addPointerAt(index, zInternal.getPageIndex());
+            n.addCountAt(index, zInternal.getSubtreeCount());
             // update key value at n[index]
             n.addToKeyArrayAt(index, keyToAdd);
             // adjust capacity
@@ -251,7 +595,16 @@ public class BPlusTree {
             // update pointers in ynode, only have to update next pointer
             yLeaf.setNextPagePointer(zLeaf.getPageIndex());
 
-            setIndex = conf.getLeafNodeDegree()-1;
+            // move the upper half (see above on capacity), or only the
+            // last few keys if we append past the end of the tree
+            if(key != null && zLeaf.getNextPagePointer() == -1L &&
+                    compareKeys(key, yLeaf.getLastKey()) > 0) {
+                setIndex = Math.max(1, yLeaf.getCurrentCapacity() *
+                        (100 - APPEND_SPLIT_PERCENT) / 100);
+                bPerf.incrementTotalAppendSplits();
+            }
+            else
+                {setIndex = yLeaf.getCurrentCapacity()/2;}
 
             for(int i = 0; i < setIndex; i++) {
                 //long fk = ynode.getLastKey();
@@ -259,6 +612,7 @@ public class BPlusTree {
                 zLeaf.pushToKeyArray(yLeaf.removeLastKey());
                 zLeaf.pushToValueList(yLeaf.removeLastValue());
                 zLeaf.pushToOverflowList(yLeaf.removeLastOverflowPointer());
+                zLeaf.pushToInlineList(yLeaf.removeLastInlineValues());
                 zLeaf.incrementCapacity(conf);
                 yLeaf.decrementCapacity(conf);
             }
@@ -272,8 +626,9 @@ public class BPlusTree {
 
             // update pointer at n_{index+1}
             n.addPointerAt(index + 1, zLeaf.getPageIndex());
-            // update key value at n[index]
-            n.addToKeyArrayAt(index, zLeaf.getKeyAt(0));
+            n.addCountAt(index + 1, zLeaf.getSubtreeCount());
+            // update key value at n[index], using the shortest separator
+            n.addToKeyArrayAt(index, getSeparatorKey(yLeaf.getLastKey(), zLeaf.getKeyAt(0)));
             // adjust capacity
             n.incrementCapacity(conf);
             // update reference
@@ -281,74 +636,203 @@ public class BPlusTree {
         }
 
         znode.setBeingDeleted(false);
+        // y kept the rest of the entries
+        updateSubtreeCount(n, ynode);
         // commit the changes
         znode.writeNode(treeFile, conf, bPerf);
         ynode.writeNode(treeFile, conf, bPerf);
-        n.writeNode(treeFile, conf, bPerf);
+        writeInternalNode(n);
         // commit page counts
         updatePageIndexCounts(conf);
+        TreeEvents.commit(event, ynode, znode);
     }
 
     /**
-     * This function is responsible handling the creation of overflow pages. We have
-     * generally two distinct cases which are the following:
+     * This function is responsible handling the creation of overflow pages after
+     * an existing one (the tail of a posting list); the head of the list is
+     * created when the inline duplicates of a key spill (see spillInlineValues).
      *
-     *  * Create an overflow page directly from a B+ TreeLeaf.
-     *  * Add an overflow page directly after an existing one.
+     *  For convenience we update all the required metrics as well as push to the
+     *  newly created page the required value; the head page tracks the tail of
+     *  the list and the total number of values it holds.
      *
-     *  In both cases for convenience we update all the required metrics as well as
-     *  push to the newly created page the required value.
-     *
-     * @param n node to add the page
-     * @param index this is only used in the case of a leaf
+     * @param ovf tail page of the list
      * @param value value to push in the new page
+     * @param head head of the posting list
      * @throws IOException is thrown when an I/O operation fails
      * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the blocks.
      */
-    private void createOverflowPage(TreeNode n, int index, String value)
+    private void createOverflowPage(TreeOverflow ovf, String value, TreeOverflow head)
             throws IOException, InvalidBTreeStateException {
-        TreeOverflow novf;
-        if(n.isOverflow()) {
-            TreeOverflow ovf = (TreeOverflow)n;
-            novf = new TreeOverflow(-1L, ovf.getPageIndex(),
-                    generateFirstAvailablePageIndex(conf));
-            // push the first value
-            novf.pushToValueList(value);
-            novf.incrementCapacity(conf);
-            // update overflow pointer to parent node
-            ovf.setNextPagePointer(novf.getPageIndex());
-            // set being deleted to false
-            novf.setBeingDeleted(false);
-            // commit changes to new overflow page
-            novf.writeNode(treeFile, conf, bPerf);
-            // commit changes to old overflow page
-            ovf.writeNode(treeFile, conf, bPerf);
-        } else if(n.isLeaf()) {
-            TreeLeaf l = (TreeLeaf)n;
-            novf = new TreeOverflow(-1L, l.getPageIndex(),
-                    generateFirstAvailablePageIndex(conf));
-//            System.out.println("Creating overflow page with index: " + novf.getPageIndex() +
-//                    " for key: " + l.getKeyAt(index));
-            // push the first value
-            novf.pushToValueList(value);
-            novf.incrementCapacity(conf);
-            // update overflow pointer to parent node
-            l.setOverflowPointerAt(index, novf.getPageIndex());
-            // set being deleted to false
-            novf.setBeingDeleted(false);
-            // commit changes to overflow page
-            novf.writeNode(treeFile, conf, bPerf);
-            // commit changes to leaf page
-            l.writeNode(treeFile, conf, bPerf);
-            // commit page counts
-        } else {
-            throw new InvalidBTreeStateException("Expected Leaf or Overflow, " +
-                    "got instead: " + n.getNodeType().toString());
-        }
+        TreeOverflow novf = new TreeOverflow(-1L, ovf.getPageIndex(),
+                generateFirstAvailablePageIndex(conf));
+        novf.setCompressed(conf.isPostingListCompression());
+        // push the first value
+        novf.addLastToValueList(value);
+        novf.incrementCapacity(conf);
+        // update overflow pointer to parent node
+        ovf.setNextPagePointer(novf.getPageIndex());
+        // the new page is now the tail of the list
+        head.setTailPagePointer(novf.getPageIndex());
+        head.setTotalValues(head.getTotalValues() + 1);
+        // set being deleted to false
+        novf.setBeingDeleted(false);
+        // commit changes to new overflow page
+        novf.writeNode(treeFile, conf, bPerf);
+        // commit changes to old overflow page
+        ovf.writeNode(treeFile, conf, bPerf);
+        // and the head, if it's not the old tail
+        if(head != ovf)
+            {head.writeNode(treeFile, conf, bPerf);}
+
+        bPerf.incrementTotalOverflowPages();
+        // commit page counts
+        updatePageIndexCounts(conf);
+    }
 
+    /**
+     * Move the inline duplicates of a key to a new posting list; the leaf
+     * is updated to point to its head but it's *not* written.
+     *
+     * @param l leaf that holds the key
+     * @param index position of the key in the leaf
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the blocks.
+     */
+    private void spillInlineValues(TreeLeaf l, int index)
+            throws IOException, InvalidBTreeStateException {
+        LinkedList<String> inline = l.getInlineValuesAt(index);
+        TreeOverflow head = new TreeOverflow(-1L, l.getPageIndex(),
+                generateFirstAvailablePageIndex(conf));
+        head.setCompressed(conf.isPostingListCompression());
+        head.setBeingDeleted(false);
         bPerf.incrementTotalOverflowPages();
+
+        TreeOverflow tail = head;
+        for(String v : inline) {
+            // link another page if the tail is full
+            if(!tail.canAppend(v, conf)) {
+                TreeOverflow novf = new TreeOverflow(-1L, tail.getPageIndex(),
+                        generateFirstAvailablePageIndex(conf));
+                novf.setCompressed(conf.isPostingListCompression());
+                novf.setBeingDeleted(false);
+                tail.setNextPagePointer(novf.getPageIndex());
+                if(tail != head)
+                    {tail.writeNode(treeFile, conf, bPerf);}
+                head.setTailPagePointer(novf.getPageIndex());
+                bPerf.incrementTotalOverflowPages();
+                tail = novf;
+            }
+            tail.addLastToValueList(v);
+            tail.incrementCapacity(conf);
+        }
+        head.setTotalValues(inline.size());
+
+        // commit the pages
+        if(tail != head)
+            {tail.writeNode(treeFile, conf, bPerf);}
+        head.writeNode(treeFile, conf, bPerf);
         // commit page counts
         updatePageIndexCounts(conf);
+
+        inline.clear();
+        l.setOverflowPointerAt(index, head.getPageIndex());
+    }
+
+    /**
+     * Write a leaf that might have gained entries; if its inline duplicates
+     * don't fit in the page anymore we spill the largest sets first.
+     *
+     * @param l leaf to write
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the blocks.
+     */
+    private void writeLeaf(TreeLeaf l)
+            throws IOException, InvalidBTreeStateException {
+        while(!l.fitsInPage(conf)) {
+            int idx = 0;
+            for(int i = 1; i < l.getCurrentCapacity(); i++) {
+                if(l.getInlineValuesAt(i).size() > l.getInlineValuesAt(idx).size())
+                    {idx = i;}
+            }
+            spillInlineValues(l, idx);
+        }
+        l.writeNode(treeFile, conf, bPerf);
+    }
+
+    /**
+     * Append a value to the posting list starting at the given head page; only
+     * the head and the tail pages are touched, regardless of the list length.
+     *
+     * @param headIndex index of the head overflow page
+     * @param value value to append
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the blocks.
+     */
+    private void appendToPostingList(long headIndex, String value)
+            throws IOException, InvalidBTreeStateException {
+        TreeOverflow head = (TreeOverflow)readNode(headIndex);
+        TreeOverflow tail = head.getTailPagePointer() == head.getPageIndex() ?
+                head : (TreeOverflow)readNode(head.getTailPagePointer());
+
+        // no space left in the tail, link a new one
+        if(!tail.canAppend(value, conf))
+            {createOverflowPage(tail, value, head); return;}
+
+        tail.addLastToValueList(value);
+        tail.incrementCapacity(conf);
+        head.setTotalValues(head.getTotalValues() + 1);
+        tail.writeNode(treeFile, conf, bPerf);
+        if(tail != head)
+            {head.writeNode(treeFile, conf, bPerf);}
+    }
+
+    /**
+     * Remove the last value of the posting list for the key at the given
+     * leaf position; only the head, the tail and (if the tail empties) its
+     * previous page are touched.
+     *
+     * @param l leaf that holds the key
+     * @param index position of the key in the leaf
+     * @return the removed value
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there is an inconsistency in the blocks.
+     */
+    private String removeFromPostingList(TreeLeaf l, int index)
+            throws IOException, InvalidBTreeStateException {
+        TreeOverflow head = (TreeOverflow)readNode(l.getOverflowPointerAt(index));
+        TreeOverflow tail = head.getTailPagePointer() == head.getPageIndex() ?
+                head : (TreeOverflow)readNode(head.getTailPagePointer());
+
+        // remove from the tail page the value
+        String value = tail.removeLastValue();
+        tail.decrementCapacity(conf);
+        head.setTotalValues(head.getTotalValues() - 1);
+
+        // if the page is not empty just update it (and the head)
+        if(!tail.isEmpty()) {
+            tail.writeNode(treeFile, conf, bPerf);
+            if(tail != head)
+                {head.writeNode(treeFile, conf, bPerf);}
+        }
+        // the list is now empty
+        else if(tail == head) {
+            l.setOverflowPointerAt(index, -1L);
+            l.writeNode(treeFile, conf, bPerf);
+            deletePage(tail.getPageIndex(), false);
+        }
+        // unlink the tail; its previous page is the new tail
+        else {
+            TreeOverflow prev = tail.getPrevPagePointer() == head.getPageIndex() ?
+                    head : (TreeOverflow)readNode(tail.getPrevPagePointer());
+            prev.setNextPagePointer(-1L);
+            head.setTailPagePointer(prev.getPageIndex());
+            prev.writeNode(treeFile, conf, bPerf);
+            if(prev != head)
+                {head.writeNode(treeFile, conf, bPerf);}
+            deletePage(tail.getPageIndex(), false);
+        }
+        return(value);
     }
 
     /**
@@ -359,12 +843,13 @@ public class BPlusTree {
      * @param rank rank of the search (for lower/upper bound)
      * @return the index of the bound or found key.
      */
-    private int binSearchBlock(TreeNode n, long key, Rank rank) {
+    int binSearchBlock(TreeNode n, byte[] key, Rank rank) {
         return binSearchRec(n, 0, n.getCurrentCapacity() - 1, key, rank);
     }
 
     /**
-     * Binary search implementation for tree blocks.
+     * Binary search implementation for tree blocks; the comparison is done
+     * on the raw key bytes using the configured key comparator.
      *
      * @param n    node to search
      * @param l    left (lower-part) array index
@@ -373,9 +858,9 @@ public class BPlusTree {
      * @param rank rank of the search (for lower/upper bound)
      * @return the index of the bound or found key.
      */
-    private int binSearchRec(TreeNode n, int l, int r, long key, Rank rank) {
+    private int binSearchRec(TreeNode n, int l, int r, byte[] key, Rank rank) {
         int m;
-        long mkey;
+        int cmp;
 
         if (l > r) {
             switch (rank) {
@@ -389,12 +874,12 @@ public class BPlusTree {
             }
         } else {
             m = (l + r) / 2;
-            mkey = n.getKeyAt(m);
+            cmp = compareKeys(n.getKeyAt(m), key);
         }
 
-        if (mkey < key) {
+        if (cmp < 0) {
             return binSearchRec(n, m + 1, r, key, rank);
-        } else if (mkey > key) {
+        } else if (cmp > 0) {
             return binSearchRec(n, l, m - 1, key, rank);
         } else { // this is equal
             return Rank.PlusOne == rank ? m + 1 : m;
@@ -408,13 +893,24 @@ public class BPlusTree {
      *
      * It is able to insert the (Key, Value) pairs using only one pass through the tree.
      *
+     * While descending we keep track of the separators (fences) that bound the
+     * current node; all keys that can end up in a node share the common prefix
+     * of its fences, which gives us the internal node capacity under prefix
+     * compression. Leaves are checked against the key we are about to add.
+     * The nodes we go through (and their fences) make up the finger of this
+     * thread, so lookups and inserts near this key start from there.
+     *
      * @param n current node
+     * @param lowKey the lower fence of n (null if unbounded)
+     * @param highKey the upper fence of n (null if unbounded)
      * @param key key to add
      * @param value value paired with the key
      * @param unique allow duplicate entries for this time?
+     * @return true if a new key was added, false if it was a duplicate
      * @throws IOException is thrown when an I/O operation fails
      */
-    private void insertNonFull(TreeNode n, long key, String value, boolean unique)
+    private boolean insertNonFull(TreeNode n, byte[] lowKey, byte[] highKey,
+                                  byte[] key, String value, boolean unique)
             throws IOException, InvalidBTreeStateException {
         boolean useChild = true;
         int i = binSearchBlock(n, key, Rank.PlusOne);
@@ -431,44 +927,31 @@ public class BPlusTree {
 
             // this is to adjust for a corner case due to indexing
             int iadj = (n.getCurrentCapacity() > 0 &&
-                    i == 0 && n.getFirstKey() > key) ? i : i-1;
-            if(n.getCurrentCapacity() > 0 && n.getKeyAt(iadj) == key) {
+                    i == 0 && compareKeys(n.getFirstKey(), key) > 0) ? i : i-1;
+            if(n.getCurrentCapacity() > 0 && compareKeys(n.getKeyAt(iadj), key) == 0) {
 
                 if(unique) {
                     //System.out.println("Duplicate entry found and unique " +
                     //        "flag enabled, can't add");
-                    return;
+                    return(false);
                 }
 
                 //System.out.println("Duplicate found! Adding to overflow page!");
 
-                // overflow page does not exist, yet; time to create it!
+                // overflow page does not exist, yet; keep the value
+                // inline and spill them all once we have too many.
                 if(l.getOverflowPointerAt(iadj) < 0) {
-                    createOverflowPage(l, iadj, value);
-                }
-                // page already exists, so pull it and check if it has
-                // available space, if it does all is good; otherwise we
-                // pull the next overflow page or we create another one.
-                else {
-
-                    TreeOverflow ovf =
-                            (TreeOverflow) readNode(l.getOverflowPointerAt(iadj));
-
-                    while(ovf.isFull(conf)) {
-                        // check if we have more, if not create
-                        if(ovf.getNextPagePointer() < 0)
-                            // create page and return
-                            {createOverflowPage(ovf, -1, value); return;}
-                        // load the next page
-                        else
-                            {ovf = (TreeOverflow)readNode(ovf.getNextPagePointer());}
-                    }
-
-                    // if the loaded page is not full then add it.
-                    ovf.pushToValueList(value);
-                    ovf.incrementCapacity(conf);
-                    ovf.writeNode(treeFile, conf, bPerf);
+                    LinkedList<String> inline = l.getInlineValuesAt(iadj);
+                    inline.addLast(value);
+                    if(inline.size() > conf.getInlineDuplicateLimit())
+                        {spillInlineValues(l, iadj);}
+                    writeLeaf(l);
                 }
+                // list already exists, so append to its tail page; if
+                // that's full we link another one after it.
+                else
+                    {appendToPostingList(l.getOverflowPointerAt(iadj), value);}
+                return(false);
             }
 
             // we have a new key insert
@@ -478,9 +961,11 @@ public class BPlusTree {
                 l.addToKeyArrayAt(i, key);
                 // also create a NULL overflow pointer
                 l.addToOverflowList(i, -1L);
+                l.addToInlineList(i, new LinkedList<>());
                 l.incrementCapacity(conf);
                 // commit the changes
-                l.writeNode(treeFile, conf, bPerf);
+                writeLeaf(l);
+                return(true);
             }
 
         } else {
@@ -517,20 +1002,38 @@ public class BPlusTree {
             //
 
             TreeInternalNode inode = (TreeInternalNode)n;
-            aChild = readNode(inode.getPointerAt(i));
+            // the fences of the child
+            byte[] lowChild = i > 0 ? n.getKeyAt(i-1) : lowKey;
+            byte[] highChild = i < n.getCurrentCapacity() ? n.getKeyAt(i) : highKey;
+            aChild = readInsertPathNode(inode.getPointerAt(i), highChild);
             if (aChild.isOverflow() || aChild.isLookupPageOverflowNode()) {
                 throw new InvalidBTreeStateException("aChild can't be overflow node");
             }
             TreeNode nextAfterAChild = null;
-            if(aChild.isFull(conf)) {
-                splitTreeNode(inode, i);
-                if (key >= n.getKeyAt(i)) {
+            int keyPrefix = aChild.isLeaf() ? getLeafKeyPrefix(aChild, key) :
+                    getFenceKeyPrefix(lowChild, highChild);
+            if(aChild.isFull(conf, keyPrefix)) {
+                splitTreeNode(inode, i, key);
+                if (compareKeys(key, n.getKeyAt(i)) >= 0) {
                     useChild = false;
-                    nextAfterAChild = readNode(inode.getPointerAt(i+1));
-                }
+                    nextAfterAChild = readInsertPathNode(inode.getPointerAt(i+1), highChild);
+                    lowChild = n.getKeyAt(i);
+                } else
+                    {highChild = n.getKeyAt(i);}
             }
 
-            insertNonFull(useChild ? aChild : nextAfterAChild, key, value, unique);
+            TreeNode child = useChild ? aChild : nextAfterAChild;
+            if(highChild == null)
+                {nextRightSpine.add(child);}
+            finger.get().push(child, lowChild, highChild);
+            boolean added = insertNonFull(child, lowChild, highChild, key, value, unique);
+            // one more entry under that child
+            if(added) {
+                int idx = useChild ? i : i + 1;
+                inode.setCountAt(idx, inode.getCountAt(idx) + 1);
+                writeInternalNode(inode);
+            }
+            return(added);
         }
     }
 
@@ -542,7 +1045,7 @@ public class BPlusTree {
      * @param res where to store the results
      * @throws IOException is thrown when an I/O operation fails
      */
-    private void parseOverflowPages(TreeLeaf l, int index, RangeResult res)
+    void parseOverflowPages(TreeLeaf l, int index, RangeResult res)
             throws IOException {
         TreeOverflow ovfPage = (TreeOverflow)readNode(l.getOverflowPointerAt(index));
         int icap = 0;
@@ -573,326 +1076,2163 @@ public class BPlusTree {
      */
     public RangeResult rangeSearch(long minKey, long maxKey, boolean unique)
             throws IOException, InvalidBTreeStateException {
-        SearchResult sMin = searchKey(minKey, unique);
-        SearchResult sMax;
-        RangeResult rangeQueryResult = new RangeResult();
-        if(sMin.isFound()) {
-            // read up until we find a key that's greater than maxKey
-            // or the last entry.
-
-            int i = sMin.getIndex();
-            while(sMin.getLeaf().getKeyAt(i) <= maxKey) {
-                rangeQueryResult.getQueryResult().
-                        add(new KeyValueWrapper(sMin.getLeaf().getKeyAt(i),
-                                sMin.getLeaf().getValueAt(i)));
+        return(rangeSearch(BinaryKeys.fromLong(minKey, conf.getKeySize()),
+                BinaryKeys.fromLong(maxKey, conf.getKeySize()), unique));
+    }
 
-                // check if we have an overflow page
-                if(!unique && sMin.getLeaf().getOverflowPointerAt(i) != -1)
-                    {parseOverflowPages(sMin.getLeaf(), i, rangeQueryResult);}
+    /**
+     * Range search over binary keys; same semantics as the long variant above.
+     *
+     * @param minKey min key of the range (exactly key size bytes)
+     * @param maxKey max key of the range (exactly key size bytes)
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @return the results packed in a neat class for handling
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public RangeResult rangeSearch(byte[] minKey, byte[] maxKey, boolean unique)
+            throws IOException, InvalidBTreeStateException {
+        long start = System.nanoTime();
+        bPerf.beginTracedOperation();
+        treeLock.readLock().lock();
+        try {
+            checkKey(minKey);
+            checkKey(maxKey);
+            SearchResult sMin = searchKey(minKey, unique);
+            SearchResult sMax;
+            RangeResult rangeQueryResult = new RangeResult();
+            if(sMin.isFound()) {
+                // read up until we find a key that's greater than maxKey
+                // or the last entry.
+
+                int i = sMin.getIndex();
+                while(compareKeys(sMin.getLeaf().getKeyAt(i), maxKey) <= 0) {
+                    rangeQueryResult.getQueryResult().
+                            add(new KeyValueWrapper(sMin.getLeaf().getKeyAt(i),
+                                    sMin.getLeaf().getValueAt(i)));
+
+                    // check if we have inline duplicates or an overflow page
+                    if(!unique) {
+                        for(String v : sMin.getLeaf().getInlineValuesAt(i)) {
+                            rangeQueryResult.getQueryResult().
+                                    add(new KeyValueWrapper(sMin.getLeaf().getKeyAt(i), v));
+                        }
+                        if(sMin.getLeaf().getOverflowPointerAt(i) != -1)
+                            {parseOverflowPages(sMin.getLeaf(), i, rangeQueryResult);}
+                    }
 
-                i++;
+                    i++;
 
-                // check if we need to read the next block
-                if(i == sMin.getLeaf().getCurrentCapacity()) {
-                    // check if we have a next node to load.
-                    if(sMin.getLeaf().getNextPagePointer() < 0)
-                        // if not just break the loop
-                        {break;}
-                    sMin.setLeaf((TreeLeaf)readNode(sMin.getLeaf().getNextPagePointer()));
-                    i = 0;
+                    // check if we need to read the next block
+                    if(i == sMin.getLeaf().getCurrentCapacity()) {
+                        // check if we have a next node to load.
+                        if(sMin.getLeaf().getNextPagePointer() < 0)
+                            // if not just break the loop
+                            {break;}
+                        sMin.setLeaf((TreeLeaf)readNode(sMin.getLeaf().getNextPagePointer()));
+                        i = 0;
+                    }
                 }
-            }
 
-        }
-        // this is the case where both searches might fail to find something, but
-        // we *might* have something between in the given range. To account for
-        // that even if we have *not* found something we will return those results
-        // instead. For example say we have a range of [2, 5] and we only have keys
-        // from [3, 4], thus both searches for min and max would fail to find a
-        // matching key in both cases. Thing is to account for that *both* results
-        // will be stopped at the first key that is less than min and max values
-        // given even if we did not find anything.
-        else {
-            sMax = searchKey(maxKey, unique);
-            int i = sMax.getIndex();
-            while(i >= 0 && sMax.getLeaf().getKeyAt(i) >= minKey) {
-                rangeQueryResult.getQueryResult().
-                        add(new KeyValueWrapper(sMax.getLeaf().getKeyAt(i),
-                                sMax.getLeaf().getValueAt(i)));
+            }
+            // this is the case where both searches might fail to find something, but
+            // we *might* have something between in the given range. To account for
+            // that even if we have *not* found something we will return those results
+            // instead. For example say we have a range of [2, 5] and we only have keys
+            // from [3, 4], thus both searches for min and max would fail to find a
+            // matching key in both cases. Thing is to account for that *both* results
+            // will be stopped at the first key that is less than min and max values
+            // given even if we did not find anything.
+            else {
+                sMax = searchKey(maxKey, unique);
+                int i = sMax.getIndex();
+                // the search stops at the first key greater than maxKey (if any),
+                // so step back to the last key in range; it might be in prev leaf.
+                if(i >= sMax.getLeaf().getCurrentCapacity() ||
+                        compareKeys(sMax.getLeaf().getKeyAt(i), maxKey) > 0) {
+                    i--;
+                    if(i < 0 && sMax.getLeaf().getPrevPagePointer() >= 0) {
+                        sMax.setLeaf((TreeLeaf)readNode(sMax.getLeaf().getPrevPagePointer()));
+                        i = sMax.getLeaf().getCurrentCapacity()-1;
+                    }
+                }
+                while(i >= 0 && compareKeys(sMax.getLeaf().getKeyAt(i), minKey) >= 0) {
+                    rangeQueryResult.getQueryResult().
+                            add(new KeyValueWrapper(sMax.getLeaf().getKeyAt(i),
+                                    sMax.getLeaf().getValueAt(i)));
+
+                    // check if we have inline duplicates or an overflow page
+                    if(!unique) {
+                        for(String v : sMax.getLeaf().getInlineValuesAt(i)) {
+                            rangeQueryResult.getQueryResult().
+                                    add(new KeyValueWrapper(sMax.getLeaf().getKeyAt(i), v));
+                        }
+                        if(sMax.getLeaf().getOverflowPointerAt(i) != -1)
+                            {parseOverflowPages(sMax.getLeaf(), i, rangeQueryResult);}
+                    }
 
-                // check if we have an overflow page
-                if(!unique && sMax.getLeaf().getOverflowPointerAt(i) != -1)
-                    {parseOverflowPages(sMax.getLeaf(), i, rangeQueryResult);}
-
-                i--;
-                // check if we need to read the next block
-                if(i < 0) {
-                    // check if we do have another node to load
-                    if(sMax.getLeaf().getPrevPagePointer() < 0)
-                    // if not just break the loop
-                        {break;}
-                    sMax.setLeaf((TreeLeaf)readNode(sMax.getLeaf().getPrevPagePointer()));
-                    // set it to max length
-                    i = sMax.getLeaf().getCurrentCapacity()-1;
+                    i--;
+                    // check if we need to read the next block
+                    if(i < 0) {
+                        // check if we do have another node to load
+                        if(sMax.getLeaf().getPrevPagePointer() < 0)
+                        // if not just break the loop
+                            {break;}
+                        sMax.setLeaf((TreeLeaf)readNode(sMax.getLeaf().getPrevPagePointer()));
+                        // set it to max length
+                        i = sMax.getLeaf().getCurrentCapacity()-1;
+                    }
                 }
-            }
 
+            }
+            bPerf.incrementTotalRangeQueries();
+            // finally return the result list (empty or not)
+            return(rangeQueryResult);
+        } finally {
+            treeLock.readLock().unlock();
+            bPerf.recordRangeQueryLatency(System.nanoTime() - start);
         }
-        bPerf.incrementTotalRangeQueries();
-        // finally return the result list (empty or not)
-        return(rangeQueryResult);
     }
 
     /**
-     * Search inside the B+ Tree data structure for the requested key; based on the
-     * unique flag we have two choices which are the following:
+     * Range search that only returns the requested projection of the entries;
+     * see rangeSearch for the (Key, Value) pairs.
      *
-     *  * unique flag true: return the *first* value that matches the given key
-     *  * unique flag false: return *all* the values that match the given key
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @param projection what to return for each matching entry
+     * @return the results packed in a neat class for handling
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    @SuppressWarnings("unused")
+    public RangeResult rangeSearch(long minKey, long maxKey, boolean unique,
+                                   RangeProjection projection)
+            throws IOException, InvalidBTreeStateException {
+        return(rangeSearch(BinaryKeys.fromLong(minKey, conf.getKeySize()),
+                BinaryKeys.fromLong(maxKey, conf.getKeySize()), unique, projection));
+    }
+
+    /**
+     * Range search over binary keys that only returns the requested projection;
+     * same as the variant below without a value predicate.
      *
-     *  The second one including a couple more page accesses as if the key has any
-     *  duplicates they will be stored in one or multiple overflow pages depending
-     *  on the number of duplicates. Hence we have to pay for those disk accesses
-     *  as well.
+     * @param minKey min key of the range (exactly key size bytes)
+     * @param maxKey max key of the range (exactly key size bytes)
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @param projection what to return for each matching entry
+     * @return the results packed in a neat class for handling
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public RangeResult rangeSearch(byte[] minKey, byte[] maxKey, boolean unique,
+                                   RangeProjection projection)
+            throws IOException, InvalidBTreeStateException {
+        return(rangeSearch(minKey, maxKey, unique, projection, null));
+    }
+
+    /**
+     * Range search that only returns the entries whose value satisfies the
+     * predicate, using the requested projection; see the variant below.
      *
-     * @param key key to match
-     * @param unique return *all* matching (Key, Value) pairs or the *first* found
-     * @return the search result
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @param projection what to return for each matching entry
+     * @param predicate predicate on the raw value bytes (null to match all)
+     * @return the results packed in a neat class for handling
      * @throws IOException is thrown when an I/O operation fails
      * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
      */
     @SuppressWarnings("unused")
-    public SearchResult searchKey(long key, boolean unique)
+    public RangeResult rangeSearch(long minKey, long maxKey, boolean unique,
+                                   RangeProjection projection, ValuePredicate predicate)
             throws IOException, InvalidBTreeStateException {
-        bPerf.incrementTotalSearches();
-        return(searchKey(this.root, key, unique));
+        return(rangeSearch(BinaryKeys.fromLong(minKey, conf.getKeySize()),
+                BinaryKeys.fromLong(maxKey, conf.getKeySize()), unique,
+                projection, predicate));
     }
 
     /**
-     * This function performs the actual search as described in searchKey description
-     * and is recursively called until we reach a leaf.
+     * Range search over binary keys that only returns the requested projection
+     * of the entries whose value satisfies the predicate.
      *
-     * @param node the node to poke into
-     * @param key key that we want to match
-     * @param unique unique results?
-     * @return the search result
+     * Apart from the unfiltered (Key, Value) pairs, which are handled by
+     * rangeSearch, the leaves in the range are scanned straight from their page
+     * bytes and entries are returned in ascending key order. Without a predicate
+     * values are never decoded and the counts of duplicates come from the leaf
+     * and the head of their posting lists, so only offsets have to walk the
+     * overflow pages. With a predicate every value is tested on its raw bytes
+     * and only the matching ones are decoded (if requested).
+     *
+     * @param minKey min key of the range (exactly key size bytes)
+     * @param maxKey max key of the range (exactly key size bytes)
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @param projection what to return for each matching entry
+     * @param predicate predicate on the raw value bytes (null to match all)
+     * @return the results packed in a neat class for handling
      * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
      */
-    private SearchResult searchKey(TreeNode node, long key, boolean unique)
-            throws IOException {
-        // search for the key
-        int i = binSearchBlock(node, key, Rank.Exact);
+    public RangeResult rangeSearch(byte[] minKey, byte[] maxKey, boolean unique,
+                                   RangeProjection projection, ValuePredicate predicate)
+            throws IOException, InvalidBTreeStateException {
+        treeLock.readLock().lock();
+        try {
+            if(projection == RangeProjection.KEYS_AND_VALUES && predicate == null)
+                {return(rangeSearch(minKey, maxKey, unique));}
+            long start = System.nanoTime();
+            bPerf.beginTracedOperation();
+            checkKey(minKey);
+            checkKey(maxKey);
+
+            RangeResult res = new RangeResult();
+            long count = 0;
+            long index = compareKeys(minKey, maxKey) > 0 ? -1L : findLeafPage(minKey);
+            int tupleBase = conf.getKeySize() + BPlusConfiguration.POINTER_SIZE +
+                    conf.getEntrySize();
+
+            while(index != -1L) {
+                ByteBuffer page = readPage(index);
+                bPerf.incrementTotalLeafNodeReads();
+                // skip the type and read the rest of the header
+                page.getShort();
+                long next = page.getLong();
+                page.getLong();
+                int cap = page.getInt();
+                byte[] prefix = readKeyPrefix(page);
+                int tupleSize = tupleBase - prefix.length;
+                int tupleStart = page.position();
+                // inline duplicates follow all the tuples
+                int inlinePos = tupleStart + cap * tupleSize;
+                // the view of the values handed to the predicate
+                ByteBuffer view = predicate != null ? page.asReadOnlyBuffer() : null;
+
+                for(int i = 0; i < cap; i++) {
+                    page.position(tupleStart + i * tupleSize);
+                    byte[] key = readKey(page, prefix);
+                    long ovf = page.getLong();
+                    int inline = ovf < -1L ? (int)(-ovf - 1) : 0;
+                    int valuePos = page.position();
+                    int firstInline = inlinePos;
+                    inlinePos += inline * conf.getEntrySize();
+
+                    if(compareKeys(key, minKey) < 0)
+                        {continue;}
+                    if(compareKeys(key, maxKey) > 0)
+                        {next = -1L; break;}
+
+                    // filter each value on its bytes
+                    if(predicate != null) {
+                        count += scanValue(key, view, index, valuePos,
+                                conf.getEntrySize(), projection, predicate, res);
+                        if(!unique) {
+                            for(int j = 0; j < inline; j++) {
+                                count += scanValue(key, view, index,
+                                        firstInline + j * conf.getEntrySize(),
+                                        conf.getEntrySize(), projection, predicate, res);
+                            }
+                            if(ovf >= 0)
+                                {count += scanOverflowValues(key, ovf, projection, predicate, res);}
+                        }
+                        continue;
+                    }
 
-        // check if we found it
-        if(node.isLeaf()) {
-            //i--;
-            if(i >= 0 && i < node.getCurrentCapacity() && key == node.getKeyAt(i)) {
+                    // the values of this key
+                    long values = 1;
+                    if(!unique) {
+                        values += inline;
+                        if(ovf >= 0) {
+                            values += readPage(ovf).getLong(TreeOverflow.TOTAL_VALUES_OFFSET);
+                            bPerf.incrementTotalOverflowReads();
+                        }
+                    }
+                    count += values;
 
-                // we found the key, depending on the unique flag handle accordingly
-                if(unique || ((TreeLeaf)node).getOverflowPointerAt(i) == -1L )
-                    {return(new SearchResult((TreeLeaf)node, i, true));}
-                // handle the case of duplicates where actual overflow pages exist
-                else {
-                    TreeLeaf lbuf = (TreeLeaf)node;
-                    TreeOverflow ovfBuf = (TreeOverflow)readNode(lbuf.getOverflowPointerAt(i));
-                    LinkedList<String> ovfList = new LinkedList<>();
-                    // add the current one
-                    ovfList.add(lbuf.getValueAt(i));
-                    int icap = 0;
-                    // loop through all the overflow pages
-                    while(icap < ovfBuf.getCurrentCapacity()) {
-                        ovfList.add(ovfBuf.getValueAt(icap));
-                        icap++;
-                        // advance if we have another page
-                        if(icap == ovfBuf.getCurrentCapacity() &&
-                                ovfBuf.getNextPagePointer() != -1L) {
-                            ovfBuf = (TreeOverflow)readNode(ovfBuf.getNextPagePointer());
-                            icap = 0;
+                    if(projection == RangeProjection.KEYS) {
+                        for(long v = 0; v < values; v++)
+                            {res.getQueryResult().add(new KeyValueWrapper(key, -1L));}
+                    }
+                    else if(projection == RangeProjection.VALUE_OFFSETS) {
+                        res.getQueryResult().add(new KeyValueWrapper(key, index + valuePos));
+                        if(!unique) {
+                            for(int j = 0; j < inline; j++) {
+                                res.getQueryResult().add(new KeyValueWrapper(key,
+                                        index + firstInline + j * conf.getEntrySize()));
+                            }
+                            if(ovf >= 0)
+                                {scanOverflowValues(key, ovf, projection, null, res);}
                         }
                     }
-                    // now after populating the list return the search result
-                    return(new SearchResult((TreeLeaf)node, i, ovfList));
                 }
+                index = next;
             }
-            else
-                // we found nothing, use the unique constructor anyway.
-                {return(new SearchResult((TreeLeaf)node, i, false));}
 
+            res.setCount(count);
+            bPerf.incrementTotalRangeQueries();
+            bPerf.recordRangeQueryLatency(System.nanoTime() - start);
+            return(res);
+        } finally {
+            treeLock.readLock().unlock();
         }
-        // probably it's an internal node, descend to a leaf
-        else {
-            // padding to account for the last pointer (if needed)
-            if(i != node.getCurrentCapacity() && key >= node.getKeyAt(i)) {i++;}
-            TreeNode t = readNode(((TreeInternalNode)node).getPointerAt(i));
-            return(searchKey(t, key, unique));
+    }
+
+    /**
+     * Find the leaf page that would hold the key, without decoding it
+     *
+     * @param key the key
+     * @return the index of the leaf page
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private long findLeafPage(byte[] key) throws IOException {
+        TreeNode node = root;
+        while(node.isInternalNode()) {
+            TreeInternalNode inode = (TreeInternalNode)node;
+            int idx = 0;
+            while(idx < inode.getCurrentCapacity() &&
+                    compareKeys(key, inode.getKeyAt(idx)) >= 0)
+                {idx++;}
+            long child = inode.getPointerAt(idx);
+            ByteBuffer page = readPage(child);
+            // stop once we reach the leaves
+            if(isLeaf(getPageType(page.getShort(0))))
+                {return(child);}
+            node = decodeNode(child, page);
         }
+        return(node.getPageIndex());
+    }
 
+    /**
+     * Test a stored value against the predicate (if any) and add the
+     * requested projection of the entry to the result if it matches.
+     *
+     * @param key key of the entry
+     * @param view read-only view of the page holding the value
+     * @param index index of the page in the file
+     * @param pos position of the value in the page
+     * @param len length of the stored value
+     * @param projection what to return for the entry
+     * @param predicate predicate on the value bytes (null to match all)
+     * @param res the result to add the entry
+     * @return one if the entry matched, zero otherwise
+     */
+    private int scanValue(byte[] key, ByteBuffer view, long index, int pos, int len,
+                          RangeProjection projection, ValuePredicate predicate,
+                          RangeResult res) {
+        if(predicate != null) {
+            view.limit(pos + len).position(pos);
+            if(!predicate.test(view))
+                {return(0);}
+        }
+        switch(projection) {
+            case KEYS_AND_VALUES:
+                // pad it back, as the values of compressed lists are trimmed
+                byte[] strBuf = new byte[conf.getEntrySize()];
+                view.limit(pos + len).position(pos);
+                view.get(strBuf, 0, len);
+                Arrays.fill(strBuf, len, strBuf.length, (byte) ' ');
+                res.getQueryResult().add(new KeyValueWrapper(key,
+                        new String(strBuf, StandardCharsets.UTF_8)));
+                break;
+            case KEYS:
+                res.getQueryResult().add(new KeyValueWrapper(key, -1L));
+                break;
+            case VALUE_OFFSETS:
+                res.getQueryResult().add(new KeyValueWrapper(key, index + pos));
+                break;
+            default:
+                break;
+        }
+        return(1);
     }
 
     /**
-     * Function to delete a key from our tree... this function is again
-     * adopted from CLRS delete method but this was basically written
-     * from scratch and is loosely based on the actual notes.
+     * Walk the pages of a posting list and scan its values, without decoding
+     * the ones that don't match; offsets of compressed values point past
+     * their length, i.e. to the value itself.
      *
-     * -- firstly it deletes the keys (all or first depending on unique flag)
-     * -- secondly it updates the pool of empty pages
-     * -- thirdly performs merges if necessary (it capacity falls < degree-1)
-     * -- finally condenses the file size depending on load
+     * @param key the key of the list
+     * @param head index of the head overflow page
+     * @param projection what to return for each matching entry
+     * @param predicate predicate on the value bytes (null to match all)
+     * @param res the result to add the entries
+     * @return the number of matching values
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private long scanOverflowValues(byte[] key, long head, RangeProjection projection,
+                                    ValuePredicate predicate, RangeResult res)
+            throws IOException {
+        long index = head;
+        long count = 0;
+        while(index != -1L) {
+            ByteBuffer page = readPage(index);
+            bPerf.incrementTotalOverflowReads();
+            page.getShort();
+            long next = page.getLong();
+            page.getLong();
+            int cap = page.getInt();
+            page.position(conf.getOverflowHeaderSize() - 1);
+            boolean compressed = page.get() != 0;
+            ByteBuffer view = page.asReadOnlyBuffer();
+            int lenSize = compressed ? conf.getValueLengthSize() : 0;
+            for(int i = 0; i < cap; i++) {
+                int pos = page.position();
+                int len = conf.getEntrySize();
+                if(compressed) {
+                    len = lenSize == 1 ? page.get(pos) & 0xFF :
+                            page.getShort(pos) & 0xFFFF;
+                }
+                if(projection == RangeProjection.VALUE_OFFSETS && predicate == null)
+                    {res.getQueryResult().add(new KeyValueWrapper(key, index + pos + lenSize)); count++;}
+                else if(scanValue(key, view, index, pos + lenSize, len,
+                        projection, predicate, res) > 0) {
+                    count++;
+                }
+                page.position(pos + lenSize + len);
+            }
+            index = next;
+        }
+        return(count);
+    }
+
+    /**
+     * Stream the (Key, Value) pairs of a key range, in ascending key order.
      *
-     * @param key key to delete
-     * @param unique unique deletions?
-     * @return the number of deleted keys
+     * The stream can be turned parallel; it is split at the separator keys of
+     * the internal nodes, so each thread scans a disjoint set of subtrees. The
+     * tree must not be modified while the stream is consumed, otherwise a
+     * ConcurrentModificationException is thrown, and I/O errors are thrown as
+     * UncheckedIOException. Each leaf is read under the read lock, so the
+     * stream is never left with a page that a writer is changing; the lock
+     * is not held between leaves.
+     *
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @return the stream of the (Key, Value) pairs in the range
+     */
+    @SuppressWarnings("unused")
+    public Stream<KeyValueWrapper> rangeStream(long minKey, long maxKey, boolean unique) {
+        return(rangeStream(BinaryKeys.fromLong(minKey, conf.getKeySize()),
+                BinaryKeys.fromLong(maxKey, conf.getKeySize()), unique));
+    }
+
+    /**
+     * Stream the (Key, Value) pairs of a binary key range; same semantics as
+     * the long variant above.
+     *
+     * @param minKey min key of the range (exactly key size bytes)
+     * @param maxKey max key of the range (exactly key size bytes)
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @return the stream of the (Key, Value) pairs in the range
+     */
+    public Stream<KeyValueWrapper> rangeStream(byte[] minKey, byte[] maxKey, boolean unique) {
+        checkKey(minKey);
+        checkKey(maxKey);
+        treeLock.readLock().lock();
+        try {
+            return(StreamSupport.stream(new RangeSpliterator(this, root,
+                    minKey, maxKey, true, unique, modCount), false));
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of modifications done to the tree, so that
+     * scans can detect that it changed under them; only meaningful
+     * while holding the read lock.
+     *
+     * @return the modification count
+     */
+    int getModCount()
+        {return(modCount);}
+
+    /**
+     * Return the read lock of the tree, for the scans that read pages
+     * outside of the public methods (see RangeSpliterator).
+     *
+     * @return the read lock
+     */
+    ReentrantReadWriteLock.ReadLock getReadLock()
+        {return(treeLock.readLock());}
+
+    /**
+     * Search inside the B+ Tree data structure for the requested key; based on the
+     * unique flag we have two choices which are the following:
+     *
+     *  * unique flag true: return the *first* value that matches the given key
+     *  * unique flag false: return *all* the values that match the given key
+     *
+     *  The second one including a couple more page accesses as if the key has any
+     *  duplicates they will be stored in one or multiple overflow pages depending
+     *  on the number of duplicates. Hence we have to pay for those disk accesses
+     *  as well.
+     *
+     * @param key key to match
+     * @param unique return *all* matching (Key, Value) pairs or the *first* found
+     * @return the search result
      * @throws IOException is thrown when an I/O operation fails
      * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
      */
     @SuppressWarnings("unused")
-    public DeleteResult deleteKey(long key, boolean unique)
-    throws IOException, InvalidBTreeStateException  {
-        if(root.isEmpty()) {
-            return (new DeleteResult(key, (LinkedList<String>) null));
-        } else
-            {return(deleteKey(root, null, -1, -1, key, unique));}
+    public SearchResult searchKey(long key, boolean unique)
+            throws IOException, InvalidBTreeStateException {
+        return(searchKey(BinaryKeys.fromLong(key, conf.getKeySize()), unique));
     }
 
     /**
-     * That function does the job as described above; to perform easily the deletions
-     * we store *two* nodes instead on *one* in memory; the parent and the current.
-     * This also avoids adding information to the actual node file structure to account
-     * for the "parenting" link.
+     * Search for a binary key; same semantics as the long variant above.
      *
-     * @param current node that we currently probe
-     * @param parent parent of the current node
-     * @param key key to delete
-     * @param unique unique deletions?
-     * @return the number of deleted keys
+     * @param key key to match (exactly key size bytes)
+     * @param unique return *all* matching (Key, Value) pairs or the *first* found
+     * @return the search result
      * @throws IOException is thrown when an I/O operation fails
      * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
      */
-    public DeleteResult deleteKey(TreeNode current, TreeInternalNode parent,
-                                  int parentPointerIndex, int parentKeyIndex,
-                                  long key, boolean unique)
+    @SuppressWarnings("unused")
+    public SearchResult searchKey(byte[] key, boolean unique)
             throws IOException, InvalidBTreeStateException {
+        long start = System.nanoTime();
+        bPerf.beginTracedOperation();
+        treeLock.readLock().lock();
+        try {
+            checkKey(key);
+            bPerf.incrementTotalSearches();
+            return(searchKey(findLeaf(key), key, unique));
+        } finally {
+            treeLock.readLock().unlock();
+            bPerf.recordSearchLatency(System.nanoTime() - start);
+        }
+    }
 
-        // check if we need to consolidate
-        if(current.isTimeToMerge(conf)) {
-            //System.out.println("Parent needs merging (internal node)");
-            TreeNode mres = mergeOrRedistributeTreeNodes(current, parent,
-                    parentPointerIndex, parentKeyIndex);
-            if(mres != null) {
-                current = mres;
-            }
+    /**
+     * Run a search and return the pages it touched, level by level, along
+     * with their fill level, whether they were served from memory and the
+     * time spent on each (see QueryExplain). Other operations wait while the
+     * search is explained.
+     *
+     * @param key key to match
+     * @param unique return *all* matching (Key, Value) pairs or the *first* found
+     * @return the explain of the search
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public QueryExplain explainSearch(long key, boolean unique)
+            throws IOException, InvalidBTreeStateException {
+        return(explainSearch(BinaryKeys.fromLong(key, conf.getKeySize()), unique));
+    }
+
+    /**
+     * Explain a search for a binary key; same semantics as the long variant above.
+     *
+     * @param key key to match (exactly key size bytes)
+     * @param unique return *all* matching (Key, Value) pairs or the *first* found
+     * @return the explain of the search
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public QueryExplain explainSearch(byte[] key, boolean unique)
+            throws IOException, InvalidBTreeStateException {
+        checkKey(key);
+        treeLock.writeLock().lock();
+        try {
+            QueryExplain ex = beginExplain("search " + BinaryKeys.toHexString(key));
+            long start = System.nanoTime();
+            SearchResult r = searchKey(key, unique);
+            ex.finish(r.isFound() ? r.getValues().size() : 0, System.nanoTime() - start);
+            return(ex);
+        } finally {
+            endExplain();
+            treeLock.writeLock().unlock();
         }
+    }
 
-        LinkedList<String> rvals;
-        // search for the key
-        int i = binSearchBlock(current, key, Rank.Succ);
-        // check if it's an internal node
-        if(current.isInternalNode()) {
-            // if it is, descend to a leaf
-            TreeInternalNode inode = (TreeInternalNode)current;
-            int idx = i;
-            // check if we are at the end
-            if(key >= current.getKeyAt(i)) {
-                idx++;
-            }
-            // read the next node
-            TreeNode next = readNode(inode.getPointerAt(idx));
-            // finally return the resulting set
-            return(deleteKey(next, inode, idx, i/*keyLocation*/, key, unique));
+    /**
+     * Run a range search and return the pages it touched; see explainSearch.
+     *
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @return the explain of the range search
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public QueryExplain explainRangeSearch(long minKey, long maxKey, boolean unique)
+            throws IOException, InvalidBTreeStateException {
+        return(explainRangeSearch(BinaryKeys.fromLong(minKey, conf.getKeySize()),
+                BinaryKeys.fromLong(maxKey, conf.getKeySize()), unique));
+    }
+
+    /**
+     * Explain a binary key range search; same semantics as the long variant above.
+     *
+     * @param minKey min key of the range (exactly key size bytes)
+     * @param maxKey max key of the range (exactly key size bytes)
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @return the explain of the range search
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public QueryExplain explainRangeSearch(byte[] minKey, byte[] maxKey, boolean unique)
+            throws IOException, InvalidBTreeStateException {
+        checkKey(minKey);
+        checkKey(maxKey);
+        treeLock.writeLock().lock();
+        try {
+            QueryExplain ex = beginExplain("range search [" + BinaryKeys.toHexString(minKey) +
+                    ", " + BinaryKeys.toHexString(maxKey) + "]");
+            long start = System.nanoTime();
+            RangeResult r = rangeSearch(minKey, maxKey, unique);
+            ex.finish(r.getQueryResult().size(), System.nanoTime() - start);
+            return(ex);
+        } finally {
+            endExplain();
+            treeLock.writeLock().unlock();
         }
-        // the current node, is a leaf.
-        else if(current.isLeaf()) {
-            TreeLeaf l = (TreeLeaf)current;
-            // check if we actually found the key
-            if(i == l.getCurrentCapacity()) {
-                //System.out.println("Key with value: " + key +
-                //        " not found, reached limits");
-                return (new DeleteResult(key, (LinkedList<String>) null));
-            } else if(key != l.getKeyAt(i)) {
-                //System.out.println("Key with value: " + key + " not found, key mismatch");
-                //throw new InvalidBTreeStateException("Key not found!");
-                return (new DeleteResult(key, (LinkedList<String>) null));
-            }
-            else {
+    }
 
-                //System.out.println("Found the key " + key + ", removing it");
-                rvals = new LinkedList<>();
+    /**
+     * Start collecting the pages that this thread touches; the caller
+     * holds the write lock, so no other thread does any I/O meanwhile.
+     *
+     * @param operation description of the operation
+     * @return the (empty) explain
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private QueryExplain beginExplain(String operation) throws IOException {
+        explain = new QueryExplain(operation, getHeight());
+        explainThread = Thread.currentThread();
+        return(explain);
+    }
 
-                // we we *have* to make a choice on where to make
-                // a read trade off.
+    private void endExplain() {
+        explain = null;
+        explainThread = null;
+    }
 
-                // check if we have an overflow page
-                if(l.getOverflowPointerAt(i) != -1) {
-                    TreeOverflow ovf = null;
-                    TreeOverflow povf =
-                            (TreeOverflow)readNode(l.getOverflowPointerAt(i));
+    private boolean isExplaining()
+        {return(explain != null && explainThread == Thread.currentThread());}
 
-                    // handle singular deletes
-                    if(unique) {
+    /**
+     * Add a node that was read from the file to the explain; we know the
+     * level of leaves and overflow pages from the height of the tree and
+     * internal nodes are always read right after their parent.
+     *
+     * @param node the node
+     * @param nanos time spent to read and decode it
+     */
+    private void explainRead(TreeNode node, long nanos) {
+        int level;
+        if(node.isOverflow() || node.getNodeType() == TreeNodeType.TREE_LOOKUP_OVERFLOW)
+            {level = explain.getHeight();}
+        else if(node.isLeaf())
+            {level = explain.getHeight() - 1;}
+        else if(node.isRoot())
+            {level = 0;}
+        else
+            {level = explain.getLastLevel() + 1;}
+        explain.addStep(level, node, getNominalCapacity(node), false, nanos);
+    }
 
-                        // descend to the last page
-                        while(povf.getNextPagePointer() != -1L) {
-                            ovf = povf;
-                            povf = (TreeOverflow)readNode(povf.getNextPagePointer());
-                        }
+    /**
+     * Return the nominal capacity of a node, i.e. without key compression
+     *
+     * @param node the node
+     * @return its max number of entries
+     */
+    private int getNominalCapacity(TreeNode node) {
+        switch(node.getNodeType()) {
+            case TREE_LEAF_OVERFLOW:
+                {return(conf.getMaxOverflowNodeCapacity());}
+            case TREE_LOOKUP_OVERFLOW:
+                {return(conf.getMaxLookupPageOverflowCapacity());}
+            case TREE_LEAF:
+            case TREE_ROOT_LEAF:
+                {return(conf.getMaxLeafNodeCapacity());}
+            default:
+                {return(conf.getMaxInternalNodeCapacity());}
+        }
+    }
 
-                        // remove from the overflow page the value
-                        rvals.add(povf.removeLastValue());
-                        povf.decrementCapacity(conf);
+    /**
+     * Find the leaf responsible for the key starting from the path of the
+     * last lookup of this thread (see Finger); we only climb as far as the
+     * first node whose fence keys contain the key and descend from there,
+     * so local lookups skip most (or all) of the internal nodes.
+     *
+     * @param key the key to look for
+     * @return the leaf that holds the key (if it exists)
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private TreeLeaf findLeaf(byte[] key) throws IOException {
+        Finger f = finger.get();
+        int depth = 0;
+        if(f.isValid(structureVersion))
+            {depth = f.climb(key, this::compareKeys);}
+        else
+            {f.reset(structureVersion, root);}
+        // the nodes we keep are as on disk if nothing happened since, and
+        // the ones we read below are anyway
+        boolean exact = depth == 0 || f.getExactModCount() == modCount;
+        if(depth > 0)
+            {bPerf.incrementTotalFingerHits();}
+        else
+            {bPerf.incrementTotalFingerMisses();}
+
+        // the leaf itself changes with every modification
+        TreeNode node = f.getLast();
+        boolean stale = node.isLeaf() && f.getModCount() != modCount;
+        if(isExplaining()) {
+            for(int d = 0; d < (stale && depth > 0 ? depth : depth + 1); d++)
+                {explain.addStep(d, f.getNodeAt(d), getNominalCapacity(f.getNodeAt(d)), true, 0L);}
+        }
+        if(stale) {
+            node = depth == 0 ? root : readNode(node.getPageIndex());
+            f.replaceLast(node);
+        }
+        while(node.isInternalNode()) {
+            TreeInternalNode inode = (TreeInternalNode)node;
+            int i = 0;
+            while(i < inode.getCurrentCapacity() &&
+                    compareKeys(key, inode.getKeyAt(i)) >= 0)
+                {i++;}
+            byte[] lo = i > 0 ? inode.getKeyAt(i - 1) : f.getLowAt(depth);
+            byte[] hi = i < inode.getCurrentCapacity() ?
+                    inode.getKeyAt(i) : f.getHighAt(depth);
+            node = readNode(inode.getPointerAt(i));
+            f.push(node, lo, hi);
+            depth++;
+        }
+        f.setModCount(modCount);
+        if(exact)
+            {f.setExactModCount(modCount);}
+        return((TreeLeaf)node);
+    }
 
-                        // if the page is empty, delete it.
-                        if(povf.isEmpty()) {
-                            if (ovf == null) {
-                                l.setOverflowPointerAt(i, -1L);
-                                l.writeNode(treeFile, conf, bPerf);
-                            }
-                            else {
-                                ovf.setNextPagePointer(-1L);
-                                ovf.writeNode(treeFile, conf, bPerf);
-                            }
-                            // now delete the page
-                            deletePage(povf.getPageIndex(), false);
-                        }
-                        // we don't have to delete the page, so let's
-                        // update it instead.
-                        else
-                            {povf.writeNode(treeFile, conf, bPerf);}
+    /**
+     * Count the values stored for the requested key; small duplicate sets
+     * are kept inline in the leaf and for larger ones the count is kept in
+     * the head of the posting list, so this costs at most a single overflow
+     * page read on top of the leaf lookup.
+     *
+     * @param key key to match
+     * @return the number of values of the key, zero if it does not exist
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    @SuppressWarnings("unused")
+    public long countValues(long key)
+            throws IOException, InvalidBTreeStateException {
+        return(countValues(BinaryKeys.fromLong(key, conf.getKeySize())));
+    }
 
-                        // return the result
-                        return(new DeleteResult(key, rvals));
-                    }
-                    // we have to delete all the values
-                    else {
+    /**
+     * Count the values stored for a binary key; same semantics as the long variant above.
+     *
+     * @param key key to match (exactly key size bytes)
+     * @return the number of values of the key, zero if it does not exist
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public long countValues(byte[] key)
+            throws IOException, InvalidBTreeStateException {
+        treeLock.readLock().lock();
+        try {
+            SearchResult res = searchKey(key, true);
+            if(!res.isFound())
+                {return(0);}
+            TreeLeaf l = res.getLeaf();
+            long ovf = l.getOverflowPointerAt(res.getIndex());
+            if(ovf == -1L)
+                {return(1 + l.getInlineValuesAt(res.getIndex()).size());}
+            return(1 + ((TreeOverflow)readNode(ovf)).getTotalValues());
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
 
-                        // here to save reads/writes we just
-                        // "delete-as-we-read"
-                        while(povf.getCurrentCapacity() > 0) {
-                            rvals.add(povf.removeLastValue());
-                            povf.decrementCapacity(conf);
+    /**
+     * Count the keys in the range [minKey, maxKey] using the entry counts
+     * kept in the internal nodes; this needs two descents of the tree and
+     * never scans the leaves. Duplicate values are *not* counted.
+     *
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @return the number of keys in the range
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    @SuppressWarnings("unused")
+    public long countRange(long minKey, long maxKey)
+            throws IOException, InvalidBTreeStateException {
+        return(countRange(BinaryKeys.fromLong(minKey, conf.getKeySize()),
+                BinaryKeys.fromLong(maxKey, conf.getKeySize())));
+    }
 
-                            // check if it's time to remove the page
-                            if(povf.isEmpty()) {
-                                deletePage(povf.getPageIndex(), false);
-                                if(povf.getNextPagePointer() != -1L)
+    /**
+     * Count the keys in a binary key range; same semantics as the long variant above.
+     *
+     * @param minKey min key of the range (exactly key size bytes)
+     * @param maxKey max key of the range (exactly key size bytes)
+     * @return the number of keys in the range
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public long countRange(byte[] minKey, byte[] maxKey)
+            throws IOException, InvalidBTreeStateException {
+        treeLock.readLock().lock();
+        try {
+            checkKey(minKey);
+            checkKey(maxKey);
+            if(compareKeys(minKey, maxKey) > 0)
+                {return(0);}
+            return(rank(maxKey, true) - rank(minKey, false));
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the rank of the key, that is the number of keys in the
+     * tree that are less than it.
+     *
+     * @param key the key
+     * @return the number of keys less than key
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    @SuppressWarnings("unused")
+    public long rank(long key)
+            throws IOException, InvalidBTreeStateException {
+        return(rank(BinaryKeys.fromLong(key, conf.getKeySize())));
+    }
+
+    /**
+     * Return the rank of a binary key; same semantics as the long variant above.
+     *
+     * @param key the key (exactly key size bytes)
+     * @return the number of keys less than key
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public long rank(byte[] key)
+            throws IOException, InvalidBTreeStateException {
+        checkKey(key);
+        return(rank(key, false));
+    }
+
+    /**
+     * Descend to the leaf of the key summing up the entry counts of the
+     * subtrees to its left.
+     *
+     * @param key the key
+     * @param inclusive also count the key itself (if it exists)?
+     * @return the number of keys less than (or equal to) key
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private long rank(byte[] key, boolean inclusive)
+            throws IOException {
+        treeLock.readLock().lock();
+        try {
+            long rank = 0;
+            TreeNode node = root;
+            while(node.isInternalNode()) {
+                TreeInternalNode inode = (TreeInternalNode)node;
+                int idx = 0;
+                while(idx < inode.getCurrentCapacity() &&
+                        compareKeys(key, inode.getKeyAt(idx)) >= 0)
+                    {rank += inode.getCountAt(idx++);}
+                node = readNode(inode.getPointerAt(idx));
+            }
+            for(int i = 0; i < node.getCurrentCapacity(); i++) {
+                int cmp = compareKeys(node.getKeyAt(i), key);
+                if(cmp > 0 || (cmp == 0 && !inclusive))
+                    {break;}
+                rank++;
+            }
+            return(rank);
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the key with the given rank (the i-th smallest key, starting
+     * from zero) along with its first value; this needs a single descent.
+     *
+     * @param index the rank of the key
+     * @return the (Key, Value) pair
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws IllegalArgumentException is thrown when the index is out of range
+     */
+    public KeyValueWrapper select(long index)
+            throws IOException, IllegalArgumentException {
+        treeLock.readLock().lock();
+        try {
+            if(index < 0 || index >= root.getSubtreeCount())
+                {throw new IllegalArgumentException("Index " + index + " out of range");}
+            TreeNode node = root;
+            while(node.isInternalNode()) {
+                TreeInternalNode inode = (TreeInternalNode)node;
+                int idx = 0;
+                while(index >= inode.getCountAt(idx))
+                    {index -= inode.getCountAt(idx++);}
+                node = readNode(inode.getPointerAt(idx));
+            }
+            TreeLeaf l = (TreeLeaf)node;
+            return(new KeyValueWrapper(l.getKeyAt((int)index), l.getValueAt((int)index)));
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This function performs the actual search as described in searchKey description
+     * and is recursively called until we reach a leaf.
+     *
+     * @param node the node to poke into
+     * @param key key that we want to match
+     * @param unique unique results?
+     * @return the search result
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private SearchResult searchKey(TreeNode node, byte[] key, boolean unique)
+            throws IOException {
+        // search for the key
+        int i = binSearchBlock(node, key, Rank.Exact);
+
+        // check if we found it
+        if(node.isLeaf()) {
+            //i--;
+            if(i >= 0 && i < node.getCurrentCapacity() &&
+                    compareKeys(key, node.getKeyAt(i)) == 0) {
+
+                // we found the key, depending on the unique flag handle accordingly
+                if(unique || (((TreeLeaf)node).getOverflowPointerAt(i) == -1L &&
+                        ((TreeLeaf)node).getInlineValuesAt(i).isEmpty()))
+                    {return(new SearchResult((TreeLeaf)node, i, true));}
+                // duplicates kept inline, no need to read any more pages
+                else if(((TreeLeaf)node).getOverflowPointerAt(i) == -1L) {
+                    TreeLeaf lbuf = (TreeLeaf)node;
+                    LinkedList<String> vals = new LinkedList<>();
+                    vals.add(lbuf.getValueAt(i));
+                    vals.addAll(lbuf.getInlineValuesAt(i));
+                    return(new SearchResult(lbuf, i, vals));
+                }
+                // handle the case of duplicates where actual overflow pages exist
+                else {
+                    TreeLeaf lbuf = (TreeLeaf)node;
+                    TreeOverflow ovfBuf = (TreeOverflow)readNode(lbuf.getOverflowPointerAt(i));
+                    LinkedList<String> ovfList = new LinkedList<>();
+                    // add the current one
+                    ovfList.add(lbuf.getValueAt(i));
+                    int icap = 0;
+                    // loop through all the overflow pages
+                    while(icap < ovfBuf.getCurrentCapacity()) {
+                        ovfList.add(ovfBuf.getValueAt(icap));
+                        icap++;
+                        // advance if we have another page
+                        if(icap == ovfBuf.getCurrentCapacity() &&
+                                ovfBuf.getNextPagePointer() != -1L) {
+                            ovfBuf = (TreeOverflow)readNode(ovfBuf.getNextPagePointer());
+                            icap = 0;
+                        }
+                    }
+                    // now after populating the list return the search result
+                    return(new SearchResult((TreeLeaf)node, i, ovfList));
+                }
+            }
+            else
+                // we found nothing, use the unique constructor anyway.
+                {return(new SearchResult((TreeLeaf)node, i, false));}
+
+        }
+        // probably it's an internal node, descend to a leaf
+        else {
+            // padding to account for the last pointer (if needed)
+            if(i != node.getCurrentCapacity() &&
+                    compareKeys(key, node.getKeyAt(i)) >= 0) {i++;}
+            TreeNode t = readNode(((TreeInternalNode)node).getPointerAt(i));
+            return(searchKey(t, key, unique));
+        }
+
+    }
+
+    /**
+     * Function to delete a key from our tree... this function is again
+     * adopted from CLRS delete method but this was basically written
+     * from scratch and is loosely based on the actual notes.
+     *
+     * -- firstly it deletes the keys (all or first depending on unique flag)
+     * -- secondly it updates the pool of empty pages
+     * -- thirdly performs merges if necessary (it capacity falls < degree-1)
+     * -- finally condenses the file size depending on load
+     *
+     * @param key key to delete
+     * @param unique unique deletions?
+     * @return the number of deleted keys
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    @SuppressWarnings("unused")
+    public DeleteResult deleteKey(long key, boolean unique)
+    throws IOException, InvalidBTreeStateException  {
+        return(deleteKey(BinaryKeys.fromLong(key, conf.getKeySize()), unique));
+    }
+
+    /**
+     * Delete a binary key; same semantics as the long variant above.
+     *
+     * @param key key to delete (exactly key size bytes)
+     * @param unique unique deletions?
+     * @return the number of deleted keys
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    @SuppressWarnings("unused")
+    public DeleteResult deleteKey(byte[] key, boolean unique)
+    throws IOException, InvalidBTreeStateException  {
+        long start = System.nanoTime();
+        bPerf.beginTracedOperation();
+        treeLock.writeLock().lock();
+        try {
+            checkKey(key);
+            modCount++;
+            if(root.isEmpty()) {
+                return (new DeleteResult(key, (LinkedList<String>) null));
+            } else
+                {return(deleteKey(root, null, -1, -1, key, unique));}
+        } finally {
+            treeLock.writeLock().unlock();
+            bPerf.recordDeletionLatency(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * That function does the job as described above; to perform easily the deletions
+     * we store *two* nodes instead on *one* in memory; the parent and the current.
+     * This also avoids adding information to the actual node file structure to account
+     * for the "parenting" link.
+     *
+     * @param current node that we currently probe
+     * @param parent parent of the current node
+     * @param key key to delete
+     * @param unique unique deletions?
+     * @return the number of deleted keys
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public DeleteResult deleteKey(TreeNode current, TreeInternalNode parent,
+                                  int parentPointerIndex, int parentKeyIndex,
+                                  byte[] key, boolean unique)
+            throws IOException, InvalidBTreeStateException {
+
+        // check if we need to consolidate; with deferred merging leaves
+        // are left to compact() unless they are about to become empty
+        if(current.isTimeToMerge(conf) && !(conf.isDeferredMerge() &&
+                current.isLeaf() && current.getCurrentCapacity() > 1)) {
+            //System.out.println("Parent needs merging (internal node)");
+            TreeNode mres = mergeOrRedistributeTreeNodes(current, parent,
+                    parentPointerIndex, parentKeyIndex);
+            if(mres != null) {
+                current = mres;
+            }
+        }
+
+        LinkedList<String> rvals;
+        // search for the key
+        int i = binSearchBlock(current, key, Rank.Succ);
+        // check if it's an internal node
+        if(current.isInternalNode()) {
+            // if it is, descend to a leaf
+            TreeInternalNode inode = (TreeInternalNode)current;
+            int idx = i;
+            // check if we are at the end
+            if(compareKeys(key, current.getKeyAt(i)) >= 0) {
+                idx++;
+            }
+            // read the next node
+            TreeNode next = readNode(inode.getPointerAt(idx));
+            // merges and redistributions below move entries between our
+            // children and write this node themselves, so the entries under
+            // it only change when a key was removed.
+            long count = inode.getSubtreeCount();
+            // get the resulting set
+            DeleteResult res = deleteKey(next, inode, idx, i/*keyLocation*/, key, unique);
+            // the child updated its entry count in this node, commit it
+            // and pass our own up.
+            if(inode.getSubtreeCount() != count) {
+                if(parent != null)
+                    {updateSubtreeCount(parent, inode);}
+                writeInternalNode(inode);
+            }
+            // one of our separators might have been replaced by a longer
+            // one below, so split the node if it outgrew its page.
+            if(!inode.fitsInPage(conf))
+                {splitOverflowingNode(inode, parent);}
+            // finally return the resulting set
+            return(res);
+        }
+        // the current node, is a leaf.
+        else if(current.isLeaf()) {
+            TreeLeaf l = (TreeLeaf)current;
+            // check if we actually found the key
+            if(i == l.getCurrentCapacity()) {
+                //System.out.println("Key with value: " + key +
+                //        " not found, reached limits");
+                return (new DeleteResult(key, (LinkedList<String>) null));
+            } else if(compareKeys(key, l.getKeyAt(i)) != 0) {
+                //System.out.println("Key with value: " + key + " not found, key mismatch");
+                //throw new InvalidBTreeStateException("Key not found!");
+                return (new DeleteResult(key, (LinkedList<String>) null));
+            }
+            else {
+
+                //System.out.println("Found the key " + key + ", removing it");
+                rvals = new LinkedList<>();
+
+                // we we *have* to make a choice on where to make
+                // a read trade off.
+
+                // check if we have inline duplicates
+                LinkedList<String> inline = l.getInlineValuesAt(i);
+                if(!inline.isEmpty()) {
+                    if(unique) {
+                        rvals.add(inline.removeLast());
+                        l.writeNode(treeFile, conf, bPerf);
+                        return(new DeleteResult(key, rvals));
+                    }
+                    while(!inline.isEmpty())
+                        {rvals.add(inline.removeLast());}
+                }
+                // check if we have an overflow page
+                else if(l.getOverflowPointerAt(i) != -1) {
+                    // handle singular deletes, using the tail pointer
+                    if(unique) {
+                        rvals.add(removeFromPostingList(l, i));
+                        // return the result
+                        return(new DeleteResult(key, rvals));
+                    }
+                    // we have to delete all the values
+                    else {
+                        TreeOverflow povf =
+                                (TreeOverflow)readNode(l.getOverflowPointerAt(i));
+
+                        // here to save reads/writes we just
+                        // "delete-as-we-read"
+                        while(povf.getCurrentCapacity() > 0) {
+                            rvals.add(povf.removeLastValue());
+                            povf.decrementCapacity(conf);
+
+                            // check if it's time to remove the page
+                            if(povf.isEmpty()) {
+                                deletePage(povf.getPageIndex(), false);
+                                if(povf.getNextPagePointer() != -1L)
                                     {povf = (TreeOverflow)readNode(povf.getNextPagePointer());}
                             }
                         }
                     }
-
+
+                }
+            }
+            // we reached here because either we have no overflow page
+            // or non-unique deletes with overflow pages. We should
+            // reach this point after we purged all the overflow pages.
+            rvals.add(((TreeLeaf)current).removeEntryAt(i, conf));
+            current.writeNode(treeFile, conf, bPerf);
+            if(parent != null) {
+                updateSubtreeCount(parent, current);
+                // remember a key of the leaf, so that compact() can find it
+                if(conf.isDeferredMerge() && current.isTimeToMerge(conf) &&
+                        underfullLeaves.putIfAbsent(current.getPageIndex(), key) == null)
+                    {bPerf.incrementTotalDeferredMerges();}
+            }
+        }
+        else {
+            throw new IllegalStateException("Read unknown or " +
+                    "overflow page while descending");
+        }
+
+        return(new DeleteResult(key, rvals));
+    }
+
+    /**
+     * Delete all the keys in [minKey, maxKey] along with all of their values;
+     * see the binary key variant below.
+     *
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @return the number of deleted keys
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    @SuppressWarnings("unused")
+    public long deleteRange(long minKey, long maxKey)
+            throws IOException, InvalidBTreeStateException {
+        return(deleteRange(BinaryKeys.fromLong(minKey, conf.getKeySize()),
+                BinaryKeys.fromLong(maxKey, conf.getKeySize())));
+    }
+
+    /**
+     * Delete all the binary keys in [minKey, maxKey] along with all of their
+     * values, without going through deleteKey for each one of them.
+     *
+     * We first link the leaves on either side of the range to each other and
+     * then cut the range out of the tree top-down: the subtrees (and their
+     * posting lists) that fall inside the range are returned to the free page
+     * pool without being rewritten, so only the nodes on the paths to the two
+     * boundary leaves are trimmed. On the way back up every boundary node that
+     * became under-full is merged with, or refilled from, one of its siblings;
+     * finally the root is collapsed while it has a single child.
+     *
+     * @param minKey min key of the range (exactly key size bytes)
+     * @param maxKey max key of the range (exactly key size bytes)
+     * @return the number of deleted keys
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public long deleteRange(byte[] minKey, byte[] maxKey)
+            throws IOException, InvalidBTreeStateException {
+        checkKey(minKey);
+        checkKey(maxKey);
+        bPerf.beginTracedOperation();
+        treeLock.writeLock().lock();
+        try {
+            if(compareKeys(minKey, maxKey) > 0)
+                {return(0L);}
+            long deleted = countRange(minKey, maxKey);
+            if(deleted == 0)
+                {return(0L);}
+            modCount++;
+            structureVersion++;
+
+            if(deleted == root.getSubtreeCount()) {
+                // nothing is left, start over with an empty root
+                freeSubtree(root.getPageIndex());
+                root = null;
+                createTree();
+            } else {
+                linkAroundRange(minKey, maxKey);
+                cutRange(root, null, null, null, minKey, maxKey);
+                // the tree might have lost some levels
+                while(root.isInternalNode() && root.getCurrentCapacity() == 0) {
+                    TreeNode child = readNode(((TreeInternalNode)root).getPointerAt(0));
+                    deletePage(root.getPageIndex(), false);
+                    if(child.isLeaf()) {
+                        child.setNodeType(TreeNodeType.TREE_ROOT_LEAF);
+                        ((TreeLeaf)child).setNextPagePointer(-1L);
+                        ((TreeLeaf)child).setPrevPagePointer(-1L);
+                    } else
+                        {child.setNodeType(TreeNodeType.TREE_ROOT_INTERNAL);}
+                    child.writeNode(treeFile, conf, bPerf);
+                    root = child;
+                }
+            }
+            writeFileHeader(conf);
+            updatePageIndexCounts(conf);
+            return(deleted);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Link the last leaf that keeps keys below the range to the first one
+     * that keeps keys above it; every leaf in between is about to be freed.
+     *
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private void linkAroundRange(byte[] minKey, byte[] maxKey)
+            throws IOException {
+        TreeLeaf first = (TreeLeaf)readNode(findLeafPage(minKey));
+        long endIndex = findLeafPage(maxKey);
+        TreeLeaf end = endIndex == first.getPageIndex() ? first : (TreeLeaf)readNode(endIndex);
+
+        TreeLeaf left = !first.isEmpty() && compareKeys(first.getFirstKey(), minKey) < 0 ?
+                first : (TreeLeaf)readNode(first.getPrevPagePointer());
+        TreeLeaf right = !end.isEmpty() && compareKeys(end.getLastKey(), maxKey) > 0 ?
+                end : (TreeLeaf)readNode(end.getNextPagePointer());
+        // the range is inside a single leaf
+        if(left != null && left == right)
+            {return;}
+
+        if(left != null) {
+            left.setNextPagePointer(right == null ? -1L : right.getPageIndex());
+            left.writeNode(treeFile, conf, bPerf);
+        }
+        if(right != null) {
+            right.setPrevPagePointer(left == null ? -1L : left.getPageIndex());
+            right.writeNode(treeFile, conf, bPerf);
+        }
+    }
+
+    /**
+     * Remove the keys of the range from the subtree rooted at n, which is
+     * responsible for the keys in [lo, hi).
+     *
+     * @param n the node
+     * @param lo the lower fence of n (null if unbounded)
+     * @param hi the upper fence of n (null if unbounded)
+     * @param parent parent of n (null if n is the root)
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @return the node, or null if it became empty (and its page was freed)
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private TreeNode cutRange(TreeNode n, byte[] lo, byte[] hi, TreeInternalNode parent,
+                              byte[] minKey, byte[] maxKey)
+            throws IOException, InvalidBTreeStateException {
+        if(n.isLeaf()) {
+            TreeLeaf l = (TreeLeaf)n;
+            int i = 0;
+            while(i < l.getCurrentCapacity() && compareKeys(l.getKeyAt(i), minKey) < 0)
+                {i++;}
+            while(i < l.getCurrentCapacity() && compareKeys(l.getKeyAt(i), maxKey) <= 0) {
+                freePostingList(l.getOverflowPointerAt(i));
+                l.removeEntryAt(i, conf);
+            }
+            if(l.isEmpty() && !l.isRoot()) {
+                deletePage(l.getPageIndex(), false);
+                return(null);
+            }
+            l.writeNode(treeFile, conf, bPerf);
+            return(l);
+        }
+
+        // the node can be under-full until we are done with it
+        TreeInternalNode inode = (TreeInternalNode)n;
+        inode.setBeingDeleted(true);
+        int cap = inode.getCurrentCapacity();
+        ArrayList<byte[]> seps = new ArrayList<>(inode.keyArray);
+        ArrayList<Long> ptrs = new ArrayList<>(), counts = new ArrayList<>();
+        for(int i = 0; i <= cap; i++) {
+            ptrs.add(inode.getPointerAt(i));
+            counts.add(inode.getCountAt(i));
+        }
+
+        // keep the children outside the range, free the ones inside it and
+        // remember the (at most two) that overlap with it.
+        inode.keyArray.clear();
+        while(inode.getPointerListSize() > 0) {
+            inode.popPointer();
+            inode.popCount();
+        }
+        LinkedList<Integer> partial = new LinkedList<>();
+        for(int i = 0; i <= cap; i++) {
+            byte[] clo = i == 0 ? lo : seps.get(i - 1);
+            byte[] chi = i == cap ? hi : seps.get(i);
+            boolean outside = (chi != null && compareKeys(chi, minKey) <= 0) ||
+                    (clo != null && compareKeys(clo, maxKey) > 0);
+            if(!outside && clo != null && chi != null &&
+                    compareKeys(clo, minKey) >= 0 && compareKeys(chi, maxKey) <= 0) {
+                freeSubtree(ptrs.get(i));
+                continue;
+            }
+            if(!outside)
+                {partial.add(i);}
+            if(inode.getPointerListSize() > 0)
+                {inode.addLastToKeyArray(clo);}
+            inode.addPointerLast(ptrs.get(i));
+            inode.addCountLast(counts.get(i));
+        }
+        inode.setCurrentCapacity(inode.keyArray.size());
+
+        for(int i : partial) {
+            long page = ptrs.get(i);
+            TreeNode c = cutRange(readNode(page), i == 0 ? lo : seps.get(i - 1),
+                    i == cap ? hi : seps.get(i), inode, minKey, maxKey);
+            if(c == null)
+                {removeChild(inode, inode.getPointerIndex(page));}
+            else
+                {updateSubtreeCount(inode, c);}
+        }
+
+        if(inode.getPointerListSize() == 0) {
+            deletePage(inode.getPageIndex(), false);
+            return(null);
+        }
+        for(int i : partial)
+            {repairChild(inode, ptrs.get(i));}
+
+        inode.setBeingDeleted(false);
+        if(inode.fitsInPage(conf))
+            {inode.writeNode(treeFile, conf, bPerf);}
+        else
+            {splitOverflowingNode(inode, parent);}
+        return(inode);
+    }
+
+    /**
+     * Remove a child (and the separator on its left, if any) from a node
+     *
+     * @param n the node
+     * @param index the index of the child
+     */
+    private void removeChild(TreeInternalNode n, int index) {
+        n.removePointerAt(index);
+        n.removeCountAt(index);
+        if(!n.keyArray.isEmpty())
+            {n.removeKeyAt(index > 0 ? index - 1 : 0);}
+        n.setCurrentCapacity(n.keyArray.size());
+    }
+
+    /**
+     * Check if a (non root) node holds less entries than it should
+     *
+     * @param n the node
+     * @return true if it does, false otherwise
+     */
+    private boolean isUnderfull(TreeNode n) {
+        return(n.getCurrentCapacity() < (n.isLeaf() ? conf.getLeafLowWaterMark() :
+                conf.getMinInternalNodeCapacity()));
+    }
+
+    /**
+     * Merge a child that is under-full with one of its siblings, or move
+     * entries over from that sibling if they don't fit in a single node;
+     * we keep going while the result is still under-full (that is when both
+     * were) and there is another sibling to use.
+     *
+     * @param parent the parent node
+     * @param page the page of the child
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private void repairChild(TreeInternalNode parent, long page)
+            throws IOException, InvalidBTreeStateException {
+        int idx = parent.getPointerIndex(page);
+        if(idx < 0 || parent.getPointerListSize() < 2)
+            {return;}
+        TreeNode c = readNode(page);
+        if(!isUnderfull(c))
+            {return;}
+
+        int sidx = idx + 1 < parent.getPointerListSize() ? idx + 1 : idx - 1;
+        TreeNode s = readNode(parent.getPointerAt(sidx));
+        int k = Math.min(idx, sidx);
+        TreeNode left = idx < sidx ? c : s, right = idx < sidx ? s : c;
+        boolean merged;
+        if(c.isLeaf())
+            {merged = rebalanceLeaves(parent, k, (TreeLeaf)left, (TreeLeaf)right);}
+        else {
+            TreeInternalNode ic = (TreeInternalNode)c;
+            // a child with a single pointer was not repaired against anything
+            long orphan = ic.getCurrentCapacity() == 0 ? ic.getPointerAt(0) : -1L;
+            merged = rebalanceInternalNodes(parent, k,
+                    (TreeInternalNode)left, (TreeInternalNode)right);
+            if(orphan >= 0) {
+                TreeInternalNode host = (TreeInternalNode)(merged ? left : c);
+                repairChild(host, orphan);
+                host.writeNode(treeFile, conf, bPerf);
+            }
+        }
+        if(merged)
+            {repairChild(parent, left.getPageIndex());}
+    }
+
+    /**
+     * Merge two neighbouring leaves, or even out their entries if they don't
+     * fit in one.
+     *
+     * @param parent the parent of both
+     * @param k the index of the separator between them in the parent
+     * @param left the left leaf
+     * @param right the right leaf
+     * @return true if they were merged (into left), false otherwise
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private boolean rebalanceLeaves(TreeInternalNode parent, int k, TreeLeaf left, TreeLeaf right)
+            throws IOException, InvalidBTreeStateException {
+        if(canMergeLeaves(left, right)) {
+            TreeEvents.Merge event = new TreeEvents.Merge();
+            event.begin();
+            joinLeaves(left, right, right.getCurrentCapacity());
+            left.setNextPagePointer(right.getNextPagePointer());
+            if(right.getNextPagePointer() != -1L) {
+                TreeLeaf rnext = (TreeLeaf)readNode(right.getNextPagePointer());
+                rnext.setPrevPagePointer(left.getPageIndex());
+                rnext.writeNode(treeFile, conf, bPerf);
+            }
+            removeChild(parent, k + 1);
+            updateSubtreeCount(parent, left);
+            writeLeaf(left);
+            deletePage(right.getPageIndex(), false);
+            TreeEvents.commit(event, left, right);
+            return(true);
+        }
+
+        TreeEvents.Redistribution event = new TreeEvents.Redistribution();
+        event.begin();
+        int target = (left.getCurrentCapacity() + right.getCurrentCapacity()) / 2;
+        int moved = Math.abs(left.getCurrentCapacity() - target);
+        if(left.getCurrentCapacity() < target)
+            {joinLeaves(left, right, target - left.getCurrentCapacity());}
+        while(left.getCurrentCapacity() > target) {
+            right.pushToKeyArray(left.removeLastKey());
+            right.pushToValueList(left.removeLastValue());
+            right.pushToOverflowList(left.removeLastOverflowPointer());
+            right.pushToInlineList(left.removeLastInlineValues());
+            right.incrementCapacity(conf);
+            left.decrementCapacity(conf);
+        }
+        parent.setKeyArrayAt(k, getSeparatorKey(left.getLastKey(), right.getFirstKey()));
+        updateSubtreeCount(parent, left);
+        updateSubtreeCount(parent, right);
+        writeLeaf(left);
+        writeLeaf(right);
+        if(moved > 0)
+            {TreeEvents.commit(event, left, right, moved);}
+        return(false);
+    }
+
+    /**
+     * Merge two neighbouring internal nodes (pulling down their separator
+     * from the parent), or even out their entries through the parent if
+     * they don't fit in one.
+     *
+     * @param parent the parent of both
+     * @param k the index of the separator between them in the parent
+     * @param left the left node
+     * @param right the right node
+     * @return true if they were merged (into left), false otherwise
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private boolean rebalanceInternalNodes(TreeInternalNode parent, int k,
+                                           TreeInternalNode left, TreeInternalNode right)
+            throws IOException, InvalidBTreeStateException {
+        if(left.getCurrentCapacity() + right.getCurrentCapacity() + 1 <=
+                conf.getMaxInternalNodeCapacity()) {
+            TreeEvents.Merge event = new TreeEvents.Merge();
+            event.begin();
+            left.addLastToKeyArray(parent.getKeyAt(k));
+            left.keyArray.addAll(right.keyArray);
+            for(int i = 0; i < right.getPointerListSize(); i++) {
+                left.addPointerLast(right.getPointerAt(i));
+                left.addCountLast(right.getCountAt(i));
+            }
+            left.setCurrentCapacity(left.keyArray.size());
+            removeChild(parent, k + 1);
+            updateSubtreeCount(parent, left);
+            left.writeNode(treeFile, conf, bPerf);
+            deletePage(right.getPageIndex(), false);
+            TreeEvents.commit(event, left, right);
+            return(true);
+        }
+
+        // rotate children through the parent separator
+        TreeEvents.Redistribution event = new TreeEvents.Redistribution();
+        event.begin();
+        int target = (left.getCurrentCapacity() + right.getCurrentCapacity()) / 2;
+        int moved = Math.abs(left.getCurrentCapacity() - target);
+        while(left.getCurrentCapacity() < target) {
+            left.addLastToKeyArray(parent.getKeyAt(k));
+            left.addPointerLast(right.popPointer());
+            left.addCountLast(right.popCount());
+            parent.setKeyArrayAt(k, right.popKey());
+            left.setCurrentCapacity(left.keyArray.size());
+            right.setCurrentCapacity(right.keyArray.size());
+        }
+        while(left.getCurrentCapacity() > target) {
+            right.pushToKeyArray(parent.getKeyAt(k));
+            right.pushToPointerArray(left.removeLastPointer());
+            right.pushToCountArray(left.removeLastCount());
+            parent.setKeyArrayAt(k, left.removeLastKey());
+            left.setCurrentCapacity(left.keyArray.size());
+            right.setCurrentCapacity(right.keyArray.size());
+        }
+        updateSubtreeCount(parent, left);
+        updateSubtreeCount(parent, right);
+        left.writeNode(treeFile, conf, bPerf);
+        right.writeNode(treeFile, conf, bPerf);
+        if(moved > 0)
+            {TreeEvents.commit(event, left, right, moved);}
+        return(false);
+    }
+
+    /**
+     * Return all the pages of a subtree (and of its posting lists) to the
+     * free page pool; the pages are only read, to find their children.
+     *
+     * @param page the root page of the subtree
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private void freeSubtree(long page)
+            throws IOException, InvalidBTreeStateException {
+        TreeNode n = readNode(page);
+        if(n.isInternalNode()) {
+            TreeInternalNode inode = (TreeInternalNode)n;
+            for(int i = 0; i < inode.getPointerListSize(); i++)
+                {freeSubtree(inode.getPointerAt(i));}
+        } else if(n.isLeaf()) {
+            TreeLeaf l = (TreeLeaf)n;
+            for(int i = 0; i < l.getCurrentCapacity(); i++)
+                {freePostingList(l.getOverflowPointerAt(i));}
+        }
+        deletePage(page, false);
+    }
+
+    /**
+     * Return the pages of a posting list to the free page pool; we only read
+     * their next pointers.
+     *
+     * @param head the head page of the list (negative if none)
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private void freePostingList(long head)
+            throws IOException, InvalidBTreeStateException {
+        while(head >= 0) {
+            long next = readPage(head).getLong(TreeOverflow.NEXT_POINTER_OFFSET);
+            deletePage(head, false);
+            head = next;
+        }
+    }
+
+    /**
+     * Merge or redistribute (some of) the leaves that deletes left under-full
+     * while deferred merging is enabled, oldest first.
+     *
+     * For each such leaf we descend from the root towards the key that was
+     * deleted from it and consolidate the nodes on the path the same way
+     * deleteKey would have, preferring merges over redistributions so that
+     * the leaf does not end up under-full again. Leaves that were refilled in
+     * the meantime are left alone. The pending leaves are only kept in memory,
+     * so the ones left when the tree is closed simply stay under-full.
+     *
+     * @param maxLeaves the max number of leaves to process
+     * @return the number of leaves processed
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public int compact(int maxLeaves)
+            throws IOException, InvalidBTreeStateException {
+        treeLock.writeLock().lock();
+        try {
+            int done = 0;
+            Iterator<Map.Entry<Long, byte[]>> it = underfullLeaves.entrySet().iterator();
+            compacting = true;
+            while(done < maxLeaves && it.hasNext()) {
+                byte[] key = it.next().getValue();
+                it.remove();
+                bPerf.beginTracedOperation();
+                if(root.isInternalNode()) {
+                    modCount++;
+                    rebalancePath(root, null, -1, -1, key);
+                }
+                bPerf.incrementTotalCompactions();
+                done++;
+            }
+            return(done);
+        } finally {
+            compacting = false;
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of leaves that wait for compact()
+     *
+     * @return the number of under-full leaves
+     */
+    public int getPendingCompactions() {
+        treeLock.readLock().lock();
+        try {
+            return(underfullLeaves.size());
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Move (some of) the leaves so that their physical order in the file
+     * follows their key order, thus range scans (which follow the next
+     * pointers of the leaves) read the file sequentially again.
+     *
+     * The leaves take the pages from the start of the file in key order,
+     * one after the other. The leaf, internal node or overflow page that is
+     * at the page a leaf goes to swaps pages with it, and a free page is
+     * simply taken; the root and the lookup pages of the free pool stay
+     * where they are. Each swap rewrites the two nodes and the ones that
+     * point to them (parents, neighbours and overflow pages). The tree lock
+     * is held only for the given number of moves, so this can be called
+     * repeatedly while the tree is in use; when the tree changes shape in
+     * between, the plan of the moves is computed again.
+     *
+     * @param maxLeaves the max number of leaves to move
+     * @return the number of leaves moved, zero once all leaves are in place
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public int defragment(int maxLeaves)
+            throws IOException, InvalidBTreeStateException {
+        treeLock.writeLock().lock();
+        try {
+            if(root == null || root.isLeaf())
+                {return(0);}
+            int done = 0;
+            boolean fresh = false;
+            while(done < maxLeaves) {
+                if(defragPlan == null ||
+                        !defragPlan.isValid(root.getPageIndex(), structureVersion)) {
+                    defragPlan = buildDefragmentPlan();
+                    fresh = true;
+                }
+                if(defragPlan.isDone())
+                    {break;}
+                long a = defragPlan.leaves[defragPlan.getCursor()];
+                long b = defragPlan.getTarget();
+                if(a == b)
+                    {defragPlan.placed(); continue;}
+                if(!isMovablePage(defragPlan, b))
+                    {defragPlan.skipTarget(); continue;}
+                bPerf.beginTracedOperation();
+                if(!swapPages(defragPlan, a, b)) {
+                    // a plan we just built has to be right
+                    if(fresh)
+                        {throw new InvalidBTreeStateException("Node not found in its parent: " + a);}
+                    defragPlan = null;
+                    continue;
+                }
+                modCount++;
+                defragPlan.swapped(a, b, structureVersion, modCount);
+                defragPlan.placed();
+                fresh = false;
+                done++;
+            }
+            return(done);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Walk the internal nodes and list the leaves in key order
+     *
+     * @return the plan
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private DefragmentPlan buildDefragmentPlan() throws IOException {
+        HashMap<Long, long[]> internalNodes = new HashMap<>();
+        ArrayList<TreeInternalNode> level = new ArrayList<>();
+        level.add((TreeInternalNode)root);
+        // descend until the children of the level are the leaves
+        while(!readNode(level.get(0).getPointerAt(0)).isLeaf()) {
+            ArrayList<TreeInternalNode> next = new ArrayList<>();
+            for(TreeInternalNode n : level) {
+                for(int i = 0; i <= n.getCurrentCapacity(); i++) {
+                    next.add((TreeInternalNode)readNode(n.getPointerAt(i)));
+                    internalNodes.put(n.getPointerAt(i), new long[] {n.getPageIndex(), i});
+                }
+            }
+            level = next;
+        }
+        int count = 0;
+        for(TreeInternalNode n : level)
+            {count += n.getCurrentCapacity() + 1;}
+        long[] leaves = new long[count];
+        long[] parents = new long[count];
+        int[] slots = new int[count];
+        int k = 0;
+        for(TreeInternalNode n : level) {
+            for(int i = 0; i <= n.getCurrentCapacity(); i++, k++) {
+                leaves[k] = n.getPointerAt(i);
+                parents[k] = n.getPageIndex();
+                slots[k] = i;
+            }
+        }
+        // pages are handed out from page number one onwards
+        return(new DefragmentPlan(leaves, parents, slots, internalNodes,
+                calculatePageOffset(1), conf.getPageSize(), root.getPageIndex(),
+                structureVersion));
+    }
+
+    /**
+     * Check if a leaf can take a page, i.e. the page is free or holds a
+     * node that we can move: a leaf, an internal node (but the root) or an
+     * overflow page on the list of a leaf. The back pointer of an overflow
+     * page is fixed on the way if it is out of date.
+     *
+     * @param plan the plan
+     * @param page the page index
+     * @return true if it can, false otherwise
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private boolean isMovablePage(DefragmentPlan plan, long page) throws IOException {
+        if(page == root.getPageIndex())
+            {return(false);}
+        if(plan.positionOf(page) >= 0 || plan.getInternalParent(page) != null ||
+                freeSlotPool.contains(page))
+            {return(true);}
+        if(lookupPagesPool.contains(page))
+            {return(false);}
+        TreeNode n = readNode(page);
+        if(!n.isOverflow())
+            {return(false);}
+        // and only if it is on the list of a leaf, as we rewrite its
+        // neighbours; its back pointer may lead to a freed page, so we
+        // don't go by it
+        long[] link = findOverflowLink(plan, page);
+        if(link == null && !plan.hasOverflowOwners(modCount)) {
+            plan.setOverflowOwners(findOverflowOwners(plan), modCount);
+            link = findOverflowLink(plan, page);
+        }
+        if(link == null)
+            {return(false);}
+        TreeOverflow o = (TreeOverflow)n;
+        if(o.getPrevPagePointer() != link[1]) {
+            o.setPrevPagePointer(link[1]);
+            o.writeNode(treeFile, conf, bPerf);
+        }
+        return(true);
+    }
+
+    /**
+     * Find where an overflow page is by going down the lists of the leaf
+     * that the plan has for it, so only pages in use are followed
+     *
+     * @param plan the plan
+     * @param page page index of the overflow page
+     * @return the head of its list and the page before it (the leaf for
+     * the head), or null if it is not on a list of that leaf
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private long[] findOverflowLink(DefragmentPlan plan, long page) throws IOException {
+        int k = plan.getOverflowOwner(page);
+        if(k < 0)
+            {return(null);}
+        TreeLeaf l = (TreeLeaf)readNode(plan.leaves[k]);
+        for(int i = 0; i < l.getCurrentCapacity(); i++) {
+            long prev = l.getPageIndex();
+            for(long p = l.getOverflowPointerAt(i); p >= 0;
+                p = ((TreeOverflow)readNode(p)).getNextPagePointer()) {
+                if(p == page)
+                    {return(new long[] {l.getOverflowPointerAt(i), prev});}
+                prev = p;
+            }
+        }
+        return(null);
+    }
+
+    /**
+     * Read all the leaves of the plan and their overflow lists and map the
+     * overflow pages to the positions of their leaves
+     *
+     * @param plan the plan
+     * @return overflow page to the position of its leaf
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private HashMap<Long, Integer> findOverflowOwners(DefragmentPlan plan) throws IOException {
+        HashMap<Long, Integer> owners = new HashMap<>();
+        for(int k = 0; k < plan.leaves.length; k++) {
+            TreeLeaf l = (TreeLeaf)readNode(plan.leaves[k]);
+            for(int i = 0; i < l.getCurrentCapacity(); i++) {
+                for(long p = l.getOverflowPointerAt(i); p >= 0;
+                    p = ((TreeOverflow)readNode(p)).getNextPagePointer())
+                    {owners.put(p, k);}
+            }
+        }
+        return(owners);
+    }
+
+    /**
+     * Swap the pages of the leaf at page a and of whatever is at page b
+     * (or move the leaf there if the page is free)
+     *
+     * @param plan the plan
+     * @param a page of the leaf
+     * @param b page it goes to
+     * @return true if the pages were swapped, false if the plan is out of date
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private boolean swapPages(DefragmentPlan plan, long a, long b)
+            throws IOException, InvalidBTreeStateException {
+        // the nodes we rewrite by their current page, each read once as a
+        // node can point to both of the pair
+        LinkedHashMap<Long, TreeNode> nodes = new LinkedHashMap<>();
+        boolean free = plan.positionOf(b) < 0 && plan.getInternalParent(b) == null &&
+                freeSlotPool.contains(b);
+
+        // check before we change anything
+        if(!isReferencedByParent(plan, nodes, a) ||
+                (!free && plan.positionOf(b) >= 0 && !isReferencedByParent(plan, nodes, b)) ||
+                (!free && plan.getInternalParent(b) != null && !isReferencedByParent(plan, nodes, b)))
+            {return(false);}
+
+        TreeNode x = getDefragmentNode(nodes, a);
+        if(x.getNodeType() != TreeNodeType.TREE_LEAF)
+            {throw new InvalidBTreeStateException("Expected a leaf at page: " + a);}
+        ArrayList<TreeNode> pair = new ArrayList<>();
+        pair.add(x);
+        if(!free)
+            {pair.add(getDefragmentNode(nodes, b));}
+        LongUnaryOperator moved = p -> p == a ? b : (p == b ? a : p);
+
+        // first what points to the pair from outside, then the pair itself
+        for(TreeNode n : pair)
+            {redirectReferences(plan, nodes, n, moved.applyAsLong(n.getPageIndex()), a, b);}
+        for(TreeNode n : pair) {
+            remapPointers(n, moved);
+            n.setPageIndex(moved.applyAsLong(n.getPageIndex()));
+        }
+        for(TreeNode n : nodes.values())
+            {n.writeNode(treeFile, conf, bPerf);}
+
+        // pending compactions are keyed by the page of the leaf
+        byte[] ka = underfullLeaves.remove(a);
+        byte[] kb = underfullLeaves.remove(b);
+        if(ka != null)
+            {underfullLeaves.put(b, ka);}
+        if(kb != null)
+            {underfullLeaves.put(a, kb);}
+
+        structureVersion++;
+        if(free) {
+            // we took a free page and gave back the old one
+            freeSlotPool.remove(b);
+            totalTreePages++;
+            deletePage(a, false);
+        }
+        for(TreeNode n : pair) {
+            if(n.getNodeType() == TreeNodeType.TREE_LEAF)
+                {bPerf.incrementTotalLeafRelocations();}
+        }
+        return(true);
+    }
+
+    /**
+     * Check that the plan has the right parent for a leaf or internal node
+     *
+     * @param plan the plan
+     * @param nodes the nodes read so far
+     * @param page page of the node
+     * @return true if its parent points to it, false otherwise
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private boolean isReferencedByParent(DefragmentPlan plan, Map<Long, TreeNode> nodes,
+                                         long page) throws IOException {
+        int k = plan.positionOf(page);
+        long[] p = k >= 0 ? new long[] {plan.parents[k], plan.slots[k]} :
+                plan.getInternalParent(page);
+        TreeNode parent = getDefragmentNode(nodes, p[0]);
+        return(parent.isInternalNode() &&
+                ((TreeInternalNode)parent).getPointerAt((int)p[1]) == page);
+    }
+
+    /**
+     * Point the nodes that refer to a node of the pair to its new page;
+     * the references among the pair are left to remapPointers.
+     *
+     * @param plan the plan
+     * @param nodes the nodes read so far
+     * @param n the node that moves
+     * @param to the page it moves to
+     * @param a the first page of the pair
+     * @param b the second page of the pair
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private void redirectReferences(DefragmentPlan plan, Map<Long, TreeNode> nodes,
+                                    TreeNode n, long to, long a, long b)
+            throws IOException {
+        long from = n.getPageIndex();
+        if(n.getNodeType() == TreeNodeType.TREE_LEAF) {
+            TreeLeaf l = (TreeLeaf)n;
+            int k = plan.positionOf(from);
+            if(plan.parents[k] != a && plan.parents[k] != b) {
+                ((TreeInternalNode)getDefragmentNode(nodes, plan.parents[k]))
+                        .setPointerAt(plan.slots[k], to);
+            }
+            long prev = l.getPrevPagePointer();
+            long next = l.getNextPagePointer();
+            if(prev >= 0 && prev != a && prev != b)
+                {((TreeLeaf)getDefragmentNode(nodes, prev)).setNextPagePointer(to);}
+            if(next >= 0 && next != a && next != b)
+                {((TreeLeaf)getDefragmentNode(nodes, next)).setPrevPagePointer(to);}
+            for(int i = 0; i < l.getCurrentCapacity(); i++) {
+                long ovf = l.getOverflowPointerAt(i);
+                if(ovf >= 0 && ovf != a && ovf != b)
+                    {((TreeOverflow)getDefragmentNode(nodes, ovf)).setPrevPagePointer(to);}
+            }
+        }
+        else if(n.isInternalNode()) {
+            long[] p = plan.getInternalParent(from);
+            if(p[0] != a && p[0] != b)
+                {((TreeInternalNode)getDefragmentNode(nodes, p[0])).setPointerAt((int)p[1], to);}
+        }
+        else {
+            TreeOverflow o = (TreeOverflow)n;
+            long prev = o.getPrevPagePointer();
+            long next = o.getNextPagePointer();
+            if(prev != a && prev != b) {
+                TreeNode p = getDefragmentNode(nodes, prev);
+                if(p.isOverflow())
+                    {((TreeOverflow)p).setNextPagePointer(to);}
+                else {
+                    TreeLeaf l = (TreeLeaf)p;
+                    for(int i = 0; i < l.getCurrentCapacity(); i++) {
+                        if(l.getOverflowPointerAt(i) == from)
+                            {l.setOverflowPointerAt(i, to);}
+                    }
                 }
             }
-            // we reached here because either we have no overflow page
-            // or non-unique deletes with overflow pages. We should
-            // reach this point after we purged all the overflow pages.
-            rvals.add(((TreeLeaf)current).removeEntryAt(i, conf));
-            current.writeNode(treeFile, conf, bPerf);
+            if(next >= 0 && next != a && next != b)
+                {((TreeOverflow)getDefragmentNode(nodes, next)).setPrevPagePointer(to);}
+            // the head of the list keeps track of its tail
+            if(next < 0) {
+                long head = findOverflowLink(plan, from)[0];
+                if(head != from && head != a && head != b)
+                    {((TreeOverflow)getDefragmentNode(nodes, head)).setTailPagePointer(to);}
+            }
+        }
+    }
+
+    /**
+     * Map the pointers of a node of the pair, as the other node of the
+     * pair (which it may point to) moves as well
+     *
+     * @param n the node
+     * @param moved maps the old page of the pair to the new one
+     */
+    private void remapPointers(TreeNode n, LongUnaryOperator moved) {
+        if(n.getNodeType() == TreeNodeType.TREE_LEAF) {
+            TreeLeaf l = (TreeLeaf)n;
+            if(l.getPrevPagePointer() >= 0)
+                {l.setPrevPagePointer(moved.applyAsLong(l.getPrevPagePointer()));}
+            if(l.getNextPagePointer() >= 0)
+                {l.setNextPagePointer(moved.applyAsLong(l.getNextPagePointer()));}
+            for(int i = 0; i < l.getCurrentCapacity(); i++) {
+                if(l.getOverflowPointerAt(i) >= 0)
+                    {l.setOverflowPointerAt(i, moved.applyAsLong(l.getOverflowPointerAt(i)));}
+            }
+        }
+        else if(n.isInternalNode()) {
+            TreeInternalNode inode = (TreeInternalNode)n;
+            for(int i = 0; i <= inode.getCurrentCapacity(); i++)
+                {inode.setPointerAt(i, moved.applyAsLong(inode.getPointerAt(i)));}
         }
         else {
-            throw new IllegalStateException("Read unknown or " +
-                    "overflow page while descending");
+            TreeOverflow o = (TreeOverflow)n;
+            o.setPrevPagePointer(moved.applyAsLong(o.getPrevPagePointer()));
+            if(o.getNextPagePointer() >= 0)
+                {o.setNextPagePointer(moved.applyAsLong(o.getNextPagePointer()));}
+            o.setTailPagePointer(moved.applyAsLong(o.getTailPagePointer()));
         }
+    }
 
-        return(new DeleteResult(key, rvals));
+    /**
+     * Return a node that a swap rewrites, reading it only the first time
+     *
+     * @param nodes the nodes read so far, by page index
+     * @param index index of the node
+     * @return the node
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private TreeNode getDefragmentNode(Map<Long, TreeNode> nodes, long index)
+            throws IOException {
+        TreeNode node = nodes.get(index);
+        if(node == null) {
+            node = index == root.getPageIndex() ? root : readNode(index);
+            nodes.put(index, node);
+        }
+        return(node);
+    }
+
+    /**
+     * Descend towards a key consolidating the nodes on the way, like
+     * deleteKey does, but without removing anything.
+     *
+     * @param current node that we currently probe
+     * @param parent parent of the current node
+     * @param parentPointerIndex pointer index to current in parent
+     * @param parentKeyIndex key index that has current as a child in parent
+     * @param key key that leads to the under-full leaf
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private void rebalancePath(TreeNode current, TreeInternalNode parent,
+                               int parentPointerIndex, int parentKeyIndex, byte[] key)
+            throws IOException, InvalidBTreeStateException {
+        if(current.isTimeToMerge(conf)) {
+            TreeNode mres = mergeOrRedistributeTreeNodes(current, parent,
+                    parentPointerIndex, parentKeyIndex);
+            if(mres != null)
+                {current = mres;}
+        }
+        if(!current.isInternalNode())
+            {return;}
+
+        TreeInternalNode inode = (TreeInternalNode)current;
+        int i = binSearchBlock(current, key, Rank.Succ);
+        int idx = compareKeys(key, current.getKeyAt(i)) >= 0 ? i + 1 : i;
+        rebalancePath(readNode(inode.getPointerAt(idx)), inode, idx, i, key);
+        if(parent != null)
+            {updateSubtreeCount(parent, inode);}
+        writeInternalNode(inode);
+        if(!inode.fitsInPage(conf))
+            {splitOverflowingNode(inode, parent);}
+    }
+
+    /**
+     * Split an internal node that outgrew its page while deleting; the
+     * parent gets the extra separator and is handled in turn by its caller.
+     *
+     * @param node the node to split
+     * @param parent parent of the node (null if the node is the root)
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    private void splitOverflowingNode(TreeInternalNode node, TreeInternalNode parent)
+            throws IOException, InvalidBTreeStateException {
+        aChild = node;
+        if(parent == null) {
+            // same as splitting a full root when inserting
+            TreeInternalNode node_buf = new TreeInternalNode(TreeNodeType.TREE_ROOT_INTERNAL,
+                    generateFirstAvailablePageIndex(conf));
+            node_buf.addPointerAt(0, node.getPageIndex());
+            node_buf.addCountAt(0, node.getSubtreeCount());
+            this.root = node_buf;
+            splitTreeNode(node_buf, 0, null);
+            writeFileHeader(conf);
+        } else {
+            int index = parent.getPointerIndex(node.getPageIndex());
+            if(index < 0)
+                {throw new InvalidBTreeStateException("Node not found in its parent");}
+            splitTreeNode(parent, index, null);
+        }
+    }
+
+    /**
+     * Update the entry count the parent keeps for the given child, based
+     * on the entries the child (in memory) holds.
+     *
+     * @param parent the parent node
+     * @param child one of its children
+     */
+    private void updateSubtreeCount(TreeInternalNode parent, TreeNode child) {
+        int idx = parent.getPointerIndex(child.getPageIndex());
+        if(idx >= 0)
+            {parent.setCountAt(idx, child.getSubtreeCount());}
+    }
+
+    /**
+     * Write an internal node that might (temporarily) have outgrown its page
+     * due to separator changes while deleting; such a node is written when it
+     * gets split on the way back up.
+     *
+     * @param n the node to write
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private void writeInternalNode(TreeInternalNode n) throws IOException {
+        if(n.fitsInPage(conf))
+            {n.writeNode(treeFile, conf, bPerf);}
     }
 
     /**
@@ -929,6 +3269,18 @@ public class BPlusTree {
         return(-1);
     }
 
+    /**
+     * Check if two neighbouring leaves can be merged into one
+     *
+     * @param left the left leaf
+     * @param right the right leaf
+     * @return true if they fit in a single leaf, false otherwise
+     */
+    private boolean canMergeLeaves(TreeLeaf left, TreeLeaf right) {
+        return(left.getCurrentCapacity() + right.getCurrentCapacity() <=
+                conf.getMaxLeafNodeCapacity());
+    }
+
     /**
      * Check if the internal node fulfills the B+ Tree invariant after removing
      * <code>remove</code> number of elements
@@ -949,7 +3301,7 @@ public class BPlusTree {
      * @return true if does, false if it fails the condition
      */
     private boolean isValidAfterRemoval(TreeLeaf node, int remove)
-        {return((node.getCurrentCapacity()-remove) >= conf.getMinLeafNodeCapacity());}
+        {return((node.getCurrentCapacity()-remove) >= conf.getLeafLowWaterMark());}
 
     /**
      * Function that is responsible to redistribute values among two leaf nodes
@@ -996,35 +3348,43 @@ public class BPlusTree {
                                    boolean left, TreeInternalNode parent,
                                    int parentKeyIndex)
             throws IOException, InvalidBTreeStateException {
-        long key;
+        TreeEvents.Redistribution event = new TreeEvents.Redistribution();
+        event.begin();
+        structureVersion++;
+        byte[] key;
         // handle the case when redistributing using prev
         if(left) {
             to.pushToOverflowList(with.removeLastOverflowPointer());
+            to.pushToInlineList(with.removeLastInlineValues());
             to.pushToValueList(with.removeLastValue());
             to.pushToKeyArray(with.removeLastKey());
             to.incrementCapacity(conf);
             with.decrementCapacity(conf);
             // get the key from the left node
-            key = to.getKeyAt(0);
+            key = getSeparatorKey(with.getLastKey(), to.getKeyAt(0));
 
         }
         // handle the case when redistributing using next
         else {
             to.addLastToOverflowList(with.popOverflowPointer());
+            to.addLastToInlineList(with.popInlineValues());
             to.addLastToValueList(with.popValue());
             to.addLastToKeyArray(with.popKey());
             to.incrementCapacity(conf);
             with.decrementCapacity(conf);
             // get the key from the right node
-            key = with.getKeyAt(0);
+            key = getSeparatorKey(to.getLastKey(), with.getKeyAt(0));
         }
 
         // in either case update parent pointer
         parent.setKeyArrayAt(parentKeyIndex, key);
+        updateSubtreeCount(parent, to);
+        updateSubtreeCount(parent, with);
         // finally write the changes
-        to.writeNode(treeFile, conf, bPerf);
+        writeLeaf(to);
         with.writeNode(treeFile, conf, bPerf);
-        parent.writeNode(treeFile, conf, bPerf);
+        writeInternalNode(parent);
+        TreeEvents.commit(event, to, with, 1);
     }
 
     /**
@@ -1072,11 +3432,15 @@ public class BPlusTree {
                                    boolean left, TreeInternalNode parent,
                                    int parentKeyIndex)
             throws IOException, InvalidBTreeStateException {
-        long key, pkey = parent.getKeyAt(parentKeyIndex);
+        TreeEvents.Redistribution event = new TreeEvents.Redistribution();
+        event.begin();
+        structureVersion++;
+        byte[] key, pkey = parent.getKeyAt(parentKeyIndex);
         if(left) {
             to.pushToKeyArray(pkey);
             key = with.removeLastKey();
             to.pushToPointerArray(with.removeLastPointer());
+            to.pushToCountArray(with.removeLastCount());
             to.incrementCapacity(conf);
             with.decrementCapacity(conf);
         }
@@ -1085,15 +3449,19 @@ public class BPlusTree {
             to.addLastToKeyArray(pkey);
             key = with.popKey();
             to.addPointerLast(with.popPointer());
+            to.addCountLast(with.popCount());
             to.incrementCapacity(conf);
             with.decrementCapacity(conf);
         }
         // in either case update the parent key
         parent.setKeyArrayAt(parentKeyIndex, key);
+        updateSubtreeCount(parent, to);
+        updateSubtreeCount(parent, with);
         // finally write the chances
         to.writeNode(treeFile, conf, bPerf);
         with.writeNode(treeFile, conf, bPerf);
-        parent.writeNode(treeFile, conf, bPerf);
+        writeInternalNode(parent);
+        TreeEvents.commit(event, to, with, 1);
     }
 
     /**
@@ -1139,6 +3507,8 @@ public class BPlusTree {
                             int parentKeyIndex, boolean isLeftOfNext,
                                 boolean useNextPointer)
             throws IOException, InvalidBTreeStateException {
+        TreeEvents.Merge event = new TreeEvents.Merge();
+        event.begin();
 
         if((left.getCurrentCapacity() + right.getCurrentCapacity()) >
                 conf.getMaxLeafNodeCapacity()) {
@@ -1156,11 +3526,13 @@ public class BPlusTree {
         // now fix the top pointer
         fixTheTopPointer(other, parent, parentPointerIndex,
                 parentKeyIndex, isLeftOfNext, useNextPointer);
+        // the left node now holds the entries of both
+        updateSubtreeCount(parent, left);
 
         // update capacity as in both cases we remove a value
         parent.decrementCapacity(conf);
         // write parent node
-        parent.writeNode(treeFile, conf, bPerf);
+        writeInternalNode(parent);
 
         // update the prev pointer of right next node (if any)
         if(right.getNextPagePointer() != -1) {
@@ -1170,9 +3542,10 @@ public class BPlusTree {
         }
 
         // write the left node to disk
-        left.writeNode(treeFile, conf, bPerf);
+        writeLeaf(left);
         // remove the page
         deletePage(right.getPageIndex(), false);
+        TreeEvents.commit(event, left, right);
         // finally return the node reference
         return (left);
     }
@@ -1184,17 +3557,21 @@ public class BPlusTree {
             if (isLeftOfNext) {
                 parent.removeKeyAt(parentKeyIndex + 1);
                 parent.removePointerAt(parentPointerIndex + 1);
+                parent.removeCountAt(parentPointerIndex + 1);
             } else {
                 parent.removeKeyAt(parentKeyIndex);
                 parent.removePointerAt(parentPointerIndex + 1);
+                parent.removeCountAt(parentPointerIndex + 1);
             }
         } else {
             if (isLeftOfNext) {
                 parent.removeKeyAt(parentKeyIndex);
                 parent.removePointerAt(parentPointerIndex);
+                parent.removeCountAt(parentPointerIndex);
             } else {
                 parent.removeKeyAt(parentKeyIndex);
                 parent.removePointerAt(parentPointerIndex);
+                parent.removeCountAt(parentPointerIndex);
                 parent.setKeyArrayAt(parentKeyIndex - 1, other.getFirstKey());
             }
         }
@@ -1210,6 +3587,7 @@ public class BPlusTree {
             throws InvalidBTreeStateException {
         for (int i = 0; i < cap; i++) {
             left.addLastToOverflowList(right.popOverflowPointer());
+            left.addLastToInlineList(right.popInlineValues());
             left.addLastToValueList(right.popValue());
             left.addLastToKeyArray(right.popKey());
             left.incrementCapacity(conf);
@@ -1227,6 +3605,8 @@ public class BPlusTree {
      */
     private void mergeNodes(TreeLeaf left, TreeLeaf right)
             throws IOException, InvalidBTreeStateException {
+        TreeEvents.Merge event = new TreeEvents.Merge();
+        event.begin();
         right.setBeingDeleted(true);
         // join the two leaves together.
         int cap = right.getCurrentCapacity();
@@ -1234,6 +3614,7 @@ public class BPlusTree {
 
         // remove the page
         deletePage(right.getPageIndex(), false);
+        TreeEvents.commit(event, left, right);
     }
 
     /**
@@ -1265,6 +3646,8 @@ public class BPlusTree {
                                 boolean isLeftOfNext,
                                 boolean useNextPointer)
             throws IOException, InvalidBTreeStateException {
+        TreeEvents.Merge event = new TreeEvents.Merge();
+        event.begin();
 
         // check if we can actually merge
         if((left.getCurrentCapacity() + right.getCurrentCapacity()) >
@@ -1285,6 +3668,7 @@ public class BPlusTree {
         joinInternalNodes(left, right, cap);
         // pump the last pointer as well
         left.addPointerLast(right.popPointer());
+        left.addCountLast(right.popCount());
         // now increment the capacity as well
         left.incrementCapacity(conf);
         // now fix the top pointer.
@@ -1293,16 +3677,19 @@ public class BPlusTree {
         // now fix the top pointer
         fixTheTopPointer(other, parent, parentPointerIndex,
                 parentKeyIndex, isLeftOfNext, useNextPointer);
+        // the left node now holds the entries of both
+        updateSubtreeCount(parent, left);
 
         // update capacity as in both cases we remove a value
         parent.decrementCapacity(conf);
         // write parent node
-        parent.writeNode(treeFile, conf, bPerf);
+        writeInternalNode(parent);
 
         // write the node
         left.writeNode(treeFile, conf, bPerf);
         // remove the page
         deletePage(right.getPageIndex(), false);
+        TreeEvents.commit(event, left, right);
         // finally remove the node reference
         return(left);
     }
@@ -1315,8 +3702,10 @@ public class BPlusTree {
      * @throws IOException is thrown when an I/O operation fails
      * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
      */
-    private void mergeNodes(TreeInternalNode left, TreeInternalNode right, long midKey)
+    private void mergeNodes(TreeInternalNode left, TreeInternalNode right, byte[] midKey)
             throws IOException, InvalidBTreeStateException {
+        TreeEvents.Merge event = new TreeEvents.Merge();
+        event.begin();
         right.setBeingDeleted(true);
         left.addLastToKeyArray(midKey);
         int cap = right.getCurrentCapacity();
@@ -1324,10 +3713,12 @@ public class BPlusTree {
 
         // pump the last pointer as well
         left.addPointerLast(right.popPointer());
+        left.addCountLast(right.popCount());
         left.incrementCapacity(conf);
 
         // finally remove the page
         deletePage(right.getPageIndex(), false);
+        TreeEvents.commit(event, left, right);
     }
 
     /**
@@ -1341,6 +3732,7 @@ public class BPlusTree {
         for (int i = 0; i < cap; i++) {
             left.addLastToKeyArray(right.popKey());
             left.addPointerLast(right.popPointer());
+            left.addCountLast(right.popCount());
             left.incrementCapacity(conf);
             right.decrementCapacity(conf);
         }
@@ -1430,8 +3822,8 @@ public class BPlusTree {
             if(lChild.isLeaf()) {
 
                 // check if it's time to merge
-                if((lcap > conf.getMinLeafNodeCapacity()) &&
-                        (rcap > conf.getMinLeafNodeCapacity())) {
+                if((lcap > conf.getLeafLowWaterMark()) &&
+                        (rcap > conf.getLeafLowWaterMark())) {
                     //System.out.println(" -- No need to consolidate root yet (to -> leaf)");
                     return mnode;
                 }
@@ -1468,7 +3860,7 @@ public class BPlusTree {
                     // write root header
                     writeFileHeader(conf);
                     // write left leaf
-                    lChild.writeNode(treeFile, conf, bPerf);
+                    writeLeaf(pLeaf);
                     // since we have a new root
                     return(lChild);
                 }
@@ -1570,6 +3962,14 @@ public class BPlusTree {
         boolean npar = isParent(nptr, parent, parentPointerIndex+1);
         boolean ppar = isParent(pptr, parent, parentPointerIndex-1);
 
+        // in lazy mode (or when compacting) we'd rather free the page than refill it
+        if(conf.isLazyMerge() || compacting) {
+            if(npar && canMergeLeaves(splitNode, nptr))
+                {nnum = pnum = snum = -1; ppar = false;}
+            else if(ppar && canMergeLeaves(pptr, splitNode))
+                {nnum = pnum = snum = -1; npar = false;}
+        }
+
         // check if we can redistribute with next
         if(nnum > 0 && npar) {
             //System.out.println("\t -- Redistributing split node with elements from next");
@@ -1809,6 +4209,20 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * Return the name of the node type a page holds (for events)
+     *
+     * @param pval a value read from the file indicating which type of node this is
+     * @return the node type name, or UNKNOWN for pages that are not nodes
+     */
+    private String getPageTypeName(short pval) {
+        try {
+            return(getPageType(pval).name());
+        } catch (InvalidPropertiesFormatException e) {
+            return("UNKNOWN");
+        }
+    }
+
     /**
      * Calculate the page offset taking in account the
      * for the lookup page at the start of the file.
@@ -1827,7 +4241,9 @@ public class BPlusTree {
      * @throws IOException is thrown when an I/O operation fails
      * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
      */
-    private void commitLookupPage() throws IOException, InvalidBTreeStateException {
+    void commitLookupPage() throws IOException, InvalidBTreeStateException {
+        TreeEvents.LookupPageCommit event = new TreeEvents.LookupPageCommit();
+        event.begin();
 
         int i, cap = lookupPagesPool.size();
         // push all the existing lookup pages to the free pool
@@ -1892,7 +4308,7 @@ public class BPlusTree {
                 for (int j = 0;
                      j < cap && poolIndex < freeSlotPool.size();
                      j++, poolIndex++) {
-                    lpOvf.addToKeyArrayAt(j, freeSlotPool.get(poolIndex));
+                    lpOvf.addToIndexArrayAt(j, freeSlotPool.get(poolIndex));
                     lpOvf.incrementCapacity(conf);
                     written++;
                 }
@@ -1925,6 +4341,12 @@ public class BPlusTree {
                     "\n\tPer Page capacity: " +
                     conf.getMaxLookupPageOverflowCapacity());
         }
+        event.end();
+        if(event.shouldCommit()) {
+            event.freePages = freeSlotPool.size();
+            event.lookupPages = lookupPagesPool.size();
+            event.commit();
+        }
     }
 
     /**
@@ -1934,6 +4356,8 @@ public class BPlusTree {
      * @throws IOException is thrown when an I/O operation fails
      */
     private void conditionFileLength() throws IOException {
+        TreeEvents.FileConditioning event = new TreeEvents.FileConditioning();
+        event.begin();
         Collections.sort(freeSlotPool);
         long purged = this.maxPageNumber;
         long lastPos = freeSlotPool.size() > 0 ? freeSlotPool.getLast() : -1L;
@@ -1948,6 +4372,12 @@ public class BPlusTree {
                 "\n\tPurged pages: " + (purged - this.maxPageNumber) +
                 "\n\tNew file size: " + calculatePageOffset(this.maxPageNumber + 1) +
                 " bytes");
+        event.end();
+        if(event.shouldCommit()) {
+            event.purgedPages = purged - this.maxPageNumber;
+            event.fileSize = calculatePageOffset(this.maxPageNumber + 1);
+            event.commit();
+        }
     }
 
     private TreeLookupOverflowNode createOverflowLookupPage(long index, long nextPointer) {
@@ -1961,25 +4391,111 @@ public class BPlusTree {
      * @return a TreeNode object referencing to the loaded page
      * @throws IOException is thrown when an I/O operation fails
      */
-    private TreeNode readNode(long index) throws IOException {
+    TreeNode readNode(long index) throws IOException {
 
         // caution.
         if(index < 0)
             {return(null);}
-        treeFile.seek(index);
+        // fetch the whole page in one go and decode it from memory
+        if(!isExplaining())
+            {return(decodeNode(index, readPage(index)));}
+        long start = System.nanoTime();
+        TreeNode node = decodeNode(index, readPage(index));
+        explainRead(node, System.nanoTime() - start);
+        return(node);
+    }
+
+    /**
+     * Read a node on the right spine of the tree (the nodes with no high
+     * fence); while we only insert, the nodes we kept from the previous
+     * insert are up to date, so appends don't read any of them.
+     *
+     * @param index index of the node in the file
+     * @return the node
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private TreeNode readRightSpineNode(long index) throws IOException {
+        for(TreeNode n : rightSpine) {
+            if(n.getPageIndex() == index)
+                {return(n);}
+        }
+        return(readNode(index));
+    }
+
+    /**
+     * Read a child on the way down of an insert; the nodes of the path of
+     * the last operation of this thread (if it is exact, see Finger) and
+     * those of the right spine are reused, so inserts next to the previous
+     * operation (or appends) don't read the nodes they update.
+     *
+     * @param index index of the node in the file
+     * @param highKey the upper fence of the node (null on the right spine)
+     * @return the node
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private TreeNode readInsertPathNode(long index, byte[] highKey) throws IOException {
+        for(TreeNode n : insertPath) {
+            if(n.getPageIndex() == index)
+                {return(n);}
+        }
+        return(highKey == null ? readRightSpineNode(index) : readNode(index));
+    }
+
+    /**
+     * Read the raw bytes of a page in one go
+     *
+     * @param index index of the page in the file
+     * @return the page buffer, positioned at its start
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    private ByteBuffer readPage(long index) throws IOException {
+        TreeEvents.PageRead event = new TreeEvents.PageRead();
+        event.begin();
+        long start = System.nanoTime();
+        ByteBuffer page = TreeNode.allocatePage(conf);
+        // positional reads leave the file pointer alone, so scans
+        // on other threads (see RangeSpliterator) can read as well
+        FileChannel ch = treeFile.getChannel();
+        while(page.hasRemaining() && ch.read(page, index + page.position()) > 0)
+            {}
+        page.rewind();
+        bPerf.recordPageReadLatency(System.nanoTime() - start);
+        bPerf.tracePageAccess(index, page.getShort(0), false);
+        event.end();
+        if(event.shouldCommit()) {
+            event.pageIndex = index;
+            event.pageType = getPageTypeName(page.getShort(0));
+            event.bytes = page.capacity();
+            event.commit();
+        }
+        return(page);
+    }
+
+    /**
+     * Decode a page that was read from the file into a tree node
+     *
+     * @param index index of the page in the file
+     * @param page the page buffer, positioned at its start
+     * @return a TreeNode object referencing to the loaded page
+     * @throws IOException is thrown when the page type is unknown
+     */
+    private TreeNode decodeNode(long index, ByteBuffer page) throws IOException {
         // get the page type
-        TreeNodeType nt = getPageType(treeFile.readShort());
+        TreeNodeType nt = getPageType(page.getShort());
 
         // handle internal node reading
         if(isInternalNode(nt)) {
             TreeInternalNode tnode = new TreeInternalNode(nt, index);
-            int curCap = treeFile.readInt();
+            int curCap = page.getInt();
+            byte[] prefix = readKeyPrefix(page);
             for(int i = 0; i < curCap; i++) {
-                tnode.addToKeyArrayAt(i, treeFile.readLong());
-                tnode.addPointerAt(i, treeFile.readLong());
+                tnode.addToKeyArrayAt(i, readSeparator(page, prefix));
+                tnode.addPointerAt(i, page.getLong());
+                tnode.addCountAt(i, page.getLong());
             }
             // add the final pointer
-            tnode.addPointerAt(curCap, treeFile.readLong());
+            tnode.addPointerAt(curCap, page.getLong());
+            tnode.addCountAt(curCap, page.getLong());
             // update the capacity
             tnode.setCurrentCapacity(curCap);
             bPerf.incrementTotalInternalNodeReads();
@@ -1989,16 +4505,18 @@ public class BPlusTree {
         }
         // check if we have an overflow page
         else if(isOverflowPage(nt)) {
-            long nextptr = treeFile.readLong();
-            long prevptr = treeFile.readLong();
-            int curCap = treeFile.readInt();
-            byte[] strBuf = new byte[conf.getEntrySize()];
+            long nextptr = page.getLong();
+            long prevptr = page.getLong();
+            int curCap = page.getInt();
             TreeOverflow tnode = new TreeOverflow(nextptr, prevptr, index);
+            tnode.setTailPagePointer(page.getLong());
+            tnode.setTotalValues(page.getLong());
+            tnode.setCompressed(page.get() != 0);
 
             // read entries
             for(int i = 0; i < curCap; i++) {
-                treeFile.read(strBuf);
-                tnode.addToValueList(i, new String(strBuf));
+                tnode.addToValueList(i, tnode.isCompressed() ?
+                        readCompressedValue(page) : readValue(page));
             }
             // update capacity
             tnode.setCurrentCapacity(curCap);
@@ -2007,18 +4525,27 @@ public class BPlusTree {
         }
         // well, it must be a leaf node
         else if (isLeaf(nt)) {
-            long nextptr = treeFile.readLong();
-            long prevptr = treeFile.readLong();
-            int curCap = treeFile.readInt();
-            byte[] strBuf = new byte[conf.getEntrySize()];
+            long nextptr = page.getLong();
+            long prevptr = page.getLong();
+            int curCap = page.getInt();
             TreeLeaf tnode = new TreeLeaf(nextptr, prevptr, nt, index);
+            byte[] prefix = readKeyPrefix(page);
 
             // read entries
             for(int i = 0; i < curCap; i++) {
-                tnode.addToKeyArrayAt(i, treeFile.readLong());
-                tnode.addToOverflowList(i, treeFile.readLong());
-                treeFile.read(strBuf);
-                tnode.addToValueList(i, new String(strBuf));
+                tnode.addToKeyArrayAt(i, readKey(page, prefix));
+                tnode.addToOverflowList(i, page.getLong());
+                tnode.addToValueList(i, readValue(page));
+            }
+            // then the inline duplicates, stored as -(n + 1) instead of a pointer
+            for(int i = 0; i < curCap; i++) {
+                LinkedList<String> inline = new LinkedList<>();
+                long ovf = tnode.getOverflowPointerAt(i);
+                for(long j = ovf; j < -1L; j++)
+                    {inline.add(readValue(page));}
+                if(ovf < -1L)
+                    {tnode.setOverflowPointerAt(i, -1L);}
+                tnode.addToInlineList(i, inline);
             }
             // update capacity
             tnode.setCurrentCapacity(curCap);
@@ -2029,13 +4556,13 @@ public class BPlusTree {
 
             return(tnode);
         } else {
-            long nextptr = treeFile.readLong();
-            int curCap = treeFile.readInt();
+            long nextptr = page.getLong();
+            int curCap = page.getInt();
             TreeLookupOverflowNode lpOvf = new TreeLookupOverflowNode(index, nextptr);
 
             // now loop through the
             for (int i = 0; i < curCap; i++) {
-                lpOvf.addToKeyArrayAt(i, treeFile.readLong());
+                lpOvf.addToIndexArrayAt(i, page.getLong());
             }
 
             // update capacity
@@ -2045,6 +4572,79 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * Read the prefix that all keys of the page share
+     *
+     * @param page the page buffer
+     * @return the prefix bytes
+     */
+    private byte[] readKeyPrefix(ByteBuffer page) {
+        byte[] prefix = new byte[page.get() & 0xFF];
+        page.get(prefix);
+        return(prefix);
+    }
+
+    /**
+     * Read a key (of key size) from the page buffer, the page
+     * only holds the part after the shared prefix.
+     *
+     * @param page the page buffer
+     * @param prefix the shared key prefix of the page
+     * @return the key bytes
+     */
+    private byte[] readKey(ByteBuffer page, byte[] prefix) {
+        byte[] key = new byte[conf.getKeySize()];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        page.get(key, prefix.length, key.length - prefix.length);
+        return(key);
+    }
+
+    /**
+     * Read a separator of an internal node from the page buffer; these are
+     * stored as their length followed by the bytes after the shared prefix
+     * (trailing zeros are not stored).
+     *
+     * @param page the page buffer
+     * @param prefix the shared key prefix of the page
+     * @return the key bytes
+     */
+    private byte[] readSeparator(ByteBuffer page, byte[] prefix) {
+        int len = conf.getSeparatorLengthSize() == 1 ?
+                page.get() & 0xFF : page.getShort() & 0xFFFF;
+        byte[] key = new byte[conf.getKeySize()];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        page.get(key, prefix.length, len);
+        return(key);
+    }
+
+    /**
+     * Read a value (of entry size) from the page buffer
+     *
+     * @param page the page buffer
+     * @return the value as a string
+     */
+    private String readValue(ByteBuffer page) {
+        byte[] strBuf = new byte[conf.getEntrySize()];
+        page.get(strBuf);
+        return(new String(strBuf, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a value stored without its padding and pads it back
+     * to the satellite data size, so it matches readValue.
+     *
+     * @param page page to read the value from
+     * @return the String read.
+     */
+    private String readCompressedValue(ByteBuffer page) {
+        int len = conf.getValueLengthSize() == 1 ?
+                page.get() & 0xFF : page.getShort() & 0xFFFF;
+        byte[] strBuf = new byte[conf.getEntrySize()];
+        page.get(strBuf, 0, len);
+        Arrays.fill(strBuf, len, strBuf.length, (byte) ' ');
+        return(new String(strBuf, StandardCharsets.UTF_8));
+    }
+
     /**
      * Check if the node is an internal node
      *
@@ -2111,8 +4711,8 @@ public class BPlusTree {
         // key size
         int keySize = r.readInt();
 
-        if(keySize > 8 || keySize < 4)
-            {throw new InvalidBTreeStateException("Key size but be either 4 or 8 bytes");}
+        if(keySize <= 0)
+            {throw new InvalidBTreeStateException("Key size must be > 0");}
 
         // read the number of pages (excluding the lookup)
         totalTreePages = r.readLong();
@@ -2178,6 +4778,7 @@ public class BPlusTree {
     private void openFile(String path, String mode, BPlusConfiguration opt)
             throws IOException, InvalidBTreeStateException {
         File f = new File(path);
+        treeFilePath = path;
         String stmode = mode.substring(0, 2);
         treeFile = new RandomAccessFile(path, stmode);
         // check if the file already exists
@@ -2186,6 +4787,9 @@ public class BPlusTree {
                     " bytes), trying to read it...");
             // read the header
             conf = readFileHeader(treeFile, true);
+            // only the sizes are persisted, so carry the options over
+            if(opt != null)
+                {conf.copyOptions(opt);}
             // read the lookup page
             initializeLookupPage(f.exists());
             System.out.println("File seems to be valid. Loaded OK!");
@@ -2211,9 +4815,18 @@ public class BPlusTree {
      * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
      */
     public void commitTree() throws IOException, InvalidBTreeStateException {
-        commitLookupPage();
-        writeFileHeader(conf);
-        this.treeFile.close();
+        treeLock.writeLock().lock();
+        try {
+            commitLookupPage();
+            writeFileHeader(conf);
+            this.treeFile.close();
+            stopPageTrace();
+            unregisterMBean();
+        } catch (JMException e) {
+            throw new IOException("Failed to unregister the tree MBean", e);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -2255,8 +4868,7 @@ public class BPlusTree {
                 parsed++;
                 freeSlotPool.add(pindex);
                 lpOvf = (TreeLookupOverflowNode) readNode(pindex);
-                freeSlotPool.addAll(lpOvf.keyArray.
-                        stream().collect(Collectors.toList()));
+                freeSlotPool.addAll(lpOvf.indexArray);
                 pindex = lpOvf.getNextPointer();
             }
 
@@ -2277,11 +4889,11 @@ public class BPlusTree {
         // check if we have used pages
         if(freeSlotPool.size() > 0)
             {index = freeSlotPool.pop(); totalTreePages++; return(index);}
-        // if not pad to the end of the file.
+        // if not pad to the end of the file; pages we don't count (such
+        // as the lookup overflow pages) might already be there, so we
+        // always go past the last page.
         else {
-            if (maxPageNumber <= totalTreePages) {
-                maxPageNumber++;
-            }
+            maxPageNumber++;
             totalTreePages++;
             index = conf.getPageSize() * (maxPageNumber + 1);
             return(index);
@@ -2309,6 +4921,14 @@ public class BPlusTree {
     public BPlusConfiguration getTreeConfiguration()
         {return(conf);}
 
+    /**
+     * Return the root of the tree (as kept in memory)
+     *
+     * @return the root node
+     */
+    TreeNode getRoot()
+        {return(root);}
+
     /**
      * Return the current performance class tied to our instance
      *
@@ -2341,6 +4961,199 @@ public class BPlusTree {
         return maxPageNumber;
     }
 
+    /**
+     * Size of the tree file, up to the last page in use
+     *
+     * @return the file size in bytes
+     */
+    public long getFileSize() {
+        treeLock.readLock().lock();
+        try {
+            return(calculatePageOffset(maxPageNumber + 1));
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the height of the tree, counting the leaves (a root
+     * leaf has height 1)
+     *
+     * @return the height of the tree
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    public int getHeight() throws IOException {
+        treeLock.readLock().lock();
+        try {
+            int height = 1;
+            TreeNode n = root;
+            while(n.isInternalNode()) {
+                n = readNode(((TreeInternalNode)n).getPointerAt(0));
+                height++;
+            }
+            return(height);
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of freed pages that wait to be reused
+     *
+     * @return the size of the free slot pool
+     */
+    public int getFreePoolSize() {
+        treeLock.readLock().lock();
+        try {
+            return(freeSlotPool.size());
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of lookup pages the free slot pool is persisted to
+     *
+     * @return the size of the lookup page pool
+     */
+    public int getLookupPoolSize() {
+        treeLock.readLock().lock();
+        try {
+            return(lookupPagesPool.size());
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walk the whole tree and report its shape, fill factors, overflow
+     * chains and fragmentation (see TreeReport); subtrees are analyzed in
+     * parallel in the common fork-join pool.
+     *
+     * @return the report
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    public TreeReport analyze() throws IOException
+        {return(analyze(ForkJoinPool.commonPool()));}
+
+    /**
+     * Walk the whole tree and report its shape, fill factors, overflow
+     * chains and fragmentation, analyzing subtrees in parallel in the given
+     * pool; the tree can be searched (but not modified) meanwhile.
+     *
+     * @param pool the pool that runs the analysis
+     * @return the report
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    public TreeReport analyze(ForkJoinPool pool) throws IOException {
+        treeLock.readLock().lock();
+        try {
+            long start = System.nanoTime();
+            TreeReport report;
+            try {
+                report = pool.invoke(new TreeAnalyzer(this, root, 0, getHeight()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            report.setFileStatistics(conf.getKeySize() + conf.getEntrySize(),
+                    totalTreePages, getFileSize(), freeSlotPool.size(),
+                    lookupPagesPool.size(), underfullLeaves.size());
+            report.setElapsedNanos(System.nanoTime() - start);
+            return(report);
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Start recording the pages this tree reads and writes to a trace file
+     * (see PageTraceRecorder); it keeps recording until stopPageTrace is
+     * called or the tree is committed.
+     *
+     * @param path path of the trace file
+     * @param capacity number of entries buffered in memory before we start dropping them
+     * @return the recorder, e.g. to check for dropped entries
+     * @throws IOException is thrown when the trace file can't be created
+     * @throws IllegalStateException is thrown when a trace is already being recorded
+     */
+    public PageTraceRecorder startPageTrace(String path, int capacity)
+            throws IOException, IllegalStateException {
+        treeLock.writeLock().lock();
+        try {
+            if(bPerf.getPageTrace() != null)
+                {throw new IllegalStateException("Already recording a page trace");}
+            PageTraceRecorder rec = new PageTraceRecorder(path, conf.getPageSize(), capacity);
+            bPerf.setPageTrace(rec);
+            return(rec);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stop recording the page trace, if we are, and close its file
+     *
+     * @throws IOException is thrown when writing the trace failed
+     */
+    public void stopPageTrace() throws IOException {
+        treeLock.writeLock().lock();
+        try {
+            PageTraceRecorder rec = bPerf.getPageTrace();
+            if(rec != null) {
+                bPerf.setPageTrace(null);
+                rec.close();
+            }
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Register the statistics of the tree with the platform MBean server
+     * under "ds.bplus:type=BPlusTree,name=<tree file>"; the MBean is
+     * unregistered when the tree is committed.
+     *
+     * @return the name of the MBean
+     * @throws JMException is thrown when the registration fails (e.g. when
+     * another tree with the same file is registered)
+     */
+    public ObjectName registerMBean() throws JMException
+        {return(registerMBean(ObjectName.quote(treeFilePath)));}
+
+    /**
+     * Register the statistics of the tree with the platform MBean server
+     * under "ds.bplus:type=BPlusTree,name=<name>"; the MBean is
+     * unregistered when the tree is committed.
+     *
+     * @param name the name of the tree (a valid ObjectName value)
+     * @return the name of the MBean
+     * @throws JMException is thrown when the registration fails
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        if(mbeanName != null)
+            {throw new InstanceAlreadyExistsException(mbeanName.toString());}
+        ObjectName on = new ObjectName("ds.bplus:type=BPlusTree,name=" + name);
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new BPlusTreeStatistics(this), on);
+        mbeanName = on;
+        return(on);
+    }
+
+    /**
+     * Unregister the MBean of the tree, if there is one
+     *
+     * @throws JMException is thrown when the MBean server fails to remove it
+     */
+    public void unregisterMBean() throws JMException {
+        if(mbeanName != null) {
+            ObjectName on = mbeanName;
+            mbeanName = null;
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(server.isRegistered(on))
+                {server.unregisterMBean(on);}
+        }
+    }
+
     /**
      * Handy method to initialize common variables
      */
@@ -2378,6 +5191,7 @@ public class BPlusTree {
      */
     private void deletePage(long pageIndex, boolean sort)
             throws IOException, InvalidBTreeStateException {
+        structureVersion++;
         this.freeSlotPool.add(pageIndex);
         this.totalTreePages--;
         this.deleteIterations++;
@@ -2418,6 +5232,81 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * Compare two keys using the configured key comparator
+     *
+     * @param a the first key
+     * @param b the second key
+     * @return negative, zero or positive if a is less, equal or greater than b
+     */
+    int compareKeys(byte[] a, byte[] b)
+        {return(conf.getKeyComparator().compare(a, b));}
+
+    /**
+     * Return the key prefix length shared by all keys that lie between
+     * the two fences; a null fence means that side is unbounded (all 0x00
+     * bytes for the lower and all 0xFF bytes for the upper one).
+     *
+     * @param lowKey the lower fence
+     * @param highKey the upper fence
+     * @return the shared prefix or zero if compression is not in effect
+     */
+    private int getFenceKeyPrefix(byte[] lowKey, byte[] highKey) {
+        if(!conf.isKeyCompressionEnabled() || (lowKey == null && highKey == null))
+            {return(0);}
+        int i = 0;
+        if(lowKey == null) {
+            while(i < highKey.length && highKey[i] == 0)
+                {i++;}
+        } else if(highKey == null) {
+            while(i < lowKey.length && lowKey[i] == (byte) 0xFF)
+                {i++;}
+        } else
+            {i = BinaryKeys.commonPrefixLength(lowKey, highKey);}
+        return(i);
+    }
+
+    /**
+     * Return the separator to promote between two adjacent leaves; under key
+     * compression this is the shortest key that separates them, otherwise the
+     * first key of the right leaf.
+     *
+     * @param left the last key of the left leaf
+     * @param right the first key of the right leaf
+     * @return the separator key
+     */
+    private byte[] getSeparatorKey(byte[] left, byte[] right) {
+        return(conf.isKeyCompressionEnabled() ?
+                BinaryKeys.shortestSeparator(left, right) : right);
+    }
+
+    /**
+     * Return the key prefix length the leaf would have after adding the key
+     *
+     * @param l the leaf
+     * @param key the key to be added
+     * @return the shared prefix or zero if compression is not in effect
+     */
+    private int getLeafKeyPrefix(TreeNode l, byte[] key) {
+        if(!conf.isKeyCompressionEnabled() || l.isEmpty())
+            {return(0);}
+        byte[] first = compareKeys(l.getFirstKey(), key) <= 0 ? l.getFirstKey() : key;
+        byte[] last = compareKeys(l.getLastKey(), key) >= 0 ? l.getLastKey() : key;
+        return(BinaryKeys.commonPrefixLength(first, last));
+    }
+
+    /**
+     * Check that the supplied key is usable with this tree
+     *
+     * @param key the key to check
+     * @throws IllegalArgumentException is thrown when the key is null or not of key size
+     */
+    private void checkKey(byte[] key) throws IllegalArgumentException {
+        if(key == null || key.length != conf.getKeySize())
+            {throw new IllegalArgumentException("Key must be exactly " +
+                    conf.getKeySize() + " bytes");}
+    }
+
     /**
      * Condition the given string to match the entry size.
      *
@@ -2428,7 +5317,7 @@ public class BPlusTree {
      * @param s string to condition
      * @return the conditioned string
      */
-    private String conditionString(String s) {
+    String conditionString(String s) {
         if(s == null) {
             s = " ";
             //System.out.println("Cannot have a null string");
@@ -2448,6 +5337,6 @@ public class BPlusTree {
     }
 
 
-    private enum Rank {Pred, Succ, PlusOne, Exact}
+    enum Rank {Pred, Succ, PlusOne, Exact}
 
 }
@@ -0,0 +1,157 @@
+package ds.bplus.bptree;
+
+import java.io.IOException;
+
+/**
+ *
+ * Management interface of a tree, registered through BPlusTree.registerMBean
+ * so that the statistics can be polled over JMX.
+ *
+ * The operation counters come from the performance counter of the tree,
+ * thus they stay at zero unless it tracks I/O. Latencies are in microseconds
+ * and cover the operations since the counters were last reset.
+ *
+ */
+@SuppressWarnings("unused")
+public interface BPlusTreeMXBean {
+
+    // tree layout
+
+    long getTotalTreePages();
+
+    long getMaxPageNumber();
+
+    long getFileSize();
+
+    int getHeight();
+
+    int getFreePoolSize();
+
+    int getLookupPoolSize();
+
+    int getPendingCompactions();
+
+    int getPageSize();
+
+    /**
+     * Share of the lookups that started below the root, i.e. that found
+     * the path they needed in the finger of their thread (0 when idle)
+     *
+     * @return the hit ratio, in [0, 1]
+     */
+    double getFingerHitRatio();
+
+    // operation counters
+
+    long getTotalInsertions();
+
+    long getTotalSearches();
+
+    long getTotalRangeQueries();
+
+    long getTotalFingerHits();
+
+    long getTotalFingerMisses();
+
+    // page I/O counters
+
+    long getTotalNodeReads();
+
+    long getTotalInternalNodeReads();
+
+    long getTotalLeafNodeReads();
+
+    long getTotalOverflowReads();
+
+    long getTotalNodeWrites();
+
+    long getTotalInternalNodeWrites();
+
+    long getTotalLeafNodeWrites();
+
+    long getTotalOverflowWrites();
+
+    int getIntervalPageReads();
+
+    int getIntervalPageWrites();
+
+    // page creation, deletion and structural changes
+
+    long getTotalPages();
+
+    long getTotalInternalNodes();
+
+    long getTotalLeaves();
+
+    long getTotalOverflowPages();
+
+    long getTotalPageDeletions();
+
+    long getTotalInternalNodeDeletions();
+
+    long getTotalLeafNodeDeletions();
+
+    long getTotalOverflowPagesDeletions();
+
+    long getTotalSplits();
+
+    long getTotalRootSplits();
+
+    long getTotalInternalNodeSplits();
+
+    long getTotalLeafSplits();
+
+    long getTotalAppendSplits();
+
+    long getTotalDeferredMerges();
+
+    long getTotalCompactions();
+
+    long getTotalLeafRelocations();
+
+    // latencies (p99, in microseconds)
+
+    double getInsertLatencyP99();
+
+    double getSearchLatencyP99();
+
+    double getRangeQueryLatencyP99();
+
+    double getDeletionLatencyP99();
+
+    double getPageReadLatencyP99();
+
+    double getPageWriteLatencyP99();
+
+    // operations
+
+    /**
+     * Zero the per interval page counters and the latency histograms,
+     * keeping the running totals
+     */
+    void resetIntervalCounters();
+
+    /**
+     * Zero every counter and histogram
+     */
+    void resetAllCounters();
+
+    /**
+     * Compact (some of) the leaves that deferred merging left under-full
+     *
+     * @param maxLeaves the max number of leaves to process
+     * @return the number of leaves processed
+     * @throws IOException is thrown when the compaction fails
+     */
+    int compact(int maxLeaves) throws IOException;
+
+    /**
+     * Move (some of) the leaves so that their order in the file follows
+     * their key order
+     *
+     * @param maxLeaves the max number of leaves to move
+     * @return the number of leaves moved
+     * @throws IOException is thrown when the defragmentation fails
+     */
+    int defragment(int maxLeaves) throws IOException;
+}
@@ -3,62 +3,84 @@ package ds.bplus.bptree;
 import ds.bplus.util.InvalidBTreeStateException;
 
 import java.io.IOException;
-
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * I/O and operation counters of a tree.
+ *
+ * Searches and range queries run concurrently under the read lock, so the
+ * counters they bump are LongAdders and the page counts of the current
+ * operation (the ones searchIO and friends return) are kept per thread.
+ * The rest are only bumped by writers, which hold the write lock, so a
+ * reader on another thread (e.g. through JMX) may see them slightly behind.
+ *
+ */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class BPlusTreePerformanceCounter {
-    private int totalNodeReads;
-    private int totalInternalNodeReads;
-    private int totalLeafNodeReads;
-    private int totalOverflowReads;
-
-    private int totalNodeWrites;
-    private int totalInternalNodeWrites;
-    private int totalLeafNodeWrites;
-    private int totalOverflowWrites;
-
-
-    private int totalInsertionReads;
-    private int totalDeletionReads;
-    private int totalSearchReads;
-    private int totalRangeQueryReads;
-    private int totalInsertionWrites;
-    private int totalDeletionWrites;
-    private int totalSearchWrites;
-    private int totalRangeQueryWrites;
-
-    private int pageReads;
-    private int pageWrites;
-
-    private int pageInternalReads;
-    private int pageLeafReads;
-    private int pageOverflowReads;
-
-    private int pageInternalWrites;
-    private int pageLeafWrites;
-    private int pageOverflowWrites;
-
-    private int totalInsertions;
-    private int totalDeletions;
-    private int totalSearches;
-    private int totalRangeQueries;
-
-    private int totalSplits;
-    private int totalRootSplits;
-    private int totalInternalNodeSplits;
-    private int totalLeafSplits;
-
-
-    private int totalPages;
-    private int totalOverflowPages;
-    private int totalInternalNodes;
-    private int totalLeaves;
-
-    private int totalInternalNodeDeletions;
-    private int totalLeafNodeDeletions;
-    private int totalOverflowPagesDeletions;
+    private final LongAdder totalNodeReads = new LongAdder();
+    private final LongAdder totalInternalNodeReads = new LongAdder();
+    private final LongAdder totalLeafNodeReads = new LongAdder();
+    private final LongAdder totalOverflowReads = new LongAdder();
+
+    private long totalNodeWrites;
+    private long totalInternalNodeWrites;
+    private long totalLeafNodeWrites;
+    private long totalOverflowWrites;
+
+
+    private final LongAdder totalInsertionReads = new LongAdder();
+    private final LongAdder totalDeletionReads = new LongAdder();
+    private final LongAdder totalSearchReads = new LongAdder();
+    private final LongAdder totalRangeQueryReads = new LongAdder();
+    private final LongAdder totalInsertionWrites = new LongAdder();
+    private final LongAdder totalDeletionWrites = new LongAdder();
+    private final LongAdder totalSearchWrites = new LongAdder();
+    private final LongAdder totalRangeQueryWrites = new LongAdder();
+
+    // page I/O of the current operation, kept per thread so that
+    // concurrent readers don't count each other's pages
+    private final ThreadLocal<PageCounts> pageCounts =
+            ThreadLocal.withInitial(PageCounts::new);
+
+    private long totalInsertions;
+    private long totalDeletions;
+    private final LongAdder totalSearches = new LongAdder();
+    private final LongAdder totalRangeQueries = new LongAdder();
+
+    private final LongAdder totalFingerHits = new LongAdder();
+    private final LongAdder totalFingerMisses = new LongAdder();
+
+    private long totalSplits;
+    private long totalRootSplits;
+    private long totalInternalNodeSplits;
+    private long totalLeafSplits;
+    private long totalAppendSplits;
+
+    private long totalDeferredMerges;
+    private long totalCompactions;
+    private long totalLeafRelocations;
+
+
+    private long totalPages;
+    private long totalOverflowPages;
+    private long totalInternalNodes;
+    private long totalLeaves;
+
+    private long totalInternalNodeDeletions;
+    private long totalLeafNodeDeletions;
+    private long totalOverflowPagesDeletions;
+
+    private final LatencyHistogram insertLatencies = new LatencyHistogram();
+    private final LatencyHistogram searchLatencies = new LatencyHistogram();
+    private final LatencyHistogram rangeQueryLatencies = new LatencyHistogram();
+    private final LatencyHistogram deletionLatencies = new LatencyHistogram();
+    private final LatencyHistogram pageReadLatencies = new LatencyHistogram();
+    private final LatencyHistogram pageWriteLatencies = new LatencyHistogram();
 
     private boolean trackIO;
     private BPlusTree bt = null;
+    private volatile PageTraceRecorder pageTrace = null;
 
     public BPlusTreePerformanceCounter(boolean trackIO) {
         this.trackIO = trackIO;
@@ -73,6 +95,28 @@ public class BPlusTreePerformanceCounter {
         this.bt = bt;
     }
 
+    void setPageTrace(PageTraceRecorder pageTrace) {
+        this.pageTrace = pageTrace;
+    }
+
+    PageTraceRecorder getPageTrace() {
+        return(pageTrace);
+    }
+
+    void beginTracedOperation() {
+        PageTraceRecorder t = pageTrace;
+        if(t != null) {
+            t.beginOperation();
+        }
+    }
+
+    void tracePageAccess(long pageIndex, int type, boolean write) {
+        PageTraceRecorder t = pageTrace;
+        if(t != null) {
+            t.record(pageIndex, type, write);
+        }
+    }
+
     void incrementTotalPages() {
         if(trackIO) {
             totalPages++;
@@ -102,7 +146,7 @@ public class BPlusTreePerformanceCounter {
 
     private void incrementTotalNodeReads() {
         if(trackIO) {
-            totalNodeReads++;
+            totalNodeReads.increment();
         }
     }
 
@@ -147,16 +191,36 @@ public class BPlusTreePerformanceCounter {
 
     void incrementTotalSearches() {
         if(trackIO) {
-            totalSearches++;
+            totalSearches.increment();
         }
     }
 
     void incrementTotalRangeQueries() {
         if(trackIO) {
-            totalRangeQueries++;
+            totalRangeQueries.increment();
+        }
+    }
+
+    void incrementTotalFingerHits() {
+        if(trackIO) {
+            totalFingerHits.increment();
+        }
+    }
+
+    void incrementTotalFingerMisses() {
+        if(trackIO) {
+            totalFingerMisses.increment();
         }
     }
 
+    public long getTotalFingerHits() {
+        return(totalFingerHits.sum());
+    }
+
+    public long getTotalFingerMisses() {
+        return(totalFingerMisses.sum());
+    }
+
     private void incrementTotalSplits() {
         if(trackIO) {
             totalSplits++;
@@ -184,15 +248,207 @@ public class BPlusTreePerformanceCounter {
         }
     }
 
+    void incrementTotalAppendSplits() {
+        if(trackIO) {
+            totalAppendSplits++;
+        }
+    }
+
+    public long getTotalAppendSplits() {
+        return(totalAppendSplits);
+    }
+
+    void incrementTotalDeferredMerges() {
+        if(trackIO) {
+            totalDeferredMerges++;
+        }
+    }
+
+    public long getTotalDeferredMerges() {
+        return(totalDeferredMerges);
+    }
+
+    void incrementTotalCompactions() {
+        if(trackIO) {
+            totalCompactions++;
+        }
+    }
+
+    public long getTotalCompactions() {
+        return(totalCompactions);
+    }
+
+    void incrementTotalLeafRelocations() {
+        if(trackIO) {
+            totalLeafRelocations++;
+        }
+    }
+
+    public long getTotalLeafRelocations() {
+        return(totalLeafRelocations);
+    }
+
+    public long getTotalLeaves() {
+        return(totalLeaves);
+    }
+
+    public long getTotalLeafSplits() {
+        return(totalLeafSplits);
+    }
+
+    public long getTotalLeafNodeWrites() {
+        return(totalLeafNodeWrites);
+    }
+
+    public long getTotalNodeReads() {
+        return(totalNodeReads.sum());
+    }
+
+    public long getTotalInternalNodeReads() {
+        return(totalInternalNodeReads.sum());
+    }
+
+    public long getTotalLeafNodeReads() {
+        return(totalLeafNodeReads.sum());
+    }
+
+    public long getTotalOverflowReads() {
+        return(totalOverflowReads.sum());
+    }
+
+    public long getTotalNodeWrites() {
+        return(totalNodeWrites);
+    }
+
+    public long getTotalInternalNodeWrites() {
+        return(totalInternalNodeWrites);
+    }
+
+    public long getTotalOverflowWrites() {
+        return(totalOverflowWrites);
+    }
+
+    public long getTotalInsertions() {
+        return(totalInsertions);
+    }
+
+    public long getTotalDeletions() {
+        return(totalDeletions);
+    }
+
+    public long getTotalSearches() {
+        return(totalSearches.sum());
+    }
+
+    public long getTotalRangeQueries() {
+        return(totalRangeQueries.sum());
+    }
+
+    public long getTotalSplits() {
+        return(totalSplits);
+    }
+
+    public long getTotalRootSplits() {
+        return(totalRootSplits);
+    }
+
+    public long getTotalInternalNodeSplits() {
+        return(totalInternalNodeSplits);
+    }
+
+    public long getTotalPages() {
+        return(totalPages);
+    }
+
+    public long getTotalInternalNodes() {
+        return(totalInternalNodes);
+    }
+
+    public long getTotalOverflowPages() {
+        return(totalOverflowPages);
+    }
+
+    public long getTotalInternalNodeDeletions() {
+        return(totalInternalNodeDeletions);
+    }
+
+    public long getTotalLeafNodeDeletions() {
+        return(totalLeafNodeDeletions);
+    }
+
+    public long getTotalOverflowPagesDeletions() {
+        return(totalOverflowPagesDeletions);
+    }
+
+    void recordInsertLatency(long nanos) {
+        if(trackIO) {
+            insertLatencies.record(nanos);
+        }
+    }
+
+    void recordSearchLatency(long nanos) {
+        if(trackIO) {
+            searchLatencies.record(nanos);
+        }
+    }
+
+    void recordRangeQueryLatency(long nanos) {
+        if(trackIO) {
+            rangeQueryLatencies.record(nanos);
+        }
+    }
+
+    void recordDeletionLatency(long nanos) {
+        if(trackIO) {
+            deletionLatencies.record(nanos);
+        }
+    }
+
+    void recordPageReadLatency(long nanos) {
+        if(trackIO) {
+            pageReadLatencies.record(nanos);
+        }
+    }
+
+    void recordPageWriteLatency(long nanos) {
+        if(trackIO) {
+            pageWriteLatencies.record(nanos);
+        }
+    }
+
+    public LatencyHistogram getInsertLatencies() {
+        return(insertLatencies);
+    }
+
+    public LatencyHistogram getSearchLatencies() {
+        return(searchLatencies);
+    }
+
+    public LatencyHistogram getRangeQueryLatencies() {
+        return(rangeQueryLatencies);
+    }
+
+    public LatencyHistogram getDeletionLatencies() {
+        return(deletionLatencies);
+    }
+
+    public LatencyHistogram getPageReadLatencies() {
+        return(pageReadLatencies);
+    }
+
+    public LatencyHistogram getPageWriteLatencies() {
+        return(pageWriteLatencies);
+    }
+
     private void incrementPageReads() {
         if(trackIO) {
-            pageReads++;
+            pageCounts.get().pageReads++;
         }
     }
 
     private void incrementPageWrites() {
         if(trackIO) {
-            pageWrites++;
+            pageCounts.get().pageWrites++;
         }
     }
 
@@ -201,15 +457,16 @@ public class BPlusTreePerformanceCounter {
     }
 
     private void setDefaults() {
-        pageReads = 0;
-        pageWrites = 0;
-        pageInternalReads = 0;
-        pageLeafReads = 0;
-        pageOverflowReads = 0;
+        PageCounts c = pageCounts.get();
+        c.pageReads = 0;
+        c.pageWrites = 0;
+        c.pageInternalReads = 0;
+        c.pageLeafReads = 0;
+        c.pageOverflowReads = 0;
 
-        pageInternalWrites = 0;
-        pageLeafWrites = 0;
-        pageOverflowWrites = 0;
+        c.pageInternalWrites = 0;
+        c.pageLeafWrites = 0;
+        c.pageOverflowWrites = 0;
     }
 
     private void resetIntermittentPageTracking() {
@@ -217,35 +474,35 @@ public class BPlusTreePerformanceCounter {
     }
 
     public int getPageReads() {
-        return(pageReads);
+        return(pageCounts.get().pageReads);
     }
 
     public int getPageWrites() {
-        return(pageWrites);
+        return(pageCounts.get().pageWrites);
     }
 
     public int getInterminentInternalPageReads() {
-        return(pageInternalReads);
+        return(pageCounts.get().pageInternalReads);
     }
 
     public int getInterminentLeafPageReads() {
-        return(pageLeafReads);
+        return(pageCounts.get().pageLeafReads);
     }
 
     public int getInterminentOverflowPageReads() {
-        return(pageOverflowReads);
+        return(pageCounts.get().pageOverflowReads);
     }
 
     public int getInterminentInternalPageWrites() {
-        return(pageInternalWrites);
+        return(pageCounts.get().pageInternalWrites);
     }
 
     public int getInterminentLeafPageWrites() {
-        return(pageLeafWrites);
+        return(pageCounts.get().pageLeafWrites);
     }
 
     public int getInterminentOverflowPageWrites() {
-        return(pageOverflowWrites);
+        return(pageCounts.get().pageOverflowWrites);
     }
 
     public int[] deleteIO(long key, boolean unique, boolean verbose)
@@ -282,8 +539,8 @@ public class BPlusTreePerformanceCounter {
         res[6] = getInterminentOverflowPageReads();
         res[7] = getInterminentOverflowPageWrites();
         res[8] = r.isFound() ? 1 : 0;
-        totalDeletionReads += pageReads;
-        totalDeletionWrites += pageWrites;
+        totalDeletionReads.add(pageCounts.get().pageReads);
+        totalDeletionWrites.add(pageCounts.get().pageWrites);
 
         resetIntermittentPageTracking();
         return res;
@@ -322,8 +579,8 @@ public class BPlusTreePerformanceCounter {
         res[6] = getInterminentOverflowPageReads();
         res[7] = getInterminentOverflowPageWrites();
         res[8] = r.isFound() ? 1 : 0;
-        totalSearchReads += pageReads;
-        totalSearchWrites += pageWrites;
+        totalSearchReads.add(pageCounts.get().pageReads);
+        totalSearchWrites.add(pageCounts.get().pageWrites);
 
         resetIntermittentPageTracking();
         return res;
@@ -359,8 +616,8 @@ public class BPlusTreePerformanceCounter {
         res[5] = getInterminentLeafPageWrites();
         res[6] = getInterminentOverflowPageReads();
         res[7] = getInterminentOverflowPageWrites();
-        totalRangeQueryReads += pageReads;
-        totalRangeQueryWrites += pageWrites;
+        totalRangeQueryReads.add(pageCounts.get().pageReads);
+        totalRangeQueryWrites.add(pageCounts.get().pageWrites);
 
         resetIntermittentPageTracking();
         return res;
@@ -395,59 +652,59 @@ public class BPlusTreePerformanceCounter {
         res[6] = getInterminentOverflowPageReads();
         res[7] = getInterminentOverflowPageWrites();
 
-        totalInsertionReads += pageReads;
-        totalInsertionWrites += pageReads;
+        totalInsertionReads.add(pageCounts.get().pageReads);
+        totalInsertionWrites.add(pageCounts.get().pageReads);
 
         resetIntermittentPageTracking();
         return res;
     }
 
-    public int getTotalIntermittentInsertionReads() {
-        return(totalInsertionReads);
+    public long getTotalIntermittentInsertionReads() {
+        return(totalInsertionReads.sum());
     }
 
-    public int getTotalIntermittentInsertionWrites() {
-        return(totalInsertionWrites);
+    public long getTotalIntermittentInsertionWrites() {
+        return(totalInsertionWrites.sum());
     }
 
     public void incrementIntermittentInternalNodeReads() {
         if(trackIO) {
-            pageInternalReads++;
+            pageCounts.get().pageInternalReads++;
             incrementPageReads();
         }
     }
 
     private void incrementIntermittentLeafNodeReads() {
         if(trackIO) {
-            pageLeafReads++;
+            pageCounts.get().pageLeafReads++;
             incrementPageReads();
         }
     }
 
     private void incrementIntermittentOverflowPageReads() {
         if(trackIO) {
-            pageOverflowReads++;
+            pageCounts.get().pageOverflowReads++;
             incrementPageReads();
         }
     }
 
     private void incrementIntermittentInternalNodeWrites() {
         if(trackIO) {
-            pageInternalWrites++;
+            pageCounts.get().pageInternalWrites++;
             incrementPageWrites();
         }
     }
 
     private void incrementIntermittentLeafNodeWrites() {
         if(trackIO) {
-            pageLeafWrites++;
+            pageCounts.get().pageLeafWrites++;
             incrementPageWrites();
         }
     }
 
     private void incrementIntermittentOverflowPageWrites() {
         if(trackIO) {
-            pageOverflowWrites++;
+            pageCounts.get().pageOverflowWrites++;
             incrementPageWrites();
         }
     }
@@ -455,7 +712,7 @@ public class BPlusTreePerformanceCounter {
 
     void incrementTotalInternalNodeReads() {
         if(trackIO) {
-            totalInternalNodeReads++;
+            totalInternalNodeReads.increment();
             incrementTotalNodeReads();
             incrementIntermittentInternalNodeReads();
         }
@@ -463,7 +720,7 @@ public class BPlusTreePerformanceCounter {
 
     void incrementTotalLeafNodeReads() {
         if(trackIO) {
-            totalLeafNodeReads++;
+            totalLeafNodeReads.increment();
             incrementTotalNodeReads();
             incrementIntermittentLeafNodeReads();
         }
@@ -471,7 +728,7 @@ public class BPlusTreePerformanceCounter {
 
     void incrementTotalOverflowReads() {
         if(trackIO) {
-            totalOverflowReads++;
+            totalOverflowReads.increment();
             incrementTotalNodeReads();
             incrementIntermittentOverflowPageReads();
         }
@@ -501,25 +758,27 @@ public class BPlusTreePerformanceCounter {
         }
     }
 
-    private int totalOperationCount() {
-        return(totalInsertions + totalSearches +
-                totalRangeQueries + totalDeletions);
+    private long totalOperationCount() {
+        return(totalInsertions + totalSearches.sum() +
+                totalRangeQueries.sum() + totalDeletions);
     }
 
     public void printTotalStatistics() {
         System.out.println("\n !! Printing total recorded statistics !!");
         System.out.println("\nOperations break down");
         System.out.println("\n\tTotal insertions: " + totalInsertions);
-        System.out.println("\tTotal searches: " + totalSearches);
-        System.out.println("\tTotal range queries: " + totalRangeQueries);
+        System.out.println("\tTotal searches: " + totalSearches.sum());
+        System.out.println("\tTotal range queries: " + totalRangeQueries.sum());
         System.out.println("\tTotal performed op count: " + totalOperationCount());
+        System.out.println("\tLookups that started below the root: " + totalFingerHits.sum() +
+                " (from root: " + totalFingerMisses.sum() + ")");
 
         System.out.println("\nTotal I/O break down (this run only)");
         System.out.println("\nTotal Read statistics");
-        System.out.println("\n\tTotal reads: " + totalNodeReads);
-        System.out.println("\tTotal Internal node reads: " + totalInternalNodeReads);
-        System.out.println("\tTotal Leaf node reads: " + totalLeafNodeReads);
-        System.out.println("\tTotal Overflow node reads: " + totalOverflowReads);
+        System.out.println("\n\tTotal reads: " + totalNodeReads.sum());
+        System.out.println("\tTotal Internal node reads: " + totalInternalNodeReads.sum());
+        System.out.println("\tTotal Leaf node reads: " + totalLeafNodeReads.sum());
+        System.out.println("\tTotal Overflow node reads: " + totalOverflowReads.sum());
 
         System.out.println("\nTotal Write statistics: ");
         System.out.println("\n\tTotal writes: " + totalNodeWrites);
@@ -544,18 +803,35 @@ public class BPlusTreePerformanceCounter {
         System.out.println("\tActual Root splits: " + totalRootSplits);
         System.out.println("\tInternal node splits: " + totalInternalNodeSplits);
         System.out.println("\tLeaf node splits: " + totalLeafSplits);
-    }
-
-    void resetAllMetrics() {
+        System.out.println("\tOf which on appends: " + totalAppendSplits);
+
+        System.out.println("\nDeferred merge statistics");
+        System.out.println("\n\tLeaves left under-full: " + totalDeferredMerges);
+        System.out.println("\tLeaves compacted: " + totalCompactions);
+        System.out.println("\tLeaves moved by defragmentation: " + totalLeafRelocations);
+
+        System.out.println("\nLatencies");
+        System.out.println("\n\tInsertions: " + insertLatencies.snapshot());
+        System.out.println("\tSearches: " + searchLatencies.snapshot());
+        System.out.println("\tRange queries: " + rangeQueryLatencies.snapshot());
+        System.out.println("\tDeletions: " + deletionLatencies.snapshot());
+        System.out.println("\tPage reads: " + pageReadLatencies.snapshot());
+        System.out.println("\tPage writes: " + pageWriteLatencies.snapshot());
+    }
+
+    /**
+     * Zero all the counters, e.g. to only track the operations after a load
+     */
+    public void resetAllMetrics() {
         totalPages = 0;
         totalInternalNodes = 0;
         totalLeaves = 0;
         totalOverflowPages = 0;
 
-        totalNodeReads = 0;
-        totalInternalNodeReads = 0;
-        totalOverflowReads = 0;
-        totalLeafNodeReads = 0;
+        totalNodeReads.reset();
+        totalInternalNodeReads.reset();
+        totalOverflowReads.reset();
+        totalLeafNodeReads.reset();
 
         totalNodeWrites = 0;
         totalInternalNodeWrites = 0;
@@ -568,23 +844,52 @@ public class BPlusTreePerformanceCounter {
 
         totalDeletions = 0;
         totalInsertions = 0;
-        totalSearches = 0;
-        totalRangeQueries = 0;
+        totalSearches.reset();
+        totalRangeQueries.reset();
+        totalFingerHits.reset();
+        totalFingerMisses.reset();
 
         totalSplits = 0;
         totalRootSplits = 0;
         totalInternalNodeSplits = 0;
         totalLeafSplits = 0;
+        totalAppendSplits = 0;
+        totalDeferredMerges = 0;
+        totalCompactions = 0;
+        totalLeafRelocations = 0;
 
         setDefaults();
 
-        totalSearchReads = 0;
-        totalSearchWrites = 0;
-        totalRangeQueryReads = 0;
-        totalRangeQueryWrites = 0;
-        totalInsertionReads = 0;
-        totalInsertionWrites = 0;
-        totalDeletionReads = 0;
-        totalDeletionWrites = 0;
+        totalSearchReads.reset();
+        totalSearchWrites.reset();
+        totalRangeQueryReads.reset();
+        totalRangeQueryWrites.reset();
+        totalInsertionReads.reset();
+        totalInsertionWrites.reset();
+        totalDeletionReads.reset();
+        totalDeletionWrites.reset();
+
+        insertLatencies.reset();
+        searchLatencies.reset();
+        rangeQueryLatencies.reset();
+        deletionLatencies.reset();
+        pageReadLatencies.reset();
+        pageWriteLatencies.reset();
+    }
+
+    /**
+     * Page reads and writes of the operation a thread is running
+     */
+    private static class PageCounts {
+        private int pageReads;
+        private int pageWrites;
+
+        private int pageInternalReads;
+        private int pageLeafReads;
+        private int pageOverflowReads;
+
+        private int pageInternalWrites;
+        private int pageLeafWrites;
+        private int pageOverflowWrites;
     }
 }
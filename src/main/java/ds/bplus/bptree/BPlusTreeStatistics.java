@@ -0,0 +1,262 @@
+package ds.bplus.bptree;
+
+import ds.bplus.util.InvalidBTreeStateException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ *
+ * The MBean of a tree (see BPlusTreeMXBean), which just forwards to the
+ * tree and its performance counter.
+ *
+ * The counters are plain fields, so a poll that runs concurrently with the
+ * operations may see them slightly out of date; that is fine for monitoring.
+ *
+ */
+class BPlusTreeStatistics implements BPlusTreeMXBean {
+
+    private final BPlusTree tree;
+
+    BPlusTreeStatistics(BPlusTree tree)
+        {this.tree = tree;}
+
+    private BPlusTreePerformanceCounter perf()
+        {return(tree.getPerformanceClass());}
+
+    /**
+     * Return the p99 of a histogram in microseconds
+     *
+     * @param h the histogram
+     * @return the p99 latency (in us)
+     */
+    private static double p99(LatencyHistogram h)
+        {return(h.snapshot().getP99() / 1000.0);}
+
+    @Override
+    public long getTotalTreePages()
+        {return(tree.getTotalTreePages());}
+
+    @Override
+    public long getMaxPageNumber()
+        {return(tree.getMaxPageNumber());}
+
+    @Override
+    public long getFileSize()
+        {return(tree.getFileSize());}
+
+    @Override
+    public int getHeight() {
+        try {
+            return(tree.getHeight());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int getFreePoolSize()
+        {return(tree.getFreePoolSize());}
+
+    @Override
+    public int getLookupPoolSize()
+        {return(tree.getLookupPoolSize());}
+
+    @Override
+    public int getPendingCompactions()
+        {return(tree.getPendingCompactions());}
+
+    @Override
+    public int getPageSize()
+        {return(tree.getTreeConfiguration().getPageSize());}
+
+    @Override
+    public double getFingerHitRatio() {
+        long hits = perf().getTotalFingerHits();
+        long total = hits + perf().getTotalFingerMisses();
+        return(total == 0 ? 0.0 : (double)hits / total);
+    }
+
+    @Override
+    public long getTotalInsertions()
+        {return(perf().getTotalInsertions());}
+
+    @Override
+    public long getTotalSearches()
+        {return(perf().getTotalSearches());}
+
+    @Override
+    public long getTotalRangeQueries()
+        {return(perf().getTotalRangeQueries());}
+
+    @Override
+    public long getTotalFingerHits()
+        {return(perf().getTotalFingerHits());}
+
+    @Override
+    public long getTotalFingerMisses()
+        {return(perf().getTotalFingerMisses());}
+
+    @Override
+    public long getTotalNodeReads()
+        {return(perf().getTotalNodeReads());}
+
+    @Override
+    public long getTotalInternalNodeReads()
+        {return(perf().getTotalInternalNodeReads());}
+
+    @Override
+    public long getTotalLeafNodeReads()
+        {return(perf().getTotalLeafNodeReads());}
+
+    @Override
+    public long getTotalOverflowReads()
+        {return(perf().getTotalOverflowReads());}
+
+    @Override
+    public long getTotalNodeWrites()
+        {return(perf().getTotalNodeWrites());}
+
+    @Override
+    public long getTotalInternalNodeWrites()
+        {return(perf().getTotalInternalNodeWrites());}
+
+    @Override
+    public long getTotalLeafNodeWrites()
+        {return(perf().getTotalLeafNodeWrites());}
+
+    @Override
+    public long getTotalOverflowWrites()
+        {return(perf().getTotalOverflowWrites());}
+
+    @Override
+    public int getIntervalPageReads()
+        {return(perf().getPageReads());}
+
+    @Override
+    public int getIntervalPageWrites()
+        {return(perf().getPageWrites());}
+
+    @Override
+    public long getTotalPages()
+        {return(perf().getTotalPages());}
+
+    @Override
+    public long getTotalInternalNodes()
+        {return(perf().getTotalInternalNodes());}
+
+    @Override
+    public long getTotalLeaves()
+        {return(perf().getTotalLeaves());}
+
+    @Override
+    public long getTotalOverflowPages()
+        {return(perf().getTotalOverflowPages());}
+
+    @Override
+    public long getTotalPageDeletions()
+        {return(perf().getTotalDeletions());}
+
+    @Override
+    public long getTotalInternalNodeDeletions()
+        {return(perf().getTotalInternalNodeDeletions());}
+
+    @Override
+    public long getTotalLeafNodeDeletions()
+        {return(perf().getTotalLeafNodeDeletions());}
+
+    @Override
+    public long getTotalOverflowPagesDeletions()
+        {return(perf().getTotalOverflowPagesDeletions());}
+
+    @Override
+    public long getTotalSplits()
+        {return(perf().getTotalSplits());}
+
+    @Override
+    public long getTotalRootSplits()
+        {return(perf().getTotalRootSplits());}
+
+    @Override
+    public long getTotalInternalNodeSplits()
+        {return(perf().getTotalInternalNodeSplits());}
+
+    @Override
+    public long getTotalLeafSplits()
+        {return(perf().getTotalLeafSplits());}
+
+    @Override
+    public long getTotalAppendSplits()
+        {return(perf().getTotalAppendSplits());}
+
+    @Override
+    public long getTotalDeferredMerges()
+        {return(perf().getTotalDeferredMerges());}
+
+    @Override
+    public long getTotalCompactions()
+        {return(perf().getTotalCompactions());}
+
+    @Override
+    public long getTotalLeafRelocations()
+        {return(perf().getTotalLeafRelocations());}
+
+    @Override
+    public double getInsertLatencyP99()
+        {return(p99(perf().getInsertLatencies()));}
+
+    @Override
+    public double getSearchLatencyP99()
+        {return(p99(perf().getSearchLatencies()));}
+
+    @Override
+    public double getRangeQueryLatencyP99()
+        {return(p99(perf().getRangeQueryLatencies()));}
+
+    @Override
+    public double getDeletionLatencyP99()
+        {return(p99(perf().getDeletionLatencies()));}
+
+    @Override
+    public double getPageReadLatencyP99()
+        {return(p99(perf().getPageReadLatencies()));}
+
+    @Override
+    public double getPageWriteLatencyP99()
+        {return(p99(perf().getPageWriteLatencies()));}
+
+    @Override
+    public void resetIntervalCounters() {
+        BPlusTreePerformanceCounter p = perf();
+        p.startPageTracking();
+        p.getInsertLatencies().reset();
+        p.getSearchLatencies().reset();
+        p.getRangeQueryLatencies().reset();
+        p.getDeletionLatencies().reset();
+        p.getPageReadLatencies().reset();
+        p.getPageWriteLatencies().reset();
+    }
+
+    @Override
+    public void resetAllCounters()
+        {perf().resetAllMetrics();}
+
+    @Override
+    public int compact(int maxLeaves) throws IOException {
+        try {
+            return(tree.compact(maxLeaves));
+        } catch (InvalidBTreeStateException e) {
+            // JMX clients don't have our exception class, so pass the message only
+            throw new IOException("Compaction failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int defragment(int maxLeaves) throws IOException {
+        try {
+            return(tree.defragment(maxLeaves));
+        } catch (InvalidBTreeStateException e) {
+            throw new IOException("Defragmentation failed: " + e.getMessage());
+        }
+    }
+}
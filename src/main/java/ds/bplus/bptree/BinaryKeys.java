@@ -0,0 +1,142 @@
+package ds.bplus.bptree;
+
+import java.util.Comparator;
+
+/**
+ *
+ * Helpers for our fixed-width binary keys; the tree stores every key
+ * as exactly <code>keySize</code> raw bytes and orders them using the
+ * comparator found in the configuration (by default the unsigned
+ * lexicographic one that lives here).
+ *
+ * The <code>long</code> helpers encode the key as big-endian bytes, so
+ * for non-negative values their unsigned lexicographic order matches
+ * the numeric order of the original keys.
+ *
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BinaryKeys {
+
+    /**
+     * Default comparator, compares the keys byte-by-byte treating
+     * each byte as unsigned; shorter keys are ordered first.
+     */
+    public static final Comparator<byte[]> UNSIGNED_LEXICOGRAPHIC =
+            BinaryKeys::compareUnsigned;
+
+    private BinaryKeys() {}
+
+    /**
+     * Compare two keys byte-by-byte treating each byte as unsigned.
+     *
+     * @param a the first key
+     * @param b the second key
+     * @return negative, zero or positive if a is less, equal or greater than b
+     */
+    public static int compareUnsigned(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for(int i = 0; i < len; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(diff != 0)
+                {return(diff);}
+        }
+        return(a.length - b.length);
+    }
+
+    /**
+     * Return the length of the common prefix of the two keys
+     *
+     * @param a the first key
+     * @param b the second key
+     * @return the number of leading bytes both keys share
+     */
+    public static int commonPrefixLength(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        int i = 0;
+        while(i < len && a[i] == b[i])
+            {i++;}
+        return(i);
+    }
+
+    /**
+     * Return the length of the key without its trailing zero bytes
+     *
+     * @param key the key
+     * @return the number of significant bytes of the key
+     */
+    public static int significantLength(byte[] key) {
+        int len = key.length;
+        while(len > 0 && key[len - 1] == 0)
+            {len--;}
+        return(len);
+    }
+
+    /**
+     * Return the shortest key (zero padded to the width of the keys) that
+     * separates the two given keys, under the unsigned lexicographic order.
+     *
+     * @param left the largest key that has to be less than the separator
+     * @param right the smallest key that has to be greater or equal than the separator
+     * @return a key that is greater than left and less than or equal to right
+     */
+    public static byte[] shortestSeparator(byte[] left, byte[] right) {
+        int len = Math.min(commonPrefixLength(left, right) + 1, right.length);
+        byte[] sep = new byte[right.length];
+        System.arraycopy(right, 0, sep, 0, len);
+        return(sep);
+    }
+
+    /**
+     * Encode a non-negative long into a big-endian key of the given width.
+     *
+     * @param key the key to encode
+     * @param keySize width of the key (in bytes)
+     * @return the encoded key
+     * @throws NumberFormatException is thrown when the key is negative or does not fit in the width
+     */
+    public static byte[] fromLong(long key, int keySize)
+            throws NumberFormatException {
+        if(key < 0)
+            {throw new NumberFormatException("Can't have negative keys, sorry.");}
+        if(keySize < 8 && (key >>> (8 * keySize)) != 0)
+            {throw new NumberFormatException("Key " + key + " does not fit in " +
+                    keySize + " bytes");}
+        byte[] b = new byte[keySize];
+        long v = key;
+        for(int i = keySize - 1; i >= 0 && v != 0; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+        return(b);
+    }
+
+    /**
+     * Decode a big-endian key back to a long.
+     *
+     * @param key key to decode
+     * @return the decoded value
+     * @throws IllegalStateException is thrown when the key is wider than 8 significant bytes
+     */
+    public static long toLong(byte[] key) {
+        long v = 0;
+        for(int i = 0; i < key.length; i++) {
+            if(i < key.length - 8 && key[i] != 0)
+                {throw new IllegalStateException("Key does not fit in a long");}
+            v = (v << 8) | (key[i] & 0xFF);
+        }
+        return(v);
+    }
+
+    /**
+     * Return a printable (hex) representation of the key
+     *
+     * @param key key to print
+     * @return the hex string of the key
+     */
+    public static String toHexString(byte[] key) {
+        StringBuilder sb = new StringBuilder(key.length * 2);
+        for(byte b : key)
+            {sb.append(String.format("%02x", b));}
+        return(sb.toString());
+    }
+}
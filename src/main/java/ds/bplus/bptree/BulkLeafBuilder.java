@@ -0,0 +1,153 @@
+package ds.bplus.bptree;
+
+import ds.bplus.util.InvalidBTreeStateException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * Fork-join task that encodes and writes a range of leaves during a bulk
+ * load; see BPlusTree.bulkLoad.
+ *
+ * The leaf pages are reserved before we start and the distinct keys are
+ * spread evenly over them, so each task knows the neighbours of its leaves
+ * and can link them without waiting for the others. Pages are written with
+ * positional writes, thus tasks never share the file pointer.
+ *
+ * Duplicates that don't fit inline in their leaf are left for the caller,
+ * per leaf, in the deferred list.
+ *
+ */
+class BulkLeafBuilder extends RecursiveAction {
+
+    private static final long serialVersionUID = -6116838709429398262L;
+
+    // leaves that a single task builds before we stop splitting
+    private static final int LEAVES_PER_TASK = 32;
+
+    private final BPlusTree tree;
+    private final BPlusConfiguration conf;
+    private final RandomAccessFile treeFile;
+    private final List<KeyValueWrapper> entries;
+    private final int[] keyStarts;
+    private final long[] leafPages;
+    private final List<LinkedList<KeyValueWrapper>> deferred;
+    private final boolean unique;
+    private final int from;
+    private final int to;
+
+    /**
+     * Create a task for the leaves [from, to)
+     *
+     * @param tree the tree we load
+     * @param treeFile the tree file
+     * @param entries the sorted (Key, Value) pairs
+     * @param keyStarts the index of the first entry of each distinct key (plus the end)
+     * @param leafPages the reserved page of each leaf
+     * @param deferred per leaf list of the duplicates that did not fit
+     * @param unique keep only the first value of each key?
+     * @param from first leaf to build
+     * @param to one after the last leaf to build
+     */
+    BulkLeafBuilder(BPlusTree tree, RandomAccessFile treeFile,
+                    List<KeyValueWrapper> entries, int[] keyStarts, long[] leafPages,
+                    List<LinkedList<KeyValueWrapper>> deferred, boolean unique,
+                    int from, int to) {
+        this.tree = tree;
+        this.conf = tree.getTreeConfiguration();
+        this.treeFile = treeFile;
+        this.entries = entries;
+        this.keyStarts = keyStarts;
+        this.leafPages = leafPages;
+        this.deferred = deferred;
+        this.unique = unique;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if(to - from > LEAVES_PER_TASK) {
+            int mid = (from + to) >>> 1;
+            invokeAll(new BulkLeafBuilder(tree, treeFile, entries, keyStarts,
+                            leafPages, deferred, unique, from, mid),
+                    new BulkLeafBuilder(tree, treeFile, entries, keyStarts,
+                            leafPages, deferred, unique, mid, to));
+            return;
+        }
+        // the counters are not thread safe, the caller accounts for the writes
+        BPlusTreePerformanceCounter perf = new BPlusTreePerformanceCounter(false);
+        try {
+            for(int j = from; j < to; j++)
+                {buildLeaf(j).writeNode(treeFile, conf, perf);}
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InvalidBTreeStateException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the index of the first distinct key of a leaf
+     *
+     * @param keys total number of distinct keys
+     * @param leaves total number of leaves
+     * @param leaf the leaf
+     * @return the index of its first key
+     */
+    static int firstKeyOfLeaf(int keys, int leaves, int leaf)
+        {return((int)((long)keys * leaf / leaves));}
+
+    /**
+     * Fill the leaf with its keys, keeping duplicates inline while they fit
+     *
+     * @param j the leaf to build
+     * @return the leaf
+     * @throws InvalidBTreeStateException is thrown when the leaf overflows
+     */
+    private TreeLeaf buildLeaf(int j) throws InvalidBTreeStateException {
+        int leaves = leafPages.length;
+        int keys = keyStarts.length - 1;
+        TreeLeaf l = new TreeLeaf(j + 1 < leaves ? leafPages[j + 1] : -1L,
+                j > 0 ? leafPages[j - 1] : -1L,
+                leaves == 1 ? TreeNodeType.TREE_ROOT_LEAF : TreeNodeType.TREE_LEAF,
+                leafPages[j]);
+        LinkedList<KeyValueWrapper> rest = new LinkedList<>();
+
+        for(int k = firstKeyOfLeaf(keys, leaves, j);
+            k < firstKeyOfLeaf(keys, leaves, j + 1); k++) {
+            int s = keyStarts[k], e = unique ? s + 1 : keyStarts[k + 1];
+            l.addLastToKeyArray(entries.get(s).getKeyBytes());
+            l.addLastToValueList(tree.conditionString(entries.get(s).getValue()));
+            l.addLastToOverflowList(-1L);
+            LinkedList<String> inline = new LinkedList<>();
+            for(int d = s + 1; d < e; d++) {
+                if(inline.size() < conf.getInlineDuplicateLimit())
+                    {inline.add(tree.conditionString(entries.get(d).getValue()));}
+                else
+                    {rest.add(entries.get(d));}
+            }
+            l.addLastToInlineList(inline);
+            l.incrementCapacity(conf);
+        }
+
+        // leave the duplicates of the largest sets out until the leaf fits
+        while(!l.fitsInPage(conf)) {
+            int largest = 0;
+            for(int i = 1; i < l.getCurrentCapacity(); i++) {
+                if(l.getInlineValuesAt(i).size() > l.getInlineValuesAt(largest).size())
+                    {largest = i;}
+            }
+            for(String v : l.getInlineValuesAt(largest))
+                {rest.add(new KeyValueWrapper(l.getKeyAt(largest), v));}
+            l.getInlineValuesAt(largest).clear();
+        }
+        deferred.set(j, rest);
+        return(l);
+    }
+}
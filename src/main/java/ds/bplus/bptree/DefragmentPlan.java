@@ -0,0 +1,210 @@
+package ds.bplus.bptree;
+
+import java.util.HashMap;
+
+/**
+ *
+ * Where the leaves and the internal nodes are and which page the next leaf
+ * goes to; see BPlusTree.defragment.
+ *
+ * The leaves are listed in key order along with the node (and pointer)
+ * that refers to each of them, and the internal nodes (but the root) by
+ * page along with theirs. The leaves take the pages from the start of the
+ * file in that order, one after the other; pages that can't be moved are
+ * skipped. The plan is only good while the structure of the tree stays
+ * the same.
+ *
+ * The heads of the overflow lists point back to their leaf, but keys (and
+ * their lists) move between leaves without updating them, so that pointer
+ * may lead to a page that was freed and still looks like the old leaf.
+ * When we need the owner of an overflow page we map all the overflow pages
+ * to the position of their leaf (see setOverflowOwners); the map stays good
+ * while the only changes to the tree are our own swaps.
+ *
+ */
+class DefragmentPlan {
+
+    final long[] leaves;
+    final long[] parents;
+    final int[] slots;
+    private final HashMap<Long, Integer> positions = new HashMap<>();
+    private final HashMap<Long, long[]> internalNodes;
+    private HashMap<Long, Integer> overflowOwners = null;
+    private int ownersModCount;
+    private final int pageSize;
+    private final long rootIndex;
+    private int structureVersion;
+    private int cursor = 0;
+    private long target;
+
+    /**
+     * Create a plan
+     *
+     * @param leaves leaf pages in key order
+     * @param parents page of the parent of each leaf
+     * @param slots pointer index of each leaf in its parent
+     * @param internalNodes page of each internal node to its parent page and pointer index
+     * @param firstPage index of the first page of the file
+     * @param pageSize page size of the tree
+     * @param rootIndex page index of the root at the time
+     * @param structureVersion structure version of the tree at the time
+     */
+    DefragmentPlan(long[] leaves, long[] parents, int[] slots,
+                   HashMap<Long, long[]> internalNodes, long firstPage, int pageSize,
+                   long rootIndex, int structureVersion) {
+        this.leaves = leaves;
+        this.parents = parents;
+        this.slots = slots;
+        this.internalNodes = internalNodes;
+        this.target = firstPage;
+        this.pageSize = pageSize;
+        this.rootIndex = rootIndex;
+        this.structureVersion = structureVersion;
+        for(int i = 0; i < leaves.length; i++)
+            {positions.put(leaves[i], i);}
+    }
+
+    /**
+     * Check if the plan still describes the tree
+     *
+     * @param rootIndex current page index of the root
+     * @param version current structure version of the tree
+     * @return true if it does, false if it has to be built again
+     */
+    boolean isValid(long rootIndex, int version)
+        {return(this.rootIndex == rootIndex && structureVersion == version);}
+
+    boolean isDone()
+        {return(cursor == leaves.length);}
+
+    /**
+     * Return the position of the next leaf to place
+     *
+     * @return the position in key order
+     */
+    int getCursor()
+        {return(cursor);}
+
+    /**
+     * Return the page the next leaf goes to
+     *
+     * @return the page index
+     */
+    long getTarget()
+        {return(target);}
+
+    /**
+     * The leaf at the cursor is at the target page; go to the next one
+     */
+    void placed() {
+        cursor++;
+        target += pageSize;
+    }
+
+    /**
+     * The target page can't be moved; try the page after it
+     */
+    void skipTarget()
+        {target += pageSize;}
+
+    /**
+     * Return the position of the leaf at a page
+     *
+     * @param page the page index
+     * @return the position of the leaf, or -1 if the page is not a leaf
+     */
+    int positionOf(long page) {
+        Integer i = positions.get(page);
+        return(i == null ? -1 : i);
+    }
+
+    /**
+     * Return the parent of an internal node
+     *
+     * @param page page index of the node
+     * @return its parent page and pointer index, or null if the page is not
+     * an internal node (or is the root)
+     */
+    long[] getInternalParent(long page)
+        {return(internalNodes.get(page));}
+
+    /**
+     * Check if the owners of the overflow pages are up to date
+     *
+     * @param modCount current modification count of the tree
+     * @return true if they are, false if they have to be mapped again
+     */
+    boolean hasOverflowOwners(int modCount)
+        {return(overflowOwners != null && ownersModCount == modCount);}
+
+    /**
+     * Set the owners of the overflow pages
+     *
+     * @param overflowOwners overflow page to the position of its leaf
+     * @param modCount modification count of the tree at the time
+     */
+    void setOverflowOwners(HashMap<Long, Integer> overflowOwners, int modCount) {
+        this.overflowOwners = overflowOwners;
+        this.ownersModCount = modCount;
+    }
+
+    /**
+     * Return the owner of an overflow page
+     *
+     * @param page page index of the overflow page
+     * @return the position of its leaf, or -1 if we don't know it
+     */
+    int getOverflowOwner(long page) {
+        Integer i = overflowOwners == null ? null : overflowOwners.get(page);
+        return(i == null ? -1 : i);
+    }
+
+    /**
+     * Record that the nodes at pages a and b swapped pages
+     *
+     * @param a index of the first page
+     * @param b index of the second page
+     * @param version structure version of the tree after the swap
+     * @param modCount modification count of the tree after the swap
+     */
+    void swapped(long a, long b, int version, int modCount) {
+        Integer pa = positions.remove(a);
+        Integer pb = positions.remove(b);
+        if(pa != null) {
+            leaves[pa] = b;
+            positions.put(b, pa);
+        }
+        if(pb != null) {
+            leaves[pb] = a;
+            positions.put(a, pb);
+        }
+        long[] ia = internalNodes.remove(a);
+        long[] ib = internalNodes.remove(b);
+        if(ia != null)
+            {internalNodes.put(b, ia);}
+        if(ib != null)
+            {internalNodes.put(a, ib);}
+        if(overflowOwners != null) {
+            Integer oa = overflowOwners.remove(a);
+            Integer ob = overflowOwners.remove(b);
+            if(oa != null)
+                {overflowOwners.put(b, oa);}
+            if(ob != null)
+                {overflowOwners.put(a, ob);}
+            // still up to date if the swap was the only change since
+            if(ownersModCount == modCount - 1)
+                {ownersModCount = modCount;}
+        }
+        // an internal node that moved is the parent of others
+        if(ia != null || ib != null) {
+            for(int k = 0; k < parents.length; k++)
+                {parents[k] = swap(parents[k], a, b);}
+            for(long[] p : internalNodes.values())
+                {p[0] = swap(p[0], a, b);}
+        }
+        structureVersion = version;
+    }
+
+    private static long swap(long page, long a, long b)
+        {return(page == a ? b : (page == b ? a : page));}
+}
@@ -10,7 +10,7 @@ import java.util.LinkedList;
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class DeleteResult {
-    private final long key;
+    private final byte[] key;
     private final boolean found;
     private final LinkedList<String> values;
 
@@ -20,7 +20,7 @@ public class DeleteResult {
      * @param key key that values are tied
      * @param value values deleted
      */
-    public DeleteResult(long key, String value) {
+    public DeleteResult(byte[] key, String value) {
         this.key = key;
         if(value != null) {
             values = new LinkedList<>();
@@ -39,7 +39,7 @@ public class DeleteResult {
      * @param key key that values are tied
      * @param values already populated list of deleted values
      */
-    public DeleteResult(long key, LinkedList<String> values) {
+    public DeleteResult(byte[] key, LinkedList<String> values) {
         this.key = key;
         this.values = values;
         this.found = !(values == null || values.isEmpty());
@@ -51,6 +51,9 @@ public class DeleteResult {
         {return(values);}
 
     public long getKey()
+        {return(BinaryKeys.toLong(key));}
+
+    public byte[] getKeyBytes()
         {return(key);}
 
     public boolean isFound()
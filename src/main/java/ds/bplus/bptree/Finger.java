@@ -0,0 +1,135 @@
+package ds.bplus.bptree;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ *
+ * The path (root to leaf) of the last lookup of a thread, along with the
+ * fence keys of every node in it; a node at depth d is responsible for the
+ * keys in [low(d), high(d)), where null means unbounded.
+ *
+ * The separators and pointers of the internal nodes only change when the
+ * structure of the tree changes (splits, merges, redistributions), so the
+ * decoded internal nodes stay valid as long as the structure version of the
+ * tree does. The leaf changes with every modification, so we only reuse it
+ * as is while the modification count of the tree stays the same.
+ *
+ * The entry counts of the internal nodes change with every insert and
+ * delete as well, so the path as a whole is exact (every node as it is on
+ * disk) only while the tree did not change since it was last read or
+ * written; inserts descend along such a path without reading anything.
+ *
+ */
+class Finger {
+
+    private int structureVersion = -1;
+    private int modCount = -1;
+    private int exactModCount = -1;
+    private final ArrayList<TreeNode> path = new ArrayList<>();
+    private final ArrayList<byte[]> low = new ArrayList<>();
+    private final ArrayList<byte[]> high = new ArrayList<>();
+
+    /**
+     * Check if the path is still valid for the given structure version
+     *
+     * @param version the structure version of the tree
+     * @return true if it is, false otherwise
+     */
+    boolean isValid(int version)
+        {return(!path.isEmpty() && structureVersion == version);}
+
+    /**
+     * Drop the path and start a new one with the root
+     *
+     * @param version the structure version of the tree
+     * @param root the root of the tree
+     */
+    void reset(int version, TreeNode root) {
+        structureVersion = version;
+        modCount = -1;
+        exactModCount = -1;
+        path.clear();
+        low.clear();
+        high.clear();
+        push(root, null, null);
+    }
+
+    /**
+     * Return the deepest node of the path whose fences contain the key;
+     * all nodes below it are dropped.
+     *
+     * @param key the key to look for
+     * @param cmp the key comparator
+     * @return the depth of that node (zero is the root)
+     */
+    int climb(byte[] key, Comparator<byte[]> cmp) {
+        int d = path.size() - 1;
+        while(d > 0 && ((low.get(d) != null && cmp.compare(key, low.get(d)) < 0) ||
+                (high.get(d) != null && cmp.compare(key, high.get(d)) >= 0)))
+            {d--;}
+        truncate(d + 1);
+        return(d);
+    }
+
+    /**
+     * Add a child to the end of the path
+     *
+     * @param node the node
+     * @param lo the low fence (inclusive)
+     * @param hi the high fence (exclusive)
+     */
+    void push(TreeNode node, byte[] lo, byte[] hi) {
+        path.add(node);
+        low.add(lo);
+        high.add(hi);
+    }
+
+    /**
+     * Replace the last node of the path (i.e. with a newer copy of it)
+     *
+     * @param node the node
+     */
+    void replaceLast(TreeNode node)
+        {path.set(path.size() - 1, node);}
+
+    /**
+     * Keep only the first nodes of the path
+     *
+     * @param depth the number of nodes to keep
+     */
+    private void truncate(int depth) {
+        while(path.size() > depth) {
+            path.remove(path.size() - 1);
+            low.remove(low.size() - 1);
+            high.remove(high.size() - 1);
+        }
+    }
+
+    TreeNode getLast()
+        {return(path.get(path.size() - 1));}
+
+    int size()
+        {return(path.size());}
+
+    TreeNode getNodeAt(int depth)
+        {return(path.get(depth));}
+
+    byte[] getLowAt(int depth)
+        {return(low.get(depth));}
+
+    byte[] getHighAt(int depth)
+        {return(high.get(depth));}
+
+    int getModCount()
+        {return(modCount);}
+
+    void setModCount(int modCount)
+        {this.modCount = modCount;}
+
+    int getExactModCount()
+        {return(exactModCount);}
+
+    void setExactModCount(int exactModCount)
+        {this.exactModCount = exactModCount;}
+}
@@ -7,8 +7,9 @@ package ds.bplus.bptree;
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class KeyValueWrapper {
 
-    private final long key;           // key
+    private final byte[] key;         // key (raw key bytes)
     private final String value;       // value
+    private final long valueOffset;   // file offset of the stored value
 
     /**
      * This is the only constructor... as we only
@@ -16,12 +17,34 @@ public class KeyValueWrapper {
      * @param key the key of (K, V) pair
      * @param value the value of the (K, V) pair
      */
-    public KeyValueWrapper(long key, String value) {
+    public KeyValueWrapper(byte[] key, String value) {
         this.key = key;
         this.value = value;
+        this.valueOffset = -1L;
     }
 
+    /**
+     * Constructor for projected scans, where the value is not decoded
+     *
+     * @param key the key of (K, V) pair
+     * @param valueOffset file offset of the stored value (-1 if not requested)
+     */
+    public KeyValueWrapper(byte[] key, long valueOffset) {
+        this.key = key;
+        this.value = null;
+        this.valueOffset = valueOffset;
+    }
+
+    /**
+     * Return the key decoded as a long (only for keys up to 8 bytes)
+     *
+     * @return the key as a long
+     */
     public long getKey() {
+        return BinaryKeys.toLong(key);
+    }
+
+    public byte[] getKeyBytes() {
         return key;
     }
 
@@ -29,5 +52,15 @@ public class KeyValueWrapper {
         return value;
     }
 
+    /**
+     * Return the offset in the tree file where the value is stored; values
+     * of compressed posting lists are preceded by their length.
+     *
+     * @return the value offset, -1 if it was not requested
+     */
+    public long getValueOffset() {
+        return valueOffset;
+    }
+
 
 }
@@ -0,0 +1,204 @@
+package ds.bplus.bptree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * Histogram of latencies (in nanoseconds) with log-linear buckets, in the
+ * spirit of HdrHistogram: each power of two range is split in SUB_BUCKETS
+ * equal buckets, so any recorded value is reported within about 3% of
+ * its actual value and the whole histogram has a fixed, small size.
+ *
+ * Recording is a couple of shifts and atomic adds. To keep threads from
+ * contending on the same counters, each histogram has a few stripes of
+ * buckets and every thread records to the stripe its id maps to; the stripes
+ * are only summed up when a snapshot is taken.
+ *
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class LatencyHistogram {
+
+    // 2^SUB_BITS buckets per power of two
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // values are capped to 2^MAX_BITS - 1 nanoseconds (about 18 minutes)
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    // per stripe: the buckets, then the count, the sum and the max
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+    private static final int STRIPE_SIZE = BUCKETS + 3;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+    /**
+     * Create an empty histogram with a stripe per processor (up to 16)
+     */
+    public LatencyHistogram() {
+        int n = Integer.highestOneBit(
+                Math.min(16, Math.max(1, Runtime.getRuntime().availableProcessors())));
+        this.stripes = new AtomicLongArray[n];
+        for(int i = 0; i < n; i++)
+            {stripes[i] = new AtomicLongArray(STRIPE_SIZE);}
+        this.stripeMask = n - 1;
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param nanos the latency (in nanoseconds); negative values count as zero
+     */
+    public void record(long nanos) {
+        long v = Math.min(Math.max(nanos, 0L), MAX_VALUE);
+        AtomicLongArray s = stripes[(int)Thread.currentThread().getId() & stripeMask];
+        s.incrementAndGet(bucketOf(v));
+        s.incrementAndGet(COUNT);
+        s.addAndGet(SUM, v);
+        long m;
+        while(v > (m = s.get(MAX)) && !s.compareAndSet(MAX, m, v))
+            {}
+    }
+
+    /**
+     * Take a snapshot of the values recorded so far
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot()
+        {return(collect(false));}
+
+    /**
+     * Take a snapshot of the values recorded so far and start a new
+     * interval; values recorded concurrently end up in exactly one of the
+     * two intervals.
+     *
+     * @return the snapshot of the interval that just ended
+     */
+    public Snapshot snapshotAndReset()
+        {return(collect(true));}
+
+    /**
+     * Drop all the recorded values
+     */
+    public void reset()
+        {collect(true);}
+
+    /**
+     * Sum up the stripes, zeroing them if requested
+     */
+    private Snapshot collect(boolean reset) {
+        long[] buckets = new long[BUCKETS];
+        long count = 0, sum = 0, max = 0;
+        for(AtomicLongArray s : stripes) {
+            for(int i = 0; i < BUCKETS; i++)
+                {buckets[i] += reset ? s.getAndSet(i, 0L) : s.get(i);}
+            count += reset ? s.getAndSet(COUNT, 0L) : s.get(COUNT);
+            sum += reset ? s.getAndSet(SUM, 0L) : s.get(SUM);
+            max = Math.max(max, reset ? s.getAndSet(MAX, 0L) : s.get(MAX));
+        }
+        return(new Snapshot(buckets, count, sum, max));
+    }
+
+    /**
+     * Return the bucket of a value
+     *
+     * @param v the value (in [0, MAX_VALUE])
+     * @return the bucket index
+     */
+    static int bucketOf(long v) {
+        if(v < SUB_BUCKETS)
+            {return((int)v);}
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return((shift + 1) * SUB_BUCKETS + (int)((v >>> shift) - SUB_BUCKETS));
+    }
+
+    /**
+     * Return the largest value that falls in a bucket
+     *
+     * @param bucket the bucket index
+     * @return the value
+     */
+    static long highestValueOf(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            {return(bucket);}
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return(((sub + 1) << shift) - 1);
+    }
+
+    /**
+     *
+     * Immutable view of a histogram at some point in time.
+     *
+     */
+    public static class Snapshot {
+
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount()
+            {return(count);}
+
+        public long getMax()
+            {return(max);}
+
+        public double getMean()
+            {return(count == 0 ? 0.0 : sum / (double)count);}
+
+        /**
+         * Return the value below which the given percentage of the
+         * recorded values falls (reported as the upper end of its bucket)
+         *
+         * @param percentile the percentile (in [0, 100])
+         * @return the value (in nanoseconds), zero if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if(percentile < 0 || percentile > 100)
+                {throw new IllegalArgumentException("Percentile must be in [0, 100]");}
+            // the bucket counts and the total are summed up separately
+            long total = 0;
+            for(long b : buckets)
+                {total += b;}
+            if(total == 0)
+                {return(0L);}
+            long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if(seen >= rank)
+                    {return(Math.min(highestValueOf(i), max));}
+            }
+            return(max);
+        }
+
+        public long getP50()
+            {return(getValueAtPercentile(50.0));}
+
+        public long getP99()
+            {return(getValueAtPercentile(99.0));}
+
+        public long getP999()
+            {return(getValueAtPercentile(99.9));}
+
+        @Override
+        public String toString() {
+            return(String.format("count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, " +
+                            "p99.9 %.1f us, max %.1f us", count, getMean() / 1000.0,
+                    getP50() / 1000.0, getP99() / 1000.0, getP999() / 1000.0,
+                    max / 1000.0));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ds.bplus.bptree;
+
+import ds.bplus.util.InvalidBTreeStateException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Background thread that merges the leaves deletes left under-full while
+ * deferred merging is enabled (see BPlusConfiguration.setDeferredMerge),
+ * so the rebalancing work is taken off the foreground deletes.
+ *
+ * The compactor processes at most a given number of leaves per second, one
+ * at a time, and polls the tree when there is nothing to do. Each step holds
+ * the tree lock, so regular operations wait at most for a single leaf to be
+ * compacted; range streams that are consumed concurrently fail fast as they
+ * do with any other modification.
+ *
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class LeafCompactor implements AutoCloseable {
+
+    // how long we sleep when there is nothing to compact
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final BPlusTree tree;
+    private final long nanosPerLeaf;
+    private final Thread thread;
+    private volatile boolean running = false;
+    private volatile Exception failure = null;
+
+    /**
+     * Create a compactor for the tree; it has to be started explicitly.
+     *
+     * @param tree the tree to compact
+     * @param leavesPerSecond max number of leaves to compact per second
+     * @throws IllegalArgumentException is thrown when the rate is not positive
+     */
+    public LeafCompactor(BPlusTree tree, int leavesPerSecond) {
+        if(leavesPerSecond <= 0)
+            {throw new IllegalArgumentException("Compaction rate must be > 0");}
+        this.tree = tree;
+        this.nanosPerLeaf = TimeUnit.SECONDS.toNanos(1) / leavesPerSecond;
+        this.thread = new Thread(this::run, "bplus-leaf-compactor");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start the background thread
+     */
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stop the background thread and wait for it to finish; leaves that were
+     * not compacted yet stay pending in the tree.
+     *
+     * @throws IOException is thrown when compaction failed on an I/O operation
+     * @throws InvalidBTreeStateException is thrown when compaction found inconsistencies in the blocks.
+     */
+    @Override
+    public void close() throws IOException, InvalidBTreeStateException {
+        // we don't interrupt, as that would close the channel of the tree file
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(failure instanceof IOException)
+            {throw (IOException)failure;}
+        else if(failure instanceof InvalidBTreeStateException)
+            {throw (InvalidBTreeStateException)failure;}
+        else if(failure != null)
+            {throw new IllegalStateException(failure);}
+    }
+
+    /**
+     * Check if the thread is still running
+     *
+     * @return true if it is, false if it was stopped or failed
+     */
+    public boolean isRunning()
+        {return(running && thread.isAlive());}
+
+    /**
+     * The main loop of the background thread
+     */
+    private void run() {
+        try {
+            while(running) {
+                long deadline = System.nanoTime() +
+                        (tree.compact(1) > 0 ? nanosPerLeaf : IDLE_NANOS);
+                long left;
+                while(running && (left = deadline - System.nanoTime()) > 0)
+                    {LockSupport.parkNanos(this, left);}
+            }
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package ds.bplus.bptree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Records every page that the tree reads or writes to a binary trace, so
+ * that cache policies can be evaluated offline (see util.CacheSimulator).
+ *
+ * The threads that do the I/O only claim a slot of a ring buffer with a CAS
+ * and publish their entry into it; a background thread drains the buffer
+ * to the trace file in batches. When the writer falls a whole buffer
+ * behind, new entries are dropped (and counted) instead of blocking the tree.
+ *
+ * The trace starts with a header (MAGIC and the page size) followed by
+ * fixed size entries: a long that packs the operation id, the page type and
+ * the access kind, then the page number as an int. The operation id is set
+ * by the tree at the start of each operation, so all the pages touched by
+ * one insert, search, delete or range query share it.
+ *
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PageTraceRecorder implements AutoCloseable {
+
+    public static final long MAGIC = 0x4250545241434531L;     // "BPTRACE1"
+    public static final int HEADER_SIZE = 12;
+    public static final int ENTRY_SIZE = 12;
+
+    // entries we write to the file at once
+    private static final int BATCH = 4096;
+    // how long the writer sleeps when the buffer is empty
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final FileChannel out;
+    private final int pageSize;
+    private final int mask;
+    private final long[] words;
+    private final int[] pages;
+    private final AtomicLongArray published;  // (sequence + 1) of the entry in each slot
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final ThreadLocal<long[]> currentOperation =
+            ThreadLocal.withInitial(() -> new long[1]);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile IOException failure = null;
+    private volatile long written = 0;
+
+    /**
+     * Create the trace file and start the writer thread
+     *
+     * @param path path of the trace file (truncated if it exists)
+     * @param pageSize page size of the traced tree
+     * @param capacity number of entries the ring buffer holds (rounded up to a power of two)
+     * @throws IOException is thrown when the file can't be created
+     */
+    public PageTraceRecorder(String path, int pageSize, int capacity) throws IOException {
+        if(capacity <= 0)
+            {throw new IllegalArgumentException("Trace buffer capacity must be > 0");}
+        int n = capacity > (1 << 30) ? 1 << 30 :
+                Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.pageSize = pageSize;
+        this.mask = n - 1;
+        this.words = new long[n];
+        this.pages = new int[n];
+        this.published = new AtomicLongArray(n);
+        this.out = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC).putInt(pageSize).flip();
+        while(header.hasRemaining())
+            {out.write(header);}
+        this.writer = new Thread(this::drain, "bplus-page-trace");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Start a new operation on the calling thread; the pages it touches
+     * from now on are tagged with a new id.
+     */
+    void beginOperation()
+        {currentOperation.get()[0] = operations.incrementAndGet();}
+
+    /**
+     * Add a page access to the trace
+     *
+     * @param pageIndex the index (file offset) of the page
+     * @param type the page type, as stored in the page
+     * @param write is it a write (or a read)?
+     */
+    void record(long pageIndex, int type, boolean write) {
+        long seq;
+        do {
+            seq = head.get();
+            if(seq - tail > mask)
+                {dropped.incrementAndGet(); return;}
+        } while(!head.compareAndSet(seq, seq + 1));
+        int i = (int)seq & mask;
+        words[i] = (currentOperation.get()[0] << 4) | ((type & 7) << 1) | (write ? 1 : 0);
+        pages[i] = (int)(pageIndex / pageSize);
+        published.set(i, seq + 1);
+    }
+
+    /**
+     * Main loop of the writer thread
+     */
+    private void drain() {
+        ByteBuffer buf = ByteBuffer.allocate(BATCH * ENTRY_SIZE);
+        try {
+            while(true) {
+                long t = tail;
+                while(buf.remaining() >= ENTRY_SIZE &&
+                        published.get((int)t & mask) == t + 1) {
+                    int i = (int)t & mask;
+                    buf.putLong(words[i]).putInt(pages[i]);
+                    tail = ++t;
+                }
+                if(buf.position() > 0) {
+                    written += buf.position() / ENTRY_SIZE;
+                    buf.flip();
+                    while(buf.hasRemaining())
+                        {out.write(buf);}
+                    buf.clear();
+                }
+                else if(!running && head.get() == t)
+                    {break;}
+                else
+                    {LockSupport.parkNanos(this, IDLE_NANOS);}
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Write out what is still buffered and close the trace file
+     *
+     * @throws IOException is thrown when writing the trace failed
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+        if(failure != null)
+            {throw failure;}
+    }
+
+    /**
+     * Return the number of entries written so far
+     *
+     * @return the entries in the trace file
+     */
+    public long getWrittenEntries()
+        {return(written);}
+
+    /**
+     * Return the number of entries lost because the buffer was full
+     *
+     * @return the dropped entries
+     */
+    public long getDroppedEntries()
+        {return(dropped.get());}
+
+    /**
+     * Callback for the entries of a trace
+     */
+    public interface Visitor {
+        /**
+         * Visit a page access
+         *
+         * @param operation id of the operation that touched the page
+         * @param page the page number
+         * @param type the page type (1: leaf, 2: internal, 3: root internal,
+         *             4: root leaf, 5: overflow, 6: lookup overflow)
+         * @param write is it a write (or a read)?
+         */
+        void visit(long operation, int page, int type, boolean write);
+    }
+
+    /**
+     * Read a trace file, calling the visitor for every entry in order
+     *
+     * @param path path of the trace file
+     * @param visitor the callback
+     * @return the page size of the traced tree
+     * @throws IOException is thrown when the file can't be read or is not a trace
+     */
+    public static int replay(String path, Visitor visitor) throws IOException {
+        try(FileChannel in = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(BATCH * ENTRY_SIZE);
+            buf.limit(HEADER_SIZE);
+            while(buf.hasRemaining()) {
+                if(in.read(buf) < 0)
+                    {throw new EOFException("Truncated trace header: " + path);}
+            }
+            buf.flip();
+            if(buf.getLong() != MAGIC)
+                {throw new IOException("Not a page trace: " + path);}
+            int traced = buf.getInt();
+            buf.clear();
+            while(in.read(buf) >= 0 || buf.position() > 0) {
+                buf.flip();
+                while(buf.remaining() >= ENTRY_SIZE) {
+                    long w = buf.getLong();
+                    visitor.visit(w >>> 4, buf.getInt(), (int)(w >>> 1) & 7, (w & 1) != 0);
+                }
+                if(buf.hasRemaining() && in.position() == in.size())
+                    {throw new EOFException("Truncated trace entry: " + path);}
+                buf.compact();
+            }
+            return(traced);
+        }
+    }
+}
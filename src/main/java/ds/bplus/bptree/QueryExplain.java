@@ -0,0 +1,189 @@
+package ds.bplus.bptree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * The pages a single operation touched, in order, as returned by the
+ * explain methods of the tree (e.g. BPlusTree.explainSearch).
+ *
+ * The tree does not have a page cache, so a page is a "cache hit" when it
+ * was served from memory: the root, which is always kept in memory, and the
+ * nodes reused from the finger of the thread (the path of its last lookup).
+ * All other pages are read from the file, and their time is that of the
+ * read and the decoding of the page.
+ *
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class QueryExplain {
+
+    /**
+     * A page that the operation touched
+     */
+    public static class Step {
+        private final int level;
+        private final long pageIndex;
+        private final String nodeType;
+        private final int entries;
+        private final int capacity;
+        private final boolean cacheHit;
+        private final long nanos;
+
+        Step(int level, long pageIndex, String nodeType, int entries,
+             int capacity, boolean cacheHit, long nanos) {
+            this.level = level;
+            this.pageIndex = pageIndex;
+            this.nodeType = nodeType;
+            this.entries = entries;
+            this.capacity = capacity;
+            this.cacheHit = cacheHit;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Level of the page; the root is at zero, leaves at height - 1 and
+         * overflow pages one below the leaves
+         *
+         * @return the level of the page
+         */
+        public int getLevel()
+            {return(level);}
+
+        public long getPageIndex()
+            {return(pageIndex);}
+
+        public String getNodeType()
+            {return(nodeType);}
+
+        public int getEntries()
+            {return(entries);}
+
+        public int getCapacity()
+            {return(capacity);}
+
+        /**
+         * Fill level of the page, i.e. its entries over the nominal
+         * capacity of its type; pages whose keys or separators are
+         * compressed can go above 1.
+         *
+         * @return the fill level
+         */
+        public double getFill()
+            {return(capacity == 0 ? 0.0 : (double)entries / capacity);}
+
+        public boolean isCacheHit()
+            {return(cacheHit);}
+
+        public long getNanos()
+            {return(nanos);}
+
+        @Override
+        public String toString() {
+            return(String.format("%5d  %10d  %-20s %5d/%-5d (%4.2f)  %-6s %10.1f",
+                    level, pageIndex, nodeType, entries, capacity, getFill(),
+                    cacheHit ? "memory" : "file", nanos / 1000.0));
+        }
+    }
+
+    private final String operation;
+    private final int height;
+    private final ArrayList<Step> steps = new ArrayList<>();
+    private long results = 0;
+    private long totalNanos = 0;
+
+    /**
+     * Create an empty explain
+     *
+     * @param operation description of the operation
+     * @param height height of the tree at the time
+     */
+    QueryExplain(String operation, int height) {
+        this.operation = operation;
+        this.height = height;
+    }
+
+    /**
+     * Add a page to the steps
+     *
+     * @param level the level of the page
+     * @param node the page
+     * @param capacity nominal capacity of the page
+     * @param cacheHit was it served from memory?
+     * @param nanos time spent to get it
+     */
+    void addStep(int level, TreeNode node, int capacity, boolean cacheHit, long nanos) {
+        steps.add(new Step(level, node.getPageIndex(), node.getNodeType().name(),
+                node.getCurrentCapacity(), capacity, cacheHit, nanos));
+    }
+
+    /**
+     * Level of the last page we added, -1 if none
+     *
+     * @return the level
+     */
+    int getLastLevel()
+        {return(steps.isEmpty() ? -1 : steps.get(steps.size() - 1).getLevel());}
+
+    /**
+     * Record the outcome of the operation
+     *
+     * @param results number of entries returned
+     * @param totalNanos total time of the operation
+     */
+    void finish(long results, long totalNanos) {
+        this.results = results;
+        this.totalNanos = totalNanos;
+    }
+
+    public String getOperation()
+        {return(operation);}
+
+    public int getHeight()
+        {return(height);}
+
+    public List<Step> getSteps()
+        {return(Collections.unmodifiableList(steps));}
+
+    public long getResults()
+        {return(results);}
+
+    public long getTotalNanos()
+        {return(totalNanos);}
+
+    /**
+     * Return the number of pages that were read from the file
+     *
+     * @return the page reads
+     */
+    public int getPageReads() {
+        int reads = 0;
+        for(Step s : steps) {
+            if(!s.isCacheHit())
+                {reads++;}
+        }
+        return(reads);
+    }
+
+    /**
+     * Return the number of pages served from memory
+     *
+     * @return the cache hits
+     */
+    public int getCacheHits()
+        {return(steps.size() - getPageReads());}
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(operation).append(": ").append(steps.size()).append(" pages (")
+                .append(getPageReads()).append(" from file, ").append(getCacheHits())
+                .append(" from memory), ").append(results).append(" results, ")
+                .append(String.format("%.1f", totalNanos / 1000.0)).append(" us\n");
+        sb.append("level        page  type                 entries/cap (fill)  source   time (us)\n");
+        for(Step s : steps)
+            {sb.append(s).append('\n');}
+        return(sb.toString());
+    }
+}
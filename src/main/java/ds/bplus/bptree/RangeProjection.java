@@ -0,0 +1,16 @@
+package ds.bplus.bptree;
+
+/**
+ *
+ * What a range scan returns for each matching entry; anything other than
+ * the full (Key, Value) pairs is answered from the raw page bytes, so the
+ * values are never decoded.
+ *
+ */
+@SuppressWarnings("unused")
+public enum RangeProjection {
+    KEYS_AND_VALUES,    // (Key, Value) pairs, same as rangeSearch
+    KEYS,               // only the keys
+    VALUE_OFFSETS,      // the keys along with the file offset of their values
+    COUNT               // nothing but the number of entries
+}
@@ -14,12 +14,28 @@ public class RangeResult {
 
     // our linked list
     private final LinkedList<KeyValueWrapper> queryResult;
+    // number of entries, for count only scans
+    private long count;
 
     /**
      * Constructor that instantiates basically our linked list
      */
-    public RangeResult()
-        {this.queryResult = new LinkedList<>();}
+    public RangeResult() {
+        this.queryResult = new LinkedList<>();
+        this.count = -1;
+    }
+
+    /**
+     * Return the number of matching entries; for count only scans
+     * the result list is empty and only this is set.
+     *
+     * @return the number of matching entries
+     */
+    public long getCount()
+        {return(count >= 0 ? count : queryResult.size());}
+
+    void setCount(long count)
+        {this.count = count;}
 
     /**
      * Used to give us access to the actual list
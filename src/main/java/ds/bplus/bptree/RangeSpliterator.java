@@ -0,0 +1,215 @@
+package ds.bplus.bptree;
+
+import ds.bplus.util.InvalidBTreeStateException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedList;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ *
+ * Spliterator over the (Key, Value) pairs of a key range, which is what
+ * backs the range streams of the tree.
+ *
+ * Splitting never touches the leaves; it picks the middle separator key of
+ * the internal node that covers the range (descending while a single child
+ * covers it) so the two halves scan disjoint subtrees. Pages are read with
+ * positional reads, so the halves can be traversed by different threads.
+ *
+ * The tree must not be modified while the stream is consumed; we check
+ * its modification count every time a leaf is loaded and fail fast. Both
+ * the check and the page reads that follow it happen under the read lock
+ * of the tree, so a writer (e.g. a compaction that frees the page) can't
+ * get in between; the lock is released once the leaf is buffered.
+ *
+ */
+class RangeSpliterator implements Spliterator<KeyValueWrapper> {
+
+    private final BPlusTree tree;
+    private byte[] minKey;              // inclusive
+    private final byte[] maxKey;
+    private final boolean maxInclusive;
+    private final boolean unique;
+    private final int expectedModCount;
+
+    private TreeNode node;              // smallest known subtree covering the range
+    private long estimate = -1L;
+
+    private TreeLeaf leaf = null;       // leaf that we currently scan
+    private int index;
+    private boolean done;
+    private final LinkedList<KeyValueWrapper> pending = new LinkedList<>();
+
+    /**
+     * Create a spliterator for the range [minKey, maxKey] under node
+     *
+     * @param tree the tree to scan
+     * @param node the node that covers the range (usually the root)
+     * @param minKey min key of the range
+     * @param maxKey max key of the range
+     * @param maxInclusive is max key part of the range?
+     * @param unique return only *first* encounter of the (Key, Value) pairs or all?
+     * @param expectedModCount modification count of the tree at creation
+     */
+    RangeSpliterator(BPlusTree tree, TreeNode node, byte[] minKey, byte[] maxKey,
+                     boolean maxInclusive, boolean unique, int expectedModCount) {
+        this.tree = tree;
+        this.node = node;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+        this.maxInclusive = maxInclusive;
+        this.unique = unique;
+        this.expectedModCount = expectedModCount;
+        this.done = tree.compareKeys(minKey, maxKey) > 0;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super KeyValueWrapper> action) {
+        while(pending.isEmpty()) {
+            if(done)
+                {return(false);}
+            fill();
+        }
+        action.accept(pending.removeFirst());
+        return(true);
+    }
+
+    @Override
+    public Spliterator<KeyValueWrapper> trySplit() {
+        // can't split once we started scanning
+        if(leaf != null || done)
+            {return(null);}
+        tree.getReadLock().lock();
+        try {
+            checkModCount();
+            while(node.isInternalNode()) {
+                TreeInternalNode inode = (TreeInternalNode)node;
+                // separators that fall strictly inside the range
+                int lo = 0;
+                while(lo < inode.getCurrentCapacity() &&
+                        tree.compareKeys(inode.getKeyAt(lo), minKey) <= 0)
+                    {lo++;}
+                int hi = lo;
+                while(hi < inode.getCurrentCapacity() && inRange(inode.getKeyAt(hi)))
+                    {hi++;}
+
+                // only one child covers the range, so go down and try again
+                if(lo == hi) {
+                    node = tree.readNode(inode.getPointerAt(lo));
+                    continue;
+                }
+
+                // keys less than the separator go to the prefix, we keep the rest
+                byte[] sep = inode.getKeyAt(lo + (hi - lo) / 2);
+                RangeSpliterator prefix = new RangeSpliterator(tree, node, minKey,
+                        sep, false, unique, expectedModCount);
+                if(estimate >= 0) {
+                    prefix.estimate = estimate / 2;
+                    estimate -= prefix.estimate;
+                }
+                minKey = sep;
+                return(prefix);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            tree.getReadLock().unlock();
+        }
+        return(null);
+    }
+
+    @Override
+    public long estimateSize() {
+        if(estimate < 0) {
+            // the subtree counts give us the number of keys in the range
+            try {
+                estimate = done ? 0 : tree.countRange(minKey, maxKey);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InvalidBTreeStateException e) {
+                estimate = Long.MAX_VALUE;
+            }
+        }
+        return(estimate);
+    }
+
+    @Override
+    public int characteristics() {
+        return(ORDERED | NONNULL);
+    }
+
+    /**
+     * Check if the key is inside the range (above min and up to max)
+     *
+     * @param key the key to check
+     * @return true if it is, false otherwise
+     */
+    private boolean inRange(byte[] key) {
+        int c = tree.compareKeys(key, maxKey);
+        return(c < 0 || (maxInclusive && c == 0));
+    }
+
+    /**
+     * Fail if the tree was modified since the spliterator was created;
+     * has to be called with the read lock held.
+     */
+    private void checkModCount() {
+        if(tree.getModCount() != expectedModCount)
+            {throw new ConcurrentModificationException();}
+    }
+
+    /**
+     * Load the next leaf of the range and buffer its (Key, Value) pairs
+     */
+    private void fill() {
+        tree.getReadLock().lock();
+        try {
+            checkModCount();
+            if(leaf == null) {
+                // go down to the leaf that holds the min key
+                TreeNode n = node;
+                while(n.isInternalNode()) {
+                    TreeInternalNode inode = (TreeInternalNode)n;
+                    int i = 0;
+                    while(i < inode.getCurrentCapacity() &&
+                            tree.compareKeys(minKey, inode.getKeyAt(i)) >= 0)
+                        {i++;}
+                    n = tree.readNode(inode.getPointerAt(i));
+                }
+                leaf = (TreeLeaf)n;
+                index = 0;
+                while(index < leaf.getCurrentCapacity() &&
+                        tree.compareKeys(leaf.getKeyAt(index), minKey) < 0)
+                    {index++;}
+            }
+            else if(leaf.getNextPagePointer() < 0)
+                {done = true; return;}
+            else {
+                leaf = (TreeLeaf)tree.readNode(leaf.getNextPagePointer());
+                index = 0;
+            }
+
+            RangeResult res = new RangeResult();
+            for(; index < leaf.getCurrentCapacity(); index++) {
+                byte[] key = leaf.getKeyAt(index);
+                if(!inRange(key))
+                    {done = true; break;}
+                res.getQueryResult().add(new KeyValueWrapper(key, leaf.getValueAt(index)));
+                if(!unique) {
+                    for(String v : leaf.getInlineValuesAt(index))
+                        {res.getQueryResult().add(new KeyValueWrapper(key, v));}
+                    if(leaf.getOverflowPointerAt(index) != -1)
+                        {tree.parseOverflowPages(leaf, index, res);}
+                }
+            }
+            pending.addAll(res.getQueryResult());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            tree.getReadLock().unlock();
+        }
+    }
+}
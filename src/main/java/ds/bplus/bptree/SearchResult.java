@@ -64,6 +64,9 @@ public class SearchResult {
         {return(ovfValues);}
 
     public long getKey()
+        {return(BinaryKeys.toLong(leafLoc.getKeyAt(index)));}
+
+    public byte[] getKeyBytes()
         {return(leafLoc.getKeyAt(index));}
 
     public boolean isFound()
@@ -0,0 +1,97 @@
+package ds.bplus.bptree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *
+ * Fork-join task that analyzes a subtree; see BPlusTree.analyze.
+ *
+ * Subtrees whose children are internal nodes are split in a task per
+ * child, so the tasks that do the actual work each get a node right above
+ * the leaves and read its leaves (and their overflow chains) one after the
+ * other. Pages are read with positional reads, thus tasks never share the
+ * file pointer.
+ *
+ */
+class TreeAnalyzer extends RecursiveTask<TreeReport> {
+
+    private static final long serialVersionUID = 5599047645464568520L;
+
+    private final BPlusTree tree;
+    private final BPlusConfiguration conf;
+    private final TreeNode node;
+    private final int level;
+    private final int height;
+
+    /**
+     * Create a task for the subtree under node
+     *
+     * @param tree the tree we analyze
+     * @param node root of the subtree
+     * @param level level of the node (the root is at zero)
+     * @param height height of the tree
+     */
+    TreeAnalyzer(BPlusTree tree, TreeNode node, int level, int height) {
+        this.tree = tree;
+        this.conf = tree.getTreeConfiguration();
+        this.node = node;
+        this.level = level;
+        this.height = height;
+    }
+
+    @Override
+    protected TreeReport compute() {
+        TreeReport report = new TreeReport(height, conf.getPageSize());
+        try {
+            if(node.isLeaf()) {
+                addLeaf(report, (TreeLeaf)node);
+                return(report);
+            }
+            TreeInternalNode inode = (TreeInternalNode)node;
+            report.addInternalNode(level, inode.getEncodedSize(conf));
+            if(level + 2 < height) {
+                ArrayList<TreeAnalyzer> children = new ArrayList<>();
+                for(int i = 0; i <= inode.getCurrentCapacity(); i++) {
+                    children.add(new TreeAnalyzer(tree, tree.readNode(inode.getPointerAt(i)),
+                            level + 1, height));
+                }
+                for(TreeAnalyzer t : invokeAll(children))
+                    {report.merge(t.join());}
+            }
+            else {
+                for(int i = 0; i <= inode.getCurrentCapacity(); i++)
+                    {addLeaf(report, (TreeLeaf)tree.readNode(inode.getPointerAt(i)));}
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return(report);
+    }
+
+    /**
+     * Add a leaf and its overflow chains to the report
+     *
+     * @param report the report
+     * @param l the leaf
+     * @throws IOException is thrown when an overflow page can't be read
+     */
+    private void addLeaf(TreeReport report, TreeLeaf l) throws IOException {
+        long values = l.getCurrentCapacity() + l.getInlineValueCount();
+        for(int i = 0; i < l.getCurrentCapacity(); i++) {
+            long ovf = l.getOverflowPointerAt(i);
+            if(ovf == -1L)
+                {continue;}
+            TreeOverflow head = (TreeOverflow)tree.readNode(ovf);
+            values += head.getTotalValues();
+            int pages = 1;
+            for(long next = head.getNextPagePointer(); next != -1L; pages++)
+                {next = ((TreeOverflow)tree.readNode(next)).getNextPagePointer();}
+            report.addOverflowChain(pages);
+        }
+        report.addLeaf(l.getCurrentCapacity(), values, l.getEncodedSize(conf),
+                l.getPageIndex(), l.getNextPagePointer());
+    }
+}
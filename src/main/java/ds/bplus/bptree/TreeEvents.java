@@ -0,0 +1,218 @@
+package ds.bplus.bptree;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ *
+ * Java Flight Recorder events of the tree: page I/O, structural changes
+ * (splits, merges, redistributions) and the maintenance of the free page
+ * pool; they all carry their duration and show up under "B+ Tree" in
+ * JDK Mission Control.
+ *
+ * The events follow the usual JFR pattern (begin, then commit if
+ * shouldCommit), so when a recording does not enable them they cost next to
+ * nothing. Page I/O happens all the time, so by default only page reads
+ * and writes slower than their threshold are recorded, without a stack
+ * trace; the thresholds can be changed in the recording settings.
+ *
+ * Needs a JDK with the jdk.jfr API (8u262 or 11 and later).
+ *
+ */
+final class TreeEvents {
+
+    private TreeEvents() {}
+
+    @Name("ds.bplus.PageRead")
+    @Label("Page Read")
+    @Category({"B+ Tree", "I/O"})
+    @Description("Read of a tree page from the file")
+    @StackTrace(false)
+    @Threshold("10 us")
+    static class PageRead extends Event {
+        @Label("Page Index")
+        long pageIndex;
+
+        @Label("Page Type")
+        String pageType;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("ds.bplus.PageWrite")
+    @Label("Page Write")
+    @Category({"B+ Tree", "I/O"})
+    @Description("Write of a tree page to the file")
+    @StackTrace(false)
+    @Threshold("10 us")
+    static class PageWrite extends Event {
+        @Label("Page Index")
+        long pageIndex;
+
+        @Label("Page Type")
+        String pageType;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("ds.bplus.Split")
+    @Label("Node Split")
+    @Category({"B+ Tree", "Structure"})
+    @Description("A full node was split in two")
+    @Threshold("0 ns")
+    static class Split extends Event {
+        @Label("Page Index")
+        @Description("The node that was split")
+        long pageIndex;
+
+        @Label("New Page Index")
+        @Description("The node that took part of its entries")
+        long newPageIndex;
+
+        @Label("Leaf")
+        boolean leaf;
+
+        @Label("Kept Entries")
+        int keptEntries;
+
+        @Label("Moved Entries")
+        int movedEntries;
+    }
+
+    @Name("ds.bplus.Merge")
+    @Label("Node Merge")
+    @Category({"B+ Tree", "Structure"})
+    @Description("Two neighbouring nodes were merged into one")
+    @Threshold("0 ns")
+    static class Merge extends Event {
+        @Label("Page Index")
+        @Description("The node that was kept")
+        long pageIndex;
+
+        @Label("Removed Page Index")
+        @Description("The node that was emptied and freed")
+        long removedPageIndex;
+
+        @Label("Leaf")
+        boolean leaf;
+
+        @Label("Entries")
+        @Description("The entries of the merged node")
+        int entries;
+    }
+
+    @Name("ds.bplus.Redistribution")
+    @Label("Node Redistribution")
+    @Category({"B+ Tree", "Structure"})
+    @Description("Entries were moved between two neighbouring nodes")
+    @Threshold("0 ns")
+    static class Redistribution extends Event {
+        @Label("Page Index")
+        @Description("The node that received entries")
+        long pageIndex;
+
+        @Label("Sibling Page Index")
+        @Description("The node that gave entries")
+        long siblingPageIndex;
+
+        @Label("Leaf")
+        boolean leaf;
+
+        @Label("Moved Entries")
+        int movedEntries;
+    }
+
+    @Name("ds.bplus.LookupPageCommit")
+    @Label("Free Pool Commit")
+    @Category({"B+ Tree", "Free Pool"})
+    @Description("The free page pool was written to the lookup pages")
+    @Threshold("0 ns")
+    static class LookupPageCommit extends Event {
+        @Label("Free Pages")
+        int freePages;
+
+        @Label("Lookup Pages")
+        @Description("Overflow lookup pages needed for the pool")
+        int lookupPages;
+    }
+
+    @Name("ds.bplus.FileConditioning")
+    @Label("File Conditioning")
+    @Category({"B+ Tree", "Free Pool"})
+    @Description("Free pages at the end of the file were purged")
+    @Threshold("0 ns")
+    static class FileConditioning extends Event {
+        @Label("Purged Pages")
+        long purgedPages;
+
+        @Label("File Size")
+        @DataAmount
+        long fileSize;
+    }
+
+    /**
+     * Commit a split event, if it's enabled and over its threshold
+     *
+     * @param event the event (begun when the split started)
+     * @param node the node that was split
+     * @param sibling the new node
+     */
+    static void commit(Split event, TreeNode node, TreeNode sibling) {
+        event.end();
+        if(event.shouldCommit()) {
+            event.pageIndex = node.getPageIndex();
+            event.newPageIndex = sibling.getPageIndex();
+            event.leaf = node.isLeaf();
+            event.keptEntries = node.getCurrentCapacity();
+            event.movedEntries = sibling.getCurrentCapacity();
+            event.commit();
+        }
+    }
+
+    /**
+     * Commit a merge event, if it's enabled and over its threshold
+     *
+     * @param event the event (begun when the merge started)
+     * @param node the node that was kept
+     * @param removed the node that was freed
+     */
+    static void commit(Merge event, TreeNode node, TreeNode removed) {
+        event.end();
+        if(event.shouldCommit()) {
+            event.pageIndex = node.getPageIndex();
+            event.removedPageIndex = removed.getPageIndex();
+            event.leaf = node.isLeaf();
+            event.entries = node.getCurrentCapacity();
+            event.commit();
+        }
+    }
+
+    /**
+     * Commit a redistribution event, if it's enabled and over its threshold
+     *
+     * @param event the event (begun when the redistribution started)
+     * @param to the node that received entries
+     * @param from the node that gave entries
+     * @param moved the number of entries moved
+     */
+    static void commit(Redistribution event, TreeNode to, TreeNode from, int moved) {
+        event.end();
+        if(event.shouldCommit()) {
+            event.pageIndex = to.getPageIndex();
+            event.siblingPageIndex = from.getPageIndex();
+            event.leaf = to.isLeaf();
+            event.movedEntries = moved;
+            event.commit();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ds.bplus.bptree;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
 
@@ -14,6 +15,7 @@ import java.util.LinkedList;
 class TreeInternalNode extends TreeNode {
 
     private final LinkedList<Long> pointerArray;  // the pointer array
+    private final LinkedList<Long> countArray;    // entries under each pointer
 
     /**
      * Create an internal node
@@ -24,6 +26,7 @@ class TreeInternalNode extends TreeNode {
     TreeInternalNode(TreeNodeType nodeType, long pageIndex) {
         super(nodeType, pageIndex);
         pointerArray = new LinkedList<>();
+        countArray = new LinkedList<>();
     }
 
     void removePointerAt(int index)
@@ -53,6 +56,152 @@ class TreeInternalNode extends TreeNode {
     void pushToPointerArray(long val)
         {pointerArray.push(val);}
 
+    int getPointerIndex(long pageIndex)
+        {return(pointerArray.indexOf(pageIndex));}
+
+    void removeCountAt(int index)
+        {countArray.remove(index);}
+
+    long getCountAt(int index)
+        {return(countArray.get(index));}
+
+    long popCount()
+        {return(countArray.pop());}
+
+    long removeLastCount()
+        {return(countArray.removeLast());}
+
+    void addCountAt(int index, long val)
+        {countArray.add(index, val);}
+
+    void addCountLast(long val)
+        {countArray.addLast(val);}
+
+    void setCountAt(int index, long val)
+        {countArray.set(index, val);}
+
+    void pushToCountArray(long val)
+        {countArray.push(val);}
+
+    /**
+     * Return the number of entries in the subtree rooted at this node,
+     * that is the sum of the counts kept for each child.
+     *
+     * @return the subtree entry count
+     */
+    @Override
+    long getSubtreeCount() {
+        long cnt = 0;
+        for(long c : countArray)
+            {cnt += c;}
+        return(cnt);
+    }
+
+    /**
+     * Internal nodes hold separators of variable length, so under key
+     * compression the node is full when the worst case separator (one
+     * that shares only the guaranteed prefix) no longer fits in the page.
+     *
+     * @param conf configuration to deduce which degree to use
+     * @param keyPrefix the guaranteed shared key prefix length (in bytes)
+     * @return true is the node is full false if it's not.
+     */
+    @Override
+    boolean isFull(BPlusConfiguration conf, int keyPrefix) {
+        if(!conf.isKeyCompressionEnabled())
+            {return(super.isFull(conf, keyPrefix));}
+        keyPrefix = Math.min(keyPrefix,
+                Math.min(conf.getKeySize(), BPlusConfiguration.MAX_KEY_PREFIX));
+        int worst = conf.getSeparatorLengthSize() +
+                (conf.getKeySize() - keyPrefix) + 2 * BPlusConfiguration.POINTER_SIZE;
+        return(getEncodedSize(conf, keyPrefix) + worst > conf.getPageSize());
+    }
+
+    /**
+     * Check if the node can be written in a single page; a node might
+     * temporarily outgrow it when a separator is replaced by a longer one
+     * while deleting, in which case it has to be split.
+     *
+     * @param conf B+ Tree configuration
+     * @return true if the node fits in a page, false otherwise
+     */
+    boolean fitsInPage(BPlusConfiguration conf)
+        {return(getEncodedSize(conf) <= conf.getPageSize());}
+
+    /**
+     * Return the size this node takes when encoded
+     *
+     * @param conf B+ Tree configuration
+     * @return the encoded size (in bytes)
+     */
+    int getEncodedSize(BPlusConfiguration conf)
+        {return(getEncodedSize(conf, getEncodingKeyPrefix()));}
+
+    /**
+     * The prefix actually stored in the page; we never store a prefix longer
+     * than the longest separator, as its zero bytes are not written anyway.
+     *
+     * @return the stored prefix length (in bytes)
+     */
+    private int getEncodingKeyPrefix() {
+        int maxLen = 0;
+        for(byte[] k : keyArray)
+            {maxLen = Math.max(maxLen, BinaryKeys.significantLength(k));}
+        return(Math.min(getKeyPrefixLength(), maxLen));
+    }
+
+    /**
+     * Size of the separator at index when stored after a prefix
+     *
+     * @param conf B+ Tree configuration
+     * @param index index of the separator
+     * @param keyPrefix the prefix length
+     * @return the stored size (in bytes)
+     */
+    private int getEntrySize(BPlusConfiguration conf, int index, int keyPrefix) {
+        return(conf.getSeparatorLengthSize() + 2 * BPlusConfiguration.POINTER_SIZE +
+                Math.max(0, BinaryKeys.significantLength(getKeyAt(index)) - keyPrefix));
+    }
+
+    /**
+     * Calculate the encoded size of the node if it were to be written
+     * using the provided prefix length.
+     *
+     * @param conf B+ Tree configuration
+     * @param keyPrefix the prefix length
+     * @return the encoded size (in bytes)
+     */
+    int getEncodedSize(BPlusConfiguration conf, int keyPrefix) {
+        int size = conf.getInternalNodeHeaderSize() + keyPrefix +
+                2 * BPlusConfiguration.POINTER_SIZE;
+        for(int i = 0; i < getCurrentCapacity(); i++)
+            {size += getEntrySize(conf, i, keyPrefix);}
+        return(size);
+    }
+
+    /**
+     * Find the number of separators that go to the left node on split;
+     * we split on the middle byte (as separators differ in length) but
+     * make sure both nodes get at least the min capacity.
+     *
+     * @param conf B+ Tree configuration
+     * @return the number of separators of the left node
+     */
+    int getSplitIndex(BPlusConfiguration conf) {
+        int cap = getCurrentCapacity();
+        int min = conf.getMinInternalNodeCapacity();
+        if(cap < 2*min + 1)
+            {return((cap-1)/2);}
+        int prefix = getEncodingKeyPrefix();
+        int total = 0;
+        for(int i = 0; i < cap; i++)
+            {total += getEntrySize(conf, i, prefix);}
+        int split = 0, acc = 0;
+        while(split < cap && 2*(acc + getEntrySize(conf, split, prefix)) <= total)
+            {acc += getEntrySize(conf, split++, prefix);}
+        return(Math.max(min, Math.min(split, cap - 1 - min)));
+    }
+
 
     /**
      *
@@ -60,12 +209,16 @@ class TreeInternalNode extends TreeNode {
      *
      *  -- node type -- (2 bytes)
      *  -- current capacity -- (4 bytes)
+     *  -- shared key prefix length -- (1 byte)
+     *  -- shared key prefix -- (prefix length bytes)
      *
-     *  -- Key -- (8 bytes max size)
+     *  -- Key length -- (1 byte, 2 if key size > 255)
+     *  -- Key -- (key length; the suffix after the prefix without trailing zeros)
      *
      *  -- Pointers (8 bytes max size + 1)
+     *  -- Counts (8 bytes max size + 1, entries under each pointer)
      *
-     *  we go like: k1 -- p0 -- k2 -- p1 ... kn -- pn+1
+     *  we go like: k1 -- p0 -- c0 -- k2 -- p1 -- c1 ... kn -- pn+1 -- cn+1
      *
      * @param r pointer to *opened* B+ tree file
      * @throws IOException is thrown when an I/O exception is captured.
@@ -77,30 +230,40 @@ class TreeInternalNode extends TreeNode {
 
         // update root index in the file
         if(this.isRoot()) {
-            r.seek(conf.getHeaderSize()-8);
+            r.seek(conf.getHeaderSize()-16L);
             r.writeLong(getPageIndex());
         }
 
-        // account for the header page as well.
-        r.seek(getPageIndex());
+        ByteBuffer page = allocatePage(conf);
 
         // write the node type
-        r.writeShort(getPageType());
+        page.putShort(getPageType());
 
         // write current capacity
-        r.writeInt(getCurrentCapacity());
+        page.putInt(getCurrentCapacity());
+
+        // write the prefix that all keys share only once
+        int prefix = getEncodingKeyPrefix();
+        putKeyPrefix(page, prefix);
 
         // now write Key/Pointer pairs
         for(int i = 0; i < getCurrentCapacity(); i++) {
-            r.writeLong(getKeyAt(i));       // Key
-            r.writeLong(getPointerAt(i));   // Pointer
+            byte[] key = getKeyAt(i);
+            int len = Math.max(0, BinaryKeys.significantLength(key) - prefix);
+            if(conf.getSeparatorLengthSize() == 1)
+                {page.put((byte) len);}         // Key length
+            else
+                {page.putShort((short) len);}
+            page.put(key, prefix, len);         // Key
+            page.putLong(getPointerAt(i));      // Pointer
+            page.putLong(getCountAt(i));        // Count
         }
         // final pointer.
-        r.writeLong(getPointerAt(getCurrentCapacity()));
+        page.putLong(getPointerAt(getCurrentCapacity()));
+        page.putLong(getCountAt(getCurrentCapacity()));
 
-        // annoying correction
-        if(r.length() < getPageIndex()+conf.getPageSize())
-            {r.setLength(getPageIndex()+conf.getPageSize());}
+        // commit the page in one go
+        commitPage(r, page, bPerf);
 
         bPerf.incrementTotalInternalNodeWrites();
     }
@@ -115,11 +278,14 @@ class TreeInternalNode extends TreeNode {
                 getCurrentCapacity());
 
         System.out.println("\nPrinting stored Keys:");
-        for(Long i : keyArray)
-            {System.out.print("\t" + i.toString() + " ");}
+        for(byte[] k : keyArray)
+            {System.out.print("\t" + BinaryKeys.toHexString(k) + " ");}
         System.out.println("\nPrinting stored Pointers");
         for(Long i : pointerArray)
             {System.out.print(" " + i.toString() + " ");}
+        System.out.println("\nPrinting stored Counts");
+        for(Long i : countArray)
+            {System.out.print(" " + i.toString() + " ");}
         System.out.println();
     }
 
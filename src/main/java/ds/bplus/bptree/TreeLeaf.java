@@ -4,7 +4,7 @@ import ds.bplus.util.InvalidBTreeStateException;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
 /**
@@ -17,6 +17,7 @@ class TreeLeaf extends TreeNode {
     private long prevPagePointer;           // pointer to prev leaf in the list
     private LinkedList<String> valueList;   // satellite data list
     private LinkedList<Long> overflowList;  // overflow pointer list
+    private LinkedList<LinkedList<String>> inlineList; // inline duplicates list
 
     /**
      * Constructor for our Internal node
@@ -36,6 +37,7 @@ class TreeLeaf extends TreeNode {
         this.prevPagePointer = prevPagePointer;
         this.overflowList = new LinkedList<>();
         this.valueList = new LinkedList<>();
+        this.inlineList = new LinkedList<>();
     }
 
     void addToOverflowList(int index, long value)
@@ -65,12 +67,68 @@ class TreeLeaf extends TreeNode {
     long getLastOverflowPointer()
         {return(overflowList.getLast());}
 
+    void addToInlineList(int index, LinkedList<String> values)
+        {inlineList.add(index, values);}
+
+    void addLastToInlineList(LinkedList<String> values)
+        {inlineList.addLast(values);}
+
+    LinkedList<String> getInlineValuesAt(int index)
+        {return(inlineList.get(index));}
+
+    void pushToInlineList(LinkedList<String> values)
+        {inlineList.push(values);}
+
+    LinkedList<String> popInlineValues()
+        {return(inlineList.pop());}
+
+    LinkedList<String> removeLastInlineValues()
+        {return(inlineList.removeLast());}
+
+    /**
+     * Return the total number of duplicates kept inline in this leaf
+     *
+     * @return the number of inline values
+     */
+    int getInlineValueCount() {
+        int cnt = 0;
+        for(LinkedList<String> l : inlineList)
+            {cnt += l.size();}
+        return(cnt);
+    }
+
+    /**
+     * Return the size this leaf takes when encoded
+     *
+     * @param conf B+ Tree configuration
+     * @return the encoded size (in bytes)
+     */
+    int getEncodedSize(BPlusConfiguration conf) {
+        int prefix = getKeyPrefixLength();
+        return(conf.getLeafNodeHeaderSize() + prefix +
+                getCurrentCapacity() * (conf.getKeySize() - prefix +
+                        8 + conf.getEntrySize()) +
+                getInlineValueCount() * conf.getEntrySize());
+    }
+
+    /**
+     * Check if the leaf, including its inline duplicates, fits in a page
+     *
+     * @param conf B+ Tree configuration
+     * @return true if it fits, false otherwise
+     */
+    boolean fitsInPage(BPlusConfiguration conf)
+        {return(getEncodedSize(conf) <= conf.getPageSize());}
+
     void addToValueList(int index, String value)
         {valueList.add(index, value);}
 
     String getValueAt(int index)
         {return valueList.get(index);}
 
+    String setValueAt(int index, String value)
+        {return valueList.set(index, value);}
+
     void pushToValueList(String value)
         {valueList.push(value);}
 
@@ -97,6 +155,7 @@ class TreeLeaf extends TreeNode {
             throws InvalidBTreeStateException {
         keyArray.remove(index);
         overflowList.remove(index);
+        inlineList.remove(index);
         String s = valueList.remove(index);
         decrementCapacity(conf);
         return(s);
@@ -109,7 +168,14 @@ class TreeLeaf extends TreeNode {
      *  -- node type -- (2 bytes)
      *  -- next pointer -- (8 bytes)
      *  -- prev pointer -- (8 bytes)
-     *  -- key/value pairs -- (max size * (key size + satellite size))
+     *  -- current capacity -- (4 bytes)
+     *  -- key prefix -- (1 byte length + prefix bytes)
+     *  -- key/overflow/value tuples -- (max size * (key size + 8 + satellite size))
+     *  -- inline duplicate values -- (satellite size each)
+     *
+     *  A key with inline duplicates has no overflow pages; instead of the
+     *  pointer we store -(n + 1) where n is the number of its inline values,
+     *  which follow all the tuples in key order.
      *
      * @param r pointer to *opened* B+ tree file
      * @param conf configuration parameter
@@ -126,31 +192,40 @@ class TreeLeaf extends TreeNode {
             r.writeLong(getPageIndex());
         }
 
-        // account for the header page as well.
-        r.seek(getPageIndex());
+        ByteBuffer page = allocatePage(conf);
 
         // now write the node type
-        r.writeShort(getPageType());
+        page.putShort(getPageType());
 
         // write the next pointer
-        r.writeLong(nextPagePointer);
+        page.putLong(nextPagePointer);
 
         // write the prev pointer
-        r.writeLong(prevPagePointer);
+        page.putLong(prevPagePointer);
 
         // then write the current capacity
-        r.writeInt(getCurrentCapacity());
+        page.putInt(getCurrentCapacity());
+
+        // write the prefix that all keys share only once
+        int prefix = getKeyPrefixLength();
+        putKeyPrefix(page, prefix);
 
         // now write the Key/Value pairs
         for(int i = 0; i < getCurrentCapacity(); i++) {
-            r.writeLong(getKeyAt(i));
-            r.writeLong(getOverflowPointerAt(i));
-            r.write(valueList.get(i).getBytes(StandardCharsets.UTF_8));
+            putKeySuffix(page, i, prefix);
+            int inline = inlineList.get(i).size();
+            page.putLong(inline > 0 ? -(inline + 1) : getOverflowPointerAt(i));
+            putValue(page, valueList.get(i), conf);
+        }
+
+        // and the inline duplicates, if any
+        for(LinkedList<String> l : inlineList) {
+            for(String v : l)
+                {putValue(page, v, conf);}
         }
 
-        // annoying correction
-        if(r.length() < getPageIndex()+conf.getPageSize())
-            {r.setLength(getPageIndex()+conf.getPageSize());}
+        // commit the page in one go
+        commitPage(r, page, bPerf);
 
         bPerf.incrementTotalLeafNodeWrites();
     }
@@ -164,12 +239,13 @@ class TreeLeaf extends TreeNode {
         System.out.println("Next pointer (index): " + getNextPagePointer());
         System.out.println("Prev pointer (index): " + getPrevPagePointer());
 
-        System.out.println("\nPrinting stored (Key, Value, ovf) tuples:");
+        System.out.println("\nPrinting stored (Key, Value, ovf, inline) tuples:");
         for(int i = 0; i < keyArray.size(); i++) {
             System.out.print(" (" +
-                    keyArray.get(i).toString() + ", " +
+                    BinaryKeys.toHexString(keyArray.get(i)) + ", " +
                     valueList.get(i) + ", " +
-                    overflowList.get(i) + ") ");
+                    overflowList.get(i) + ", " +
+                    inlineList.get(i).size() + ") ");
         }
         System.out.println("\n");
     }
@@ -2,11 +2,14 @@ package ds.bplus.bptree;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
 
 @SuppressWarnings("unused")
 class TreeLookupOverflowNode extends TreeNode {
 
     private long next; // next pointer
+    final LinkedList<Long> indexArray; // free page indexes stored in this page
 
     /**
      * Constructor which takes into the node type as well as the
@@ -17,8 +20,27 @@ class TreeLookupOverflowNode extends TreeNode {
     TreeLookupOverflowNode(long pageIndex, long nextPointer) {
         super(TreeNodeType.TREE_LOOKUP_OVERFLOW, pageIndex);
         this.next = nextPointer;
+        this.indexArray = new LinkedList<>();
     }
 
+    /**
+     * Add a free page index at the specified position
+     *
+     * @param index position to add the page index
+     * @param pageIndex the free page index
+     */
+    void addToIndexArrayAt(int index, long pageIndex)
+        {indexArray.add(index, pageIndex);}
+
+    /**
+     * Get the free page index at the specified position
+     *
+     * @param index position of the page index
+     * @return the free page index
+     */
+    long getIndexAt(int index)
+        {return(indexArray.get(index));}
+
     /**
      * Write a lookup page overflow to the page index; the node should
      * have the following structure:
@@ -40,23 +62,24 @@ class TreeLookupOverflowNode extends TreeNode {
                           BPlusTreePerformanceCounter bPerf)
             throws IOException {
 
-        // account for the header page as well
-        r.seek(getPageIndex());
+        ByteBuffer page = allocatePage(conf);
 
         // write the node type
-        r.writeShort(getPageType());
+        page.putShort(getPageType());
 
         // write the next pointer
-        r.writeLong(next);
+        page.putLong(next);
 
         // write current capacity
-        r.writeInt(getCurrentCapacity());
+        page.putInt(getCurrentCapacity());
 
         // now write the index values
         for (int i = 0; i < getCurrentCapacity(); i++) {
-            r.writeLong(getKeyAt(i));
+            page.putLong(getIndexAt(i));
         }
 
+        // commit the page in one go
+        commitPage(r, page, bPerf);
     }
 
 
@@ -85,8 +108,8 @@ class TreeLookupOverflowNode extends TreeNode {
         System.out.println("Current node capacity is: " + getCurrentCapacity());
 
         System.out.println("\nPrinting tuples: \n");
-        for (Long key : keyArray) {
-            System.out.print(key);
+        for (Long pindex : indexArray) {
+            System.out.print(pindex + " ");
         }
 
         System.out.println("\n");
@@ -4,6 +4,9 @@ import ds.bplus.util.InvalidBTreeStateException;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.InvalidPropertiesFormatException;
 import java.util.LinkedList;
 
@@ -15,7 +18,7 @@ import java.util.LinkedList;
  */
 @SuppressWarnings("unused")
 abstract class TreeNode {
-    final LinkedList<Long> keyArray;  // key array
+    final LinkedList<byte[]> keyArray; // key array (raw key bytes)
     private TreeNodeType nodeType;    // actual node type
     private long pageIndex;           // node page index
     private int currentCapacity;      // current capacity
@@ -42,14 +45,25 @@ abstract class TreeNode {
      *
      * @return true is the node is full false if it's not.
      */
-    boolean isFull(BPlusConfiguration conf) {
+    boolean isFull(BPlusConfiguration conf)
+        {return(isFull(conf, 0));}
+
+    /**
+     * Check if the node is full (and needs splitting) given that all the keys
+     * that can ever end up in it share a prefix of <code>keyPrefix</code> bytes.
+     *
+     * @param conf configuration to deduce which degree to use
+     * @param keyPrefix the guaranteed shared key prefix length (in bytes)
+     * @return true is the node is full false if it's not.
+     */
+    boolean isFull(BPlusConfiguration conf, int keyPrefix) {
         if(isLeaf()) {
             return(isOverflow() ?
                     (conf.getMaxOverflowNodeCapacity() == currentCapacity) :
-                    (conf.getMaxLeafNodeCapacity() == currentCapacity));}
+                    (conf.getLeafHighWaterMark(keyPrefix) <= currentCapacity));}
         else
             // internal
-            {return(conf.getMaxInternalNodeCapacity() == currentCapacity);}
+            {return(conf.getMaxInternalNodeCapacity() <= currentCapacity);}
     }
 
     /**
@@ -68,7 +82,7 @@ abstract class TreeNode {
                 {return (isEmpty());}
             // otherwise return based on degree
             else
-                {return (conf.getMinLeafNodeCapacity() >= currentCapacity);}
+                {return (conf.getLeafLowWaterMark() >= currentCapacity);}
         } else // internal
         {
             return (conf.getMinInternalNodeCapacity() >= currentCapacity);
@@ -128,10 +142,10 @@ abstract class TreeNode {
         if(isRoot()) {
             if(currentCapacity < 0) {
                 throw new InvalidBTreeStateException("Cannot have less than zero elements");
-            } else if(isLeaf() && currentCapacity > conf.getMaxLeafNodeCapacity()) {
+            } else if(isLeaf() && currentCapacity > conf.getLeafNodeCapacityLimit()) {
                 throw new InvalidBTreeStateException("Exceeded leaf node " +
                         "allowed capacity at root");
-            } else if(isInternalNode() && currentCapacity > conf.getMaxInternalNodeCapacity()) {
+            } else if(isInternalNode() && currentCapacity > conf.getInternalNodeCapacityLimit()) {
                 throw new InvalidBTreeStateException("Exceeded internal node " +
                         "allowed capacity at root");
             }
@@ -150,20 +164,20 @@ abstract class TreeNode {
                     throw new InvalidBTreeStateException("Cannot have less than " +
                             0 + " elements in a overflow node when deleting it");
                 }
-                else if(currentCapacity > conf.getMaxOverflowNodeCapacity()) {
+                else if(currentCapacity > conf.getOverflowNodeCapacityLimit()) {
                     throw new InvalidBTreeStateException("Exceeded overflow node " +
                             "allowed capacity (node)");
                 }
             }
             else if(isLeaf()) {
-                if(beingDeleted && currentCapacity < 0) {
-                    throw new InvalidBTreeStateException("Cannot have less than " +
-                            0 + " elements in a leaf node when deleting it");
-                } else if(!beingDeleted && currentCapacity < conf.getMinLeafNodeCapacity()) {
+                // no lower bound apart from zero; the rightmost leaf is split
+                // unevenly on appends, so it can hold less than the min capacity
+                // until more keys arrive (deletes merge it as any other leaf).
+                if(currentCapacity < 0) {
                     throw new InvalidBTreeStateException("Cannot have less than " +
-                            conf.getMinLeafNodeCapacity() + " elements in a leaf node");
+                            0 + " elements in a leaf node");
                 }
-                else if(currentCapacity > conf.getMaxLeafNodeCapacity()) {
+                else if(currentCapacity > conf.getLeafNodeCapacityLimit()) {
                     throw new InvalidBTreeStateException("Exceeded leaf node " +
                             "allowed capacity (node)");
                 }
@@ -177,7 +191,7 @@ abstract class TreeNode {
                             conf.getMinInternalNodeCapacity() +
                             " elements in an internal node");
                 }
-                else if(currentCapacity > conf.getMaxInternalNodeCapacity()) {
+                else if(currentCapacity > conf.getInternalNodeCapacityLimit()) {
                     throw new InvalidBTreeStateException("Exceeded internal node " +
                             "allowed capacity (node)");
                 }
@@ -296,7 +310,7 @@ abstract class TreeNode {
      * @param index the position to get the key
      * @return the key at position
      */
-    long getKeyAt(int index)
+    byte[] getKeyAt(int index)
         {return(keyArray.get(index));}
 
     /**
@@ -321,7 +335,7 @@ abstract class TreeNode {
      * @param index index to set the key
      * @param key key to set in position
      */
-    void setKeyArrayAt(int index, long key)
+    void setKeyArrayAt(int index, byte[] key)
         {keyArray.set(index, key);}
 
     /**
@@ -331,7 +345,7 @@ abstract class TreeNode {
      * @param index index to shift keys and add
      * @param key key to add in position
      */
-    void addToKeyArrayAt(int index, long key)
+    void addToKeyArrayAt(int index, byte[] key)
         {keyArray.add(index, key);}
 
     /**
@@ -339,7 +353,7 @@ abstract class TreeNode {
      *
      * @param key key to push
      */
-    void pushToKeyArray(long key)
+    void pushToKeyArray(byte[] key)
         {keyArray.push(key);}
 
     /**
@@ -347,7 +361,7 @@ abstract class TreeNode {
      *
      * @param key key to add
      */
-    void addLastToKeyArray(long key)
+    void addLastToKeyArray(byte[] key)
         {keyArray.addLast(key);}
 
     /**
@@ -355,7 +369,7 @@ abstract class TreeNode {
      *
      * @return return the last key
      */
-    long getLastKey()
+    byte[] getLastKey()
         {return keyArray.getLast();}
 
     /**
@@ -363,7 +377,7 @@ abstract class TreeNode {
      *
      * @return return the first key value
      */
-    long getFirstKey()
+    byte[] getFirstKey()
         {return keyArray.getFirst();}
 
     /**
@@ -371,7 +385,7 @@ abstract class TreeNode {
      *
      * @return key that is in the head of the array
      */
-    long popKey()
+    byte[] popKey()
         {return keyArray.pop();}
 
     /**
@@ -379,7 +393,7 @@ abstract class TreeNode {
      *
      * @return key that is in the last place of the array
      */
-    long removeLastKey()
+    byte[] removeLastKey()
         {return keyArray.removeLast();}
 
     /**
@@ -388,7 +402,7 @@ abstract class TreeNode {
      * @param index index that points where to remvoe the key
      * @return removed key
      */
-    long removeKeyAt(int index)
+    byte[] removeKeyAt(int index)
         {return(keyArray.remove(index));}
 
     /**
@@ -428,6 +442,114 @@ abstract class TreeNode {
         }
     }
 
+    /**
+     * Allocate a zeroed page buffer to encode the node into.
+     *
+     * @param conf B+ Tree configuration
+     * @return a page sized buffer positioned at the start of the page
+     */
+    static ByteBuffer allocatePage(BPlusConfiguration conf)
+        {return(ByteBuffer.allocate(conf.getPageSize()));}
+
+    /**
+     * Write an (already conditioned) value into the page; exactly entry size
+     * bytes are written, so multi-byte characters can never shift the layout.
+     *
+     * @param page page buffer to write into
+     * @param value the value to write
+     * @param conf B+ Tree configuration
+     */
+    static void putValue(ByteBuffer page, String value, BPlusConfiguration conf) {
+        byte[] b = value.getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(b.length, conf.getEntrySize());
+        page.put(b, 0, len);
+        for(int i = len; i < conf.getEntrySize(); i++)
+            {page.put((byte) ' ');}
+    }
+
+    /**
+     * Return the number of entries in the subtree rooted at this node;
+     * for a leaf that's just the keys it holds.
+     *
+     * @return the subtree entry count
+     */
+    long getSubtreeCount()
+        {return(currentCapacity);}
+
+    /**
+     * Calculate the length of the prefix that all the keys of the node
+     * share; this is stored only once per page.
+     *
+     * @return the shared prefix length (in bytes)
+     */
+    int getKeyPrefixLength() {
+        if(keyArray.isEmpty())
+            {return(0);}
+        byte[] first = keyArray.getFirst();
+        int prefix = Math.min(first.length, BPlusConfiguration.MAX_KEY_PREFIX);
+        for(byte[] k : keyArray) {
+            if(prefix == 0)
+                {break;}
+            prefix = Math.min(prefix, BinaryKeys.commonPrefixLength(first, k));
+        }
+        return(prefix);
+    }
+
+    /**
+     * Write the shared key prefix to the page; that is its length
+     * (one byte) followed by the prefix bytes.
+     *
+     * @param page page buffer to write into
+     * @param prefix the shared prefix length
+     */
+    void putKeyPrefix(ByteBuffer page, int prefix) {
+        page.put((byte) prefix);
+        if(prefix > 0)
+            {page.put(keyArray.getFirst(), 0, prefix);}
+    }
+
+    /**
+     * Write the key at index without its shared prefix
+     *
+     * @param page page buffer to write into
+     * @param index index of the key
+     * @param prefix the shared prefix length
+     */
+    void putKeySuffix(ByteBuffer page, int index, int prefix) {
+        byte[] key = getKeyAt(index);
+        page.put(key, prefix, key.length - prefix);
+    }
+
+    /**
+     * Commit the encoded page to the node slot in the file with a single write;
+     * as we always write the full page this also extends the file if needed.
+     *
+     * @param r an *already* open pointer which points to our B+ Tree file
+     * @param page the encoded page
+     * @param bPerf performance counter class (for the write latency)
+     * @throws IOException is thrown when an I/O operation fails
+     */
+    void commitPage(RandomAccessFile r, ByteBuffer page,
+                    BPlusTreePerformanceCounter bPerf) throws IOException {
+        TreeEvents.PageWrite event = new TreeEvents.PageWrite();
+        event.begin();
+        long start = System.nanoTime();
+        // positional write, so that pages can be written from many threads
+        page.rewind();
+        FileChannel ch = r.getChannel();
+        while(page.hasRemaining())
+            {ch.write(page, getPageIndex() + page.position());}
+        bPerf.recordPageWriteLatency(System.nanoTime() - start);
+        bPerf.tracePageAccess(getPageIndex(), getNodeType().ordinal() + 1, true);
+        event.end();
+        if(event.shouldCommit()) {
+            event.pageIndex = getPageIndex();
+            event.pageType = getNodeType().name();
+            event.bytes = page.capacity();
+            event.commit();
+        }
+    }
+
     /**
      * Abstract method that all classes must implement that writes
      * each node type to a page slot.
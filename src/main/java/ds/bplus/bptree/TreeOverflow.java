@@ -2,6 +2,7 @@ package ds.bplus.bptree;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 
@@ -10,14 +11,27 @@ import java.util.LinkedList;
  *
  * Although it is derived from the TreeNode class we *don't* use
  * the key array at all (this could be improved but... well...)
+ *
+ * The overflow pages of a key form its posting list; the first (head)
+ * page, which is the one the leaf points to, also keeps a pointer to the
+ * last (tail) page and the total number of values in the list so appends
+ * and removals only touch the head and the tail.
  */
 @SuppressWarnings("unused")
 class TreeOverflow extends TreeNode {
 
 
+    // offset of the next page pointer in the page (see writeNode)
+    static final int NEXT_POINTER_OFFSET = 2;
+    // offset of the total values in the page (see writeNode)
+    static final int TOTAL_VALUES_OFFSET = 30;
+
     private final LinkedList<String> valueList;
     private long nextPagePointer;
     private long prevPagePointer;
+    private long tailPagePointer;   // last page of the list (head only)
+    private long totalValues;       // values in the list (head only)
+    private boolean compressed;     // values stored without their padding
 
     /**
      * Constructor which takes into the node type as well as the
@@ -33,11 +47,17 @@ class TreeOverflow extends TreeNode {
         valueList = new LinkedList<>();
         this.nextPagePointer = nextPagePointer;
         this.prevPagePointer = prevPagePointer;
+        this.tailPagePointer = pageIndex;
+        this.totalValues = 0;
+        this.compressed = false;
     }
 
     void pushToValueList(String value)
         {valueList.push(value);}
 
+    void addLastToValueList(String value)
+        {valueList.addLast(value);}
+
     String removeLastValue()
         {return(valueList.removeLast());}
 
@@ -53,12 +73,75 @@ class TreeOverflow extends TreeNode {
     void setNextPagePointer(long next)
         {nextPagePointer = next;}
 
-    private long getPrevPagePointer()
+    long getPrevPagePointer()
         {return prevPagePointer;}
 
     void setPrevPagePointer(long prevPagePointer)
         {this.prevPagePointer = prevPagePointer;}
 
+    long getTailPagePointer()
+        {return(tailPagePointer);}
+
+    void setTailPagePointer(long tailPagePointer)
+        {this.tailPagePointer = tailPagePointer;}
+
+    long getTotalValues()
+        {return(totalValues);}
+
+    void setTotalValues(long totalValues)
+        {this.totalValues = totalValues;}
+
+    boolean isCompressed()
+        {return(compressed);}
+
+    void setCompressed(boolean compressed)
+        {this.compressed = compressed;}
+
+    /**
+     * Check if the value can be appended to this page; compressed
+     * pages are filled based on the actual size of their values.
+     *
+     * @param value the (conditioned) value to append
+     * @param conf B+ Tree configuration
+     * @return true if the value fits, false otherwise
+     */
+    boolean canAppend(String value, BPlusConfiguration conf) {
+        if(!compressed)
+            {return(!isFull(conf));}
+        int size = conf.getOverflowHeaderSize();
+        for(String v : valueList)
+            {size += getCompressedSize(v, conf);}
+        return(size + getCompressedSize(value, conf) <= conf.getPageSize() &&
+                getCurrentCapacity() < conf.getOverflowNodeCapacityLimit());
+    }
+
+    /**
+     * Return the value bytes without the padding (trailing spaces)
+     *
+     * @param value the value
+     * @param conf B+ Tree configuration
+     * @return the value bytes to store
+     */
+    private static byte[] getCompressedBytes(String value, BPlusConfiguration conf) {
+        byte[] b = value.getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(b.length, conf.getEntrySize());
+        while(len > 0 && b[len - 1] == ' ')
+            {len--;}
+        byte[] res = new byte[len];
+        System.arraycopy(b, 0, res, 0, len);
+        return(res);
+    }
+
+    /**
+     * Size of the compressed value (length field plus its bytes)
+     *
+     * @param value the value
+     * @param conf B+ Tree configuration
+     * @return the stored size (in bytes)
+     */
+    private static int getCompressedSize(String value, BPlusConfiguration conf)
+        {return(conf.getValueLengthSize() + getCompressedBytes(value, conf).length);}
+
 
     /**
      *
@@ -67,8 +150,15 @@ class TreeOverflow extends TreeNode {
      *  -- node type -- (2 bytes)
      *  -- next pointer -- (8 bytes)
      *  -- prev pointer -- (8 bytes)
+     *  -- current capacity -- (4 bytes)
+     *  -- tail pointer -- (8 bytes, valid in head page)
+     *  -- total values -- (8 bytes, valid in head page)
+     *  -- compressed flag -- (1 byte)
      *  -- values -- (max size * satellite size)
      *
+     *  compressed pages store each value as its length (1 byte, 2 if the
+     *  satellite size > 255) followed by the value without its padding.
+     *
      * @param r pointer to *opened* B+ tree file
      * @throws IOException is thrown when an I/O operation fails
      */
@@ -76,28 +166,41 @@ class TreeOverflow extends TreeNode {
     public void writeNode(RandomAccessFile r, BPlusConfiguration conf,
                           BPlusTreePerformanceCounter bPerf)
             throws IOException {
-        // account for the header page as well.
-        r.seek(getPageIndex());
+        ByteBuffer page = allocatePage(conf);
 
         // now write the node type
-        r.writeShort(getPageType());
+        page.putShort(getPageType());
 
         // write the next pointer
-        r.writeLong(nextPagePointer);
+        page.putLong(nextPagePointer);
 
         // write the prev pointer
-        r.writeLong(prevPagePointer);
+        page.putLong(prevPagePointer);
 
         // then write the current capacity
-        r.writeInt(getCurrentCapacity());
+        page.putInt(getCurrentCapacity());
+
+        // write the posting list info
+        page.putLong(tailPagePointer);
+        page.putLong(totalValues);
+        page.put((byte) (compressed ? 1 : 0));
 
         // now write the values
-        for(int i = 0; i < getCurrentCapacity(); i++)
-            {r.write(valueList.get(i).getBytes(StandardCharsets.UTF_8));}
+        for(int i = 0; i < getCurrentCapacity(); i++) {
+            if(compressed) {
+                byte[] b = getCompressedBytes(valueList.get(i), conf);
+                if(conf.getValueLengthSize() == 1)
+                    {page.put((byte) b.length);}
+                else
+                    {page.putShort((short) b.length);}
+                page.put(b);
+            }
+            else
+                {putValue(page, valueList.get(i), conf);}
+        }
 
-        // annoying correction
-        if(r.length() < getPageIndex()+conf.getPageSize())
-            {r.setLength(getPageIndex()+conf.getPageSize());}
+        // commit the page in one go
+        commitPage(r, page, bPerf);
 
         bPerf.incrementTotalOverflowNodeWrites();
     }
@@ -110,6 +213,8 @@ class TreeOverflow extends TreeNode {
 
         System.out.println("Next pointer (index): " + getNextPagePointer());
         System.out.println("Prev pointer (index): " + getPrevPagePointer());
+        System.out.println("Tail pointer (index): " + getTailPagePointer());
+        System.out.println("Total values: " + getTotalValues());
 
         System.out.println("\nPrinting stored values:");
         for(int i = 0; i < keyArray.size(); i++) {
@@ -0,0 +1,277 @@
+package ds.bplus.bptree;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * Report of a full pass over the tree (see BPlusTree.analyze): the shape
+ * of the tree, how full its pages are, the overflow chains of the
+ * duplicate keys and how much the leaf order and the file have drifted
+ * from a freshly built tree; these tell when a compaction or a rebuild
+ * (i.e. a bulk load into a new file) is worth it.
+ *
+ * Fill factors are the encoded size of a page over the page size (so
+ * they account for key compression and inline duplicates) and are bucketed
+ * in steps of 10%; the last bucket also holds the pages that are full.
+ *
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class TreeReport {
+
+    public static final int FILL_BUCKETS = 10;
+
+    private final int height;
+    private final int pageSize;
+    private final long[] nodesPerLevel;
+    private final long[] leafFill = new long[FILL_BUCKETS];
+    private final long[] internalFill = new long[FILL_BUCKETS];
+    private final TreeMap<Integer, Long> overflowChains = new TreeMap<>();
+    private long overflowPages = 0;
+    private long keys = 0;
+    private long values = 0;
+    private long leafBytes = 0;
+    private long leafLinks = 0;
+    private long nonSequentialLinks = 0;
+    private long backwardLinks = 0;
+
+    // filled in by the tree once the pass is done
+    private int entryBytes;
+    private long totalTreePages;
+    private long fileSize;
+    private int freePoolSize;
+    private int lookupPoolSize;
+    private int pendingCompactions;
+    private long elapsedNanos;
+
+    /**
+     * Create an empty report
+     *
+     * @param height height of the tree
+     * @param pageSize page size of the tree
+     */
+    TreeReport(int height, int pageSize) {
+        this.height = height;
+        this.pageSize = pageSize;
+        this.nodesPerLevel = new long[height];
+    }
+
+    /**
+     * Return the fill bucket of a page
+     *
+     * @param encodedSize bytes the page takes when encoded
+     * @return the bucket index
+     */
+    private int fillBucket(int encodedSize)
+        {return(Math.min(FILL_BUCKETS - 1, (int)((long)encodedSize * 10 / pageSize)));}
+
+    void addInternalNode(int level, int encodedSize) {
+        nodesPerLevel[level]++;
+        internalFill[fillBucket(encodedSize)]++;
+    }
+
+    void addLeaf(int entries, long values, int encodedSize,
+                 long pageIndex, long nextPage) {
+        nodesPerLevel[height - 1]++;
+        leafFill[fillBucket(encodedSize)]++;
+        this.keys += entries;
+        this.values += values;
+        this.leafBytes += encodedSize;
+        if(nextPage >= 0) {
+            leafLinks++;
+            if(nextPage != pageIndex + pageSize)
+                {nonSequentialLinks++;}
+            if(nextPage < pageIndex)
+                {backwardLinks++;}
+        }
+    }
+
+    void addOverflowChain(int pages) {
+        overflowPages += pages;
+        overflowChains.merge(pages, 1L, Long::sum);
+    }
+
+    /**
+     * Add the counts of a report of another subtree to ours
+     *
+     * @param other the other report
+     * @return this report
+     */
+    TreeReport merge(TreeReport other) {
+        for(int i = 0; i < height; i++)
+            {nodesPerLevel[i] += other.nodesPerLevel[i];}
+        for(int i = 0; i < FILL_BUCKETS; i++) {
+            leafFill[i] += other.leafFill[i];
+            internalFill[i] += other.internalFill[i];
+        }
+        for(Map.Entry<Integer, Long> e : other.overflowChains.entrySet())
+            {overflowChains.merge(e.getKey(), e.getValue(), Long::sum);}
+        overflowPages += other.overflowPages;
+        keys += other.keys;
+        values += other.values;
+        leafBytes += other.leafBytes;
+        leafLinks += other.leafLinks;
+        nonSequentialLinks += other.nonSequentialLinks;
+        backwardLinks += other.backwardLinks;
+        return(this);
+    }
+
+    void setFileStatistics(int entryBytes, long totalTreePages, long fileSize,
+                           int freePoolSize, int lookupPoolSize, int pendingCompactions) {
+        this.entryBytes = entryBytes;
+        this.totalTreePages = totalTreePages;
+        this.fileSize = fileSize;
+        this.freePoolSize = freePoolSize;
+        this.lookupPoolSize = lookupPoolSize;
+        this.pendingCompactions = pendingCompactions;
+    }
+
+    void setElapsedNanos(long elapsedNanos)
+        {this.elapsedNanos = elapsedNanos;}
+
+    public int getHeight()
+        {return(height);}
+
+    /**
+     * Return the number of nodes at each level (the root is level zero)
+     *
+     * @return the node counts
+     */
+    public long[] getNodesPerLevel()
+        {return(nodesPerLevel.clone());}
+
+    public long getLeaves()
+        {return(nodesPerLevel[height - 1]);}
+
+    public long getInternalNodes()
+        {return(Math.max(0, getTotalNodes() - getLeaves()));}
+
+    public long getTotalNodes() {
+        long n = 0;
+        for(long c : nodesPerLevel)
+            {n += c;}
+        return(n);
+    }
+
+    public long[] getLeafFillHistogram()
+        {return(leafFill.clone());}
+
+    public long[] getInternalFillHistogram()
+        {return(internalFill.clone());}
+
+    /**
+     * Return how many overflow chains have each length (in pages)
+     *
+     * @return chain length to the number of chains
+     */
+    public Map<Integer, Long> getOverflowChainLengths()
+        {return(Collections.unmodifiableMap(overflowChains));}
+
+    public long getOverflowPages()
+        {return(overflowPages);}
+
+    public long getKeys()
+        {return(keys);}
+
+    public long getValues()
+        {return(values);}
+
+    /**
+     * Share of the leaf pages' bytes that is actually used
+     *
+     * @return the leaf space utilization, in [0, 1]
+     */
+    public double getLeafSpaceUtilization() {
+        long leaves = getLeaves();
+        return(leaves == 0 ? 0.0 : (double)leafBytes / (leaves * pageSize));
+    }
+
+    /**
+     * Share of the leaf links whose next leaf is not the next page of
+     * the file, i.e. the extra seeks a full scan has to do
+     *
+     * @return the leaf fragmentation, in [0, 1]
+     */
+    public double getLeafFragmentation()
+        {return(leafLinks == 0 ? 0.0 : (double)nonSequentialLinks / leafLinks);}
+
+    public long getNonSequentialLeafLinks()
+        {return(nonSequentialLinks);}
+
+    /**
+     * Return the number of leaves whose next leaf is earlier in the file
+     *
+     * @return the backward leaf links
+     */
+    public long getBackwardLeafLinks()
+        {return(backwardLinks);}
+
+    public long getTotalTreePages()
+        {return(totalTreePages);}
+
+    public long getFileSize()
+        {return(fileSize);}
+
+    public int getFreePoolSize()
+        {return(freePoolSize);}
+
+    public int getLookupPoolSize()
+        {return(lookupPoolSize);}
+
+    public int getPendingCompactions()
+        {return(pendingCompactions);}
+
+    /**
+     * File size over the size of the (Key, Value) pairs that it holds
+     *
+     * @return the space amplification (0 if the tree is empty)
+     */
+    public double getSpaceAmplification()
+        {return(values == 0 ? 0.0 : (double)fileSize / (values * entryBytes));}
+
+    public long getElapsedNanos()
+        {return(elapsedNanos);}
+
+    /**
+     * Format a fill factor histogram as "0-10%: n, 10-20%: n, ..."
+     */
+    private static String formatFill(long[] hist) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < FILL_BUCKETS; i++) {
+            if(i > 0)
+                {sb.append(", ");}
+            sb.append(i * 10).append("-").append(i * 10 + 10).append("%: ").append(hist[i]);
+        }
+        return(sb.toString());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Tree analysis (").append(String.format("%.1f", elapsedNanos / 1e6))
+                .append(" ms)\n");
+        sb.append("\n\tHeight: ").append(height);
+        for(int i = 0; i < height; i++)
+            {sb.append("\n\tNodes at level ").append(i).append(": ").append(nodesPerLevel[i]);}
+        sb.append("\n\tKeys: ").append(keys).append(", values: ").append(values);
+        sb.append("\n\nFill factors");
+        sb.append("\n\n\tLeaves: ").append(formatFill(leafFill));
+        sb.append("\n\tInternal nodes: ").append(formatFill(internalFill));
+        sb.append(String.format("\n\tLeaf space utilization: %.1f%%", 100 * getLeafSpaceUtilization()));
+        sb.append("\n\nOverflow chains");
+        sb.append("\n\n\tPages: ").append(overflowPages);
+        for(Map.Entry<Integer, Long> e : overflowChains.entrySet())
+            {sb.append("\n\tChains of ").append(e.getKey()).append(" pages: ").append(e.getValue());}
+        sb.append("\n\nFragmentation");
+        sb.append(String.format("\n\n\tLeaf links off the physical order: %d of %d (%.1f%%), %d backwards",
+                nonSequentialLinks, leafLinks, 100 * getLeafFragmentation(), backwardLinks));
+        sb.append("\n\tPages in use: ").append(totalTreePages)
+                .append(", free pool: ").append(freePoolSize)
+                .append(", lookup pages: ").append(lookupPoolSize);
+        sb.append("\n\tLeaves pending compaction: ").append(pendingCompactions);
+        sb.append("\n\tFile size: ").append(fileSize).append(" bytes");
+        sb.append(String.format("\n\tSpace amplification: %.2f\n", getSpaceAmplification()));
+        return(sb.toString());
+    }
+}
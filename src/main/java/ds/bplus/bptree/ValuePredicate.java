@@ -0,0 +1,83 @@
+package ds.bplus.bptree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * Predicate on the raw bytes of a stored value, used to filter range scans
+ * before any object is created for the entry.
+ *
+ * The buffer handed to the predicate is a read-only view of the page; it is
+ * positioned at the start of the value and its limit is the end of the stored
+ * value. Values are padded with spaces up to the satellite data size, except
+ * in compressed posting lists where the padding is not stored. The buffer is
+ * reused for the rest of the page, so it must not be kept after the call.
+ *
+ */
+@FunctionalInterface
+@SuppressWarnings({"WeakerAccess", "unused"})
+public interface ValuePredicate {
+
+    /**
+     * Evaluate the predicate on a stored value
+     *
+     * @param value view of the value bytes (see above)
+     * @return true if the entry should be returned, false otherwise
+     */
+    boolean test(ByteBuffer value);
+
+    /**
+     * Match values that start with the given bytes
+     *
+     * @param prefix the prefix bytes
+     * @return the predicate
+     */
+    static ValuePredicate prefix(byte[] prefix)
+        {return(equalsAt(0, prefix));}
+
+    /**
+     * Match values that start with the given string (in UTF-8)
+     *
+     * @param prefix the prefix string
+     * @return the predicate
+     */
+    static ValuePredicate prefix(String prefix)
+        {return(prefix(prefix.getBytes(StandardCharsets.UTF_8)));}
+
+    /**
+     * Match values that hold the given bytes at a fixed offset; bytes past
+     * the end of a stored value are treated as padding (spaces).
+     *
+     * @param offset the offset inside the value
+     * @param bytes the bytes to match
+     * @return the predicate
+     */
+    static ValuePredicate equalsAt(int offset, byte[] bytes) {
+        return(value -> {
+            int start = value.position() + offset;
+            for(int i = 0; i < bytes.length; i++) {
+                byte b = start + i < value.limit() ? value.get(start + i) : (byte) ' ';
+                if(b != bytes[i])
+                    {return(false);}
+            }
+            return(true);
+        });
+    }
+
+    /**
+     * Match values that satisfy both predicates
+     *
+     * @param other the other predicate
+     * @return the combined predicate
+     */
+    default ValuePredicate and(ValuePredicate other) {
+        return(value -> {
+            int pos = value.position();
+            if(!test(value))
+                {return(false);}
+            value.position(pos);
+            return(other.test(value));
+        });
+    }
+}
@@ -0,0 +1,368 @@
+package ds.bplus.util;
+
+import ds.bplus.bptree.PageTraceRecorder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ *
+ * Replays a page trace (see PageTraceRecorder) against page cache policies
+ * of various sizes and prints their miss ratio curves as CSV, i.e. one
+ * "policy,pages,bytes,accesses,misses,missRatio" line per policy and size.
+ * Arguments are given as name=value pairs, e.g.
+ *
+ *  trace=trace.bin policies=lru,clock,2q,arc sizes=64,256,1024 writes=false
+ *
+ * Without sizes we use powers of two up to the number of distinct pages in
+ * the trace. Writes count as accesses (as in a write-back cache) unless
+ * writes=false is given.
+ *
+ */
+@SuppressWarnings("unused")
+public class CacheSimulator {
+
+    /**
+     * A page cache replacement policy
+     */
+    interface Policy {
+        /**
+         * Access a page, loading it into the cache if it is not there
+         *
+         * @param page the page number
+         * @return true if the page was cached, false otherwise
+         */
+        boolean access(long page);
+    }
+
+    public static void main(String[] args) throws IOException {
+        HashMap<String, String> opts = new HashMap<>();
+        for(String a : args) {
+            int eq = a.indexOf('=');
+            if(eq <= 0)
+                {throw new IllegalArgumentException("Arguments must be name=value: " + a);}
+            opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        if(!opts.containsKey("trace"))
+            {throw new IllegalArgumentException("No trace given (trace=<file>)");}
+
+        boolean writes = Boolean.parseBoolean(opts.getOrDefault("writes", "true"));
+        Trace trace = loadTrace(opts.get("trace"), writes);
+        long[] pages = trace.getPages();
+        int pageSize = trace.getPageSize();
+        long distinct = countDistinct(pages);
+        int[] sizes = opts.containsKey("sizes") ?
+                Arrays.stream(opts.get("sizes").split(","))
+                        .mapToInt(Integer::parseInt).toArray() :
+                defaultSizes(distinct);
+        String[] policies = opts.getOrDefault("policies", "lru,clock,2q,arc").split(",");
+
+        System.out.println("# " + pages.length + " accesses to " + distinct +
+                " distinct pages of " + pageSize + " bytes");
+        System.out.println("policy,pages,bytes,accesses,misses,missRatio");
+        for(String p : policies) {
+            for(int size : sizes) {
+                long misses = countMisses(newPolicy(p, size), pages);
+                System.out.println(p + "," + size + "," + (long)size * pageSize + "," +
+                        pages.length + "," + misses + "," +
+                        String.format("%.6f", pages.length == 0 ? 0.0 :
+                                (double)misses / pages.length));
+            }
+        }
+    }
+
+    /**
+     * The page accesses of a trace, in order
+     */
+    public static class Trace {
+        private final int pageSize;
+        private final long[] pages;
+
+        Trace(int pageSize, long[] pages) {
+            this.pageSize = pageSize;
+            this.pages = pages;
+        }
+
+        public int getPageSize()
+            {return(pageSize);}
+
+        public long[] getPages()
+            {return(pages);}
+    }
+
+    /**
+     * Load the page numbers of a trace in access order
+     *
+     * @param path path of the trace file
+     * @param writes include the writes?
+     * @return the trace
+     * @throws IOException is thrown when the trace can't be read
+     */
+    public static Trace loadTrace(String path, boolean writes) throws IOException {
+        long[][] buf = {new long[1 << 16]};
+        int[] n = {0};
+        int pageSize = PageTraceRecorder.replay(path, (op, page, type, write) -> {
+            if(!write || writes) {
+                if(n[0] == buf[0].length)
+                    {buf[0] = Arrays.copyOf(buf[0], buf[0].length * 2);}
+                buf[0][n[0]++] = page;
+            }
+        });
+        return(new Trace(pageSize, Arrays.copyOf(buf[0], n[0])));
+    }
+
+    /**
+     * Create a policy by name
+     *
+     * @param name lru, clock, 2q or arc
+     * @param capacity the number of pages the cache holds
+     * @return the policy
+     * @throws IllegalArgumentException is thrown for unknown policies or sizes
+     */
+    static Policy newPolicy(String name, int capacity) {
+        if(capacity <= 0)
+            {throw new IllegalArgumentException("Cache size must be > 0");}
+        switch(name.toLowerCase()) {
+            case "lru":
+                {return(new Lru(capacity));}
+            case "clock":
+                {return(new Clock(capacity));}
+            case "2q":
+                {return(new TwoQueue(capacity));}
+            case "arc":
+                {return(new Arc(capacity));}
+            default:
+                {throw new IllegalArgumentException("Unknown cache policy: " + name);}
+        }
+    }
+
+    /**
+     * Replay the accesses against an empty cache
+     *
+     * @param policy name of the policy (lru, clock, 2q or arc)
+     * @param capacity the number of pages the cache holds
+     * @param pages the accessed pages
+     * @return the number of misses
+     */
+    public static long countMisses(String policy, int capacity, long[] pages)
+        {return(countMisses(newPolicy(policy, capacity), pages));}
+
+    private static long countMisses(Policy policy, long[] pages) {
+        long misses = 0;
+        for(long p : pages) {
+            if(!policy.access(p))
+                {misses++;}
+        }
+        return(misses);
+    }
+
+    private static long countDistinct(long[] pages) {
+        HashSet<Long> seen = new HashSet<>();
+        for(long p : pages)
+            {seen.add(p);}
+        return(seen.size());
+    }
+
+    private static int[] defaultSizes(long distinct) {
+        int n = 0;
+        int[] sizes = new int[31];
+        for(int s = 1; n < sizes.length && s < 2 * distinct; s <<= 1)
+            {sizes[n++] = s;}
+        return(Arrays.copyOf(sizes, n));
+    }
+
+    /**
+     * Remove and return the least recent entry of a list
+     */
+    private static long removeFirst(LinkedHashSet<Long> list) {
+        Iterator<Long> it = list.iterator();
+        long p = it.next();
+        it.remove();
+        return(p);
+    }
+
+    /**
+     * Least recently used
+     */
+    static class Lru implements Policy {
+        private final int capacity;
+        private final LinkedHashSet<Long> pages = new LinkedHashSet<>();
+
+        Lru(int capacity)
+            {this.capacity = capacity;}
+
+        @Override
+        public boolean access(long page) {
+            if(pages.remove(page)) {
+                pages.add(page);
+                return(true);
+            }
+            if(pages.size() == capacity)
+                {removeFirst(pages);}
+            pages.add(page);
+            return(false);
+        }
+    }
+
+    /**
+     * CLOCK (second chance): the hand clears the reference bits
+     * until it finds a page that was not referenced since the last pass
+     */
+    static class Clock implements Policy {
+        private final long[] slots;
+        private final boolean[] referenced;
+        private final HashMap<Long, Integer> where = new HashMap<>();
+        private int used = 0;
+        private int hand = 0;
+
+        Clock(int capacity) {
+            this.slots = new long[capacity];
+            this.referenced = new boolean[capacity];
+        }
+
+        @Override
+        public boolean access(long page) {
+            Integer i = where.get(page);
+            if(i != null) {
+                referenced[i] = true;
+                return(true);
+            }
+            int slot;
+            if(used < slots.length)
+                {slot = used++;}
+            else {
+                while(referenced[hand]) {
+                    referenced[hand] = false;
+                    hand = (hand + 1) % slots.length;
+                }
+                slot = hand;
+                where.remove(slots[slot]);
+                hand = (hand + 1) % slots.length;
+            }
+            slots[slot] = page;
+            referenced[slot] = false;
+            where.put(page, slot);
+            return(false);
+        }
+    }
+
+    /**
+     * Full 2Q (Johnson and Shasha): new pages go through a FIFO (A1in)
+     * and only pages that are accessed again after leaving it (while
+     * remembered in the ghost queue A1out) make it to the LRU part (Am).
+     */
+    static class TwoQueue implements Policy {
+        private final int capacity;
+        private final int kin;
+        private final int kout;
+        private final LinkedHashSet<Long> a1in = new LinkedHashSet<>();
+        private final LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+        private final LinkedHashSet<Long> am = new LinkedHashSet<>();
+
+        TwoQueue(int capacity) {
+            this.capacity = capacity;
+            this.kin = Math.max(1, capacity / 4);
+            this.kout = Math.max(1, capacity / 2);
+        }
+
+        @Override
+        public boolean access(long page) {
+            if(am.remove(page)) {
+                am.add(page);
+                return(true);
+            }
+            if(a1in.contains(page))
+                {return(true);}
+            reclaim();
+            if(a1out.remove(page))
+                {am.add(page);}
+            else
+                {a1in.add(page);}
+            return(false);
+        }
+
+        private void reclaim() {
+            if(a1in.size() + am.size() < capacity)
+                {return;}
+            if(a1in.size() > kin || am.isEmpty()) {
+                a1out.add(removeFirst(a1in));
+                if(a1out.size() > kout)
+                    {removeFirst(a1out);}
+            }
+            else
+                {removeFirst(am);}
+        }
+    }
+
+    /**
+     * Adaptive Replacement Cache (Megiddo and Modha): balances a recency
+     * list (T1) against a frequency list (T2), moving the target size of
+     * T1 when the ghosts of either (B1, B2) are hit.
+     */
+    static class Arc implements Policy {
+        private final int capacity;
+        private int p = 0;
+        private final LinkedHashSet<Long> t1 = new LinkedHashSet<>();
+        private final LinkedHashSet<Long> t2 = new LinkedHashSet<>();
+        private final LinkedHashSet<Long> b1 = new LinkedHashSet<>();
+        private final LinkedHashSet<Long> b2 = new LinkedHashSet<>();
+
+        Arc(int capacity)
+            {this.capacity = capacity;}
+
+        @Override
+        public boolean access(long page) {
+            if(t1.remove(page) || t2.remove(page)) {
+                t2.add(page);
+                return(true);
+            }
+            if(b1.contains(page)) {
+                p = Math.min(capacity, p + Math.max(b2.size() / b1.size(), 1));
+                replace(false);
+                b1.remove(page);
+                t2.add(page);
+                return(false);
+            }
+            if(b2.contains(page)) {
+                p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+                replace(true);
+                b2.remove(page);
+                t2.add(page);
+                return(false);
+            }
+            int l1 = t1.size() + b1.size();
+            int total = l1 + t2.size() + b2.size();
+            if(l1 == capacity) {
+                if(t1.size() < capacity) {
+                    removeFirst(b1);
+                    replace(false);
+                }
+                else
+                    {removeFirst(t1);}
+            }
+            else if(total >= capacity) {
+                if(total == 2 * capacity)
+                    {removeFirst(b2);}
+                replace(false);
+            }
+            t1.add(page);
+            return(false);
+        }
+
+        /**
+         * Evict a page from T1 or T2 to its ghost list
+         *
+         * @param inB2 was the page we make room for found in B2?
+         */
+        private void replace(boolean inB2) {
+            if(!t1.isEmpty() && (t1.size() > p || (inB2 && t1.size() == p) || t2.isEmpty()))
+                {b1.add(removeFirst(t1));}
+            else if(!t2.isEmpty())
+                {b2.add(removeFirst(t2));}
+        }
+    }
+}
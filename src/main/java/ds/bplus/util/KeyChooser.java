@@ -0,0 +1,126 @@
+package ds.bplus.util;
+
+import java.util.Random;
+
+/**
+ *
+ * Picks keys out of [0, items) according to a key distribution; the number
+ * of items grows as the workload inserts new keys.
+ *
+ * Zipfian keys are generated with the method of Gray et al. ("Quickly
+ * generating billion-record synthetic databases"), which needs the zeta
+ * constant of the item count; we update it incrementally as items are added
+ * instead of recomputing it. The popular items are then scattered over the
+ * key space with a hash, like YCSB does, so they don't all share a leaf.
+ *
+ */
+class KeyChooser {
+
+    private static final double ZIPFIAN_CONSTANT = 0.99;
+
+    private final KeyDistribution distribution;
+    private final Random random;
+    private final double hotSetFraction;
+    private final double hotOpFraction;
+
+    private long items;
+    private long next = 0;          // next sequential key
+
+    private final double theta = ZIPFIAN_CONSTANT;
+    private final double zeta2 = 1.0 + Math.pow(0.5, theta);
+    private final double alpha = 1.0 / (1.0 - theta);
+    private double zetan = 0.0;
+    private long zetaItems = 0;     // items zetan was computed for
+
+    /**
+     * Create a key chooser
+     *
+     * @param distribution the key distribution
+     * @param items number of keys to choose from
+     * @param random the random source (seeded by the caller)
+     * @param hotSetFraction fraction of the keys that are hot (hotspot only)
+     * @param hotOpFraction fraction of the requests for hot keys (hotspot only)
+     */
+    KeyChooser(KeyDistribution distribution, long items, Random random,
+               double hotSetFraction, double hotOpFraction) {
+        this.distribution = distribution;
+        this.random = random;
+        this.hotSetFraction = hotSetFraction;
+        this.hotOpFraction = hotOpFraction;
+        setItems(items);
+    }
+
+    /**
+     * Set the number of keys to choose from
+     *
+     * @param items the number of keys
+     */
+    void setItems(long items) {
+        if(items <= 0)
+            {throw new IllegalArgumentException("Need at least one key to choose from");}
+        this.items = items;
+    }
+
+    /**
+     * Return the next key
+     *
+     * @return a key in [0, items)
+     */
+    long nextKey() {
+        switch(distribution) {
+            case ZIPFIAN:
+                {return(Long.remainderUnsigned(fnvHash(nextZipfian()), items));}
+            case LATEST:
+                {return(items - 1 - nextZipfian());}
+            case SEQUENTIAL: {
+                long k = next++ % items;
+                next %= items;
+                return(k);
+            }
+            case HOTSPOT: {
+                long hot = Math.max(1L, (long)(items * hotSetFraction));
+                if(random.nextDouble() < hotOpFraction || hot == items)
+                    {return(nextLong(hot));}
+                return(hot + nextLong(items - hot));
+            }
+            default:
+                {return(nextLong(items));}
+        }
+    }
+
+    /**
+     * Return a random long in [0, bound)
+     */
+    private long nextLong(long bound)
+        {return((long)(random.nextDouble() * bound));}
+
+    /**
+     * Return the rank of a zipfian distributed item (zero is the most popular)
+     */
+    private long nextZipfian() {
+        // bring zeta up to date with the inserted items
+        for(; zetaItems < items; zetaItems++)
+            {zetan += 1.0 / Math.pow(zetaItems + 1, theta);}
+        double eta = (1.0 - Math.pow(2.0 / items, 1.0 - theta)) / (1.0 - zeta2 / zetan);
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if(uz < 1.0)
+            {return(0);}
+        if(uz < zeta2)
+            {return(Math.min(1L, items - 1));}
+        return(Math.min((long)(items * Math.pow(eta * u - eta + 1.0, alpha)), items - 1));
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a long
+     */
+    private static long fnvHash(long v) {
+        long h = 0xCBF29CE484222325L;
+        for(int i = 0; i < 8; i++) {
+            h ^= v & 0xFF;
+            h *= 0x100000001B3L;
+            v >>>= 8;
+        }
+        return(h);
+    }
+}
@@ -0,0 +1,20 @@
+package ds.bplus.util;
+
+/**
+ *
+ * How a workload picks the keys of its operations (as in YCSB).
+ *
+ */
+@SuppressWarnings("unused")
+public enum KeyDistribution {
+    // every key is equally likely
+    UNIFORM,
+    // a few keys are very popular, spread over the key space
+    ZIPFIAN,
+    // zipfian, where the most recently inserted keys are the most popular
+    LATEST,
+    // keys are requested in order, wrapping around at the end
+    SEQUENTIAL,
+    // a fraction of the operations go to a small set of keys at the start
+    HOTSPOT
+}
@@ -0,0 +1,55 @@
+package ds.bplus.util;
+
+import ds.bplus.bptree.BPlusConfiguration;
+import ds.bplus.bptree.BPlusTree;
+import ds.bplus.bptree.BPlusTreePerformanceCounter;
+import ds.bplus.bptree.TreeReport;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ *
+ * Analyzes an existing tree file and prints its report (see
+ * BPlusTree.analyze). Arguments are given as name=value pairs, e.g.
+ *
+ *  file=tree.bin threads=8
+ *
+ * The file is only read; the tree is not committed afterwards, so nothing
+ * is written back to it.
+ *
+ */
+@SuppressWarnings("unused")
+public class TreeAnalyzerRunner {
+
+    public static void main(String[] args)
+            throws IOException, InvalidBTreeStateException {
+        HashMap<String, String> opts = new HashMap<>();
+        for(String a : args) {
+            int eq = a.indexOf('=');
+            if(eq <= 0)
+                {throw new IllegalArgumentException("Arguments must be name=value: " + a);}
+            opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        String path = opts.getOrDefault("file", "tree.bin");
+        // opening a missing file would create an empty tree
+        if(!new File(path).isFile())
+            {throw new FileNotFoundException("No tree file: " + path);}
+        int threads = Integer.parseInt(opts.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        BPlusTree bt = new BPlusTree(new BPlusConfiguration(), "rw", path,
+                new BPlusTreePerformanceCounter(false));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            TreeReport report = bt.analyze(pool);
+            bt.printCurrentConfiguration();
+            System.out.println(report);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package ds.bplus.util;
+
+import ds.bplus.bptree.BPlusTree;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ *
+ * YCSB style workload: a mix of reads, inserts, updates, scans and deletes,
+ * in configurable proportions, over keys picked from a key distribution.
+ *
+ * The tree is first loaded with the keys [0, record count) in random order
+ * and then the operations are run against it; inserts add the next key
+ * after the largest one so far. Both phases only depend on the seed, so two
+ * runs with the same configuration perform exactly the same operations.
+ *
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class Workload {
+
+    /**
+     * The operations a workload is made of
+     */
+    public enum Operation {READ, INSERT, UPDATE, SCAN, DELETE}
+
+    private final double[] proportions = new double[Operation.values().length];
+    private KeyDistribution distribution = KeyDistribution.UNIFORM;
+    private long recordCount = 100000L;
+    private int operationCount = 100000;
+    private int maxScanLength = 100;
+    private double hotSetFraction = 0.2;
+    private double hotOpFraction = 0.8;
+    private long seed = 1L;
+
+    /**
+     * Create a read only workload with uniform keys; use the setters to
+     * change the mix.
+     */
+    public Workload()
+        {proportions[Operation.READ.ordinal()] = 1.0;}
+
+    /**
+     * Return one of the YCSB core workloads (A to E)
+     *
+     * @param name the workload name (a letter from a to e)
+     * @return the workload
+     * @throws IllegalArgumentException is thrown when there is no such workload
+     */
+    public static Workload core(String name) {
+        Workload w = new Workload();
+        switch(name.toLowerCase()) {
+            // update heavy
+            case "a": {
+                w.setProportions(0.5, 0, 0.5, 0, 0);
+                w.setDistribution(KeyDistribution.ZIPFIAN);
+                break;
+            }
+            // read mostly
+            case "b": {
+                w.setProportions(0.95, 0, 0.05, 0, 0);
+                w.setDistribution(KeyDistribution.ZIPFIAN);
+                break;
+            }
+            // read only
+            case "c": {
+                w.setProportions(1.0, 0, 0, 0, 0);
+                w.setDistribution(KeyDistribution.ZIPFIAN);
+                break;
+            }
+            // read latest
+            case "d": {
+                w.setProportions(0.95, 0.05, 0, 0, 0);
+                w.setDistribution(KeyDistribution.LATEST);
+                break;
+            }
+            // short ranges
+            case "e": {
+                w.setProportions(0, 0.05, 0, 0.95, 0);
+                w.setDistribution(KeyDistribution.ZIPFIAN);
+                break;
+            }
+            default:
+                {throw new IllegalArgumentException("Unknown core workload: " + name);}
+        }
+        return(w);
+    }
+
+    /**
+     * Set the operation mix; the proportions are relative to their sum
+     *
+     * @param read proportion of reads
+     * @param insert proportion of inserts
+     * @param update proportion of updates
+     * @param scan proportion of scans
+     * @param delete proportion of deletes
+     * @throws IllegalArgumentException is thrown when a proportion is negative or all are zero
+     */
+    public void setProportions(double read, double insert, double update,
+                               double scan, double delete) {
+        double[] p = {read, insert, update, scan, delete};
+        double sum = 0.0;
+        for(double v : p) {
+            if(v < 0)
+                {throw new IllegalArgumentException("Proportions can't be negative");}
+            sum += v;
+        }
+        if(sum <= 0)
+            {throw new IllegalArgumentException("At least one proportion must be > 0");}
+        for(int i = 0; i < p.length; i++)
+            {proportions[i] = p[i] / sum;}
+    }
+
+    public double getProportion(Operation op)
+        {return(proportions[op.ordinal()]);}
+
+    public KeyDistribution getDistribution()
+        {return(distribution);}
+
+    public void setDistribution(KeyDistribution distribution)
+        {this.distribution = distribution;}
+
+    public long getRecordCount()
+        {return(recordCount);}
+
+    public void setRecordCount(long recordCount) {
+        if(recordCount <= 0)
+            {throw new IllegalArgumentException("Record count must be > 0");}
+        this.recordCount = recordCount;
+    }
+
+    public int getOperationCount()
+        {return(operationCount);}
+
+    public void setOperationCount(int operationCount) {
+        if(operationCount < 0)
+            {throw new IllegalArgumentException("Operation count can't be negative");}
+        this.operationCount = operationCount;
+    }
+
+    public int getMaxScanLength()
+        {return(maxScanLength);}
+
+    public void setMaxScanLength(int maxScanLength) {
+        if(maxScanLength <= 0)
+            {throw new IllegalArgumentException("Max scan length must be > 0");}
+        this.maxScanLength = maxScanLength;
+    }
+
+    /**
+     * Set the hot set of the hotspot distribution
+     *
+     * @param hotSetFraction fraction of the keys that are hot
+     * @param hotOpFraction fraction of the operations that go to hot keys
+     * @throws IllegalArgumentException is thrown when a fraction is outside [0, 1]
+     */
+    public void setHotspot(double hotSetFraction, double hotOpFraction) {
+        if(hotSetFraction < 0 || hotSetFraction > 1 || hotOpFraction < 0 || hotOpFraction > 1)
+            {throw new IllegalArgumentException("Hotspot fractions must be in [0, 1]");}
+        this.hotSetFraction = hotSetFraction;
+        this.hotOpFraction = hotOpFraction;
+    }
+
+    public long getSeed()
+        {return(seed);}
+
+    public void setSeed(long seed)
+        {this.seed = seed;}
+
+    /**
+     * Load the tree with the keys [0, record count) in random order
+     *
+     * @param bt the tree to load
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public void load(BPlusTree bt) throws IOException, InvalidBTreeStateException {
+        if(recordCount > Integer.MAX_VALUE)
+            {throw new IllegalArgumentException("Can't load more than 2^31 - 1 records");}
+        long[] keys = new long[(int)recordCount];
+        for(int i = 0; i < keys.length; i++)
+            {keys[i] = i;}
+        Random r = new Random(seed);
+        for(int i = keys.length - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            long t = keys[i]; keys[i] = keys[j]; keys[j] = t;
+        }
+        for(long k : keys)
+            {bt.insertKey(k, value(k), true);}
+    }
+
+    /**
+     * Run the operations against a tree that was loaded with this workload
+     *
+     * @param bt the tree to run against
+     * @return the operation counts, latencies and throughput
+     * @throws IOException is thrown when an I/O operation fails
+     * @throws InvalidBTreeStateException is thrown when there are inconsistencies in the blocks.
+     */
+    public WorkloadResult run(BPlusTree bt) throws IOException, InvalidBTreeStateException {
+        // a different stream than the load, so the two don't correlate
+        Random r = new Random(seed * 31 + 17);
+        long items = recordCount;
+        KeyChooser chooser = new KeyChooser(distribution, items, r,
+                hotSetFraction, hotOpFraction);
+        WorkloadResult res = new WorkloadResult();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < operationCount; i++) {
+            Operation op = nextOperation(r);
+            // pick the arguments before we start the clock
+            long key = op == Operation.INSERT ? items : chooser.nextKey();
+            int scanLength = op == Operation.SCAN ? 1 + r.nextInt(maxScanLength) : 0;
+            String value = "u" + i;
+
+            long t = System.nanoTime();
+            switch(op) {
+                case READ:
+                    {bt.searchKey(key, true); break;}
+                case INSERT:
+                    {bt.insertKey(key, value(key), true); break;}
+                case UPDATE:
+                    {bt.update(key, v -> value); break;}
+                case SCAN:
+                    {bt.rangeSearch(key, key + scanLength - 1, true); break;}
+                default:
+                    {bt.deleteKey(key, true); break;}
+            }
+            res.record(op, System.nanoTime() - t);
+            if(op == Operation.INSERT)
+                {chooser.setItems(++items);}
+        }
+        res.setElapsedNanos(System.nanoTime() - start);
+        return(res);
+    }
+
+    /**
+     * Pick the next operation based on the proportions
+     */
+    private Operation nextOperation(Random r) {
+        double u = r.nextDouble();
+        Operation[] ops = Operation.values();
+        for(int i = 0; i < ops.length - 1; i++) {
+            if(u < proportions[i])
+                {return(ops[i]);}
+            u -= proportions[i];
+        }
+        // whatever rounding leaves goes to the last operation with a share
+        for(int i = ops.length - 1; i > 0; i--) {
+            if(proportions[i] > 0)
+                {return(ops[i]);}
+        }
+        return(ops[0]);
+    }
+
+    /**
+     * The value we load for a key
+     */
+    private static String value(long key)
+        {return("v" + key);}
+
+    /**
+     * Print the workload configuration to stdout
+     */
+    public void printWorkload() {
+        System.out.println("\n !! Workload configuration !!");
+        for(Operation op : Operation.values())
+            {System.out.println("\t" + op + " proportion: " + getProportion(op));}
+        System.out.println("\tKey distribution: " + distribution);
+        System.out.println("\tRecords: " + recordCount);
+        System.out.println("\tOperations: " + operationCount);
+        System.out.println("\tMax scan length: " + maxScanLength);
+        if(distribution == KeyDistribution.HOTSPOT)
+            {System.out.println("\tHot set: " + hotSetFraction + " of the keys get " +
+                    hotOpFraction + " of the operations");}
+        System.out.println("\tSeed: " + seed);
+    }
+}
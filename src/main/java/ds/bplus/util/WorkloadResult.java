@@ -0,0 +1,117 @@
+package ds.bplus.util;
+
+import ds.bplus.bptree.LatencyHistogram;
+
+/**
+ *
+ * Outcome of a workload run: how many operations of each type were done,
+ * their latencies and the overall throughput.
+ *
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class WorkloadResult {
+
+    private final LatencyHistogram[] latencies;
+    private long elapsedNanos = 0L;
+
+    WorkloadResult() {
+        Workload.Operation[] ops = Workload.Operation.values();
+        this.latencies = new LatencyHistogram[ops.length];
+        for(int i = 0; i < ops.length; i++)
+            {latencies[i] = new LatencyHistogram();}
+    }
+
+    /**
+     * Record the latency of an operation
+     *
+     * @param op the operation
+     * @param nanos how long it took (in nanoseconds)
+     */
+    void record(Workload.Operation op, long nanos)
+        {latencies[op.ordinal()].record(nanos);}
+
+    void setElapsedNanos(long elapsedNanos)
+        {this.elapsedNanos = elapsedNanos;}
+
+    /**
+     * Return the total time of the run
+     *
+     * @return the elapsed time (in nanoseconds)
+     */
+    public long getElapsedNanos()
+        {return(elapsedNanos);}
+
+    /**
+     * Return the number of operations of a type that were done
+     *
+     * @param op the operation
+     * @return the operation count
+     */
+    public int getCount(Workload.Operation op)
+        {return((int)getLatencies(op).getCount());}
+
+    /**
+     * Return the latency histogram of an operation
+     *
+     * @param op the operation
+     * @return a snapshot of the histogram
+     */
+    public LatencyHistogram.Snapshot getLatencies(Workload.Operation op)
+        {return(latencies[op.ordinal()].snapshot());}
+
+    /**
+     * Return the total number of operations that were done
+     *
+     * @return the operation count
+     */
+    public int getTotalCount() {
+        int total = 0;
+        for(Workload.Operation op : Workload.Operation.values())
+            {total += getCount(op);}
+        return(total);
+    }
+
+    /**
+     * Return the overall throughput of the run
+     *
+     * @return operations per second
+     */
+    public double getThroughput() {
+        return(elapsedNanos == 0 ? 0.0 :
+                getTotalCount() / (elapsedNanos / 1_000_000_000.0));
+    }
+
+    /**
+     * Return a latency percentile of an operation
+     *
+     * @param op the operation
+     * @param percentile the percentile (in [0, 100])
+     * @return the latency (in nanoseconds), zero if the operation was never done
+     */
+    public long getPercentile(Workload.Operation op, double percentile)
+        {return(getLatencies(op).getValueAtPercentile(percentile));}
+
+    /**
+     * Return the mean latency of an operation
+     *
+     * @param op the operation
+     * @return the latency (in nanoseconds), zero if the operation was never done
+     */
+    public double getMean(Workload.Operation op)
+        {return(getLatencies(op).getMean());}
+
+    /**
+     * Print the throughput and the latencies of each operation to stdout
+     */
+    public void printResults() {
+        System.out.println("\n !! Workload results !!");
+        System.out.println("\n\tOperations: " + getTotalCount());
+        System.out.println("\tElapsed time (ms): " + elapsedNanos / 1_000_000);
+        System.out.printf("\tThroughput (ops/sec): %.1f%n", getThroughput());
+        for(Workload.Operation op : Workload.Operation.values()) {
+            if(getCount(op) == 0)
+                {continue;}
+            System.out.println("\t" + op + ": " + getLatencies(op));
+        }
+    }
+}
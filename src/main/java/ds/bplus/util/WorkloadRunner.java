@@ -0,0 +1,83 @@
+package ds.bplus.util;
+
+import ds.bplus.bptree.BPlusConfiguration;
+import ds.bplus.bptree.BPlusTree;
+import ds.bplus.bptree.BPlusTreePerformanceCounter;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ *
+ * Macro benchmark driver: loads a tree file and runs a workload against it,
+ * printing the throughput, the latencies of each operation and the page I/O
+ * of the run. Arguments are given as name=value pairs, e.g.
+ *
+ *  workload=a pageSize=4096 entrySize=40 records=1000000 operations=1000000
+ *
+ * or, instead of a core workload, an explicit mix:
+ *
+ *  read=0.7 update=0.2 scan=0.1 distribution=hotspot hotSet=0.1 hotOps=0.9
+ *
+ * With trace=<file> the pages touched by the run are recorded as well, to
+ * be replayed with CacheSimulator.
+ *
+ */
+@SuppressWarnings("unused")
+public class WorkloadRunner {
+
+    public static void main(String[] args)
+            throws IOException, InvalidBTreeStateException {
+        HashMap<String, String> opts = new HashMap<>();
+        for(String a : args) {
+            int eq = a.indexOf('=');
+            if(eq <= 0)
+                {throw new IllegalArgumentException("Arguments must be name=value: " + a);}
+            opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+
+        Workload w = opts.containsKey("workload") ?
+                Workload.core(opts.get("workload")) : new Workload();
+        if(opts.containsKey("read") || opts.containsKey("insert") ||
+                opts.containsKey("update") || opts.containsKey("scan") ||
+                opts.containsKey("delete")) {
+            w.setProportions(getDouble(opts, "read", 0), getDouble(opts, "insert", 0),
+                    getDouble(opts, "update", 0), getDouble(opts, "scan", 0),
+                    getDouble(opts, "delete", 0));
+        }
+        if(opts.containsKey("distribution"))
+            {w.setDistribution(KeyDistribution.valueOf(opts.get("distribution").toUpperCase()));}
+        w.setRecordCount((long)getDouble(opts, "records", w.getRecordCount()));
+        w.setOperationCount((int)getDouble(opts, "operations", w.getOperationCount()));
+        w.setMaxScanLength((int)getDouble(opts, "maxScan", w.getMaxScanLength()));
+        w.setHotspot(getDouble(opts, "hotSet", 0.2), getDouble(opts, "hotOps", 0.8));
+        w.setSeed((long)getDouble(opts, "seed", w.getSeed()));
+
+        BPlusConfiguration conf = new BPlusConfiguration(
+                (int)getDouble(opts, "pageSize", 1024), 8,
+                (int)getDouble(opts, "entrySize", 20));
+        BPlusTreePerformanceCounter bPerf = new BPlusTreePerformanceCounter(true);
+        BPlusTree bt = new BPlusTree(conf, "rw+",
+                opts.getOrDefault("file", "workload.bin"), bPerf);
+
+        bt.printCurrentConfiguration();
+        w.printWorkload();
+        System.out.println("\nLoading " + w.getRecordCount() + " records...");
+        w.load(bt);
+        bPerf.resetAllMetrics();
+        if(opts.containsKey("trace"))
+            {bt.startPageTrace(opts.get("trace"), (int)getDouble(opts, "traceBuffer", 1 << 20));}
+        System.out.println("Running " + w.getOperationCount() + " operations...");
+        WorkloadResult res = w.run(bt);
+        bt.stopPageTrace();
+        res.printResults();
+        bPerf.printTotalStatistics();
+        bt.commitTree();
+    }
+
+    /**
+     * Return a numeric option or its default
+     */
+    private static double getDouble(HashMap<String, String> opts, String name, double def)
+        {return(opts.containsKey(name) ? Double.parseDouble(opts.get(name)) : def);}
+}
@@ -1,12 +1,51 @@
 import ds.bplus.bptree.BPlusConfiguration;
 import ds.bplus.bptree.BPlusTree;
 import ds.bplus.bptree.BPlusTreePerformanceCounter;
+import ds.bplus.bptree.BinaryKeys;
+import ds.bplus.bptree.KeyValueWrapper;
+import ds.bplus.bptree.LatencyHistogram;
+import ds.bplus.bptree.LeafCompactor;
+import ds.bplus.bptree.PageTraceRecorder;
+import ds.bplus.bptree.QueryExplain;
+import ds.bplus.bptree.RangeProjection;
+import ds.bplus.bptree.SearchResult;
+import ds.bplus.bptree.TreeReport;
+import ds.bplus.bptree.ValuePredicate;
+import ds.bplus.util.CacheSimulator;
+import ds.bplus.util.KeyDistribution;
 import ds.bplus.util.Utilities;
+import ds.bplus.util.Workload;
+import ds.bplus.util.WorkloadResult;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 /** 
 * BPlusTree Tester. 
@@ -490,4 +529,2536 @@ public class BPlusTreeTest {
 
    }
 
+   /**
+    *
+    * This test loads up sequentially the key list on trees with and
+    * without key prefix compression for the following page sizes:
+    *
+    *    - Page sizes: 256, 1024 (1Kb), 2048 (2Kb)
+    *
+    * the compressed trees should find all keys while using fewer pages.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testKeyPrefixCompression() throws Exception {
+      uniqueEntries = true;
+      verboseResults = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkKeyPrefixCompression(bt256, 256, bPerf256);
+      checkKeyPrefixCompression(bt1024, 1024, bPerf1024);
+      checkKeyPrefixCompression(bt2048, 2048, bPerf2048);
+   }
+
+   /**
+    * Load the keys on the (compressed) tree and on an uncompressed one
+    * and compare the results.
+    *
+    * @param bt the compressed tree
+    * @param pageSize the page size
+    * @param bPerf the performance counter of the compressed tree
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkKeyPrefixCompression(BPlusTree bt, int pageSize,
+                                          BPlusTreePerformanceCounter bPerf)
+           throws Exception {
+      BPlusConfiguration plainConf = new BPlusConfiguration(pageSize);
+      plainConf.setKeyCompression(false);
+      BPlusTree plain = new BPlusTree(plainConf, "rw+", "treePlain.bin",
+              new BPlusTreePerformanceCounter(true));
+
+      Utilities.sequentialAddToTree(startKey, endKey,
+              satelliteValue, uniqueEntries, bt);
+      Utilities.sequentialAddToTree(startKey, endKey,
+              satelliteValue, uniqueEntries, plain);
+
+      int found = 0;
+      for(int i = startKey; i < endKey; i++) {
+         if(bPerf.searchIO(i, uniqueEntries, verboseResults)[8] == 1) {found++;}
+      }
+
+      if(found != totalKeys)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " failed to find all keys");}
+
+      if(bt.getTotalTreePages() >= plain.getTotalTreePages())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " did not use fewer pages with key compression");}
+
+      plain.commitTree();
+   }
+
+   /**
+    *
+    * This test uses wide (24 byte) binary keys that differ only in their
+    * first and last bytes, so separators get truncated to a few bytes while
+    * random insertions and deletions keep replacing them; the trees are
+    * of the following degrees:
+    *
+    *    - Page sizes: 256, 1024 (1Kb), 2048 (2Kb)
+    *
+    * in the end the contents of the trees are checked.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testTruncatedSeparatorsWithDelete() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+      int binKeySize = 24;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256, binKeySize, 20);
+      btConf1024 = new BPlusConfiguration(1024, binKeySize, 20);
+      btConf2048 = new BPlusConfiguration(2048, binKeySize, 20);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkTruncatedSeparators(bt256, binKeySize, 256);
+      checkTruncatedSeparators(bt1024, binKeySize, 1024);
+      checkTruncatedSeparators(bt2048, binKeySize, 2048);
+   }
+
+   /**
+    * Generate a wide key that has its number in the first bytes and
+    * the tail value as its last byte.
+    *
+    * @param i the key number
+    * @param tail the last byte
+    * @param keySize the key size
+    * @return the wide key
+    */
+   private byte[] tailKey(int i, int tail, int keySize) {
+      ByteBuffer b = ByteBuffer.allocate(keySize);
+      b.putInt(i);
+      b.position(keySize - 1);
+      b.put((byte) tail);
+      return(b.array());
+   }
+
+   /**
+    * Randomly insert and delete keys on a tree and check its contents
+    *
+    * @param bt the tree to use
+    * @param keySize the key size
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkTruncatedSeparators(BPlusTree bt, int keySize, int pageSize)
+           throws Exception {
+      int keys = 1000, tails = 3;
+      boolean[][] live = new boolean[keys][tails];
+      Random r = new Random(pageSize);
+
+      for(int i = 0; i < keys; i++) {
+         bt.insertKey(tailKey(i, 0, keySize), satelliteValue, uniqueEntries);
+         live[i][0] = true;
+      }
+
+      for(int j = 0; j < 10 * keys; j++) {
+         int i = r.nextInt(keys), t = r.nextInt(tails);
+         if(live[i][t]) {
+            if(!bt.deleteKey(tailKey(i, t, keySize), uniqueEntries).isFound())
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " failed to delete key " + i + "/" + t);}
+         } else
+            {bt.insertKey(tailKey(i, t, keySize), satelliteValue, uniqueEntries);}
+         live[i][t] = !live[i][t];
+      }
+
+      for(int i = 0; i < keys; i++) {
+         for(int t = 0; t < tails; t++) {
+            if(bt.searchKey(tailKey(i, t, keySize), uniqueEntries).isFound() != live[i][t])
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " has wrong contents for key " + i + "/" + t);}
+         }
+      }
+   }
+
+   /**
+    *
+    * This test uses wide (16 byte) binary keys along with a
+    * custom (reversed) key ordering on trees of the following degrees:
+    *
+    *    - Page sizes: 256, 1024 (1Kb), 2048 (2Kb)
+    *
+    * the keys are inserted in random order, then searched, range
+    * searched (using the custom ordering) and finally deleted.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testBinaryKeysWithCustomComparator() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+      int binKeySize = 16;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256, binKeySize, 20);
+      btConf1024 = new BPlusConfiguration(1024, binKeySize, 20);
+      btConf2048 = new BPlusConfiguration(2048, binKeySize, 20);
+
+      btConf256.setKeyComparator((a, b) -> BinaryKeys.compareUnsigned(b, a));
+      btConf1024.setKeyComparator((a, b) -> BinaryKeys.compareUnsigned(b, a));
+      btConf2048.setKeyComparator((a, b) -> BinaryKeys.compareUnsigned(b, a));
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkBinaryKeys(bt256, binKeySize, 256);
+      checkBinaryKeys(bt1024, binKeySize, 1024);
+      checkBinaryKeys(bt2048, binKeySize, 2048);
+   }
+
+   /**
+    * Generate a wide key; the first bytes are not zero so the
+    * key does not fit in a long.
+    *
+    * @param i the key number
+    * @param keySize the key size
+    * @return the wide key
+    */
+   private byte[] wideKey(int i, int keySize) {
+      ByteBuffer b = ByteBuffer.allocate(keySize);
+      b.putInt(0x7f000000 | (i / 256));
+      b.position(keySize - 4);
+      b.putInt(i);
+      return(b.array());
+   }
+
+   /**
+    * Insert, search, range search and delete the wide keys on a tree
+    *
+    * @param bt the tree to use
+    * @param keySize the key size
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkBinaryKeys(BPlusTree bt, int keySize, int pageSize)
+           throws Exception {
+      int keys = 2000;
+      LinkedList<Integer> order = new LinkedList<>();
+      for(int i = 0; i < keys; i++)
+         {order.add(i);}
+      Collections.shuffle(order);
+
+      for(int i : order)
+         {bt.insertKey(wideKey(i, keySize), "v" + i, uniqueEntries);}
+
+      for(int i = 0; i < keys; i++) {
+         if(!bt.searchKey(wideKey(i, keySize), uniqueEntries).isFound())
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " failed to find key " + i);}
+      }
+
+      // in the reversed ordering the largest key comes first
+      int total = bt.rangeSearch(wideKey(keys - 1, keySize),
+              wideKey(0, keySize), uniqueEntries).getQueryResult().size();
+      if(total != keys)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " range search returned " + total + " keys");}
+
+      for(int i : order) {
+         if(!bt.deleteKey(wideKey(i, keySize), uniqueEntries).isFound())
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " failed to delete key " + i);}
+      }
+   }
+
+   /**
+    * Store many duplicates per key and check that their posting
+    * lists keep track of the values, with and without compression.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testPostingListsForDuplicates() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // store the values without padding on the larger pages
+      btConf1024.setPostingListCompression(true);
+      btConf2048.setPostingListCompression(true);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkPostingLists(bt256, 256);
+      checkPostingLists(bt1024, 1024);
+      checkPostingLists(bt2048, 2048);
+   }
+
+   /**
+    * Insert interleaved duplicates, then count, search and delete them
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkPostingLists(BPlusTree bt, int pageSize)
+           throws Exception {
+      int keys = 40;
+      int[] dups = new int[keys];
+      for(int i = 0; i < keys; i++)
+         {dups[i] = 1 + (i * 37) % 400;}
+
+      // interleave the keys so the lists grow together
+      for(int round = 0; round < 400; round++) {
+         for(int k = 0; k < keys; k++) {
+            if(round < dups[k])
+               {bt.insertKey(k, "k" + k + "-" + round, uniqueEntries);}
+         }
+      }
+
+      for(int k = 0; k < keys; k++) {
+         long cnt = bt.countValues(k);
+         int found = bt.searchKey(k, uniqueEntries).getValues() == null ?
+                 1 : bt.searchKey(k, uniqueEntries).getValues().size();
+         if(cnt != dups[k] || found != dups[k])
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " has " + cnt + "/" + found + " values for key " + k +
+                    ", expected " + dups[k]);}
+      }
+
+      // remove half of the duplicates one at a time
+      for(int k = 0; k < keys; k++) {
+         for(int j = 0; j < dups[k] / 2; j++) {
+            String v = bt.deleteKey(k, true).getValues().getFirst().trim();
+            if(dups[k] > 1 && !v.startsWith("k" + k + "-"))
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " removed unexpected value " + v + " for key " + k);}
+         }
+         long cnt = bt.countValues(k);
+         if(cnt != dups[k] - dups[k] / 2)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " has " + cnt + " values for key " + k +
+                    " after deletes, expected " + (dups[k] - dups[k] / 2));}
+      }
+
+      // and purge the rest
+      for(int k = 0; k < keys; k++) {
+         bt.deleteKey(k, uniqueEntries);
+         if(bt.countValues(k) != 0)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " still has values for key " + k);}
+      }
+   }
+
+   /**
+    * Check that small duplicate sets stay inline in the leaf and larger
+    * ones spill to overflow pages, with and without posting list compression.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testInlineDuplicates() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      btConf2048.setPostingListCompression(true);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkInlineDuplicates(bt1024, bPerf1024, btConf1024, 1024);
+      checkInlineDuplicates(bt2048, bPerf2048, btConf2048, 2048);
+      // on small pages the inline values mostly spill due to space
+      checkInlineDuplicates(bt256, null, btConf256, 256);
+   }
+
+   /**
+    * Insert keys with a few duplicates each and check their values
+    *
+    * @param bt the tree to use
+    * @param bPerf the tree counters, null to skip checking the page reads
+    * @param conf the tree configuration
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkInlineDuplicates(BPlusTree bt, BPlusTreePerformanceCounter bPerf,
+                                      BPlusConfiguration conf, int pageSize)
+           throws Exception {
+      int keys = 3000;
+      int limit = conf.getInlineDuplicateLimit();
+      LinkedList<Integer> order = new LinkedList<>();
+      for(int i = 0; i < keys; i++) {
+         for(int j = 0; j <= i % (limit + 3); j++)
+            {order.add(i);}
+      }
+      Collections.shuffle(order, new Random(pageSize));
+      for(int k : order)
+         {bt.insertKey(k, "v" + k, uniqueEntries);}
+
+      int spilled = 0, small = 0;
+      for(int k = 0; k < keys; k++) {
+         int dups = 1 + k % (limit + 3);
+         if(bPerf != null)
+            {bPerf.startPageTracking();}
+         SearchResult res = bt.searchKey(k, uniqueEntries);
+         int found = res.getValues() == null ? 1 : res.getValues().size();
+         if(found != dups || bt.countValues(k) != dups)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " has " + found + " values for key " + k + ", expected " + dups);}
+         if(dups > 1 && dups <= limit + 1) {
+            small++;
+            if(bPerf != null && bPerf.getInterminentOverflowPageReads() > 0)
+               {spilled++;}
+         }
+      }
+      // inline values only use the free space of the leaves, so some spill
+      if(bPerf != null && spilled >= small)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " spilled all " + small + " small duplicate sets");}
+
+      int total = bt.rangeSearch(0, keys - 1, uniqueEntries).getQueryResult().size();
+      if(total != order.size())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " range search returned " + total + " values, expected " + order.size());}
+
+      // remove the values one at a time
+      Collections.shuffle(order, new Random(pageSize + 1));
+      for(int k : order) {
+         if(!bt.deleteKey(k, true).isFound())
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " failed to delete a value of key " + k);}
+      }
+      for(int k = 0; k < keys; k++) {
+         if(bt.countValues(k) != 0)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " still has values for key " + k);}
+      }
+   }
+
+   /**
+    * Check rank, select and range counts while randomly inserting and
+    * deleting keys, so the subtree counts go through splits, merges and
+    * redistributions.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testOrderStatistics() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkOrderStatistics(bt256, 256);
+      checkOrderStatistics(bt1024, 1024);
+      checkOrderStatistics(bt2048, 2048);
+   }
+
+   /**
+    * Run a random workload and compare the order statistics
+    * against a sorted copy of the keys.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkOrderStatistics(BPlusTree bt, int pageSize)
+           throws Exception {
+      Random r = new Random(pageSize);
+      TreeSet<Long> keys = new TreeSet<>();
+      int maxKey = 20000;
+
+      for(int round = 0; round < 6; round++) {
+         // grow on even rounds, shrink on odd ones
+         for(int op = 0; op < 4000; op++) {
+            long k = r.nextInt(maxKey);
+            if(round % 2 == 0 || r.nextInt(4) == 0) {
+               bt.insertKey(k, "v" + k, uniqueEntries);
+               keys.add(k);
+            } else {
+               Long d = keys.ceiling(k);
+               if(d == null)
+                  {continue;}
+               bt.deleteKey(d, uniqueEntries);
+               keys.remove(d);
+            }
+         }
+
+         if(bt.countRange(0, maxKey) != keys.size())
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " counted " + bt.countRange(0, maxKey) + " keys, expected " +
+                    keys.size());}
+
+         Long[] sorted = keys.toArray(new Long[0]);
+         for(int j = 0; j < 200 && sorted.length > 0; j++) {
+            int idx = r.nextInt(sorted.length);
+            if(bt.select(idx).getKey() != sorted[idx])
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " selected " + bt.select(idx).getKey() + " at " + idx +
+                       ", expected " + sorted[idx]);}
+            if(bt.rank(sorted[idx]) != idx)
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " ranked key " + sorted[idx] + " at " + bt.rank(sorted[idx]) +
+                       ", expected " + idx);}
+            long lo = r.nextInt(maxKey), hi = lo + r.nextInt(maxKey / 4);
+            long cnt = keys.subSet(lo, true, hi, true).size();
+            if(bt.countRange(lo, hi) != cnt)
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " counted " + bt.countRange(lo, hi) + " keys in [" + lo +
+                       ", " + hi + "], expected " + cnt);}
+         }
+      }
+   }
+
+   /**
+    * Check the keys only, value offset and count only range scans
+    * against the full (Key, Value) range scans.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testProjectedRangeScans() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      btConf2048.setPostingListCompression(true);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkProjectedRangeScans(bt256, btConf256, "tree256.bin", 256);
+      checkProjectedRangeScans(bt1024, btConf1024, "tree1024.bin", 1024);
+      checkProjectedRangeScans(bt2048, btConf2048, "tree2048.bin", 2048);
+   }
+
+   /**
+    * Insert keys with a varying number of duplicates and compare the
+    * projected scans of random ranges with the full ones.
+    *
+    * @param bt the tree to use
+    * @param conf the tree configuration
+    * @param file the tree file, to check the value offsets
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkProjectedRangeScans(BPlusTree bt, BPlusConfiguration conf,
+                                         String file, int pageSize)
+           throws Exception {
+      Random r = new Random(pageSize);
+      int keys = 3000;
+      for(int i = 0; i < keys; i++) {
+         long k = 2 * i;
+         int dups = i % 10 == 0 ? 1 + r.nextInt(200) : 1 + r.nextInt(3);
+         for(int j = 0; j < dups; j++)
+            {bt.insertKey(k, "v" + k + "-" + j, uniqueEntries);}
+      }
+
+      try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+         for(int t = 0; t < 50; t++) {
+            long lo = r.nextInt(2 * keys), hi = lo + r.nextInt(600);
+            for(boolean unique : new boolean[] {true, false}) {
+               LinkedList<KeyValueWrapper> full =
+                       bt.rangeSearch(lo, hi, unique).getQueryResult();
+               long cnt = bt.rangeSearch(lo, hi, unique, RangeProjection.COUNT).getCount();
+               LinkedList<KeyValueWrapper> ks =
+                       bt.rangeSearch(lo, hi, unique, RangeProjection.KEYS).getQueryResult();
+               LinkedList<KeyValueWrapper> offs =
+                       bt.rangeSearch(lo, hi, unique, RangeProjection.VALUE_OFFSETS).getQueryResult();
+               // a predicate takes the other path, with the same offsets
+               LinkedList<Long> offsets = new LinkedList<>(), matched = new LinkedList<>();
+               for(KeyValueWrapper kv : offs)
+                  {offsets.add(kv.getValueOffset());}
+               for(KeyValueWrapper kv : bt.rangeSearch(lo, hi, unique,
+                       RangeProjection.VALUE_OFFSETS, v -> true).getQueryResult())
+                  {matched.add(kv.getValueOffset());}
+               if(!matched.equals(offsets))
+                  {throw new Exception("BTree with page size: " + pageSize +
+                          " value offsets of [" + lo + ", " + hi + "] differ with a predicate");}
+               if(cnt != full.size() || ks.size() != full.size() || offs.size() != full.size())
+                  {throw new Exception("BTree with page size: " + pageSize +
+                          " projected scans of [" + lo + ", " + hi + "] returned " +
+                          cnt + "/" + ks.size() + "/" + offs.size() + " entries, expected " +
+                          full.size());}
+
+               // every value offset must point to a value of that key; the
+               // values of compressed lists are trimmed, so we may read past
+               // them (or the end of the file)
+               for(KeyValueWrapper kv : offs) {
+                  raf.seek(kv.getValueOffset());
+                  byte[] b = new byte[conf.getEntrySize()];
+                  raf.read(b);
+                  String v = new String(b, "UTF-8").trim();
+                  if(!v.startsWith("v" + kv.getKey() + "-"))
+                     {throw new Exception("BTree with page size: " + pageSize +
+                             " value offset of key " + kv.getKey() + " points to " + v);}
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Check that value predicates pushed into the range scans return the same
+    * entries as filtering the full scans, with and without compressed lists.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testValuePredicatePushdown() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      btConf1024.setPostingListCompression(true);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkValuePredicates(bt256, 256);
+      checkValuePredicates(bt1024, 1024);
+      checkValuePredicates(bt2048, 2048);
+   }
+
+   /**
+    * Insert keys with duplicates whose values belong to a few classes and
+    * compare the filtered scans of random ranges with the full ones.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkValuePredicates(BPlusTree bt, int pageSize)
+           throws Exception {
+      Random r = new Random(pageSize);
+      int keys = 2000;
+      for(int i = 0; i < keys; i++) {
+         int dups = i % 10 == 0 ? 1 + r.nextInt(150) : 1 + r.nextInt(3);
+         for(int j = 0; j < dups; j++)
+            {bt.insertKey(i, (r.nextBoolean() ? "a" : "b") + "-" + (j % 3) + "-" + i,
+                    uniqueEntries);}
+      }
+
+      ValuePredicate isA = ValuePredicate.prefix("a");
+      ValuePredicate isA1 = isA.and(ValuePredicate.equalsAt(2, "1".getBytes("UTF-8")));
+      for(int t = 0; t < 50; t++) {
+         long lo = r.nextInt(keys), hi = lo + r.nextInt(400);
+         for(boolean unique : new boolean[] {true, false}) {
+            LinkedList<KeyValueWrapper> full =
+                    bt.rangeSearch(lo, hi, unique).getQueryResult();
+            LinkedList<String> expA = new LinkedList<>(), expA1 = new LinkedList<>();
+            for(KeyValueWrapper kv : full) {
+               if(kv.getValue().startsWith("a"))
+                  {expA.add(kv.getKey() + kv.getValue());}
+               if(kv.getValue().startsWith("a-1"))
+                  {expA1.add(kv.getKey() + kv.getValue());}
+            }
+
+            LinkedList<String> gotA = new LinkedList<>();
+            for(KeyValueWrapper kv : bt.rangeSearch(lo, hi, unique,
+                    RangeProjection.KEYS_AND_VALUES, isA).getQueryResult())
+               {gotA.add(kv.getKey() + kv.getValue());}
+            long cntA1 = bt.rangeSearch(lo, hi, unique, RangeProjection.COUNT, isA1).getCount();
+            int offA1 = bt.rangeSearch(lo, hi, unique,
+                    RangeProjection.VALUE_OFFSETS, isA1).getQueryResult().size();
+
+            // values within a key may come in any order
+            Collections.sort(expA);
+            Collections.sort(gotA);
+            if(!gotA.equals(expA) || cntA1 != expA1.size() || offA1 != expA1.size())
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " filtered scans of [" + lo + ", " + hi + "] returned " +
+                       gotA.size() + "/" + cntA1 + "/" + offA1 + " entries, expected " +
+                       expA.size() + "/" + expA1.size());}
+         }
+      }
+   }
+
+   /**
+    * Check that sequential and parallel range streams return the same entries
+    * as the range searches and fail fast when the tree is modified.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testParallelRangeStreams() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      btConf2048.setPostingListCompression(true);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkRangeStreams(bt256, 256);
+      checkRangeStreams(bt1024, 1024);
+      checkRangeStreams(bt2048, 2048);
+   }
+
+   /**
+    * Insert random keys with duplicates and compare the streams of random
+    * ranges with the range searches.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkRangeStreams(BPlusTree bt, int pageSize)
+           throws Exception {
+      Random r = new Random(pageSize);
+      int keys = 4000;
+      for(int i = 0; i < keys; i++) {
+         long k = r.nextInt(3 * keys);
+         int dups = i % 20 == 0 ? 1 + r.nextInt(100) : 1;
+         for(int j = 0; j < dups; j++)
+            {bt.insertKey(k, "v" + k + "-" + j, uniqueEntries);}
+      }
+
+      for(int t = 0; t < 40; t++) {
+         long lo = r.nextInt(3 * keys), hi = lo + r.nextInt(3 * keys);
+         for(boolean unique : new boolean[] {true, false}) {
+            LinkedList<String> exp = new LinkedList<>();
+            for(KeyValueWrapper kv : bt.rangeSearch(lo, hi, unique).getQueryResult())
+               {exp.add(kv.getKey() + ":" + kv.getValue());}
+            List<String> seq = bt.rangeStream(lo, hi, unique)
+                    .map(kv -> kv.getKey() + ":" + kv.getValue())
+                    .collect(Collectors.toList());
+            List<String> par = bt.rangeStream(lo, hi, unique).parallel()
+                    .map(kv -> kv.getKey() + ":" + kv.getValue())
+                    .collect(Collectors.toList());
+            if(!seq.equals(par))
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " parallel stream of [" + lo + ", " + hi + "] differs");}
+
+            // the searches might walk the range backwards
+            List<String> sorted = new ArrayList<>(seq);
+            Collections.sort(exp);
+            Collections.sort(sorted);
+            if(!sorted.equals(exp))
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " stream of [" + lo + ", " + hi + "] returned " + seq.size() +
+                       " entries, expected " + exp.size());}
+         }
+      }
+
+      // modifying the tree under a stream has to fail
+      Iterator<KeyValueWrapper> it = bt.rangeStream(0, 3 * keys, false).iterator();
+      it.next();
+      bt.insertKey(0, "v0-new", uniqueEntries);
+      try {
+         while(it.hasNext())
+            {it.next();}
+         throw new Exception("BTree with page size: " + pageSize +
+                 " stream did not detect the modification");
+      } catch (ConcurrentModificationException ignored) {}
+   }
+
+   /**
+    * Bulk load sorted pairs (with duplicates) and check that the tree returns
+    * them all and keeps working under further inserts and deletes.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testParallelBulkLoad() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      btConf1024.setPostingListCompression(true);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkBulkLoad(bt256, btConf256, 256);
+      checkBulkLoad(bt1024, btConf1024, 1024);
+      checkBulkLoad(bt2048, btConf2048, 2048);
+   }
+
+   /**
+    * Bulk load random sorted pairs and compare the tree with them.
+    *
+    * @param bt the tree to use
+    * @param conf the tree configuration
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkBulkLoad(BPlusTree bt, BPlusConfiguration conf, int pageSize)
+           throws Exception {
+      Random r = new Random(pageSize);
+      ArrayList<KeyValueWrapper> entries = new ArrayList<>();
+      TreeSet<Long> keys = new TreeSet<>();
+      long k = 0;
+      for(int i = 0; i < 20000; i++) {
+         k += 1 + r.nextInt(5);
+         keys.add(k);
+         int dups = i % 50 == 0 ? 1 + r.nextInt(120) : (i % 7 == 0 ? 2 : 1);
+         for(int j = 0; j < dups; j++)
+            {entries.add(new KeyValueWrapper(BinaryKeys.fromLong(k, conf.getKeySize()),
+                    conditionedValue("v" + k + "-" + j, conf)));}
+      }
+      bt.bulkLoad(entries, uniqueEntries);
+
+      // all values have to be there, in key order
+      List<String> exp = new ArrayList<>(), got = new ArrayList<>();
+      for(KeyValueWrapper kv : entries)
+         {exp.add(kv.getKey() + ":" + kv.getValue());}
+      bt.rangeStream(0, k, false).forEach(kv -> got.add(kv.getKey() + ":" + kv.getValue()));
+      Collections.sort(exp);
+      Collections.sort(got);
+      if(!exp.equals(got))
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " bulk load returned " + got.size() + " entries, expected " + exp.size());}
+      if(bt.countRange(0, k) != keys.size())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " bulk load counted " + bt.countRange(0, k) + " keys, expected " + keys.size());}
+
+      // the tree has to keep working as usual
+      for(int i = 0; i < 3000; i++) {
+         long nk = r.nextInt((int)k + 100);
+         if(r.nextBoolean()) {
+            bt.insertKey(nk, "n" + nk, uniqueEntries);
+            keys.add(nk);
+         } else {
+            bt.deleteKey(nk, false);
+            keys.remove(nk);
+         }
+      }
+      for(long q = 0; q < k + 100; q++) {
+         if(bt.searchKey(q, true).isFound() != keys.contains(q))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " search of key " + q + " after bulk load and updates failed");}
+      }
+      if(bt.countRange(0, k + 100) != keys.size())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " counted " + bt.countRange(0, k + 100) + " keys after updates, expected " +
+                 keys.size());}
+   }
+
+   /**
+    * Pad the value as the tree stores it
+    *
+    * @param v the value
+    * @param conf the tree configuration
+    * @return the padded value
+    */
+   private String conditionedValue(String v, BPlusConfiguration conf) {
+      StringBuilder sb = new StringBuilder(v);
+      while(sb.length() < conf.getEntrySize())
+         {sb.append(' ');}
+      return(sb.toString());
+   }
+
+   /**
+    * Check that lookups starting from the path of the previous one return the
+    * right results while the tree changes and skip the root on local streams.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testFingerSearch() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkFingerSearch(bt256, bPerf256, 256);
+      checkFingerSearch(bt1024, bPerf1024, 1024);
+      checkFingerSearch(bt2048, bPerf2048, 2048);
+   }
+
+   /**
+    * Run local lookups mixed with random updates and compare with a set.
+    *
+    * @param bt the tree to use
+    * @param bPerf the counters of the tree
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkFingerSearch(BPlusTree bt, BPlusTreePerformanceCounter bPerf,
+                                  int pageSize)
+           throws Exception {
+      Random r = new Random(pageSize);
+      TreeSet<Long> keys = new TreeSet<>();
+      int max = 20000;
+      for(int i = 0; i < 8000; i++) {
+         long k = r.nextInt(max);
+         bt.insertKey(k, "v" + k, true);
+         keys.add(k);
+      }
+
+      // local scans, with an update every now and then
+      long hits = bPerf.getTotalFingerHits();
+      for(long q = 0; q < max; q++) {
+         if(bt.searchKey(q, true).isFound() != keys.contains(q))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " finger search of key " + q + " failed");}
+         if(q % 97 == 0) {
+            long k = r.nextInt(max);
+            if(r.nextBoolean()) {
+               bt.insertKey(k, "v" + k, true);
+               keys.add(k);
+            } else {
+               bt.deleteKey(k, true);
+               keys.remove(k);
+            }
+         }
+      }
+      if(bPerf.getTotalFingerHits() - hits < max / 2)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " only " + (bPerf.getTotalFingerHits() - hits) +
+                 " local lookups started below the root");}
+
+      // local inserts go down the path of the previous one, so only the
+      // ones after a split read the internal nodes
+      long reads = 0, inserts = 0;
+      for(long k = max / 4; k < max / 2; k++) {
+         if(keys.contains(k))
+            {continue;}
+         reads += bPerf.insertIO(k, "v" + k, true, false)[2];
+         keys.add(k);
+         inserts++;
+         if(k % 101 == 0) {
+            bt.deleteKey(k - 50, true);
+            keys.remove(k - 50);
+         }
+      }
+      if(reads * 2 > inserts * (bt.getHeight() - 1))
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " read " + reads + " internal nodes for " + inserts + " local inserts");}
+      if(bt.countRange(0, max) != keys.size())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has wrong entry counts after local inserts");}
+      for(long k : keys) {
+         if(!bt.searchKey(k, true).isFound())
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " lost key " + k + " after local inserts");}
+      }
+   }
+
+   /**
+    * Check that sequential appends keep the leaves nearly full and that the
+    * tree keeps working after mixing them with other updates.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testSequentialAppendSplits() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkSequentialAppends(bt256, btConf256, bPerf256, 256);
+      checkSequentialAppends(bt1024, btConf1024, bPerf1024, 1024);
+      checkSequentialAppends(bt2048, btConf2048, bPerf2048, 2048);
+   }
+
+   /**
+    * Append increasing keys, check the number of leaves and then run
+    * random updates on top.
+    *
+    * @param bt the tree to use
+    * @param conf the tree configuration
+    * @param bPerf the counters of the tree
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkSequentialAppends(BPlusTree bt, BPlusConfiguration conf,
+                                       BPlusTreePerformanceCounter bPerf, int pageSize)
+           throws Exception {
+      int keys = 30000;
+      for(long k = 0; k < keys; k++)
+         {bt.insertKey(3 * k, "v" + k, uniqueEntries);}
+
+      // the leaves should be around 90% full instead of half full
+      int expected = keys / (conf.getMaxLeafNodeCapacity() * 8 / 10) + 1;
+      if(bPerf.getTotalLeaves() > expected)
+         {throw new Exception("BTree with page size: " + pageSize + " used " +
+                 bPerf.getTotalLeaves() + " leaves for " + keys +
+                 " appends, expected at most " + expected);}
+
+      // inserts in between and deletes have to work as usual
+      Random r = new Random(pageSize);
+      TreeSet<Long> set = new TreeSet<>();
+      for(long k = 0; k < keys; k++)
+         {set.add(3 * k);}
+      for(int i = 0; i < 6000; i++) {
+         long k = r.nextInt(3 * keys + 300);
+         if(r.nextInt(3) > 0) {
+            bt.insertKey(k, "v" + k, uniqueEntries);
+            set.add(k);
+         } else {
+            bt.deleteKey(k, true);
+            set.remove(k);
+         }
+      }
+      for(long q = 0; q < 3 * keys + 300; q++) {
+         if(bt.searchKey(q, true).isFound() != set.contains(q))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " search of key " + q + " after appends and updates failed");}
+      }
+      if(bt.countRange(0, 3 * keys + 300) != set.size())
+         {throw new Exception("BTree with page size: " + pageSize + " counted " +
+                 bt.countRange(0, 3 * keys + 300) + " keys, expected " + set.size());}
+   }
+
+   /**
+    * Check the leaf low-water mark, fill factor and lazy merging under churn;
+    * the lazy tree has to write fewer leaves than a default one.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testMergeHysteresis() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      btConf256.setLeafLowWaterMark(1);
+      btConf1024.setLazyMerge(true);
+      btConf2048.setLeafFillFactor(70);
+      btConf2048.setLeafLowWaterMark(btConf2048.getMinLeafNodeCapacity() / 2);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      BPlusTreePerformanceCounter plainPerf = new BPlusTreePerformanceCounter(true);
+      BPlusTree plain = new BPlusTree(new BPlusConfiguration(1024), "rw+",
+              "treePlain.bin", plainPerf);
+
+      checkChurn(bt256, 256);
+      checkChurn(bt1024, 1024);
+      checkChurn(bt2048, 2048);
+      checkChurn(plain, 1024);
+      plain.commitTree();
+
+      if(bPerf1024.getTotalLeafNodeWrites() >= plainPerf.getTotalLeafNodeWrites())
+         {throw new Exception("Lazy merging wrote " + bPerf1024.getTotalLeafNodeWrites() +
+                 " leaves, the default tree " + plainPerf.getTotalLeafNodeWrites());}
+   }
+
+   /**
+    * Delete and re-insert batches of keys around the same range and compare
+    * the tree with a set.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkChurn(BPlusTree bt, int pageSize)
+           throws Exception {
+      Random r = new Random(42);
+      TreeSet<Long> set = new TreeSet<>();
+      int max = 10000;
+      for(long k = 0; k < max; k++) {
+         bt.insertKey(k, "v" + k, uniqueEntries);
+         set.add(k);
+      }
+
+      for(int round = 0; round < 20; round++) {
+         long start = r.nextInt(max - 600);
+         for(long k = start; k < start + 600; k++) {
+            if(r.nextInt(4) > 0) {
+               bt.deleteKey(k, true);
+               set.remove(k);
+            }
+         }
+         for(long k = start; k < start + 600; k++) {
+            if(!set.contains(k) && r.nextBoolean()) {
+               bt.insertKey(k, "v" + k, uniqueEntries);
+               set.add(k);
+            }
+         }
+      }
+
+      for(long q = 0; q < max; q++) {
+         if(bt.searchKey(q, true).isFound() != set.contains(q))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " search of key " + q + " after churn failed");}
+      }
+      if(bt.countRange(0, max) != set.size())
+         {throw new Exception("BTree with page size: " + pageSize + " counted " +
+                 bt.countRange(0, max) + " keys after churn, expected " + set.size());}
+   }
+
+   /**
+    * Delete with deferred merging and let a background compactor merge the
+    * under-full leaves while we keep searching.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testDeferredMergeCompaction() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      btConf256.setDeferredMerge(true);
+      btConf1024.setDeferredMerge(true);
+      btConf2048.setDeferredMerge(true);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkDeferredMerge(bt256, bPerf256, 256);
+      checkDeferredMerge(bt1024, bPerf1024, 1024);
+      checkDeferredMerge(bt2048, bPerf2048, 2048);
+   }
+
+   /**
+    * Fill the tree, delete most keys without merging and compact it in the
+    * background.
+    *
+    * @param bt the tree to use
+    * @param perf its performance counter
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkDeferredMerge(BPlusTree bt, BPlusTreePerformanceCounter perf, int pageSize)
+           throws Exception {
+      Random r = new Random(7);
+      TreeSet<Long> set = new TreeSet<>();
+      int max = 10000;
+      for(long k = 0; k < max; k++) {
+         bt.insertKey(k, "v" + k, uniqueEntries);
+         set.add(k);
+      }
+      for(long k = 0; k < max; k++) {
+         if(r.nextInt(10) < 7) {
+            bt.deleteKey(k, true);
+            set.remove(k);
+         }
+      }
+      if(bt.getPendingCompactions() == 0)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has no under-full leaves after deleting");}
+
+      long pages = bt.getTotalTreePages();
+      LeafCompactor compactor = new LeafCompactor(bt, 100000);
+      compactor.start();
+      long deadline = System.currentTimeMillis() + 30000;
+      while(bt.getPendingCompactions() > 0 && System.currentTimeMillis() < deadline) {
+         long q = r.nextInt(max);
+         if(bt.searchKey(q, true).isFound() != set.contains(q))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " search of key " + q + " failed while compacting");}
+      }
+      compactor.close();
+
+      if(bt.getPendingCompactions() > 0)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " still has " + bt.getPendingCompactions() + " leaves to compact");}
+      if(bt.getTotalTreePages() >= pages || perf.getTotalCompactions() == 0)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " did not free any leaves when compacting");}
+      for(long q = 0; q < max; q++) {
+         if(bt.searchKey(q, true).isFound() != set.contains(q))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " search of key " + q + " after compaction failed");}
+      }
+      if(bt.countRange(0, max) != set.size())
+         {throw new Exception("BTree with page size: " + pageSize + " counted " +
+                 bt.countRange(0, max) + " keys after compaction, expected " + set.size());}
+   }
+
+   /**
+    * Delete key ranges of different sizes (with duplicates and posting lists
+    * in them) and check that the tree stays consistent and frees its pages.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testDeleteRange() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkDeleteRange(bt256, 256);
+      checkDeleteRange(bt1024, 1024);
+      checkDeleteRange(bt2048, 2048);
+   }
+
+   /**
+    * Run a few range deletes on the tree and validate it after each one.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkDeleteRange(BPlusTree bt, int pageSize)
+           throws Exception {
+      int max = 20000;
+      // key -> number of values
+      TreeMap<Long, Integer> map = new TreeMap<>();
+      Random r = new Random(11);
+      for(long k = 0; k < max; k++) {
+         int dups = k % 500 == 0 ? 30 : (k % 37 == 0 ? 3 : 1);
+         for(int d = 0; d < dups; d++)
+            {bt.insertKey(k, "v" + k + "_" + d, uniqueEntries);}
+         map.put(k, dups);
+      }
+
+      long[][] ranges = {{100, 100}, {120, 135}, {1000, 9000}, {0, 700},
+              {19000, 25000}, {9500, 12000}, {9001, 9499}};
+      for(long[] range : ranges) {
+         long pages = bt.getTotalTreePages();
+         long expected = map.subMap(range[0], true, range[1], true).size();
+         long deleted = bt.deleteRange(range[0], range[1]);
+         map.subMap(range[0], true, range[1], true).clear();
+         if(deleted != expected)
+            {throw new Exception("BTree with page size: " + pageSize + " deleted " +
+                    deleted + " keys in " + Arrays.toString(range) + ", expected " + expected);}
+         if(expected > 1000 && bt.getTotalTreePages() >= pages)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " did not free any pages deleting " + Arrays.toString(range));}
+         validateAfterRangeDelete(bt, map, max, pageSize);
+      }
+
+      // the tree should still take inserts and deletes as usual
+      for(int i = 0; i < 3000; i++) {
+         long k = r.nextInt(max);
+         if(r.nextBoolean()) {
+            bt.insertKey(k, "n" + k, uniqueEntries);
+            map.merge(k, 1, Integer::sum);
+         } else {
+            bt.deleteKey(k, false);
+            map.remove(k);
+         }
+      }
+      validateAfterRangeDelete(bt, map, max, pageSize);
+
+      // and finally drop everything
+      if(bt.deleteRange(0, max) != map.size())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " did not delete all the remaining keys");}
+      map.clear();
+      validateAfterRangeDelete(bt, map, max, pageSize);
+      bt.insertKey(42, "again", uniqueEntries);
+      if(!bt.searchKey(42, true).isFound())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " can't insert after deleting all keys");}
+   }
+
+   /**
+    * Compare the tree with the expected keys (and number of values), using
+    * searches, counts and a full scan through the leaves.
+    *
+    * @param bt the tree to use
+    * @param map the expected key -> number of values map
+    * @param max all keys are below it
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void validateAfterRangeDelete(BPlusTree bt, TreeMap<Long, Integer> map,
+                                         int max, int pageSize)
+           throws Exception {
+      if(bt.countRange(0, max) != map.size())
+         {throw new Exception("BTree with page size: " + pageSize + " counted " +
+                 bt.countRange(0, max) + " keys, expected " + map.size());}
+      int expected = 0;
+      for(int v : map.values())
+         {expected += v;}
+      // the range search walks the leaves backwards when min is missing,
+      // the stream always walks them forward
+      List<KeyValueWrapper> all = bt.rangeStream(0, max, false).collect(Collectors.toList());
+      int found = bt.rangeSearch(0, max, false).getQueryResult().size();
+      if(all.size() != expected || found != expected)
+         {throw new Exception("BTree with page size: " + pageSize + " scanned " +
+                 all.size() + " and " + found + " values, expected " + expected);}
+      long last = -1;
+      for(KeyValueWrapper kv : all) {
+         if(kv.getKey() < last || !map.containsKey(kv.getKey()))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " scanned unexpected key " + kv.getKey());}
+         last = kv.getKey();
+      }
+      for(long q = 0; q < max; q += 7) {
+         if(bt.searchKey(q, true).isFound() != map.containsKey(q))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " search of key " + q + " failed");}
+      }
+   }
+
+   /**
+    * Test the in-place upsert and update of values
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testUpsertAndUpdate() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkUpsert(bt256, bPerf256, 256);
+      checkUpsert(bt1024, bPerf1024, 1024);
+      checkUpsert(bt2048, bPerf2048, 2048);
+   }
+
+   /**
+    * Overwrite values in place and check that each one costs a single leaf
+    * write and leaves the duplicates alone.
+    *
+    * @param bt the tree to use
+    * @param perf the counters of the tree
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkUpsert(BPlusTree bt, BPlusTreePerformanceCounter perf, int pageSize)
+           throws Exception {
+      int max = 5000;
+      for(long k = 0; k < max; k++) {
+         bt.insertKey(k, "v" + k, uniqueEntries);
+         if(k % 100 == 0) {
+            for(int d = 0; d < 4; d++)
+               {bt.insertKey(k, "d" + k + "_" + d, uniqueEntries);}
+         }
+      }
+
+      for(long k = 0; k < max; k += 7) {
+         long writes = perf.getTotalLeafNodeWrites();
+         String prev = bt.upsert(k, "u" + k);
+         if(prev == null || !prev.trim().equals("v" + k))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " upsert of key " + k + " returned " + prev);}
+         if(perf.getTotalLeafNodeWrites() - writes != 1)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " upsert of key " + k + " wrote more than one leaf");}
+      }
+
+      for(long k = 0; k < max; k += 100) {
+         String prev = bt.update(k, v -> v.trim() + "x");
+         String exp = (k % 7 == 0 ? "u" : "v") + k;
+         if(prev == null || !prev.trim().equals(exp))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " update of key " + k + " returned " + prev);}
+         if(bt.countValues(k) != 5)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " update of key " + k + " lost duplicates");}
+      }
+
+      // missing keys: update leaves them out, upsert inserts them
+      if(bt.update(max, v -> "nope") != null || bt.searchKey(max, true).isFound())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " update inserted a missing key");}
+      if(bt.upsert(max, "new") != null || !bt.searchKey(max, true).isFound())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " upsert did not insert a missing key");}
+
+      for(long k = 0; k < max; k++) {
+         String exp = (k % 7 == 0 ? "u" : "v") + k + (k % 100 == 0 ? "x" : "");
+         String v = bt.searchKey(k, false).getValues().getFirst().trim();
+         if(!v.equals(exp))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " key " + k + " has value " + v + " instead of " + exp);}
+      }
+   }
+
+   /**
+    * Test that workloads are reproducible: the same seeded mix of operations
+    * must leave trees of any page size with the same contents.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testWorkloadMix() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      List<String> c256 = checkWorkload(bt256, 256);
+      List<String> c1024 = checkWorkload(bt1024, 1024);
+      List<String> c2048 = checkWorkload(bt2048, 2048);
+      if(!c256.equals(c1024))
+         {throw new Exception("BTree with page size: 1024 differs from 256 after the workload");}
+      if(!c256.equals(c2048))
+         {throw new Exception("BTree with page size: 2048 differs from 256 after the workload");}
+   }
+
+   /**
+    * Load the tree and run a mixed workload on it; one key distribution
+    * after the other.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @return the (Key, Value) pairs of the tree in the end
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private List<String> checkWorkload(BPlusTree bt, int pageSize)
+           throws Exception {
+      int records = 5000, ops = 4000;
+      Workload w = new Workload();
+      w.setRecordCount(records);
+      w.setOperationCount(ops);
+      w.setProportions(0.4, 0.15, 0.15, 0.1, 0.2);
+      w.setMaxScanLength(50);
+      w.setSeed(3);
+      w.load(bt);
+      int inserts = 0;
+      for(KeyDistribution d : KeyDistribution.values()) {
+         w.setDistribution(d);
+         WorkloadResult res = w.run(bt);
+         if(res.getTotalCount() != ops)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " ran " + res.getTotalCount() + " operations instead of " + ops);}
+         for(Workload.Operation op : Workload.Operation.values()) {
+            double share = res.getCount(op) / (double)ops;
+            if(Math.abs(share - w.getProportion(op)) > 0.05)
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " ran " + share + " " + op + " operations instead of " +
+                       w.getProportion(op));}
+            if(res.getCount(op) > 0 && res.getPercentile(op, 50) > res.getPercentile(op, 99))
+               {throw new Exception("BTree with page size: " + pageSize +
+                       " has p50 above p99 for " + op);}
+         }
+         inserts = Math.max(inserts, res.getCount(Workload.Operation.INSERT));
+      }
+      return(bt.rangeStream(0, records + inserts, false)
+              .map(e -> e.getKey() + "=" + e.getValue().trim())
+              .collect(Collectors.toList()));
+   }
+
+   /**
+    * Test the latency histograms, both on their own and as kept by the
+    * performance counters of the trees.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testLatencyHistograms() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      // values 1..100000 from four threads, so p50 is ~50000 and so on
+      LatencyHistogram h = new LatencyHistogram();
+      Thread[] threads = new Thread[4];
+      for(int t = 0; t < threads.length; t++) {
+         final int first = t + 1;
+         threads[t] = new Thread(() -> {
+            for(long v = first; v <= 100000; v += 4)
+               {h.record(v);}
+         });
+         threads[t].start();
+      }
+      for(Thread t : threads)
+         {t.join();}
+      LatencyHistogram.Snapshot snap = h.snapshotAndReset();
+      if(snap.getCount() != 100000 || snap.getMax() != 100000)
+         {throw new Exception("Histogram has " + snap.getCount() +
+                 " values up to " + snap.getMax());}
+      double[] percentiles = {50, 99, 99.9};
+      long[] expected = {50000, 99000, 99900};
+      for(int i = 0; i < percentiles.length; i++) {
+         long v = snap.getValueAtPercentile(percentiles[i]);
+         long exp = expected[i];
+         if(v < exp || v > exp * 1.04)
+            {throw new Exception("Histogram p" + percentiles[i] + " is " + v +
+                    " instead of " + exp);}
+      }
+      if(h.snapshot().getCount() != 0 || h.snapshot().getP99() != 0)
+         {throw new Exception("Histogram was not reset");}
+      h.record(7);
+      if(h.snapshot().getP50() != 7 || h.snapshot().getP999() != 7)
+         {throw new Exception("Histogram lost small values");}
+
+      checkLatencies(bt256, bPerf256, 256);
+      checkLatencies(bt1024, bPerf1024, 1024);
+      checkLatencies(bt2048, bPerf2048, 2048);
+   }
+
+   /**
+    * Check that every operation ends up in the latency histograms.
+    *
+    * @param bt the tree to use
+    * @param perf the counters of the tree
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkLatencies(BPlusTree bt, BPlusTreePerformanceCounter perf, int pageSize)
+           throws Exception {
+      int max = 3000;
+      for(long k = 0; k < max; k++)
+         {bt.insertKey(k, "v" + k, uniqueEntries);}
+      for(long k = 0; k < max; k += 2)
+         {bt.searchKey(k, uniqueEntries);}
+      for(long k = 0; k < max; k += 100)
+         {bt.rangeSearch(k, k + 10, uniqueEntries);}
+      for(long k = 0; k < max; k += 3)
+         {bt.deleteKey(k, uniqueEntries);}
+
+      LatencyHistogram.Snapshot ins = perf.getInsertLatencies().snapshot();
+      LatencyHistogram.Snapshot del = perf.getDeletionLatencies().snapshot();
+      LatencyHistogram.Snapshot rng = perf.getRangeQueryLatencies().snapshot();
+      if(ins.getCount() != max || del.getCount() != max / 3 || rng.getCount() != max / 100)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " recorded " + ins.getCount() + " inserts, " + del.getCount() +
+                 " deletes and " + rng.getCount() + " range queries");}
+      // range searches look up their first key as well
+      if(perf.getSearchLatencies().snapshot().getCount() < max / 2)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " did not record all searches");}
+      if(perf.getPageReadLatencies().snapshot().getCount() == 0 ||
+              perf.getPageWriteLatencies().snapshot().getCount() == 0)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " did not record the page I/O");}
+      if(ins.getP50() > ins.getP99() || ins.getP99() > ins.getP999() ||
+              ins.getP999() > ins.getMax())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has unordered percentiles: " + ins);}
+   }
+
+   /**
+    * Test that the tree emits its flight recorder events
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testFlightRecorderEvents() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkFlightRecorderEvents(bt256, 256);
+      checkFlightRecorderEvents(bt1024, 1024);
+      checkFlightRecorderEvents(bt2048, 2048);
+   }
+
+   /**
+    * Record a run of inserts and deletes and count the tree events in it.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkFlightRecorderEvents(BPlusTree bt, int pageSize)
+           throws Exception {
+      String[] names = {"ds.bplus.PageRead", "ds.bplus.PageWrite", "ds.bplus.Split",
+              "ds.bplus.Merge", "ds.bplus.Redistribution"};
+      int max = 4000;
+      Path dump = Files.createTempFile("bplus", ".jfr");
+      try(Recording rec = new Recording()) {
+         for(String n : names)
+            {rec.enable(n).withThreshold(java.time.Duration.ZERO);}
+         rec.start();
+         for(long k = 0; k < max; k++)
+            {bt.insertKey((k * 7919) % max, "v" + k, uniqueEntries);}
+         for(long k = 0; k < max; k++)
+            {bt.deleteKey((k * 104729) % max, uniqueEntries);}
+         rec.stop();
+         rec.dump(dump);
+      }
+
+      HashMap<String, Integer> counts = new HashMap<>();
+      for(RecordedEvent e : RecordingFile.readAllEvents(dump)) {
+         String n = e.getEventType().getName();
+         counts.merge(n, 1, Integer::sum);
+         if(n.equals("ds.bplus.Split") &&
+                 e.getLong("pageIndex") == e.getLong("newPageIndex"))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " split a node into itself");}
+      }
+      Files.delete(dump);
+      for(String n : names) {
+         if(counts.getOrDefault(n, 0) == 0)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " did not emit any " + n + " events");}
+      }
+   }
+
+   /**
+    * Test the statistics that the trees expose over JMX
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testTreeMBean() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkTreeMBean(bt256, 256);
+      checkTreeMBean(bt1024, 1024);
+      checkTreeMBean(bt2048, 2048);
+   }
+
+   /**
+    * Register the tree, run a few operations and poll its MBean.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkTreeMBean(BPlusTree bt, int pageSize) throws Exception {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = bt.registerMBean();
+      int max = 2000;
+      for(long k = 0; k < max; k++)
+         {bt.insertKey(k, "v" + k, uniqueEntries);}
+      for(long k = 0; k < max; k += 2)
+         {bt.searchKey(k, uniqueEntries);}
+      for(long k = 0; k < max; k += 4)
+         {bt.deleteKey(k, uniqueEntries);}
+
+      if((Long)server.getAttribute(on, "TotalInsertions") != max ||
+              (Long)server.getAttribute(on, "TotalSearches") != max / 2 ||
+              (Long)server.getAttribute(on, "TotalLeafSplits") == 0)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " reports wrong operation counts over JMX");}
+      if((Integer)server.getAttribute(on, "Height") != bt.getHeight() ||
+              bt.getHeight() < 2 ||
+              (Long)server.getAttribute(on, "TotalTreePages") != bt.getTotalTreePages() ||
+              (Integer)server.getAttribute(on, "FreePoolSize") != bt.getFreePoolSize())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " reports a wrong layout over JMX");}
+      double ratio = (Double)server.getAttribute(on, "FingerHitRatio");
+      if(ratio <= 0.0 || ratio > 1.0)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " reports a finger hit ratio of " + ratio);}
+
+      server.invoke(on, "resetIntervalCounters", null, null);
+      if((Double)server.getAttribute(on, "InsertLatencyP99") != 0.0 ||
+              (Long)server.getAttribute(on, "TotalInsertions") != max)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " did not reset only its interval counters");}
+      server.invoke(on, "compact", new Object[] {10},
+              new String[] {int.class.getName()});
+      server.invoke(on, "resetAllCounters", null, null);
+      if((Long)server.getAttribute(on, "TotalInsertions") != 0)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " did not reset its counters");}
+
+      bt.unregisterMBean();
+      if(server.isRegistered(on))
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " is still registered");}
+   }
+
+   /**
+    * Test the page trace recorder and replaying it against the cache policies
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testPageTrace() throws Exception {
+      uniqueEntries = true;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkPageTrace(bt256, bPerf256, 256);
+      checkPageTrace(bt1024, bPerf1024, 1024);
+      checkPageTrace(bt2048, bPerf2048, 2048);
+   }
+
+   /**
+    * Trace a few operations, check that every page access made it to the
+    * trace and that the cache policies only take cold misses when the
+    * cache holds all the pages.
+    *
+    * @param bt the tree to use
+    * @param bPerf the counter of the tree
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkPageTrace(BPlusTree bt, BPlusTreePerformanceCounter bPerf,
+                               int pageSize) throws Exception {
+      int max = 3000;
+      Path trace = Files.createTempFile("bplus", ".trace");
+      bPerf.resetAllMetrics();
+      PageTraceRecorder rec = bt.startPageTrace(trace.toString(), 1 << 20);
+      for(long k = 0; k < max; k++)
+         {bt.insertKey((k * 7919) % max, "v" + k, uniqueEntries);}
+      for(long k = 0; k < max; k += 3)
+         {bt.searchKey(k, uniqueEntries);}
+      for(long k = 0; k < max; k += 5)
+         {bt.deleteKey(k, uniqueEntries);}
+      long reads = bPerf.getTotalNodeReads();
+      long writes = bPerf.getTotalNodeWrites();
+      bt.stopPageTrace();
+
+      long[] counts = new long[3];
+      HashSet<Long> ops = new HashSet<>();
+      int tracedSize = PageTraceRecorder.replay(trace.toString(), (op, page, type, write) -> {
+         counts[write ? 1 : 0]++;
+         ops.add(op);
+         if(type < 1 || type > 6)
+            {counts[2]++;}
+      });
+      if(rec.getDroppedEntries() != 0 || tracedSize != pageSize ||
+              counts[0] < reads || counts[1] < writes || counts[2] != 0 ||
+              counts[0] + counts[1] != rec.getWrittenEntries())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has a wrong page trace; reads: " + counts[0] + " of " + reads +
+                 ", writes: " + counts[1] + " of " + writes);}
+      // inserts always write a page, lookups may be served by the finger alone
+      if(ops.size() < max || ops.size() > max + (max + 2) / 3 + (max + 4) / 5)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " traced " + ops.size() + " operations");}
+
+      long[] pages = CacheSimulator.loadTrace(trace.toString(), true).getPages();
+      Files.delete(trace);
+      int distinct = (int)Arrays.stream(pages).distinct().count();
+      long lastLru = Long.MAX_VALUE;
+      for(int size = 1; size <= distinct; size *= 2) {
+         long misses = CacheSimulator.countMisses("lru", size, pages);
+         if(misses > lastLru)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " LRU misses grew with the cache size");}
+         lastLru = misses;
+      }
+      for(String policy : new String[] {"lru", "clock", "2q", "arc"}) {
+         if(CacheSimulator.countMisses(policy, distinct, pages) != distinct)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " policy " + policy + " missed more than the cold misses");}
+         if(CacheSimulator.countMisses(policy, 4, pages) <= distinct)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " policy " + policy + " hit too much with a tiny cache");}
+      }
+   }
+
+   /**
+    * Test the explain of searches and range searches
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testExplain() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkExplain(bt256, 256);
+      checkExplain(bt1024, 1024);
+      checkExplain(bt2048, 2048);
+   }
+
+   /**
+    * Explain a few operations and check the pages they report.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkExplain(BPlusTree bt, int pageSize) throws Exception {
+      int max = 5000;
+      long dupKey = 1234;
+      for(long k = 0; k < max; k++)
+         {bt.insertKey((k * 7919) % max, "v" + k, uniqueEntries);}
+      for(int d = 0; d < 200; d++)
+         {bt.insertKey(dupKey, "d" + d, uniqueEntries);}
+      int height = bt.getHeight();
+
+      // a point search touches a page per level, top down
+      QueryExplain ex = bt.explainSearch(4321L, true);
+      List<QueryExplain.Step> steps = ex.getSteps();
+      if(height < 2 || ex.getHeight() != height || steps.size() != height ||
+              ex.getResults() != 1 || !steps.get(0).isCacheHit() ||
+              ex.getPageReads() + ex.getCacheHits() != steps.size())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " explained a search wrong:\n" + ex);}
+      for(int l = 0; l < height; l++) {
+         QueryExplain.Step s = steps.get(l);
+         if(s.getLevel() != l || s.getFill() <= 0.0 ||
+                 (l == height - 1) != s.getNodeType().endsWith("LEAF"))
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " explained a search wrong:\n" + ex);}
+      }
+
+      // the duplicates go to overflow pages, below the leaves
+      ex = bt.explainSearch(dupKey, false);
+      if(ex.getResults() != 201 || ex.getSteps().stream().noneMatch(s ->
+              s.getLevel() == height && s.getNodeType().equals("TREE_LEAF_OVERFLOW")))
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " did not explain the overflow pages:\n" + ex);}
+
+      // a range scan reads the leaves one after the other
+      ex = bt.explainRangeSearch(100, 3000, true);
+      long leaves = ex.getSteps().stream().filter(s -> s.getLevel() == height - 1).count();
+      if(ex.getResults() != 2901 || leaves < 2 ||
+              ex.getSteps().stream().anyMatch(s -> s.getLevel() < 0 || s.getLevel() > height))
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " explained a range search wrong:\n" + ex);}
+   }
+
+   /**
+    * Test the analysis pass over the tree
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testTreeAnalyzer() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkTreeAnalyzer(bt256, 256);
+      checkTreeAnalyzer(bt1024, 1024);
+      checkTreeAnalyzer(bt2048, 2048);
+   }
+
+   /**
+    * Analyze a bulk loaded tree, then again after random updates.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkTreeAnalyzer(BPlusTree bt, int pageSize) throws Exception {
+      int max = 20000;
+      ArrayList<KeyValueWrapper> entries = new ArrayList<>();
+      for(long k = 0; k < max; k++)
+         {entries.add(new KeyValueWrapper(BinaryKeys.fromLong(k,
+                 bt.getTreeConfiguration().getKeySize()), "v" + k));}
+      bt.bulkLoad(entries, uniqueEntries);
+
+      // freshly loaded leaves are laid out in key order
+      TreeReport r = bt.analyze();
+      if(r.getHeight() != bt.getHeight() || r.getNodesPerLevel()[0] != 1 ||
+              r.getKeys() != max || r.getValues() != max ||
+              r.getLeafFragmentation() != 0.0 || r.getOverflowPages() != 0 ||
+              !isLeafFillConsistent(r) ||
+              Arrays.stream(r.getLeafFillHistogram()).sum() != r.getLeaves() ||
+              Arrays.stream(r.getInternalFillHistogram()).sum() != r.getInternalNodes())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has a wrong report after a bulk load:\n" + r);}
+
+      // random inserts split leaves into pages at the end of the file,
+      // the long duplicate lists are the only long overflow chains
+      Random rand = new Random(pageSize);
+      long[] dups = {7, 1234};
+      for(int i = 0; i < max / 2; i++)
+         {bt.insertKey(max + rand.nextInt(max), "n" + i, uniqueEntries);}
+      for(long d : dups) {
+         for(int i = 0; i < 300; i++)
+            {bt.insertKey(d, "d" + i, uniqueEntries);}
+      }
+      for(long k = 0; k < max; k += 3)
+         {bt.deleteKey(k, true);}
+
+      r = bt.analyze(new ForkJoinPool(3));
+      long keys = bt.countRange(0, 2 * max);
+      long values = bt.rangeSearch(0, 2 * max, false).getQueryResult().size();
+      if(r.getKeys() != keys || r.getValues() != values ||
+              r.getLeafFragmentation() <= 0.0 || !isLeafFillConsistent(r) ||
+              r.getOverflowChainLengths().entrySet().stream().filter(e -> e.getKey() > 2)
+                      .mapToLong(Map.Entry::getValue).sum() != dups.length ||
+              r.getSpaceAmplification() < 1.0 ||
+              r.getTotalNodes() + r.getOverflowPages() > r.getTotalTreePages())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has a wrong report after random updates:\n" + r +
+                 "\nexpected keys: " + keys + ", values: " + values);}
+   }
+
+   /**
+    * Check that the leaf fill histogram agrees with the leaf space
+    * utilization, i.e. the average fill falls within the bucket bounds.
+    *
+    * @param r the report to check
+    * @return true if it does, false otherwise
+    */
+   private static boolean isLeafFillConsistent(TreeReport r) {
+      long[] hist = r.getLeafFillHistogram();
+      double lo = 0.0, hi = 0.0;
+      for(int i = 0; i < hist.length; i++) {
+         lo += hist[i] * i;
+         hi += hist[i] * (i + 1);
+      }
+      double used = r.getLeafSpaceUtilization() * 10 * r.getLeaves();
+      return(lo <= used && used <= hi);
+   }
+
+   /**
+    * Test that defragmenting puts the leaves in key order in the file,
+    * also with updates in between, and that the contents stay the same.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testDefragment() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkDefragment(bt256, bPerf256, 256);
+      checkDefragment(bt1024, bPerf1024, 1024);
+      checkDefragment(bt2048, bPerf2048, 2048);
+   }
+
+   /**
+    * Scatter the leaves with random updates (and duplicates, for the
+    * overflow pages), then defragment in small steps with more updates in
+    * between.
+    *
+    * @param bt the tree to use
+    * @param bPerf the counter of the tree
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkDefragment(BPlusTree bt, BPlusTreePerformanceCounter bPerf,
+                                int pageSize) throws Exception {
+      int max = 10000;
+      Random rand = new Random(pageSize);
+      for(int i = 0; i < max; i++)
+         {bt.insertKey(rand.nextInt(max), "v" + i, uniqueEntries);}
+      for(int i = 0; i < 200; i++)
+         {bt.insertKey(42, "d" + i, uniqueEntries);}
+      for(long k = 0; k < max; k += 5)
+         {bt.deleteKey(k, true);}
+
+      TreeReport before = bt.analyze();
+      if(before.getBackwardLeafLinks() == 0)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has no scattered leaves to defragment:\n" + before);}
+
+      // updates in between change the shape of the tree under the defragmenter
+      for(int step = 0; step < 5; step++) {
+         bt.defragment(10);
+         for(int i = 0; i < 100; i++)
+            {bt.insertKey(max + rand.nextInt(max), "n" + i, uniqueEntries);}
+         bt.deleteKey(rand.nextInt(max), true);
+      }
+      LinkedList<String> expected = new LinkedList<>();
+      for(KeyValueWrapper kv : bt.rangeSearch(0, 2 * max, false).getQueryResult())
+         {expected.add(kv.getKey() + "=" + kv.getValue());}
+      int dups = bt.searchKey(42, false).getValues().size();
+
+      int moved;
+      long total = 0;
+      while((moved = bt.defragment(25)) > 0)
+         {total += moved;}
+
+      TreeReport after = bt.analyze();
+      LinkedList<String> found = new LinkedList<>();
+      for(KeyValueWrapper kv : bt.rangeSearch(0, 2 * max, false).getQueryResult())
+         {found.add(kv.getKey() + "=" + kv.getValue());}
+      if(total == 0 || bPerf.getTotalLeafRelocations() < total ||
+              after.getBackwardLeafLinks() != 0 ||
+              // only the root and the lookup pages of the free pool stay in between
+              after.getNonSequentialLeafLinks() > before.getNonSequentialLeafLinks() / 10)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " is not in order after defragmenting " + total + " leaves:\n" +
+                 before + "\n" + after);}
+      if(!found.equals(expected) || bt.searchKey(42, false).getValues().size() != dups)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has different contents after defragmenting");}
+
+      // the sibling links and parents still work for updates
+      for(long k = 1; k < max; k += 2)
+         {bt.deleteKey(k, true);}
+      for(int i = 0; i < 50; i++)
+         {bt.insertKey(42, "e" + i, uniqueEntries);}
+      if(bt.searchKey(42, false).getValues().size() != dups + 50 ||
+              bt.countRange(0, max - 1) != bt.rangeSearch(0, max - 1, true).getQueryResult().size())
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " can't be updated after defragmenting");}
+   }
+
+   /**
+    * Test defragmenting between random updates, range deletes and deferred
+    * merges, which leave the back pointers of overflow list heads pointing
+    * to pages that were freed (or reused) in the meantime.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testDefragmentAfterDeferredMerges() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+      btConf256.setDeferredMerge(true);
+      btConf1024.setDeferredMerge(true);
+      btConf2048.setDeferredMerge(true);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkDefragmentAfterDeferredMerges(bt256, 256);
+      checkDefragmentAfterDeferredMerges(bt1024, 1024);
+      checkDefragmentAfterDeferredMerges(bt2048, 2048);
+   }
+
+   /**
+    * Run random inserts (with long duplicate lists), deletes, range deletes
+    * and compactions, then defragment in small steps and check the contents
+    * against the expected value counts.
+    *
+    * @param bt the tree to use
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkDefragmentAfterDeferredMerges(BPlusTree bt, int pageSize)
+           throws Exception {
+      int max = 5000;
+      Random rand = new Random(5);
+      TreeMap<Long, Integer> expected = new TreeMap<>();
+      for(int round = 0; round < 2; round++) {
+         for(int op = 0; op < 6000; op++) {
+            int c = rand.nextInt(100);
+            long k = rand.nextInt(max);
+            if(c < 55) {
+               // a few keys get most of the duplicates
+               if(c < 20)
+                  {k = (k % 10) * (max / 10);}
+               bt.insertKey(k, "v" + op, uniqueEntries);
+               expected.merge(k, 1, Integer::sum);
+            }
+            else if(c < 80) {
+               bt.deleteKey(k, false);
+               expected.remove(k);
+            }
+            else if(c < 90) {
+               if(bt.deleteKey(k, true).isFound())
+                  {expected.computeIfPresent(k, (x, n) -> n > 1 ? n - 1 : null);}
+            }
+            else if(c < 92) {
+               long hi = k + rand.nextInt(200);
+               bt.deleteRange(k, hi);
+               expected.subMap(k, true, hi, true).clear();
+            }
+            else
+               {bt.compact(1 + rand.nextInt(4));}
+         }
+
+         // merges moved overflow lists to other leaves and freed the old ones
+         while(bt.defragment(1 + rand.nextInt(8)) > 0) {}
+         TreeMap<Long, Integer> found = new TreeMap<>();
+         for(KeyValueWrapper kv : bt.rangeSearch(0, max, false).getQueryResult())
+            {found.merge(kv.getKey(), 1, Integer::sum);}
+         if(!found.equals(expected) || bt.analyze().getBackwardLeafLinks() != 0)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " is broken after defragmenting in round " + round);}
+      }
+   }
+
+   /**
+    * Test that deletes only rewrite the internal nodes on their path when
+    * they actually remove a key.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testDeleteWritesOnlyChangedNodes() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      // finally setup the tree instances
+      bt256 = new BPlusTree(btConf256, recreateTree ? "rw+" : "rw",
+              "tree256.bin", bPerf256);
+      bt1024 = new BPlusTree(btConf1024, recreateTree ? "rw+" : "rw",
+              "tree1024.bin", bPerf1024);
+      bt2048 = new BPlusTree(btConf2048, recreateTree ? "rw+" : "rw",
+              "tree2048.bin", bPerf2048);
+
+      checkDeleteWrites(bt256, bPerf256, 256);
+      checkDeleteWrites(bt1024, bPerf1024, 1024);
+      checkDeleteWrites(bt2048, bPerf2048, 2048);
+   }
+
+   /**
+    * Delete missing keys and single duplicates, which leave the entry
+    * counts of the internal nodes as they are, then a key that is there.
+    *
+    * @param bt the tree to use
+    * @param bPerf the counter of the tree
+    * @param pageSize page size (just for the messages)
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private void checkDeleteWrites(BPlusTree bt, BPlusTreePerformanceCounter bPerf,
+                                  int pageSize) throws Exception {
+      int max = 20000;
+      // random order, so that no leaf is left under-full to be merged
+      ArrayList<Long> keys = new ArrayList<>();
+      for(long k = 0; k < max; k += 2)
+         {keys.add(k);}
+      Collections.shuffle(keys, new Random(pageSize));
+      for(long k : keys)
+         {bt.insertKey(k, "v" + k, uniqueEntries);}
+      for(int i = 0; i < 50; i++)
+         {bt.insertKey(42, "d" + i, uniqueEntries);}
+      if(bt.getHeight() < 3)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " is too short to have internal nodes on the path");}
+
+      for(long k = 1; k < max; k += 50) {
+         int[] res = bPerf.deleteIO(k, uniqueEntries, false);
+         if(res[8] != 0 || res[3] != 0)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " wrote " + res[3] + " internal nodes deleting missing key " + k);}
+      }
+      for(int i = 0; i < 10; i++) {
+         int[] res = bPerf.deleteIO(42, true, false);
+         if(res[8] != 1 || res[3] != 0)
+            {throw new Exception("BTree with page size: " + pageSize +
+                    " wrote " + res[3] + " internal nodes deleting a duplicate");}
+      }
+
+      // removing a key changes the counts all the way up
+      int[] res = bPerf.deleteIO(100, uniqueEntries, false);
+      if(res[8] != 1 || res[3] != bt.getHeight() - 1 ||
+              bt.countRange(0, max) != max / 2 - 1)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " wrote " + res[3] + " internal nodes deleting a key");}
+   }
+
+   /**
+    * Test that the options of the configuration (which are not stored in
+    * the tree file) survive reopening an existing tree.
+    *
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   @Test
+   public void testReopenKeepsOptions() throws Exception {
+      uniqueEntries = false;
+      recreateTree = true;
+
+      // initialize the configuration
+      btConf256 = new BPlusConfiguration(256);
+      btConf1024 = new BPlusConfiguration(1024);
+      btConf2048 = new BPlusConfiguration(2048);
+
+      // set up the the counters for each tree
+      bPerf256 = new BPlusTreePerformanceCounter(true);
+      bPerf1024 = new BPlusTreePerformanceCounter(true);
+      bPerf2048 = new BPlusTreePerformanceCounter(true);
+
+      bt256 = checkReopenOptions(btConf256, bPerf256, "tree256.bin", 256);
+      bt1024 = checkReopenOptions(btConf1024, bPerf1024, "tree1024.bin", 1024);
+      bt2048 = checkReopenOptions(btConf2048, bPerf2048, "tree2048.bin", 2048);
+   }
+
+   /**
+    * Create a tree with non default options, close it and open it again
+    * with the same configuration.
+    *
+    * @param conf the configuration to use
+    * @param bPerf the counter of the tree
+    * @param path the tree file
+    * @param pageSize page size (just for the messages)
+    * @return the reopened tree
+    * @throws Exception is thrown when an error is catch'ed in any of the operations performed.
+    */
+   private BPlusTree checkReopenOptions(BPlusConfiguration conf,
+                                       BPlusTreePerformanceCounter bPerf,
+                                       String path, int pageSize) throws Exception {
+      conf.setKeyCompression(false);
+      conf.setPostingListCompression(true);
+      conf.setInlineDuplicateLimit(0);
+      conf.setLeafFillFactor(70);
+      conf.setLazyMerge(true);
+      conf.setDeferredMerge(true);
+      conf.setConditionThreshold(500);
+
+      BPlusTree bt = new BPlusTree(conf, "rw+", path, bPerf);
+      for(long k = 0; k < 2000; k++)
+         {bt.insertKey(k, "v" + k, uniqueEntries);}
+      for(int i = 0; i < 20; i++)
+         {bt.insertKey(42, "d" + i, uniqueEntries);}
+      bt.commitTree();
+
+      bt = new BPlusTree(conf, "rw", path, bPerf);
+      BPlusConfiguration c = bt.getTreeConfiguration();
+      if(c.getPageSize() != pageSize || c.isKeyCompressionEnabled() ||
+              !c.isPostingListCompression() || c.getInlineDuplicateLimit() != 0 ||
+              c.getLeafFillFactor() != 70 || !c.isLazyMerge() || !c.isDeferredMerge() ||
+              c.getConditionThreshold() != 500)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " lost its options when reopened");}
+      if(bt.countRange(0, 2000) != 2000 || bt.searchKey(42, false).getValues().size() != 21)
+         {throw new Exception("BTree with page size: " + pageSize +
+                 " has different contents when reopened");}
+      return(bt);
+   }
+
 }